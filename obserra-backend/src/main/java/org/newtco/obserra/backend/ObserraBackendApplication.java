@@ -2,6 +2,7 @@ package org.newtco.obserra.backend;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
@@ -10,7 +11,8 @@ import org.springframework.scheduling.annotation.EnableScheduling;
  * This Spring Boot application provides monitoring and management capabilities
  * for Spring Boot applications through their Actuator endpoints.
  */
-@SpringBootApplication
+// The storage configures its own data source, and only when the JDBC storage is selected
+@SpringBootApplication(exclude = DataSourceAutoConfiguration.class)
 @EnableScheduling
 public class ObserraBackendApplication {
 
@@ -0,0 +1,117 @@
+package org.newtco.obserra.backend.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client for requests between cluster members.
+ */
+@Component
+public class ClusterClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterClient.class);
+
+    /**
+     * Header marking requests which were already forwarded by a member, so they are never forwarded again.
+     */
+    public static final String FORWARDED_HEADER = "X-Obserra-Forwarded";
+
+    private final ClusterRouter router;
+    private final RestTemplate  restTemplate;
+
+    @Autowired
+    public ClusterClient(
+            ClusterRouter router,
+            RestTemplateBuilder restTemplateBuilder,
+            @Value("${obserra.cluster.timeout-ms:2000}") long timeoutMs) {
+        this.router = router;
+        this.restTemplate = restTemplateBuilder
+                .connectTimeout(Duration.ofMillis(timeoutMs))
+                .readTimeout(Duration.ofMillis(timeoutMs))
+                .defaultHeader(FORWARDED_HEADER, "true")
+                .build();
+    }
+
+    /**
+     * Query all live peers in parallel and combine their results. Peers which fail to answer are skipped, so the
+     * result covers the reachable part of the cluster.
+     *
+     * @param pathAndQuery the path and encoded query to request from each peer
+     * @param type         the type of each peer's result
+     * @return the results of all peers which answered
+     */
+    public <T> List<T> fanOut(String pathAndQuery, ParameterizedTypeReference<List<T>> type) {
+        List<ClusterMember> peers = router.peers();
+        List<T> results = new ArrayList<>();
+        if (peers.isEmpty()) {
+            return results;
+        }
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<List<T>>> futures = new ArrayList<>(peers.size());
+            for (ClusterMember peer : peers) {
+                futures.add(executor.submit(() -> restTemplate.exchange(
+                        URI.create(peer.url() + pathAndQuery), HttpMethod.GET, null, type).getBody()));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    List<T> result = futures.get(i).get();
+                    if (result != null) {
+                        results.addAll(result);
+                    }
+                } catch (ExecutionException e) {
+                    logger.warn("Cluster member {} failed to answer {}: {}", peers.get(i).url(), pathAndQuery,
+                                e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return results;
+    }
+
+    /**
+     * Forward a request to another member and return its response as is.
+     *
+     * @param member       the member
+     * @param method       the request method
+     * @param pathAndQuery the path and encoded query
+     * @param headers      the request headers to pass on
+     * @param body         the request body, or null
+     * @return the member's response, including error responses
+     * @throws RestClientException if the member cannot be reached
+     */
+    public ResponseEntity<byte[]> forward(ClusterMember member, HttpMethod method, String pathAndQuery,
+                                          HttpHeaders headers, byte[] body) {
+        try {
+            return restTemplate.exchange(URI.create(member.url() + pathAndQuery), method,
+                                         new HttpEntity<>(body, headers), byte[].class);
+        } catch (HttpStatusCodeException e) {
+            return ResponseEntity.status(e.getStatusCode())
+                    .headers(e.getResponseHeaders())
+                    .body(e.getResponseBodyAsByteArray());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.newtco.obserra.backend.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Forwards requests for a service to the cluster member which holds the service's data.
+ * <p>
+ * Every request under {@code /api/services/{id}} is handled by the member which created the ID. Requests for IDs of
+ * other members are passed on to them unchanged, so clients can talk to any member.
+ */
+@Component
+public class ClusterForwardingFilter extends OncePerRequestFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterForwardingFilter.class);
+
+    private static final Pattern SERVICE_PATH = Pattern.compile("^/api/services/(\\d+)(/.*)?$");
+
+    private final ClusterRouter router;
+    private final ClusterClient client;
+    private final ObjectMapper  objectMapper;
+
+    @Autowired
+    public ClusterForwardingFilter(ClusterRouter router, ClusterClient client, ObjectMapper objectMapper) {
+        this.router = router;
+        this.client = client;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !router.isEnabled() || request.getHeader(ClusterClient.FORWARDED_HEADER) != null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        Matcher matcher = SERVICE_PATH.matcher(path);
+        if (!matcher.matches()) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        ClusterMember member = router.memberOf(Long.parseLong(matcher.group(1)));
+        if (member.equals(router.self())) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String pathAndQuery = request.getQueryString() != null ? path + "?" + request.getQueryString() : path;
+        HttpHeaders headers = new HttpHeaders();
+        if (request.getContentType() != null) {
+            headers.set(HttpHeaders.CONTENT_TYPE, request.getContentType());
+        }
+        if (request.getHeader(HttpHeaders.ACCEPT) != null) {
+            headers.set(HttpHeaders.ACCEPT, request.getHeader(HttpHeaders.ACCEPT));
+        }
+        byte[] body = request.getInputStream().readAllBytes();
+
+        ResponseEntity<byte[]> forwarded;
+        try {
+            forwarded = client.forward(member, HttpMethod.valueOf(request.getMethod()), pathAndQuery, headers,
+                                       body.length > 0 ? body : null);
+        } catch (RestClientException e) {
+            logger.warn("Failed to forward {} to cluster member {}: {}", pathAndQuery, member.url(), e.getMessage());
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            objectMapper.writeValue(response.getOutputStream(), Map.of("error", "Cluster member unavailable"));
+            return;
+        }
+
+        response.setStatus(forwarded.getStatusCode().value());
+        MediaType contentType = forwarded.getHeaders().getContentType();
+        if (contentType != null) {
+            response.setContentType(contentType.toString());
+        }
+        if (forwarded.getBody() != null) {
+            response.getOutputStream().write(forwarded.getBody());
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package org.newtco.obserra.backend.cluster;
+
+/**
+ * A backend instance which takes part in the cluster.
+ *
+ * @param index the member's position in the configured member list, which is the same on every member
+ * @param url   the base URL under which the member's API is reachable
+ */
+public record ClusterMember(int index, String url) {}
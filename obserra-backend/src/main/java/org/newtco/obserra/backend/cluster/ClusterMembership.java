@@ -0,0 +1,41 @@
+package org.newtco.obserra.backend.cluster;
+
+import java.util.List;
+
+/**
+ * Source of the members of the backend cluster.
+ * <p>
+ * Every member must see the same list of members in the same order, since service IDs are partitioned by the position
+ * of the member which created them. Liveness may differ between members for short periods; services are reassigned as
+ * soon as a member notices the change.
+ */
+public interface ClusterMembership {
+
+    /**
+     * Check whether the backend runs as part of a cluster.
+     *
+     * @return false if this instance handles all services on its own
+     */
+    boolean isEnabled();
+
+    /**
+     * Get this instance.
+     *
+     * @return the member for this instance
+     */
+    ClusterMember self();
+
+    /**
+     * Get all configured members, whether reachable or not.
+     *
+     * @return the members, ordered by index
+     */
+    List<ClusterMember> members();
+
+    /**
+     * Get the members which are currently reachable, including this instance.
+     *
+     * @return the live members, ordered by index
+     */
+    List<ClusterMember> liveMembers();
+}
@@ -0,0 +1,129 @@
+package org.newtco.obserra.backend.cluster;
+
+import org.newtco.obserra.backend.model.RegistrationSource;
+import org.newtco.obserra.backend.model.Service;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Decides which cluster member collects and serves each service.
+ * <p>
+ * Services discovered from Kubernetes are known to every member, and are divided among the live members by rendezvous
+ * hashing of their application ID, or of their namespace and pod name: every member computes a weight for each
+ * service and member, and the member with the highest weight owns the service. When a member joins or leaves, only the
+ * services it gains or loses move. Services which registered themselves are only known to the member which received
+ * the registration, so that member always owns them.
+ * <p>
+ * Service IDs are partitioned by member, so any member can tell which member created an ID and route requests for it
+ * there.
+ */
+@Component
+public class ClusterRouter {
+
+    private final ClusterMembership membership;
+
+    @Autowired
+    public ClusterRouter(ClusterMembership membership) {
+        this.membership = membership;
+    }
+
+    public boolean isEnabled() {
+        return membership.isEnabled();
+    }
+
+    public ClusterMember self() {
+        return membership.self();
+    }
+
+    /**
+     * Check whether this member owns a service, i.e. collects it and serves its data.
+     *
+     * @param service the service
+     * @return true if the service is owned by this member
+     */
+    public boolean isLocal(Service service) {
+        if (!membership.isEnabled() || !isSharded(service)) {
+            return true;
+        }
+        return ownerOf(shardKey(service)).equals(membership.self());
+    }
+
+    /**
+     * Get the live member which owns a key.
+     *
+     * @param key the shard key
+     * @return the owning member
+     */
+    public ClusterMember ownerOf(String key) {
+        List<ClusterMember> live = membership.liveMembers();
+        long keyHash = hash(key);
+
+        ClusterMember owner = membership.self();
+        long ownerWeight = Long.MIN_VALUE;
+        for (ClusterMember member : live) {
+            long weight = mix(keyHash ^ mix(hash(member.url())));
+            if (weight > ownerWeight) {
+                owner = member;
+                ownerWeight = weight;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Get the member which created a service ID, and so holds the service's data.
+     *
+     * @param serviceId the service ID
+     * @return the member
+     */
+    public ClusterMember memberOf(long serviceId) {
+        List<ClusterMember> members = membership.members();
+        return members.get((int) Math.floorMod(serviceId, (long) members.size()));
+    }
+
+    /**
+     * Get the live members other than this one.
+     *
+     * @return the peers
+     */
+    public List<ClusterMember> peers() {
+        return membership.liveMembers().stream()
+                .filter(member -> !member.equals(membership.self()))
+                .toList();
+    }
+
+    private static boolean isSharded(Service service) {
+        return service.getRegistrationSource() == RegistrationSource.KUBERNETES && service.getPodName() != null;
+    }
+
+    private static String shardKey(Service service) {
+        if (service.getAppId() != null) {
+            return service.getAppId();
+        }
+        return service.getNamespace() + "/" + service.getPodName();
+    }
+
+    /**
+     * FNV-1a hash of a string's UTF-8 bytes.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreading every input bit over the whole result.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,182 @@
+package org.newtco.obserra.backend.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster membership from a static list of member URLs.
+ * <p>
+ * Every member is configured with the same comma-separated list in {@code obserra.cluster.members} and its own entry of
+ * that list in {@code obserra.cluster.self-url}. Peers are considered live while they answer a periodic heartbeat.
+ * When clustering is disabled, this instance is the only member.
+ * <p>
+ * The heartbeat runs on its own thread, so that it is not delayed by other scheduled tasks, and probes all peers in
+ * parallel, so that a round takes at most one request timeout however many peers are unreachable.
+ */
+@Component
+@ConditionalOnProperty(name = "obserra.cluster.membership", havingValue = "static", matchIfMissing = true)
+public class StaticClusterMembership implements ClusterMembership, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticClusterMembership.class);
+
+    private final boolean             enabled;
+    private final ClusterMember       self;
+    private final List<ClusterMember> members;
+    private final RestTemplate        restTemplate;
+    private final ScheduledExecutorService heartbeatScheduler;
+    private volatile List<ClusterMember> liveMembers;
+
+    @Autowired
+    public StaticClusterMembership(
+            RestTemplateBuilder restTemplateBuilder,
+            @Value("${obserra.cluster.enabled:false}") boolean enabled,
+            @Value("${obserra.cluster.self-url:}") String selfUrl,
+            @Value("${obserra.cluster.members:}") String members,
+            @Value("${obserra.cluster.heartbeat-ms:5000}") long heartbeatMs,
+            @Value("${obserra.cluster.timeout-ms:2000}") long timeoutMs) {
+        this.restTemplate = restTemplateBuilder
+                .connectTimeout(Duration.ofMillis(timeoutMs))
+                .readTimeout(Duration.ofMillis(timeoutMs))
+                .build();
+
+        List<String> urls = Arrays.stream(members.split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .map(StaticClusterMembership::normalize)
+                .toList();
+        int selfIndex = urls.indexOf(normalize(selfUrl.trim()));
+
+        if (!enabled) {
+            this.enabled = false;
+            this.self = new ClusterMember(0, normalize(selfUrl.trim()));
+            this.members = List.of(self);
+        } else if (selfIndex < 0) {
+            throw new IllegalStateException(
+                    "obserra.cluster.self-url '" + selfUrl + "' must be one of obserra.cluster.members");
+        } else {
+            this.enabled = true;
+            List<ClusterMember> configured = new ArrayList<>(urls.size());
+            for (int i = 0; i < urls.size(); i++) {
+                configured.add(new ClusterMember(i, urls.get(i)));
+            }
+            this.members = List.copyOf(configured);
+            this.self = this.members.get(selfIndex);
+            logger.info("Cluster enabled as member {} of {}: {}", selfIndex, urls.size(), urls);
+        }
+        // Assume every member is live until the first heartbeat says otherwise
+        this.liveMembers = this.members;
+
+        if (this.enabled) {
+            this.heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("obserra-cluster-heartbeat").daemon().factory());
+            heartbeatScheduler.scheduleWithFixedDelay(this::heartbeatQuietly, heartbeatMs, heartbeatMs,
+                                                      TimeUnit.MILLISECONDS);
+        } else {
+            this.heartbeatScheduler = null;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public ClusterMember self() {
+        return self;
+    }
+
+    @Override
+    public List<ClusterMember> members() {
+        return members;
+    }
+
+    @Override
+    public List<ClusterMember> liveMembers() {
+        return liveMembers;
+    }
+
+    @Override
+    public void destroy() {
+        if (heartbeatScheduler != null) {
+            heartbeatScheduler.shutdownNow();
+        }
+    }
+
+    private void heartbeatQuietly() {
+        try {
+            heartbeat();
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule
+            logger.warn("Cluster heartbeat failed", e);
+        }
+    }
+
+    /**
+     * Check which peers are reachable, probing them in parallel.
+     */
+    void heartbeat() {
+        List<ClusterMember> live = new ArrayList<>(members.size());
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<Boolean>> probes = new ArrayList<>(members.size());
+            for (ClusterMember member : members) {
+                probes.add(member.equals(self) ? null : executor.submit(() -> isReachable(member)));
+            }
+
+            for (int i = 0; i < members.size(); i++) {
+                Future<Boolean> probe = probes.get(i);
+                if (probe == null || probe.get()) {
+                    live.add(members.get(i));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            // isReachable handles request failures, so this is unexpected
+            logger.warn("Cluster heartbeat probe failed", e.getCause());
+            return;
+        }
+
+        if (!live.equals(liveMembers)) {
+            logger.info("Cluster membership changed, live members: {}",
+                        live.stream().map(ClusterMember::url).toList());
+            liveMembers = List.copyOf(live);
+        }
+    }
+
+    private boolean isReachable(ClusterMember member) {
+        try {
+            restTemplate.getForObject(member.url() + "/api/cluster", String.class);
+            return true;
+        } catch (RestClientException | CancellationException e) {
+            // The JDK HTTP client reports a read timeout by cancelling the request
+            logger.debug("Cluster member {} is unreachable: {}", member.url(), e.getMessage());
+            return false;
+        }
+    }
+
+    private static String normalize(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+}
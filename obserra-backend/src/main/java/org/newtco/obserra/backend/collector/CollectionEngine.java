@@ -0,0 +1,196 @@
+package org.newtco.obserra.backend.collector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Concurrent execution engine for data collection.
+ * <p>
+ * Every task runs on its own virtual thread. Requests against monitored services are capped globally and per target
+ * host, and each one is bounded by a deadline so that a slow target is abandoned instead of holding up the rest of the
+ * fleet.
+ */
+@Component
+public class CollectionEngine implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectionEngine.class);
+
+    private final ExecutorService        executor;
+    private final Semaphore              globalPermits;
+    private final int                    maxPerHost;
+    private final Map<String, HostPermits> hostPermits = new ConcurrentHashMap<>();
+
+    @Autowired
+    public CollectionEngine(
+            @Value("${obserra.collection.max-concurrency:256}") int maxConcurrency,
+            @Value("${obserra.collection.max-per-host:4}") int maxPerHost) {
+        this.executor      = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("obserra-collect-", 0).factory());
+        this.globalPermits = new Semaphore(maxConcurrency, true);
+        this.maxPerHost    = maxPerHost;
+
+        logger.info("Collection engine limited to {} concurrent requests ({} per host)", maxConcurrency, maxPerHost);
+    }
+
+    /**
+     * Submit a task that coordinates other work, such as collecting all endpoints of a single service. These tasks do
+     * not count against the request limits.
+     *
+     * @param task the task to run
+     * @return a future for the task result
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Submit a request against a target URL. The request waits for both a global and a per-host permit, and fails with
+     * a {@link TimeoutException} if the deadline passes before it gets them.
+     *
+     * @param url      the URL the request targets, used to determine the host limit
+     * @param deadline the time after which the request is no longer worth starting
+     * @param request  the request to run
+     * @return a future for the request result
+     */
+    public <T> Future<T> submitRequest(String url, Instant deadline, Callable<T> request) {
+        String hostKey = hostOf(url);
+
+        return executor.submit(() -> {
+            if (!acquire(globalPermits, deadline)) {
+                throw new TimeoutException("Deadline passed waiting for a collection slot for " + hostKey);
+            }
+            try {
+                HostPermits hostLimit = retainHost(hostKey);
+                try {
+                    if (!acquire(hostLimit.permits, deadline)) {
+                        throw new TimeoutException("Deadline passed waiting for a host slot for " + hostKey);
+                    }
+                    try {
+                        return request.call();
+                    } finally {
+                        hostLimit.permits.release();
+                    }
+                } finally {
+                    releaseHost(hostKey);
+                }
+            } finally {
+                globalPermits.release();
+            }
+        });
+    }
+
+    /**
+     * Wait for a task to complete, cancelling it if the deadline passes first.
+     *
+     * @param future   the task to wait for
+     * @param deadline the time after which the task is abandoned
+     * @return the task result
+     * @throws TimeoutException     if the deadline passed before the task completed
+     * @throws ExecutionException   if the task failed
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public <T> T await(Future<T> future, Instant deadline)
+            throws TimeoutException, ExecutionException, InterruptedException {
+        try {
+            return future.get(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Drop the permit pools of hosts which currently have no requests in flight, so the pool map does not keep growing
+     * as targets come and go.
+     */
+    public void pruneIdleHosts() {
+        // Removal happens under the same lock which registers users, so no caller can hold a removed pool
+        for (String hostKey : hostPermits.keySet()) {
+            hostPermits.computeIfPresent(hostKey, (key, host) -> host.users == 0 ? null : host);
+        }
+    }
+
+    /**
+     * Get the permit pool of a host, registering the caller as a user so the pool is not pruned until the caller
+     * releases it.
+     */
+    private HostPermits retainHost(String hostKey) {
+        return hostPermits.compute(hostKey, (key, host) -> {
+            if (host == null) {
+                host = new HostPermits(new Semaphore(maxPerHost, true));
+            }
+            host.users++;
+            return host;
+        });
+    }
+
+    private void releaseHost(String hostKey) {
+        hostPermits.computeIfPresent(hostKey, (key, host) -> {
+            host.users--;
+            return host;
+        });
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    private static boolean acquire(Semaphore semaphore, Instant deadline) throws InterruptedException {
+        return semaphore.tryAcquire(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+    }
+
+    private static long remainingNanos(Instant deadline) {
+        return Math.max(0, Duration.between(Instant.now(), deadline).toNanos());
+    }
+
+    /**
+     * Get the host and port a URL targets, which is the unit the per-host limit is applied to.
+     *
+     * @param url the URL
+     * @return the host key for the URL
+     */
+    static String hostOf(String url) {
+        try {
+            URI uri = URI.create(url);
+            if (uri.getHost() != null) {
+                return uri.getPort() > 0 ? uri.getHost() + ":" + uri.getPort() : uri.getHost();
+            }
+        } catch (IllegalArgumentException e) {
+            logger.debug("Unable to parse collection URL {}: {}", url, e.getMessage());
+        }
+
+        return String.valueOf(url);
+    }
+
+    /**
+     * The permits of a host and the number of callers waiting for or holding them. The count is only changed inside
+     * the map's compute functions, which serializes it with pruning.
+     */
+    private static final class HostPermits {
+
+        private final Semaphore permits;
+        private int             users;
+
+        HostPermits(Semaphore permits) {
+            this.permits = permits;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.newtco.obserra.backend.collector;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Schedule of when each service is next due for collection.
+ * <p>
+ * Services are kept in a priority queue ordered by their next due time, so polling for due services only touches the
+ * services which are actually due. Each service is collected on its own interval, and every interval is jittered so
+ * that services registered at the same moment do not stay in lock-step.
+ */
+public class CollectionSchedule {
+
+    private final PriorityQueue<Entry> queue   = new PriorityQueue<>(Comparator.comparingLong(Entry::dueAt));
+    private final Map<Long, Entry>     entries = new HashMap<>();
+    private final double               jitter;
+
+    /**
+     * @param jitter the fraction by which each interval is randomly lengthened or shortened, e.g. 0.1 for +/-10%
+     */
+    public CollectionSchedule(double jitter) {
+        this.jitter = Math.max(0, Math.min(jitter, 1));
+    }
+
+    /**
+     * Add a service to the schedule. The first collection is spread randomly over the service's interval.
+     *
+     * @param serviceId the service ID
+     * @param interval  the collection interval of the service
+     * @param nowMillis the current time in epoch milliseconds
+     * @return true if the service was added, false if it was already scheduled
+     */
+    public synchronized boolean schedule(long serviceId, Duration interval, long nowMillis) {
+        if (entries.containsKey(serviceId)) {
+            return false;
+        }
+
+        Entry entry = new Entry(serviceId, nowMillis + ThreadLocalRandom.current().nextLong(interval.toMillis() + 1));
+        entries.put(serviceId, entry);
+        queue.add(entry);
+        return true;
+    }
+
+    /**
+     * Check whether a service is on the schedule.
+     *
+     * @param serviceId the service ID
+     * @return true if the service is scheduled
+     */
+    public synchronized boolean isScheduled(long serviceId) {
+        return entries.containsKey(serviceId);
+    }
+
+    /**
+     * Remove all services which are due from the schedule. Each returned service must either be passed back to
+     * {@link #reschedule(long, Duration, long)} or {@link #cancel(long)}.
+     *
+     * @param nowMillis the current time in epoch milliseconds
+     * @return the IDs of the due services, most overdue first
+     */
+    public synchronized List<Long> pollDue(long nowMillis) {
+        List<Long> due = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().dueAt() <= nowMillis) {
+            Entry entry = queue.poll();
+            if (entries.get(entry.serviceId()) == entry) {
+                due.add(entry.serviceId());
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Put a service which was returned from {@link #pollDue(long)} back on the schedule, one jittered interval later.
+     *
+     * @param serviceId the service ID
+     * @param interval  the collection interval of the service
+     * @param nowMillis the current time in epoch milliseconds
+     */
+    public synchronized void reschedule(long serviceId, Duration interval, long nowMillis) {
+        Entry entry = new Entry(serviceId, nowMillis + jittered(interval.toMillis()));
+        entries.put(serviceId, entry);
+        queue.add(entry);
+    }
+
+    /**
+     * Remove a service from the schedule. A pending queue entry is discarded when it comes due.
+     *
+     * @param serviceId the service ID
+     */
+    public synchronized void cancel(long serviceId) {
+        entries.remove(serviceId);
+    }
+
+    /**
+     * Get the number of scheduled services.
+     *
+     * @return the number of scheduled services
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private long jittered(long intervalMillis) {
+        if (jitter == 0) {
+            return intervalMillis;
+        }
+
+        double factor = 1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter);
+        return Math.max(1, Math.round(intervalMillis * factor));
+    }
+
+    private record Entry(long serviceId, long dueAt) {}
+}
@@ -1,5 +1,7 @@
 package org.newtco.obserra.backend.collector;
 
+import org.newtco.obserra.backend.model.Service;
+
 public interface Collector {
     boolean collect(Service service);
 }
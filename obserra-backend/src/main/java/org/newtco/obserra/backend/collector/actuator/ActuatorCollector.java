@@ -1,21 +1,48 @@
 package org.newtco.obserra.backend.collector.actuator;
 
-import org.newtco.obserra.backend.collector.Collector;
+import org.newtco.obserra.backend.model.ActuatorEndpoint;
+import org.newtco.obserra.backend.model.Service;
 
 /**
  * Interface for collecting data from a specific type of actuator endpoint.
  * Implementations of this interface will handle different types of endpoints (metrics, logs, etc.)
  */
-public interface ActuatorCollector extends Collector {
+public interface ActuatorCollector {
 
     /**
      * Get the type of endpoint this collector handles
      *
      * @return The endpoint type (e.g., "metrics", "health", "logfile")
      */
-    String getName();
+    String getEndpointType();
+
+    /**
+     * Check whether this collector can collect data from an endpoint
+     *
+     * @param endpoint The endpoint
+     * @return true if the endpoint is of the type this collector handles
+     */
+    boolean canHandle(ActuatorEndpoint endpoint);
+
+    /**
+     * Collect data from an endpoint of a service
+     *
+     * @param service The service to collect data from
+     * @param endpoint The endpoint to collect data from
+     * @return true if the data was collected
+     */
+    boolean collectData(Service service, ActuatorEndpoint endpoint);
 
     default boolean canCollect(ActuatorEndpoint endpoint) {
-        return endpoint.getType().equals(getName());
+        return canHandle(endpoint);
+    }
+
+    /**
+     * Drop any state kept for a service which is no longer collected, such as after it was deleted or moved to another
+     * cluster member.
+     *
+     * @param serviceId the service ID
+     */
+    default void forgetService(Long serviceId) {
     }
 }
\ No newline at end of file
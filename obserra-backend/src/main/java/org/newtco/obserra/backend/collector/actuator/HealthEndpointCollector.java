@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.newtco.obserra.backend.model.ActuatorEndpoint;
 import org.newtco.obserra.backend.model.Service;
 import org.newtco.obserra.backend.model.ServiceStatus;
+import org.newtco.obserra.backend.push.LiveUpdatePublisher;
 import org.newtco.obserra.backend.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,15 +31,18 @@ public class HealthEndpointCollector implements ActuatorCollector {
     private final Storage storage;
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper;
+    private final LiveUpdatePublisher liveUpdates;
 
     @Autowired
     public HealthEndpointCollector(
             Storage storage,
             RestTemplateBuilder restTemplateBuilder,
             ObjectMapper objectMapper,
+            LiveUpdatePublisher liveUpdates,
             @Value("${obserra.health.timeout-ms:5000}") int healthTimeoutMs) {
         this.storage = storage;
         this.objectMapper = objectMapper;
+        this.liveUpdates = liveUpdates;
 
         // Configure RestTemplate with timeout
         this.restTemplate = restTemplateBuilder
@@ -126,12 +130,16 @@ public class HealthEndpointCollector implements ActuatorCollector {
      * @param status The new status
      */
     private void updateServiceStatus(Service service, ServiceStatus status) {
-        if (service.getStatus() != status) {
+        boolean changed = service.getStatus() != status;
+        if (changed) {
             logger.info("Service {} status changed from {} to {}", 
                     service.getName(), service.getStatus(), status);
         }
 
         storage.updateServiceStatus(service.getId(), status);
-        storage.updateServiceLastSeen(service.getId());
+        Service updated = storage.updateServiceLastSeen(service.getId());
+        if (changed) {
+            liveUpdates.publishStatus(updated);
+        }
     }
 }
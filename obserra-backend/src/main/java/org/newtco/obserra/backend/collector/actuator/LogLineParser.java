@@ -0,0 +1,365 @@
+package org.newtco.obserra.backend.collector.actuator;
+
+import org.newtco.obserra.backend.model.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass parser for log file content, working directly on the bytes fetched from the actuator logfile endpoint.
+ * <p>
+ * Lines are found by scanning for newlines and each line is parsed in place, without splitting the content or
+ * matching a regular expression. A line which starts with a timestamp starts a new entry. The fields following the
+ * timestamp are recognized in any order, which covers the Spring Boot 2 and 3 default file patterns as well as the
+ * common logback patterns:
+ * <pre>
+ * 2024-01-15T10:23:45.123+01:00  INFO 12345 --- [app] [main] o.s.b.StartupInfoLogger : Started
+ * 2024-01-15 10:23:45.123  INFO 12345 --- [           main] o.s.b.StartupInfoLogger  : Started
+ * 2024-01-15 10:23:45.123 INFO [main] Started
+ * 10:23:45.123 [main] INFO  com.example.Application - Started
+ * </pre>
+ * Lines without a timestamp which follow an entry, such as the lines of a stack trace, are folded into that entry's
+ * message. Lines without a timestamp before the first entry become entries of their own.
+ */
+public final class LogLineParser {
+
+    // Bounds the message of an entry with a very long stack trace
+    private static final int MAX_MESSAGE_LENGTH = 32 * 1024;
+
+    private static final String[] LEVELS = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL"};
+
+    private LogLineParser() {
+    }
+
+    /**
+     * Parse the log entries in a range of bytes, which must end with a complete line.
+     *
+     * @param serviceId the ID of the service the logs belong to
+     * @param bytes     the log file content
+     * @param from      the index of the first byte to parse
+     * @param to        the index after the last byte to parse
+     * @param limit     the maximum number of entries to return, counted from the end of the content
+     * @return the parsed entries, oldest first
+     */
+    public static List<Log> parse(Long serviceId, byte[] bytes, int from, int to, int limit) {
+        ArrayDeque<Log> logs = new ArrayDeque<>();
+        Entry current = null;
+
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = lineStart;
+            while (lineEnd < to && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            int contentEnd = lineEnd;
+            if (contentEnd > lineStart && bytes[contentEnd - 1] == '\r') {
+                contentEnd--;
+            }
+
+            if (!isBlank(bytes, lineStart, contentEnd)) {
+                Log log = parseEntry(serviceId, bytes, lineStart, contentEnd);
+                if (log == null && current != null && current.foldable) {
+                    current.fold(bytes, lineStart, contentEnd);
+                } else {
+                    add(logs, current, limit);
+                    if (log != null) {
+                        current = new Entry(log, true);
+                    } else {
+                        // A line which is not a continuation of an entry, logged as is
+                        Log line = new Log();
+                        line.setServiceId(serviceId);
+                        line.setMessage(new String(bytes, lineStart, contentEnd - lineStart, StandardCharsets.UTF_8));
+                        current = new Entry(line, false);
+                    }
+                }
+            }
+
+            lineStart = lineEnd + 1;
+        }
+        add(logs, current, limit);
+
+        return new ArrayList<>(logs);
+    }
+
+    private static void add(ArrayDeque<Log> logs, Entry entry, int limit) {
+        if (entry == null || limit <= 0) {
+            return;
+        }
+        logs.addLast(entry.complete());
+        if (logs.size() > limit) {
+            logs.removeFirst();
+        }
+    }
+
+    /**
+     * Parse a line which starts a new entry.
+     *
+     * @return the entry, or null if the line does not start with a timestamp
+     */
+    private static Log parseEntry(Long serviceId, byte[] bytes, int start, int end) {
+        int p = start;
+
+        // Optional date, followed by a space or a 'T'
+        LocalDate date = null;
+        if (matchesDigits(bytes, p, end, "dddd-dd-dd")) {
+            try {
+                date = LocalDate.of(digits(bytes, p, 4), digits(bytes, p + 5, 2), digits(bytes, p + 8, 2));
+            } catch (DateTimeException e) {
+                return null;
+            }
+            p += 10;
+            if (p >= end || (bytes[p] != ' ' && bytes[p] != 'T')) {
+                return null;
+            }
+            p++;
+        }
+
+        // Time, with optional fractional seconds
+        if (!matchesDigits(bytes, p, end, "dd:dd:dd")) {
+            return null;
+        }
+        int hour = digits(bytes, p, 2);
+        int minute = digits(bytes, p + 3, 2);
+        int second = digits(bytes, p + 6, 2);
+        p += 8;
+
+        int nanos = 0;
+        if (p < end && (bytes[p] == '.' || bytes[p] == ',')) {
+            p++;
+            int scale = 100_000_000;
+            while (p < end && isDigit(bytes[p])) {
+                nanos += (bytes[p] - '0') * scale;
+                scale /= 10;
+                p++;
+            }
+        }
+
+        // Optional zone offset, as 'Z', +HH:MM or +HHMM
+        ZoneOffset offset = null;
+        if (p < end && bytes[p] == 'Z') {
+            offset = ZoneOffset.UTC;
+            p++;
+        } else if (p < end && (bytes[p] == '+' || bytes[p] == '-')) {
+            int sign = bytes[p] == '-' ? -1 : 1;
+            if (matchesDigits(bytes, p + 1, end, "dd:dd")) {
+                offset = offsetOf(sign, digits(bytes, p + 1, 2), digits(bytes, p + 4, 2));
+                p += 6;
+            } else if (matchesDigits(bytes, p + 1, end, "dddd")) {
+                offset = offsetOf(sign, digits(bytes, p + 1, 2), digits(bytes, p + 3, 2));
+                p += 5;
+            }
+        }
+
+        LocalDateTime timestamp;
+        try {
+            timestamp = LocalDateTime.of(date != null ? date : LocalDate.now(),
+                                         LocalTime.of(hour, minute, second, nanos));
+        } catch (DateTimeException e) {
+            return null;
+        }
+        if (offset != null) {
+            timestamp = timestamp.atOffset(offset).atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+        }
+
+        Log log = new Log();
+        log.setServiceId(serviceId);
+        log.setTimestamp(timestamp);
+
+        // Header fields: level, process ID, separator and bracketed application name and thread, in any order
+        boolean levelSeen = false;
+        boolean separator = false;
+        int brackets = 0;
+        while (true) {
+            while (p < end && bytes[p] == ' ') {
+                p++;
+            }
+            if (p >= end) {
+                break;
+            }
+
+            if (bytes[p] == '[') {
+                // Spring Boot 3.2+ writes the application name and the thread in separate brackets after the
+                // separator. Anywhere else, a second bracket belongs to the message.
+                if (log.getThread() != null && !(separator && brackets < 2)) {
+                    break;
+                }
+                int close = indexOf(bytes, p + 1, end, (byte) ']');
+                if (close < 0) {
+                    break;
+                }
+                log.setThread(trimmed(bytes, p + 1, close));
+                brackets++;
+                p = close + 1;
+                continue;
+            }
+
+            int tokenEnd = p;
+            while (tokenEnd < end && bytes[tokenEnd] != ' ') {
+                tokenEnd++;
+            }
+            String level = !levelSeen && !separator ? level(bytes, p, tokenEnd) : null;
+            if (level != null) {
+                log.setLevel(level);
+                levelSeen = true;
+            } else if (levelSeen && !separator && brackets == 0 && isAllDigits(bytes, p, tokenEnd)) {
+                // Process ID
+            } else if (tokenEnd - p == 3 && bytes[p] == '-' && bytes[p + 1] == '-' && bytes[p + 2] == '-') {
+                separator = true;
+            } else {
+                break;
+            }
+            p = tokenEnd;
+        }
+
+        // Logger, followed by " : " in the Spring Boot patterns or " - " in the logback patterns
+        int loggerEnd = p;
+        while (loggerEnd < end && bytes[loggerEnd] != ' ') {
+            loggerEnd++;
+        }
+        int q = loggerEnd;
+        while (q < end && bytes[q] == ' ') {
+            q++;
+        }
+        if (loggerEnd > p && q < end && (bytes[q] == ':' || bytes[q] == '-') && (q + 1 == end || bytes[q + 1] == ' ')
+            && (separator || indexOf(bytes, p, loggerEnd, (byte) '.') >= 0)) {
+            log.setLogger(new String(bytes, p, loggerEnd - p, StandardCharsets.UTF_8));
+            p = Math.min(end, q + 2);
+        }
+
+        log.setMessage(new String(bytes, p, end - p, StandardCharsets.UTF_8));
+        return log;
+    }
+
+    private static boolean isBlank(byte[] bytes, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] != ' ' && bytes[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isAllDigits(byte[] bytes, int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (!isDigit(bytes[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the bytes at a position match a shape, where 'd' stands for any digit and any other character
+     * stands for itself.
+     */
+    private static boolean matchesDigits(byte[] bytes, int start, int end, String shape) {
+        if (end - start < shape.length()) {
+            return false;
+        }
+        for (int i = 0; i < shape.length(); i++) {
+            char c = shape.charAt(i);
+            byte b = bytes[start + i];
+            if (c == 'd' ? !isDigit(b) : b != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int digits(byte[] bytes, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            value = value * 10 + (bytes[i] - '0');
+        }
+        return value;
+    }
+
+    private static ZoneOffset offsetOf(int sign, int hours, int minutes) {
+        try {
+            return ZoneOffset.ofHoursMinutes(sign * hours, sign * minutes);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String trimmed(byte[] bytes, int start, int end) {
+        while (start < end && bytes[start] == ' ') {
+            start++;
+        }
+        while (end > start && bytes[end - 1] == ' ') {
+            end--;
+        }
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the level named by a token, without allocating.
+     *
+     * @return the level constant, or null if the token is not a level
+     */
+    private static String level(byte[] bytes, int start, int end) {
+        for (String level : LEVELS) {
+            if (end - start == level.length() && matchesDigits(bytes, start, end, level)) {
+                return level;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An entry being parsed, which may still have continuation lines folded into it.
+     */
+    private static final class Entry {
+
+        private final Log           log;
+        private final boolean       foldable;
+        private       StringBuilder message;
+
+        Entry(Log log, boolean foldable) {
+            this.log      = log;
+            this.foldable = foldable;
+        }
+
+        void fold(byte[] bytes, int start, int end) {
+            if (message == null) {
+                message = new StringBuilder(log.getMessage());
+            }
+            if (message.length() < MAX_MESSAGE_LENGTH) {
+                message.append('\n').append(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+            }
+        }
+
+        Log complete() {
+            if (message != null) {
+                log.setMessage(message.length() > MAX_MESSAGE_LENGTH
+                               ? message.substring(0, MAX_MESSAGE_LENGTH)
+                               : message.toString());
+            }
+            return log;
+        }
+    }
+}
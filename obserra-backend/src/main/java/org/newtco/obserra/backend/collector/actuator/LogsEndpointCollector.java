@@ -4,25 +4,40 @@ import org.newtco.obserra.backend.model.ActuatorEndpoint;
 import org.newtco.obserra.backend.model.Log;
 import org.newtco.obserra.backend.model.Service;
 import org.newtco.obserra.backend.model.ServiceStatus;
+import org.newtco.obserra.backend.push.LiveUpdatePublisher;
 import org.newtco.obserra.backend.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Collector for logs from the Spring Boot actuator logfile endpoint.
+ * <p>
+ * The log file is tailed incrementally with HTTP range requests. The first collection of a service reads only the tail
+ * of its log file, and remembers the byte offset after the last complete line, along with the last bytes before it.
+ * Each later collection requests only the bytes after that offset, so every line is fetched and stored once, and
+ * starts the range with the remembered bytes. When the log file shrinks below the offset, or the remembered bytes have
+ * changed because the file was rotated and has since grown past the offset, the collector starts over from the tail
+ * of the new file.
  */
 @Component
 public class LogsEndpointCollector implements ActuatorCollector {
@@ -30,22 +45,31 @@ public class LogsEndpointCollector implements ActuatorCollector {
     private static final Logger logger = LoggerFactory.getLogger(LogsEndpointCollector.class);
     private static final String ENDPOINT_TYPE = "logfile";
 
-    // Pattern to match log lines with level, e.g., "2023-04-15 12:34:56.789 INFO [thread] message"
-    private static final Pattern LOG_PATTERN = Pattern.compile(
-            "^(\\d{4}-\\d{2}-\\d{2}\\s\\d{2}:\\d{2}:\\d{2}\\.\\d{3})\\s+(\\w+)\\s+\\[([^\\]]+)\\]\\s+(.+)$");
+    // Number of bytes before the offset which are fetched again to recognize a rotated file
+    private static final int FINGERPRINT_BYTES = 256;
 
     private final Storage storage;
     private final RestTemplate restTemplate;
     private final int logsRecentLimit;
+    private final int logsInitialTailBytes;
+    private final int logsMaxFetchBytes;
+    private final LiveUpdatePublisher liveUpdates;
+    private final Map<Long, LogCursor> cursors = new ConcurrentHashMap<>();
 
     @Autowired
     public LogsEndpointCollector(
             Storage storage,
             RestTemplateBuilder restTemplateBuilder,
+            LiveUpdatePublisher liveUpdates,
             @Value("${obserra.logs.timeout-ms:5000}") int logsTimeoutMs,
-            @Value("${obserra.logs.recent-limit:100}") int logsRecentLimit) {
+            @Value("${obserra.logs.recent-limit:100}") int logsRecentLimit,
+            @Value("${obserra.logs.initial-tail-bytes:65536}") int logsInitialTailBytes,
+            @Value("${obserra.logs.max-fetch-bytes:1048576}") int logsMaxFetchBytes) {
         this.storage = storage;
         this.logsRecentLimit = logsRecentLimit;
+        this.logsInitialTailBytes = logsInitialTailBytes;
+        this.logsMaxFetchBytes = logsMaxFetchBytes;
+        this.liveUpdates = liveUpdates;
 
         // Configure RestTemplate with timeout
         this.restTemplate = restTemplateBuilder
@@ -64,42 +88,33 @@ public class LogsEndpointCollector implements ActuatorCollector {
         return endpoint != null && ENDPOINT_TYPE.equals(endpoint.getType());
     }
 
+    @Override
+    public void forgetService(Long serviceId) {
+        cursors.remove(serviceId);
+    }
+
     @Override
     public boolean collectData(Service service, ActuatorEndpoint endpoint) {
         logger.debug("Collecting logs for service: {} ({})", service.getName(), service.getId());
 
         try {
-            String logsUrl = endpoint.getHref();
-            ResponseEntity<String> response = restTemplate.getForEntity(logsUrl, String.class);
-
-            if (response.getStatusCode().is2xxSuccessful() && response.getBody() != null) {
-                String logContent = response.getBody();
-                List<Log> parsedLogs = parseLogs(service.getId(), logContent);
-
-                if (!parsedLogs.isEmpty()) {
-                    // Store the logs
-                    for (Log log : parsedLogs) {
-                        storage.createLog(log);
-                    }
-
-                    logger.debug("Stored {} logs for service {}", parsedLogs.size(), service.getName());
-
-                    // Update service status to UP if logs collection succeeded
-                    updateServiceStatus(service, ServiceStatus.UP);
-                    return true;
-                } else {
-                    logger.warn("No logs parsed from service {}", service.getName());
-                    // Don't update status if we got a response but no logs were parsed
-                    // This could be normal for a service that hasn't generated any logs yet
-                    return false;
+            List<Log> parsedLogs = collectNewLogs(service, endpoint.getHref());
+
+            // Store the logs, which drops any already stored
+            List<Log> stored = new ArrayList<>(parsedLogs.size());
+            for (Log log : parsedLogs) {
+                Log storedLog = storage.createLog(log);
+                if (storedLog != null) {
+                    stored.add(storedLog);
                 }
-            } else {
-                logger.warn("Failed to collect logs from service {}: HTTP {}", 
-                        service.getName(), response.getStatusCodeValue());
-                // Update service status to DOWN if logs collection failed
-                updateServiceStatus(service, ServiceStatus.DOWN);
-                return false;
             }
+            liveUpdates.publishLogs(service.getId(), stored);
+
+            logger.debug("Stored {} of {} logs for service {}", stored.size(), parsedLogs.size(), service.getName());
+
+            // Update service status to UP if logs collection succeeded, even when nothing new was logged
+            updateServiceStatus(service, ServiceStatus.UP);
+            return true;
         } catch (RestClientException e) {
             logger.warn("Failed to collect logs from service {}: {}", service.getName(), e.getMessage());
             // Update service status to DOWN if logs collection failed
@@ -109,60 +124,110 @@ public class LogsEndpointCollector implements ActuatorCollector {
     }
 
     /**
-     * Parse logs from a log file content.
+     * Fetch and parse the lines appended to a service's log file since the last collection.
      *
-     * @param serviceId the ID of the service the logs belong to
-     * @param logContent the content of the log file
-     * @return a list of parsed logs
+     * @param service the service to collect logs from
+     * @param logsUrl the URL of the service's logfile endpoint
+     * @return the new logs, oldest first
      */
-    private List<Log> parseLogs(Long serviceId, String logContent) {
-        List<Log> logs = new ArrayList<>();
+    private List<Log> collectNewLogs(Service service, String logsUrl) {
+        LogCursor cursor = cursors.get(service.getId());
+        if (cursor != null) {
+            long offset = cursor.offset();
+            long start = offset - cursor.fingerprint().length;
+            LogChunk chunk = fetch(logsUrl, HttpRange.createByteRange(start, offset + logsMaxFetchBytes - 1));
 
-        if (logContent == null || logContent.isEmpty()) {
-            return logs;
+            if (!chunk.partial() && chunk.total() >= offset) {
+                // The server ignored the range and sent the whole file, so skip what was already read
+                byte[] body = chunk.body();
+                chunk = new LogChunk(true, start, chunk.total(), Arrays.copyOfRange(body, (int) start, body.length));
+            }
+            if (chunk.partial() && chunk.start() == start && chunk.total() >= offset && cursor.matches(chunk.body())) {
+                return consume(service.getId(), chunk, cursor.fingerprint().length, false);
+            }
+
+            logger.info("Log file of service {} was rotated or truncated, reading from its tail", service.getName());
         }
 
-        // Split the log content into lines
-        String[] lines = logContent.split("\n");
+        LogChunk chunk = fetch(logsUrl, HttpRange.createSuffixRange(logsInitialTailBytes));
+        return consume(service.getId(), chunk, 0, true);
+    }
 
-        // Process only the most recent lines (up to logsRecentLimit)
-        int startIndex = Math.max(0, lines.length - logsRecentLimit);
+    /**
+     * Fetch a byte range of a log file.
+     *
+     * @param logsUrl the URL of the logfile endpoint
+     * @param range the byte range to fetch
+     * @return the fetched bytes, which are the whole file if the server does not support range requests
+     */
+    private LogChunk fetch(String logsUrl, HttpRange range) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setRange(List.of(range));
 
-        for (int i = startIndex; i < lines.length; i++) {
-            String line = lines[i];
+        try {
+            ResponseEntity<byte[]> response = restTemplate.exchange(
+                    logsUrl, HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+            byte[] body = response.getBody() != null ? response.getBody() : new byte[0];
 
-            if (line.trim().isEmpty()) {
-                continue;
+            if (response.getStatusCode() == HttpStatus.PARTIAL_CONTENT) {
+                String contentRange = response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE);
+                long start = parseContentRangeStart(contentRange);
+                long total = parseContentRangeTotal(contentRange);
+                return new LogChunk(true, start, total >= 0 ? total : start + body.length, body);
+            }
+            if (!response.getStatusCode().is2xxSuccessful()) {
+                throw new RestClientException("HTTP " + response.getStatusCode().value());
+            }
+            return new LogChunk(false, 0, body.length, body);
+        } catch (HttpClientErrorException e) {
+            if (e.getStatusCode() != HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE) {
+                throw e;
             }
 
-            // Try to parse the log line
-            Matcher matcher = LOG_PATTERN.matcher(line);
-
-            if (matcher.matches()) {
-                // Extract log information
-                String timestamp = matcher.group(1);
-                String level = matcher.group(2);
-                String message = matcher.group(4);
-
-                // Create a log entry
-                Log log = new Log();
-                log.setServiceId(serviceId);
-                log.setLevel(level);
-                log.setMessage(message);
-
-                logs.add(log);
-            } else {
-                // If the line doesn't match the pattern, treat it as INFO level
-                Log log = new Log();
-                log.setServiceId(serviceId);
-                log.setLevel("INFO");
-                log.setMessage(line);
-
-                logs.add(log);
+            // The range starts at or past the end of the file: either nothing new was logged, or the file shrank
+            String contentRange = e.getResponseHeaders() != null
+                    ? e.getResponseHeaders().getFirst(HttpHeaders.CONTENT_RANGE)
+                    : null;
+            long total = Math.max(0, parseContentRangeTotal(contentRange));
+            return new LogChunk(true, total, total, new byte[0]);
+        }
+    }
+
+    /**
+     * Parse the complete lines of a fetched chunk and advance the service's cursor past them. A trailing partial line
+     * is left for the next collection.
+     *
+     * @param serviceId the ID of the service the logs belong to
+     * @param chunk the fetched chunk
+     * @param read the number of bytes at the start of the chunk which were read by an earlier collection
+     * @param tail whether the chunk is the tail of the file, rather than the bytes following the cursor
+     * @return the parsed logs
+     */
+    private List<Log> consume(Long serviceId, LogChunk chunk, int read, boolean tail) {
+        byte[] body = chunk.body();
+
+        // A tail which does not start at the beginning of the file most likely starts mid-line
+        int from = read;
+        if (tail && chunk.start() > 0) {
+            from = indexOfNewline(body, 0) + 1;
+            if (from == 0) {
+                from = body.length;
             }
         }
 
-        return logs;
+        int to = lastIndexOfNewline(body) + 1;
+        if (to <= from) {
+            // A single line longer than the fetch limit is consumed as it is, rather than stalling the cursor
+            to = !tail && body.length - from >= logsMaxFetchBytes ? body.length : from;
+        }
+
+        cursors.put(serviceId, new LogCursor(chunk.start() + to,
+                                             Arrays.copyOfRange(body, Math.max(0, to - FINGERPRINT_BYTES), to)));
+        if (to == from) {
+            return List.of();
+        }
+
+        return LogLineParser.parse(serviceId, body, from, to, tail ? logsRecentLimit : Integer.MAX_VALUE);
     }
 
     /**
@@ -172,12 +237,104 @@ public class LogsEndpointCollector implements ActuatorCollector {
      * @param status the new status
      */
     private void updateServiceStatus(Service service, ServiceStatus status) {
-        if (service.getStatus() != status) {
+        boolean changed = service.getStatus() != status;
+        if (changed) {
             logger.info("Service {} status changed from {} to {}", 
                     service.getName(), service.getStatus(), status);
         }
 
         storage.updateServiceStatus(service.getId(), status);
-        storage.updateServiceLastSeen(service.getId());
+        Service updated = storage.updateServiceLastSeen(service.getId());
+        if (changed) {
+            liveUpdates.publishStatus(updated);
+        }
+    }
+
+    private static int indexOfNewline(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
     }
-}
\ No newline at end of file
+
+    private static int lastIndexOfNewline(byte[] bytes) {
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the first byte position of a {@code Content-Range} header such as {@code bytes 100-199/1000}.
+     *
+     * @return the first byte position, or 0 if the header is missing or malformed
+     */
+    private static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null) {
+            return 0;
+        }
+        int space = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-', space + 1);
+        if (space < 0 || dash < 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(space + 1, dash).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parse the complete length of a {@code Content-Range} header such as {@code bytes 100-199/1000} or
+     * {@code bytes *}{@code /1000}.
+     *
+     * @return the complete length, or -1 if the header is missing, malformed or the length is unknown
+     */
+    private static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The offset in a service's log file after the last complete line read.
+     *
+     * @param offset the offset after the last complete line read
+     * @param fingerprint the bytes of the file before the offset, at most {@link #FINGERPRINT_BYTES} of them
+     */
+    private record LogCursor(long offset, byte[] fingerprint) {
+
+        /**
+         * Check whether a chunk fetched from the start of the fingerprint begins with the fingerprint, which it does
+         * unless the file was replaced.
+         */
+        boolean matches(byte[] body) {
+            return body.length >= fingerprint.length
+                    && Arrays.equals(body, 0, fingerprint.length, fingerprint, 0, fingerprint.length);
+        }
+    }
+
+    /**
+     * A fetched range of a log file.
+     *
+     * @param partial whether the body is the requested range, rather than the whole file
+     * @param start the offset of the first byte of the body within the file
+     * @param total the length of the whole file
+     * @param body the fetched bytes
+     */
+    private record LogChunk(boolean partial, long start, long total, byte[] body) {}
+}
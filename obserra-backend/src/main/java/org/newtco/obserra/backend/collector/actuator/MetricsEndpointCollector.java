@@ -1,29 +1,43 @@
 package org.newtco.obserra.backend.collector.actuator;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.newtco.obserra.backend.collector.CollectionEngine;
 import org.newtco.obserra.backend.model.ActuatorEndpoint;
-import org.newtco.obserra.backend.model.Metric;
 import org.newtco.obserra.backend.model.Service;
 import org.newtco.obserra.backend.model.ServiceStatus;
+import org.newtco.obserra.backend.push.LiveUpdatePublisher;
 import org.newtco.obserra.backend.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 /**
  * Collector for metrics from the Spring Boot actuator metrics endpoint.
+ * <p>
+ * When the target exposes the actuator prometheus endpoint, all metrics are fetched in a single request and parsed as
+ * the response streams in. Otherwise the individual metric URLs of the metrics endpoint are fetched concurrently
+ * under a common deadline. Those requests share the request permit of the collection which runs this collector, as
+ * they target the same host and waiting for a permit of their own could stall once the host limit is reached.
+ * Whether a service supports the prometheus endpoint is remembered, so unsupported services are only probed again
+ * once the retry interval has passed, in case they were upgraded meanwhile.
  */
 @Component
 public class MetricsEndpointCollector implements ActuatorCollector {
@@ -31,18 +45,35 @@ public class MetricsEndpointCollector implements ActuatorCollector {
     private static final Logger logger = LoggerFactory.getLogger(MetricsEndpointCollector.class);
     private static final String ENDPOINT_TYPE = "metrics";
 
+    private static final MediaType PROMETHEUS_TEXT = MediaType.parseMediaType("text/plain;version=0.0.4");
+
     private final Storage storage;
     private final RestTemplate restTemplate;
-    private final ObjectMapper objectMapper;
+    private final CollectionEngine engine;
+    private final LiveUpdatePublisher liveUpdates;
+    private final Duration timeout;
+    private final boolean prometheusEnabled;
+    private final long prometheusRetryMs;
+    // Whether each service exposes the prometheus endpoint: 0 if it does, otherwise the time in epoch milliseconds
+    // after which it is probed again
+    private final Map<Long, Long> prometheusSupport = new ConcurrentHashMap<>();
+    private final Map<Long, PrometheusTextParser> prometheusParsers = new ConcurrentHashMap<>();
 
     @Autowired
     public MetricsEndpointCollector(
             Storage storage,
             RestTemplateBuilder restTemplateBuilder,
-            ObjectMapper objectMapper,
-            @Value("${obserra.metrics.timeout-ms:5000}") int metricsTimeoutMs) {
+            CollectionEngine engine,
+            LiveUpdatePublisher liveUpdates,
+            @Value("${obserra.metrics.timeout-ms:5000}") int metricsTimeoutMs,
+            @Value("${obserra.metrics.prometheus-enabled:true}") boolean prometheusEnabled,
+            @Value("${obserra.metrics.prometheus-retry-ms:600000}") long prometheusRetryMs) {
         this.storage = storage;
-        this.objectMapper = objectMapper;
+        this.engine = engine;
+        this.liveUpdates = liveUpdates;
+        this.timeout = Duration.ofMillis(metricsTimeoutMs);
+        this.prometheusEnabled = prometheusEnabled;
+        this.prometheusRetryMs = prometheusRetryMs;
 
         // Configure RestTemplate with timeout
         this.restTemplate = restTemplateBuilder
@@ -61,30 +92,37 @@ public class MetricsEndpointCollector implements ActuatorCollector {
         return endpoint != null && ENDPOINT_TYPE.equals(endpoint.getType());
     }
 
+    @Override
+    public void forgetService(Long serviceId) {
+        prometheusSupport.remove(serviceId);
+        prometheusParsers.remove(serviceId);
+    }
+
     @Override
     public boolean collectData(Service service, ActuatorEndpoint endpoint) {
         logger.debug("Collecting metrics for service: {} ({})", service.getName(), service.getId());
 
         try {
             // Collect JVM metrics
-            JsonNode metricData = collectJvmMetrics(service, endpoint);
-            if (metricData == null) {
+            JvmMetrics metrics = collectJvmMetrics(service, endpoint);
+            if (metrics == null) {
                 logger.warn("Failed to collect JVM metrics for service {}", service.getName());
                 // Update service status to DOWN if metrics collection failed
                 updateServiceStatus(service, ServiceStatus.DOWN);
                 return false;
             }
 
-            // Create and store the metric
-            Metric metric = new Metric();
-            metric.setServiceId(service.getId());
-            metric.setMemoryUsed(metricData.path("memory").path("used").floatValue());
-            metric.setMemoryMax(metricData.path("memory").path("max").floatValue());
-            metric.setCpuUsage(metricData.path("cpu").path("usage").floatValue());
-            metric.setErrorCount(metricData.path("errors").intValue());
-            metric.setMetricData(metricData);
-
-            storage.createMetric(metric);
+            // Store the metric as a primitive sample
+            long timestamp = System.currentTimeMillis();
+            storage.appendMetricSample(
+                    service.getId(),
+                    timestamp,
+                    metrics.memoryUsed(),
+                    metrics.memoryMax(),
+                    metrics.cpuUsage(),
+                    metrics.errorCount());
+            liveUpdates.publishMetric(service.getId(), timestamp, metrics.memoryUsed(), metrics.memoryMax(),
+                                      metrics.cpuUsage(), metrics.errorCount());
             logger.debug("Stored metrics for service {}", service.getName());
 
             // Update service status to UP if metrics collection succeeded
@@ -99,43 +137,33 @@ public class MetricsEndpointCollector implements ActuatorCollector {
     }
 
     /**
-     * Collect JVM metrics from a service's actuator endpoints.
+     * Collect JVM metrics from a service's actuator endpoints, preferring a single prometheus request when the
+     * service supports it.
      *
      * @param service The service to collect metrics from
      * @param endpoint The metrics endpoint
-     * @return A JsonNode containing the collected metrics, or null if collection failed
+     * @return The collected metrics, or null if collection failed
      */
-    private JsonNode collectJvmMetrics(Service service, ActuatorEndpoint endpoint) {
+    private JvmMetrics collectJvmMetrics(Service service, ActuatorEndpoint endpoint) {
         String baseUrl = endpoint.getHref();
         if (baseUrl.endsWith("/")) {
             baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
         }
 
-        try {
-            // Create a root node for all metrics
-            ObjectNode rootNode = objectMapper.createObjectNode();
-
-            // Memory metrics
-            float memoryUsed = collectMemoryMetric(baseUrl, "jvm.memory.used");
-            float memoryMax = collectMemoryMetric(baseUrl, "jvm.memory.max");
-
-            ObjectNode memoryNode = objectMapper.createObjectNode();
-            memoryNode.put("used", memoryUsed);
-            memoryNode.put("max", memoryMax);
-            rootNode.set("memory", memoryNode);
-
-            // CPU metrics
-            float cpuUsage = collectCpuMetric(baseUrl, "process.cpu.usage");
-
-            ObjectNode cpuNode = objectMapper.createObjectNode();
-            cpuNode.put("usage", cpuUsage);
-            rootNode.set("cpu", cpuNode);
-
-            // Error metrics - try to get from error count or http error metrics
-            int errorCount = collectErrorMetric(baseUrl);
-            rootNode.put("errors", errorCount);
+        String prometheusUrl = prometheusUrl(baseUrl);
+        if (prometheusEnabled && prometheusUrl != null
+                && prometheusSupport.getOrDefault(service.getId(), 0L) <= System.currentTimeMillis()) {
+            JvmMetrics metrics = collectFromPrometheus(service, prometheusUrl);
+            if (metrics != null) {
+                return metrics;
+            }
+        }
 
-            return rootNode;
+        try {
+            return collectFromMetricsEndpoint(baseUrl, Instant.now().plus(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         } catch (Exception e) {
             logger.error("Error collecting JVM metrics for service {}: {}", service.getName(), e.getMessage());
             return null;
@@ -143,38 +171,110 @@ public class MetricsEndpointCollector implements ActuatorCollector {
     }
 
     /**
-     * Collect a memory metric from a service's actuator endpoint.
+     * Get the prometheus endpoint URL which sits alongside a metrics endpoint.
+     *
+     * @param metricsUrl The metrics endpoint URL, without a trailing slash
+     * @return The prometheus endpoint URL, or null if it cannot be derived
+     */
+    private static String prometheusUrl(String metricsUrl) {
+        if (!metricsUrl.endsWith("/" + ENDPOINT_TYPE)) {
+            return null;
+        }
+        return metricsUrl.substring(0, metricsUrl.length() - ENDPOINT_TYPE.length()) + "prometheus";
+    }
+
+    /**
+     * Collect all JVM metrics with a single request to the prometheus endpoint.
+     *
+     * @param service The service to collect metrics from
+     * @param url The prometheus endpoint URL
+     * @return The collected metrics, or null if the service does not expose the prometheus endpoint
+     */
+    private JvmMetrics collectFromPrometheus(Service service, String url) {
+        try {
+            JvmMetrics metrics = restTemplate.execute(
+                    url,
+                    HttpMethod.GET,
+                    request -> request.getHeaders().setAccept(List.of(PROMETHEUS_TEXT, MediaType.TEXT_PLAIN)),
+                    response -> {
+                        // A service is collected by one thread at a time, so its parser and the names and label sets
+                        // interned by it can be reused from one collection to the next
+                        PrometheusTextParser parser = prometheusParsers.computeIfAbsent(
+                                service.getId(), id -> new PrometheusTextParser());
+                        JvmMetricsAccumulator accumulator = new JvmMetricsAccumulator();
+                        parser.parse(response.getBody(), accumulator);
+                        return accumulator.toMetrics();
+                    });
+
+            Long previous = prometheusSupport.put(service.getId(), 0L);
+            if (previous == null || previous != 0L) {
+                logger.info("Collecting metrics for service {} from its prometheus endpoint", service.getName());
+            }
+            return metrics;
+        } catch (HttpClientErrorException e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND || e.getStatusCode() == HttpStatus.NOT_ACCEPTABLE) {
+                Long previous = prometheusSupport.put(service.getId(),
+                                                      System.currentTimeMillis() + prometheusRetryMs);
+                prometheusParsers.remove(service.getId());
+                if (previous == null || previous == 0L) {
+                    logger.info("Service {} does not expose a prometheus endpoint, using the metrics endpoint",
+                                service.getName());
+                }
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Collect JVM metrics by fetching the individual metric URLs of the metrics endpoint concurrently. The requests run
+     * on the request permit which the caller holds for the service's host, rather than waiting for permits of their
+     * own while the caller holds one. The error counts of the individual statuses are fetched once the statuses are
+     * known.
      *
      * @param baseUrl The base URL of the service's metrics endpoint
-     * @param metricName The name of the metric to collect
-     * @return The value of the metric, or 0 if collection failed
+     * @param deadline The time after which outstanding requests are abandoned
+     * @return The collected metrics
      */
-    private float collectMemoryMetric(String baseUrl, String metricName) {
+    private JvmMetrics collectFromMetricsEndpoint(String baseUrl, Instant deadline) throws Exception {
+        List<Future<?>> requests = new ArrayList<>();
         try {
-            String url = baseUrl + "/" + metricName;
-            ResponseEntity<Map> response = restTemplate.getForEntity(url, Map.class);
+            Future<Float> memoryUsed = submit(requests, () -> collectMeasurement(baseUrl, "jvm.memory.used"));
+            Future<Float> memoryMax = submit(requests, () -> collectMeasurement(baseUrl, "jvm.memory.max"));
+            Future<Float> cpuUsage = submit(requests, () -> collectMeasurement(baseUrl, "process.cpu.usage"));
+            Future<List<String>> errorStatuses = submit(requests, () -> collectErrorStatuses(baseUrl));
+
+            List<Future<Integer>> statusCounts = new ArrayList<>();
+            for (String status : engine.await(errorStatuses, deadline)) {
+                statusCounts.add(submit(requests, () -> collectHttpErrorCount(baseUrl, status)));
+            }
 
-            if (response.getStatusCode().is2xxSuccessful() && response.getBody() != null) {
-                List<Map<String, Object>> measurements = (List<Map<String, Object>>) response.getBody().get("measurements");
-                if (measurements != null && !measurements.isEmpty()) {
-                    return ((Number) measurements.get(0).get("value")).floatValue();
-                }
+            int errorCount = 0;
+            for (Future<Integer> statusCount : statusCounts) {
+                errorCount += engine.await(statusCount, deadline);
             }
-        } catch (RestClientException e) {
-            logger.warn("Failed to collect memory metric {}: {}", metricName, e.getMessage());
+            return new JvmMetrics(engine.await(memoryUsed, deadline), engine.await(memoryMax, deadline),
+                                  engine.await(cpuUsage, deadline), errorCount);
+        } finally {
+            // Abandon whatever is still outstanding after a failure, timeout or interrupt
+            requests.forEach(request -> request.cancel(true));
         }
+    }
 
-        return 0f;
+    private <T> Future<T> submit(List<Future<?>> requests, Callable<T> request) {
+        Future<T> future = engine.submit(request);
+        requests.add(future);
+        return future;
     }
 
     /**
-     * Collect a CPU metric from a service's actuator endpoint.
+     * Collect the first measurement of a metric from a service's actuator endpoint.
      *
      * @param baseUrl The base URL of the service's metrics endpoint
      * @param metricName The name of the metric to collect
      * @return The value of the metric, or 0 if collection failed
      */
-    private float collectCpuMetric(String baseUrl, String metricName) {
+    private float collectMeasurement(String baseUrl, String metricName) {
         try {
             String url = baseUrl + "/" + metricName;
             ResponseEntity<Map> response = restTemplate.getForEntity(url, Map.class);
@@ -186,20 +286,20 @@ public class MetricsEndpointCollector implements ActuatorCollector {
                 }
             }
         } catch (RestClientException e) {
-            logger.warn("Failed to collect CPU metric {}: {}", metricName, e.getMessage());
+            logger.warn("Failed to collect metric {}: {}", metricName, e.getMessage());
         }
 
         return 0f;
     }
 
     /**
-     * Collect error metrics from a service's actuator endpoint.
+     * Collect the 4xx and 5xx statuses for which a service's actuator endpoint counts requests.
      *
      * @param baseUrl The base URL of the service's metrics endpoint
-     * @return The number of errors, or 0 if collection failed
+     * @return The error statuses, or an empty list if collection failed
      */
-    private int collectErrorMetric(String baseUrl) {
-        int errorCount = 0;
+    private List<String> collectErrorStatuses(String baseUrl) {
+        List<String> statuses = new ArrayList<>();
 
         // Try to get server error count
         try {
@@ -214,8 +314,8 @@ public class MetricsEndpointCollector implements ActuatorCollector {
                             List<String> values = (List<String>) tag.get("values");
                             for (String value : values) {
                                 if (value.startsWith("5") || value.startsWith("4")) {
-                                    // This is a 4xx or 5xx status code, try to get the count
-                                    errorCount += collectHttpErrorCount(baseUrl, value);
+                                    // This is a 4xx or 5xx status code, its count is collected next
+                                    statuses.add(value);
                                 }
                             }
                             break;
@@ -227,7 +327,7 @@ public class MetricsEndpointCollector implements ActuatorCollector {
             logger.warn("Failed to collect HTTP error metrics: {}", e.getMessage());
         }
 
-        return errorCount;
+        return statuses;
     }
 
     /**
@@ -266,12 +366,70 @@ public class MetricsEndpointCollector implements ActuatorCollector {
      * @param status The new status
      */
     private void updateServiceStatus(Service service, ServiceStatus status) {
-        if (service.getStatus() != status) {
+        boolean changed = service.getStatus() != status;
+        if (changed) {
             logger.info("Service {} status changed from {} to {}", 
                     service.getName(), service.getStatus(), status);
         }
 
         storage.updateServiceStatus(service.getId(), status);
-        storage.updateServiceLastSeen(service.getId());
+        Service updated = storage.updateServiceLastSeen(service.getId());
+        if (changed) {
+            liveUpdates.publishStatus(updated);
+        }
+    }
+
+    /**
+     * The JVM metrics collected from a service in one collection.
+     */
+    private record JvmMetrics(float memoryUsed, float memoryMax, float cpuUsage, int errorCount) {}
+
+    /**
+     * Accumulates the JVM metrics out of the samples of a prometheus response. Memory is summed over all memory
+     * areas, matching the totals reported by the metrics endpoint, and errors are summed over all 4xx and 5xx
+     * statuses.
+     */
+    private static final class JvmMetricsAccumulator implements PrometheusTextParser.SampleHandler {
+
+        private double memoryUsed;
+        private double memoryMax;
+        private double cpuUsage;
+        private double errorCount;
+
+        @Override
+        public boolean accepts(String name) {
+            return switch (name) {
+                case "jvm_memory_used_bytes", "jvm_memory_max_bytes", "process_cpu_usage",
+                     "http_server_requests_seconds_count" -> true;
+                default -> false;
+            };
+        }
+
+        @Override
+        public void sample(String name, PrometheusTextParser.Labels labels, double value) {
+            switch (name) {
+                case "jvm_memory_used_bytes" -> memoryUsed += value;
+                case "jvm_memory_max_bytes" -> {
+                    // Memory areas without a maximum report -1
+                    if (value > 0) {
+                        memoryMax += value;
+                    }
+                }
+                case "process_cpu_usage" -> cpuUsage = value;
+                case "http_server_requests_seconds_count" -> {
+                    String status = labels.get("status");
+                    if (status != null && (status.startsWith("4") || status.startsWith("5"))) {
+                        errorCount += value;
+                    }
+                }
+                default -> {
+                    // Not accepted
+                }
+            }
+        }
+
+        JvmMetrics toMetrics() {
+            return new JvmMetrics((float) memoryUsed, (float) memoryMax, (float) cpuUsage, (int) errorCount);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,480 @@
+package org.newtco.obserra.backend.collector.actuator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming parser for the Prometheus and OpenMetrics text exposition formats, as served by the actuator prometheus
+ * endpoint.
+ * <p>
+ * The response is read in blocks straight from the input stream and each line is parsed in place in the read buffer,
+ * so no per-line Strings are created. Metric names and label sets are interned: the first time a name or label set is
+ * seen it is decoded once and cached, and every later occurrence, including in later responses parsed by the same
+ * parser, resolves to the cached instance from a hash of its bytes. Values are parsed from the bytes directly. Lines
+ * whose metric name the handler does not accept are skipped without looking at their labels.
+ * <p>
+ * A parser is not thread-safe. Reuse one parser per target, so its interned names and label sets carry over from one
+ * collection to the next.
+ */
+public final class PrometheusTextParser {
+
+    private static final int BUFFER_SIZE     = 8192;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+
+    // Bounds the interned names and label sets, so a target which generates unbounded label values cannot grow a
+    // parser without limit
+    private static final int MAX_INTERNED = 16384;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Receives the samples of a parsed response.
+     */
+    @FunctionalInterface
+    public interface SampleHandler {
+
+        /**
+         * Check whether samples of a metric are wanted. Lines of metrics which are not accepted are skipped without
+         * parsing their labels or values.
+         *
+         * @param name the interned metric name
+         * @return true to receive the samples of the metric
+         */
+        default boolean accepts(String name) {
+            return true;
+        }
+
+        /**
+         * Handle a single sample.
+         *
+         * @param name   the interned metric name
+         * @param labels the interned sample labels
+         * @param value  the sample value
+         */
+        void sample(String name, Labels labels, double value);
+    }
+
+    /**
+     * An immutable, interned label set.
+     */
+    public static final class Labels {
+
+        public static final Labels EMPTY = new Labels(new String[0], new String[0]);
+
+        private final String[] names;
+        private final String[] values;
+
+        private Labels(String[] names, String[] values) {
+            this.names  = names;
+            this.values = values;
+        }
+
+        /**
+         * Get the value of a label.
+         *
+         * @param name the label name
+         * @return the label value, or null if the label set has no such label
+         */
+        public String get(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        public int size() {
+            return names.length;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("{");
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(names[i]).append("=\"").append(values[i]).append('"');
+            }
+            return builder.append('}').toString();
+        }
+    }
+
+    private final InternTable<String> metricNames = new InternTable<>();
+    private final InternTable<String> labelNames  = new InternTable<>();
+    private final InternTable<Labels> labelSets   = new InternTable<>();
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Parse a response, passing each accepted sample to the handler.
+     *
+     * @param input   the response body
+     * @param handler the handler to receive the samples
+     * @throws IOException if the response could not be read, or contains a line longer than 1 MiB
+     */
+    public void parse(InputStream input, SampleHandler handler) throws IOException {
+        int end = 0;
+        int scanned = 0;
+
+        int read;
+        while ((read = input.read(buffer, end, buffer.length - end)) != -1) {
+            end += read;
+
+            int lineStart = 0;
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    parseLine(lineStart, i, handler);
+                    lineStart = i + 1;
+                }
+            }
+
+            // Carry the partial last line over to the next read, growing the buffer if it holds a single long line
+            int remaining = end - lineStart;
+            if (lineStart == 0 && end == buffer.length) {
+                if (buffer.length >= MAX_LINE_LENGTH) {
+                    throw new IOException("Prometheus response line exceeds " + MAX_LINE_LENGTH + " bytes");
+                }
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, end);
+                buffer = grown;
+            } else if (lineStart > 0) {
+                System.arraycopy(buffer, lineStart, buffer, 0, remaining);
+            }
+            end     = remaining;
+            scanned = remaining;
+        }
+
+        if (end > 0) {
+            parseLine(0, end, handler);
+        }
+    }
+
+    private void parseLine(int start, int end, SampleHandler handler) {
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        if (end == start || buffer[start] == '#') {
+            return;
+        }
+
+        // Metric name
+        int i = start;
+        while (i < end && buffer[i] != '{' && buffer[i] != ' ' && buffer[i] != '\t') {
+            i++;
+        }
+        String name = metricNames.intern(buffer, start, i - start, this::decodeName);
+        if (!handler.accepts(name)) {
+            return;
+        }
+
+        // Optional label set
+        Labels labels = Labels.EMPTY;
+        if (i < end && buffer[i] == '{') {
+            int close = findLabelSetEnd(i + 1, end);
+            if (close < 0) {
+                return;
+            }
+            labels = labelSets.intern(buffer, i + 1, close - i - 1, this::decodeLabels);
+            if (labels == null) {
+                return;
+            }
+            i = close + 1;
+        }
+
+        // Value, ignoring any trailing timestamp or exemplar
+        while (i < end && (buffer[i] == ' ' || buffer[i] == '\t')) {
+            i++;
+        }
+        int valueEnd = i;
+        while (valueEnd < end && buffer[valueEnd] != ' ' && buffer[valueEnd] != '\t') {
+            valueEnd++;
+        }
+        if (valueEnd == i) {
+            return;
+        }
+
+        double value;
+        try {
+            value = parseValue(buffer, i, valueEnd);
+        } catch (NumberFormatException e) {
+            // Skip malformed samples rather than failing the whole response
+            return;
+        }
+        handler.sample(name, labels, value);
+    }
+
+    /**
+     * Find the closing brace of a label set, skipping over braces inside quoted label values.
+     *
+     * @return the index of the closing brace, or -1 if the label set is not closed
+     */
+    private int findLabelSetEnd(int i, int end) {
+        boolean quoted = false;
+        for (; i < end; i++) {
+            byte b = buffer[i];
+            if (quoted) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    quoted = false;
+                }
+            } else if (b == '"') {
+                quoted = true;
+            } else if (b == '}') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String decodeName(byte[] bytes, int offset, int length) {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decode a label set of the form {@code key="value",...}, without the enclosing braces.
+     *
+     * @return the label set, or null if the label set is malformed
+     */
+    private Labels decodeLabels(byte[] bytes, int offset, int length) {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            byte b = bytes[i];
+            if (b == ',' || b == ' ') {
+                i++;
+                continue;
+            }
+
+            int equals = i;
+            while (equals < end && bytes[equals] != '=') {
+                equals++;
+            }
+            if (equals + 1 >= end || bytes[equals + 1] != '"') {
+                return null;
+            }
+            int nameEnd = equals;
+            while (nameEnd > i && bytes[nameEnd - 1] == ' ') {
+                nameEnd--;
+            }
+            names.add(labelNames.intern(bytes, i, nameEnd - i, this::decodeName));
+
+            // Copy the value only if it contains escapes
+            int valueStart = equals + 2;
+            int valueEnd = valueStart;
+            boolean escaped = false;
+            while (valueEnd < end && bytes[valueEnd] != '"') {
+                if (bytes[valueEnd] == '\\') {
+                    escaped = true;
+                    valueEnd++;
+                }
+                valueEnd++;
+            }
+            if (valueEnd >= end) {
+                return null;
+            }
+            values.add(escaped ? unescape(bytes, valueStart, valueEnd)
+                               : new String(bytes, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8));
+            i = valueEnd + 1;
+        }
+
+        return names.isEmpty() ? Labels.EMPTY : new Labels(names.toArray(new String[0]), values.toArray(new String[0]));
+    }
+
+    private static String unescape(byte[] bytes, int start, int end) {
+        byte[] unescaped = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '\\' && i + 1 < end) {
+                b = bytes[++i];
+                if (b == 'n') {
+                    b = '\n';
+                }
+            }
+            unescaped[length++] = b;
+        }
+        return new String(unescaped, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a sample value. Plain decimal values with at most 15 significant digits, which covers nearly every value
+     * a Spring Boot application exposes, are parsed exactly from the bytes. Anything else falls back to
+     * {@link Double#parseDouble(String)}.
+     */
+    static double parseValue(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+
+        while (i < end && isDigit(bytes[i])) {
+            mantissa = accumulate(mantissa, bytes[i]);
+            digits += mantissa != 0 ? 1 : 0;
+            any = true;
+            i++;
+        }
+        if (i < end && bytes[i] == '.') {
+            i++;
+            while (i < end && isDigit(bytes[i])) {
+                mantissa = accumulate(mantissa, bytes[i]);
+                digits += mantissa != 0 ? 1 : 0;
+                exponent--;
+                any = true;
+                i++;
+            }
+        }
+        if (any && i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int explicit = 0;
+            int exponentStart = i;
+            while (i < end && isDigit(bytes[i]) && explicit < 1000) {
+                explicit = explicit * 10 + (bytes[i] - '0');
+                i++;
+            }
+            if (i == exponentStart) {
+                any = false;
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+
+        if (any && i == end && digits <= 15 && exponent >= -22 && exponent <= 22) {
+            double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+
+        return parseSpecialValue(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+
+    private static double parseSpecialValue(String value) {
+        return switch (value) {
+            case "+Inf", "Inf" -> Double.POSITIVE_INFINITY;
+            case "-Inf" -> Double.NEGATIVE_INFINITY;
+            default -> Double.parseDouble(value);
+        };
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static long accumulate(long mantissa, byte digit) {
+        // Once the mantissa holds more digits than the fast path uses the value is parsed by the fallback, so
+        // overflow here does not matter
+        return mantissa * 10 + (digit - '0');
+    }
+
+    /**
+     * Open-addressed hash table which maps byte sequences to the values decoded from them, so repeated sequences are
+     * decoded only once.
+     */
+    private static final class InternTable<T> {
+
+        @FunctionalInterface
+        interface Decoder<T> {
+            T decode(byte[] bytes, int offset, int length);
+        }
+
+        private byte[][] keys   = new byte[64][];
+        private Object[] values = new Object[64];
+        private int[]    hashes = new int[64];
+        private int      size;
+
+        @SuppressWarnings("unchecked")
+        T intern(byte[] bytes, int offset, int length, Decoder<T> decoder) {
+            int hash = hash(bytes, offset, length);
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (keys[slot] != null) {
+                if (hashes[slot] == hash && matches(keys[slot], bytes, offset, length)) {
+                    return (T) values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            T value = decoder.decode(bytes, offset, length);
+            if (value == null) {
+                return null;
+            }
+            if (size >= MAX_INTERNED) {
+                clear();
+            } else if (size * 2 >= keys.length) {
+                resize();
+            }
+            insert(hash, Arrays.copyOfRange(bytes, offset, offset + length), value);
+            return value;
+        }
+
+        private void insert(int hash, byte[] key, Object value) {
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot]   = key;
+            values[slot] = value;
+            hashes[slot] = hash;
+            size++;
+        }
+
+        private void resize() {
+            byte[][] oldKeys = keys;
+            Object[] oldValues = values;
+            int[] oldHashes = hashes;
+
+            keys   = new byte[oldKeys.length * 2][];
+            values = new Object[oldKeys.length * 2];
+            hashes = new int[oldKeys.length * 2];
+            size   = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldHashes[i], oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private void clear() {
+            keys   = new byte[64][];
+            values = new Object[64];
+            hashes = new int[64];
+            size   = 0;
+        }
+
+        private static int hash(byte[] bytes, int offset, int length) {
+            // FNV-1a, then spread the high bits into the low bits used for the slot
+            int hash = 0x811c9dc5;
+            for (int i = offset; i < offset + length; i++) {
+                hash = (hash ^ bytes[i]) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+            return Arrays.equals(key, 0, key.length, bytes, offset, offset + length);
+        }
+    }
+}
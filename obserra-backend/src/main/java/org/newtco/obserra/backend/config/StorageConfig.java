@@ -1,26 +1,176 @@
 package org.newtco.obserra.backend.config;
 
+import com.zaxxer.hikari.HikariDataSource;
+import org.newtco.obserra.backend.cluster.ClusterMembership;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.storage.DurableStorage;
+import org.newtco.obserra.backend.storage.HistoryArchive;
+import org.newtco.obserra.backend.storage.JdbcStorage;
+import org.newtco.obserra.backend.storage.LogStore;
 import org.newtco.obserra.backend.storage.MemoryStorage;
 import org.newtco.obserra.backend.storage.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.DataSourceBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
+import org.springframework.util.unit.DataSize;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 
 /**
  * Configuration class for storage-related beans.
- * This class configures the in-memory storage as the primary storage implementation.
+ * This class configures the storage implementation selected by obserra.storage.type: by default the in-memory storage,
+ * optionally persisted through a write-ahead log and snapshots, and with the history dropped from memory optionally
+ * archived to disk, or else the JDBC storage.
  */
 @Configuration
 public class StorageConfig {
 
+    private static final Logger logger = LoggerFactory.getLogger(StorageConfig.class);
+
+    /**
+     * Creates the archive of the metric and log history which no longer fits in memory.
+     *
+     * @param directory   the directory of the archive's segment files
+     * @param segmentSize the size of each segment file
+     * @param maxAge      the maximum age of archived history
+     * @return the HistoryArchive instance
+     */
+    @Bean
+    @ConditionalOnProperty(name = "obserra.storage.archive.enabled", havingValue = "true")
+    public HistoryArchive historyArchive(
+            @Value("${obserra.storage.archive.directory:./data/archive}") String directory,
+            @Value("${obserra.storage.archive.segment-size:4MB}") DataSize segmentSize,
+            @Value("${obserra.storage.archive.max-age:180d}") Duration maxAge) throws IOException {
+        return new HistoryArchive(Path.of(directory), segmentSize.toBytes(), maxAge);
+    }
+
     /**
      * Creates and registers the MemoryStorage bean as the primary Storage implementation.
      *
-     * @return the MemoryStorage instance
+     * @param metricsMaxSamples the maximum number of metrics retained per service
+     * @param metricsHotSamples the number of most recent metrics per service which are kept uncompressed
+     * @param metricsMaxAge     the maximum age of retained metrics
+     * @param logDedupWindow    the number of distinct logs per service remembered to drop duplicates
+     * @param logsMaxBytesPerService the approximate size of the logs retained per service
+     * @param logsMaxTotalBytes      the approximate size of the logs retained over all services
+     * @param logsMaxAge             the maximum age of retained TRACE, DEBUG and INFO logs
+     * @param logsImportantMaxAge    the maximum age of retained WARN, ERROR and FATAL logs
+     * @param membership             the cluster membership, which partitions the service IDs
+     * @param persistenceEnabled       whether the storage is persisted to disk
+     * @param persistenceDirectory     the directory of the write-ahead log and snapshots
+     * @param persistenceSync          whether each write waits until it is on disk
+     * @param persistenceFlushInterval the interval at which writes are flushed when they don't wait
+     * @param snapshotInterval         the interval at which snapshots are taken
+     * @param archiveProvider          the history archive, if enabled
+     * @return the MemoryStorage instance, or a DurableStorage wrapping it when persistence is enabled
+     */
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "obserra.storage.type", havingValue = "memory", matchIfMissing = true)
+    public Storage memoryStorage(
+            @Value("${obserra.storage.metrics.max-samples:172800}") int metricsMaxSamples,
+            @Value("${obserra.storage.metrics.hot-samples:2880}") int metricsHotSamples,
+            @Value("${obserra.storage.metrics.max-age:30d}") Duration metricsMaxAge,
+            @Value("${obserra.storage.logs.dedup-window:4096}") int logDedupWindow,
+            @Value("${obserra.storage.logs.max-bytes-per-service:16MB}") DataSize logsMaxBytesPerService,
+            @Value("${obserra.storage.logs.max-total-bytes:512MB}") DataSize logsMaxTotalBytes,
+            @Value("${obserra.storage.logs.max-age:7d}") Duration logsMaxAge,
+            @Value("${obserra.storage.logs.important-max-age:30d}") Duration logsImportantMaxAge,
+            ClusterMembership membership,
+            @Value("${obserra.storage.persistence.enabled:false}") boolean persistenceEnabled,
+            @Value("${obserra.storage.persistence.directory:./data}") String persistenceDirectory,
+            @Value("${obserra.storage.persistence.sync:true}") boolean persistenceSync,
+            @Value("${obserra.storage.persistence.flush-interval:1s}") Duration persistenceFlushInterval,
+            @Value("${obserra.storage.persistence.snapshot-interval:10m}") Duration snapshotInterval,
+            ObjectProvider<HistoryArchive> archiveProvider)
+            throws IOException {
+        HistoryArchive archive = archiveProvider.getIfAvailable();
+        LogStore logs = new LogStore(logsMaxBytesPerService.toBytes(), logsMaxTotalBytes.toBytes(), logsMaxAge,
+                                     logsImportantMaxAge, archive);
+        MemoryStorage memoryStorage = new MemoryStorage(metricsMaxSamples, metricsHotSamples, metricsMaxAge,
+                                                        logDedupWindow, logs, membership.members().size(),
+                                                        membership.self().index(), archive);
+
+        // Closed through the inferred destroy method, which flushes the pending writes
+        Storage storage = persistenceEnabled
+                ? new DurableStorage(memoryStorage, Path.of(persistenceDirectory), persistenceSync,
+                                     persistenceFlushInterval, snapshotInterval)
+                : memoryStorage;
+
+        // Only the history of services which were recovered is still reachable. Without persistence no service is
+        // recovered, so pruning would delete the whole archive
+        if (archive != null && persistenceEnabled) {
+            archive.retainServices(storage.getAllServices().stream().map(Service::getId).toList());
+        } else if (archive != null) {
+            logger.warn("History archive enabled without persistence: history archived before this start is kept on "
+                        + "disk but unreachable; enable obserra.storage.persistence to keep services across restarts");
+        }
+        return storage;
+    }
+
+    /**
+     * Creates the pool of connections to the database of the JDBC storage.
+     *
+     * @param url      the JDBC URL of the database
+     * @param username the database user
+     * @param password the database user's password
+     * @param poolSize the maximum number of connections
+     * @return the DataSource instance
+     */
+    @Bean
+    @ConditionalOnProperty(name = "obserra.storage.type", havingValue = "jdbc")
+    public DataSource storageDataSource(
+            @Value("${obserra.storage.jdbc.url:jdbc:h2:file:./data/obserra;DB_CLOSE_ON_EXIT=FALSE}") String url,
+            @Value("${obserra.storage.jdbc.username:sa}") String username,
+            @Value("${obserra.storage.jdbc.password:}") String password,
+            @Value("${obserra.storage.jdbc.pool-size:4}") int poolSize) {
+        HikariDataSource dataSource = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .url(url)
+                .username(username)
+                .password(password)
+                .build();
+        dataSource.setPoolName("obserra-storage");
+        dataSource.setMaximumPoolSize(poolSize);
+        return dataSource;
+    }
+
+    /**
+     * Creates and registers the JdbcStorage bean as the primary Storage implementation.
+     *
+     * @param dataSource          the database
+     * @param batchSize           the number of metric or log rows per INSERT batch
+     * @param flushInterval       the maximum time metrics and logs are queued before they are written
+     * @param metricsMaxAge       the maximum age of retained metrics
+     * @param logsMaxAge          the maximum age of retained TRACE, DEBUG and INFO logs
+     * @param logsImportantMaxAge the maximum age of retained WARN, ERROR and FATAL logs
+     * @param logDedupWindow      the number of distinct logs per service remembered to drop duplicates
+     * @param membership          the cluster membership, which partitions the service IDs
+     * @return the JdbcStorage instance
      */
     @Bean
     @Primary
-    public Storage memoryStorage() {
-        return new MemoryStorage();
+    @ConditionalOnProperty(name = "obserra.storage.type", havingValue = "jdbc")
+    public Storage jdbcStorage(
+            DataSource dataSource,
+            @Value("${obserra.storage.jdbc.batch-size:1000}") int batchSize,
+            @Value("${obserra.storage.jdbc.flush-interval:200ms}") Duration flushInterval,
+            @Value("${obserra.storage.metrics.max-age:30d}") Duration metricsMaxAge,
+            @Value("${obserra.storage.logs.max-age:7d}") Duration logsMaxAge,
+            @Value("${obserra.storage.logs.important-max-age:30d}") Duration logsImportantMaxAge,
+            @Value("${obserra.storage.logs.dedup-window:4096}") int logDedupWindow,
+            ClusterMembership membership) {
+        // Closed through the inferred destroy method, which writes the queued metrics and logs
+        return new JdbcStorage(dataSource, batchSize, flushInterval, metricsMaxAge, logsMaxAge, logsImportantMaxAge,
+                               logDedupWindow, membership.members().size(), membership.self().index());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package org.newtco.obserra.backend.config;
+
+import org.newtco.obserra.backend.push.LiveUpdateWebSocketHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+
+/**
+ * Configuration class for the live update WebSocket endpoint.
+ * The endpoint is registered at /ws, where the frontend connects for live logs, and can be disabled with
+ * obserra.logs.websocket-enabled. Browsers may only connect from the same origin or from the origin patterns in
+ * obserra.push.allowed-origins, so that other websites cannot subscribe to the logs in a visitor's browser.
+ */
+@Configuration
+@EnableWebSocket
+@ConditionalOnProperty(name = "obserra.logs.websocket-enabled", havingValue = "true", matchIfMissing = true)
+public class WebSocketConfig implements WebSocketConfigurer {
+
+    private final LiveUpdateWebSocketHandler liveUpdateHandler;
+    private final String[] allowedOrigins;
+
+    @Autowired
+    public WebSocketConfig(
+            LiveUpdateWebSocketHandler liveUpdateHandler,
+            @Value("${obserra.push.allowed-origins:}") String[] allowedOrigins) {
+        this.liveUpdateHandler = liveUpdateHandler;
+        this.allowedOrigins = allowedOrigins;
+    }
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(liveUpdateHandler, "/ws").setAllowedOriginPatterns(allowedOrigins);
+    }
+}
@@ -0,0 +1,43 @@
+package org.newtco.obserra.backend.controller;
+
+import org.newtco.obserra.backend.cluster.ClusterMember;
+import org.newtco.obserra.backend.cluster.ClusterMembership;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Controller for the cluster state.
+ * Members request this endpoint as a heartbeat, and it shows which members this instance currently considers live.
+ */
+@RestController
+@RequestMapping("/api")
+public class ClusterController {
+
+    private final ClusterMembership membership;
+
+    @Autowired
+    public ClusterController(ClusterMembership membership) {
+        this.membership = membership;
+    }
+
+    /**
+     * Get the cluster state as seen by this member.
+     *
+     * @return whether clustering is enabled, this member, and the configured and live members
+     */
+    @GetMapping("/cluster")
+    public ResponseEntity<?> getCluster() {
+        Map<String, Object> cluster = new LinkedHashMap<>();
+        cluster.put("enabled", membership.isEnabled());
+        cluster.put("self", membership.self());
+        cluster.put("members", membership.members().stream().map(ClusterMember::url).toList());
+        cluster.put("live", membership.liveMembers().stream().map(ClusterMember::url).toList());
+        return ResponseEntity.ok(cluster);
+    }
+}
@@ -0,0 +1,284 @@
+package org.newtco.obserra.backend.controller;
+
+import org.newtco.obserra.backend.cluster.ClusterClient;
+import org.newtco.obserra.backend.cluster.ClusterRouter;
+import org.newtco.obserra.backend.model.ServiceMetricSummary;
+import org.newtco.obserra.backend.service.FleetMetric;
+import org.newtco.obserra.backend.service.FleetMetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Controller for metrics aggregated across services.
+ * This controller answers fleet-wide questions, such as which services use the most CPU, in a single request. Each
+ * cluster member aggregates the services it owns, and the member receiving the request merges the results of all
+ * members.
+ */
+@RestController
+@RequestMapping("/api/fleet")
+public class FleetController {
+
+    private static final Logger logger = LoggerFactory.getLogger(FleetController.class);
+
+    private static final Duration MIN_WINDOW = Duration.ofMinutes(1);
+    private static final Duration MAX_WINDOW = Duration.ofDays(1);
+    private static final int      MAX_K      = 1000;
+
+    private static final ParameterizedTypeReference<List<ServiceMetricSummary>> SUMMARIES =
+            new ParameterizedTypeReference<>() {};
+
+    private final FleetMetricsService fleetMetrics;
+    private final ClusterRouter router;
+    private final ClusterClient clusterClient;
+
+    @Autowired
+    public FleetController(
+            FleetMetricsService fleetMetrics,
+            ClusterRouter router,
+            ClusterClient clusterClient) {
+        this.fleetMetrics = fleetMetrics;
+        this.router = router;
+        this.clusterClient = clusterClient;
+    }
+
+    /**
+     * Get the metrics of every service, each aggregated over a recent time window.
+     *
+     * @param namespace the namespace of the services (optional, default all namespaces)
+     * @param window the time window ending now, such as "5m" (optional, default 5 minutes)
+     * @param scope "local" to include only the services of this cluster member (optional, default the whole cluster)
+     * @return the service summaries, by service ID
+     */
+    @GetMapping("/services")
+    public ResponseEntity<?> getServiceSummaries(
+            @RequestParam(required = false) String namespace,
+            @RequestParam(required = false, defaultValue = "5m") String window,
+            @RequestParam(required = false) String scope) {
+        try {
+            Duration duration = parseWindow(window);
+            if (duration == null) {
+                return invalidWindow();
+            }
+
+            List<ServiceMetricSummary> summaries = summaries(namespace, duration, scope);
+            summaries.sort(Comparator.comparing(ServiceMetricSummary::serviceId));
+            return ResponseEntity.ok(summaries);
+        } catch (Exception e) {
+            logger.error("Error fetching service summaries", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to fetch service summaries"));
+        }
+    }
+
+    /**
+     * Get the services with the highest value of a metric.
+     *
+     * @param metric the metric: cpu, memory, memory-percent or errors (optional, default cpu)
+     * @param k the number of services (optional, default 10)
+     * @param namespace the namespace of the services (optional, default all namespaces)
+     * @param window the time window ending now, such as "5m" (optional, default 5 minutes)
+     * @param scope "local" to include only the services of this cluster member (optional, default the whole cluster)
+     * @return the service summaries, highest value first
+     */
+    @GetMapping("/top")
+    public ResponseEntity<?> getTopServices(
+            @RequestParam(required = false, defaultValue = "cpu") String metric,
+            @RequestParam(required = false, defaultValue = "10") int k,
+            @RequestParam(required = false) String namespace,
+            @RequestParam(required = false, defaultValue = "5m") String window,
+            @RequestParam(required = false) String scope) {
+        try {
+            FleetMetric fleetMetric = FleetMetric.parse(metric);
+            if (fleetMetric == null) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("error", "Unknown metric: " + metric));
+            }
+            if (k <= 0 || k > MAX_K) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("error", "k must be between 1 and " + MAX_K));
+            }
+            Duration duration = parseWindow(window);
+            if (duration == null) {
+                return invalidWindow();
+            }
+
+            List<ServiceMetricSummary> top = fleetMetrics.top(fleetMetric, k, namespace, duration);
+
+            // Each member answers with its own top K, so the overall top K is among them
+            if (router.isEnabled() && !"local".equals(scope)) {
+                String peerQuery = UriComponentsBuilder.fromPath("/api/fleet/top")
+                        .queryParam("metric", metric)
+                        .queryParam("k", k)
+                        .queryParamIfPresent("namespace", Optional.ofNullable(namespace))
+                        .queryParam("window", window)
+                        .queryParam("scope", "local")
+                        .encode()
+                        .build()
+                        .toUriString();
+                List<ServiceMetricSummary> merged = new ArrayList<>(top);
+                merged.addAll(clusterClient.fanOut(peerQuery, SUMMARIES));
+                top = FleetMetricsService.top(merged, fleetMetric, k);
+            }
+
+            return ResponseEntity.ok(top);
+        } catch (Exception e) {
+            logger.error("Error fetching top services", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to fetch top services"));
+        }
+    }
+
+    /**
+     * Get a percentile of a metric across the services of each namespace.
+     *
+     * @param metric the metric: cpu, memory, memory-percent or errors (optional, default memory)
+     * @param p the percentile, greater than 0 and at most 100 (optional, default 95)
+     * @param namespace the namespace (optional, default every namespace)
+     * @param window the time window ending now, such as "5m" (optional, default 5 minutes)
+     * @return the number of services with samples and the percentile, by namespace
+     */
+    @GetMapping("/percentiles")
+    public ResponseEntity<?> getPercentiles(
+            @RequestParam(required = false, defaultValue = "memory") String metric,
+            @RequestParam(required = false, defaultValue = "95") double p,
+            @RequestParam(required = false) String namespace,
+            @RequestParam(required = false, defaultValue = "5m") String window) {
+        try {
+            FleetMetric fleetMetric = FleetMetric.parse(metric);
+            if (fleetMetric == null) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("error", "Unknown metric: " + metric));
+            }
+            if (!(p > 0 && p <= 100)) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("error", "p must be greater than 0 and at most 100"));
+            }
+            Duration duration = parseWindow(window);
+            if (duration == null) {
+                return invalidWindow();
+            }
+
+            // Percentiles cannot be merged, so the values of every service are gathered
+            Map<String, List<ServiceMetricSummary>> byNamespace = new TreeMap<>();
+            for (ServiceMetricSummary summary : summaries(namespace, duration, null)) {
+                if (summary.samples() > 0) {
+                    byNamespace.computeIfAbsent(summary.namespace(), key -> new ArrayList<>()).add(summary);
+                }
+            }
+
+            List<Map<String, Object>> result = new ArrayList<>();
+            byNamespace.forEach((name, services) -> {
+                double[] values = new double[services.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = fleetMetric.valueOf(services.get(i));
+                }
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("namespace", name);
+                entry.put("services", values.length);
+                entry.put("value", FleetMetricsService.percentile(values, p));
+                result.add(entry);
+            });
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            logger.error("Error fetching percentiles", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to fetch percentiles"));
+        }
+    }
+
+    /**
+     * Get the errors of all services sharing an application name.
+     *
+     * @param namespace the namespace of the services (optional, default all namespaces)
+     * @param window the time window ending now, such as "5m" (optional, default 5 minutes)
+     * @return the number of services, errors and errors per minute by application name, most errors per minute first
+     */
+    @GetMapping("/error-rates")
+    public ResponseEntity<?> getErrorRates(
+            @RequestParam(required = false) String namespace,
+            @RequestParam(required = false, defaultValue = "5m") String window) {
+        try {
+            Duration duration = parseWindow(window);
+            if (duration == null) {
+                return invalidWindow();
+            }
+
+            Map<String, long[]> byName = new TreeMap<>();
+            for (ServiceMetricSummary summary : summaries(namespace, duration, null)) {
+                if (summary.samples() > 0) {
+                    long[] totals = byName.computeIfAbsent(String.valueOf(summary.name()), key -> new long[2]);
+                    totals[0]++;
+                    totals[1] += summary.errors();
+                }
+            }
+
+            double minutes = duration.toMillis() / 60_000.0;
+            List<Map<String, Object>> result = new ArrayList<>();
+            byName.forEach((name, totals) -> {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("name", name);
+                entry.put("services", totals[0]);
+                entry.put("errors", totals[1]);
+                entry.put("errorsPerMinute", totals[1] / minutes);
+                result.add(entry);
+            });
+            result.sort(Comparator.comparing(entry -> (Double) entry.get("errorsPerMinute"), Comparator.reverseOrder()));
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            logger.error("Error fetching error rates", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to fetch error rates"));
+        }
+    }
+
+    /**
+     * Summarize the services of this member and, unless the scope is local, those of the other members.
+     */
+    private List<ServiceMetricSummary> summaries(String namespace, Duration window, String scope) {
+        List<ServiceMetricSummary> summaries = new ArrayList<>(fleetMetrics.summarize(namespace, window));
+        if (router.isEnabled() && !"local".equals(scope)) {
+            String peerQuery = UriComponentsBuilder.fromPath("/api/fleet/services")
+                    .queryParamIfPresent("namespace", Optional.ofNullable(namespace))
+                    .queryParam("window", window.toString())
+                    .queryParam("scope", "local")
+                    .encode()
+                    .build()
+                    .toUriString();
+            summaries.addAll(clusterClient.fanOut(peerQuery, SUMMARIES));
+        }
+        return summaries;
+    }
+
+    private static Duration parseWindow(String window) {
+        try {
+            Duration duration = DurationStyle.detectAndParse(window);
+            return duration.compareTo(MIN_WINDOW) >= 0 && duration.compareTo(MAX_WINDOW) <= 0 ? duration : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static ResponseEntity<?> invalidWindow() {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(Map.of("error", "window must be a duration between 1m and 1d"));
+    }
+}
@@ -1,22 +1,41 @@
 package org.newtco.obserra.backend.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
+import org.newtco.obserra.backend.cluster.ClusterClient;
+import org.newtco.obserra.backend.cluster.ClusterRouter;
 import org.newtco.obserra.backend.model.Log;
 import org.newtco.obserra.backend.model.Metric;
 import org.newtco.obserra.backend.model.Service;
 import org.newtco.obserra.backend.service.ActuatorDataCollectionService;
+import org.newtco.obserra.backend.storage.LogSearchQuery;
+import org.newtco.obserra.backend.storage.MetricBuckets;
+import org.newtco.obserra.backend.storage.MetricSamples;
 import org.newtco.obserra.backend.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 /**
  * Controller for metrics and logs.
@@ -27,16 +46,31 @@ import java.util.stream.Collectors;
 public class MetricsAndLogsController {
 
     private static final Logger logger = LoggerFactory.getLogger(MetricsAndLogsController.class);
+    private static final int MAX_SEARCH_LIMIT = 1000;
+
+    private static final Duration       DEFAULT_WINDOW = Duration.ofHours(1);
+    private static final Duration       MIN_STEP       = Duration.ofSeconds(1);
+    private static final int            DEFAULT_POINTS = 300;
+    private static final List<Duration> DEFAULT_STEPS  = List.of(
+            Duration.ofSeconds(15), Duration.ofMinutes(1), Duration.ofMinutes(5), Duration.ofMinutes(15),
+            Duration.ofMinutes(30), Duration.ofHours(1), Duration.ofHours(3), Duration.ofHours(6),
+            Duration.ofHours(12), Duration.ofDays(1));
 
     private final Storage storage;
     private final ActuatorDataCollectionService dataCollectionService;
+    private final ClusterRouter router;
+    private final ClusterClient clusterClient;
 
     @Autowired
     public MetricsAndLogsController(
             Storage storage,
-            ActuatorDataCollectionService dataCollectionService) {
+            ActuatorDataCollectionService dataCollectionService,
+            ClusterRouter router,
+            ClusterClient clusterClient) {
         this.storage = storage;
         this.dataCollectionService = dataCollectionService;
+        this.router = router;
+        this.clusterClient = clusterClient;
     }
 
     /**
@@ -44,12 +78,17 @@ public class MetricsAndLogsController {
      *
      * @param id the service ID
      * @param limit the maximum number of metrics to return (optional, default 10)
+     * @param from the earliest timestamp to include, reading archived history if needed (optional)
+     * @param to the latest timestamp to include (optional)
      * @return the metrics for the specified service
+     * @see #getServiceMetricSeries(Long, LocalDateTime, LocalDateTime, String)
      */
     @GetMapping("/services/{id}/metrics")
     public ResponseEntity<?> getServiceMetrics(
             @PathVariable Long id,
-            @RequestParam(required = false, defaultValue = "10") int limit) {
+            @RequestParam(required = false, defaultValue = "10") int limit,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
         try {
             Optional<Service> service = storage.getService(id);
             if (!service.isPresent()) {
@@ -57,7 +96,9 @@ public class MetricsAndLogsController {
                         .body(Map.of("error", "Service not found"));
             }
 
-            List<Metric> metrics = storage.getMetricsForService(id, limit);
+            MetricSamples metrics = from != null || to != null
+                    ? storage.getMetricSamples(id, from, to, limit)
+                    : storage.getMetricSamples(id, limit);
 
             // Format metrics for the frontend
             Map<String, Object> formattedMetrics = formatMetricsForFrontend(metrics);
@@ -70,17 +111,140 @@ public class MetricsAndLogsController {
         }
     }
 
+    /**
+     * Get the metrics of a specific service over a time range, aggregated on the server into buckets holding the
+     * average, minimum, maximum and last value of each metric. This is the only endpoint which downsamples metrics;
+     * {@code /services/{id}/metrics} always returns raw samples.
+     * <p>
+     * The response holds {@code from}, {@code to}, the {@code step} used as an ISO-8601 duration, and {@code points},
+     * each with a {@code timestamp} (the start of the bucket), the sample {@code count} and an
+     * {@code {avg, min, max, last}} object for each of {@code memoryUsed}, {@code memoryMax}, {@code cpuUsage} and
+     * {@code errorCount}. Buckets without samples are omitted.
+     *
+     * @param id the service ID
+     * @param from the start of the range (optional, default one hour before the end)
+     * @param to the end of the range (optional, default now)
+     * @param step the width of the buckets, such as "5m" or "PT1H" (optional, default a width which divides the range
+     *             into a few hundred buckets)
+     * @return the non-empty buckets, oldest first
+     */
+    @GetMapping("/services/{id}/metrics/series")
+    public ResponseEntity<?> getServiceMetricSeries(
+            @PathVariable Long id,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) String step) {
+        try {
+            Optional<Service> service = storage.getService(id);
+            if (!service.isPresent()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                        .body(Map.of("error", "Service not found"));
+            }
+
+            LocalDateTime end = to != null ? to : LocalDateTime.now();
+            LocalDateTime start = from != null ? from : end.minus(DEFAULT_WINDOW);
+            if (step == null) {
+                step = defaultStep(start, end).toString();
+            }
+            String invalid = validateWindow(start, end, step);
+            if (invalid != null) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Map.of("error", invalid));
+            }
+
+            MetricBuckets buckets = storage.getMetricBuckets(id, start, end, DurationStyle.detectAndParse(step));
+
+            List<Map<String, Object>> points = new ArrayList<>();
+            for (int i = 0; i < buckets.size(); i++) {
+                if (buckets.getCount(i) == 0) {
+                    continue;
+                }
+                Map<String, Object> point = new LinkedHashMap<>();
+                point.put("timestamp", LocalDateTime.ofInstant(Instant.ofEpochMilli(buckets.getTimestamp(i)),
+                                                               ZoneId.systemDefault()));
+                point.put("count", buckets.getCount(i));
+                point.put("memoryUsed", aggregates(buckets, i, MetricBuckets.Field.MEMORY_USED));
+                point.put("memoryMax", aggregates(buckets, i, MetricBuckets.Field.MEMORY_MAX));
+                point.put("cpuUsage", aggregates(buckets, i, MetricBuckets.Field.CPU_USAGE));
+                point.put("errorCount", aggregates(buckets, i, MetricBuckets.Field.ERROR_COUNT));
+                points.add(point);
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("from", start);
+            result.put("to", end);
+            result.put("step", buckets.getStep().toString());
+            result.put("points", points);
+            return ResponseEntity.ok(result);
+        } catch (Exception e) {
+            logger.error("Error fetching metric series", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to fetch metric series"));
+        }
+    }
+
+    private static Map<String, Object> aggregates(MetricBuckets buckets, int i, MetricBuckets.Field field) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("avg", buckets.getAverage(i, field));
+        values.put("min", buckets.getMin(i, field));
+        values.put("max", buckets.getMax(i, field));
+        values.put("last", buckets.getLast(i, field));
+        return values;
+    }
+
+    /**
+     * Check the time range and bucket width of an aggregated metrics request.
+     *
+     * @return the error message, or null if the request is valid
+     */
+    private static String validateWindow(LocalDateTime from, LocalDateTime to, String step) {
+        Duration width;
+        try {
+            width = DurationStyle.detectAndParse(step);
+        } catch (IllegalArgumentException e) {
+            return "Invalid step: " + step;
+        }
+        if (width.compareTo(MIN_STEP) < 0) {
+            return "Step must be at least " + MIN_STEP.toSeconds() + " seconds";
+        }
+        if (to.isBefore(from)) {
+            return "The end of the range is before its start";
+        }
+        long buckets = MetricBuckets.count(from.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                                           to.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), width);
+        if (buckets > MetricBuckets.MAX_BUCKETS) {
+            return "The range spans more than " + MetricBuckets.MAX_BUCKETS + " steps";
+        }
+        return null;
+    }
+
+    /**
+     * Pick the smallest of the usual chart resolutions which divides a range into at most a few hundred buckets.
+     */
+    private static Duration defaultStep(LocalDateTime from, LocalDateTime to) {
+        Duration range = Duration.between(from, to);
+        for (Duration step : DEFAULT_STEPS) {
+            if (range.dividedBy(step) < DEFAULT_POINTS) {
+                return step;
+            }
+        }
+        return Duration.ofHours(range.dividedBy(DEFAULT_POINTS).toHours() + 1);
+    }
+
     /**
      * Get logs for a specific service.
      *
      * @param id the service ID
      * @param limit the maximum number of logs to return (optional, default 100)
+     * @param from the earliest timestamp to include, reading archived history if needed (optional)
+     * @param to the latest timestamp to include (optional)
      * @return the logs for the specified service
      */
     @GetMapping("/services/{id}/logs")
     public ResponseEntity<?> getServiceLogs(
             @PathVariable Long id,
-            @RequestParam(required = false, defaultValue = "100") int limit) {
+            @RequestParam(required = false, defaultValue = "100") int limit,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
         try {
             Optional<Service> service = storage.getService(id);
             if (!service.isPresent()) {
@@ -88,7 +252,9 @@ public class MetricsAndLogsController {
                         .body(Map.of("error", "Service not found"));
             }
 
-            List<Log> logs = storage.getLogsForService(id, limit);
+            List<Log> logs = from != null || to != null
+                    ? storage.getLogsForService(id, from, to, limit)
+                    : storage.getLogsForService(id, limit);
 
             return ResponseEntity.ok(logs);
         } catch (Exception e) {
@@ -98,6 +264,69 @@ public class MetricsAndLogsController {
         }
     }
 
+    /**
+     * Search the logs of one or more services.
+     *
+     * @param q terms which must all occur in a log's message or logger (optional)
+     * @param phrase text which must occur in a log's message as is, ignoring case (optional)
+     * @param level the levels to include (optional, default all levels)
+     * @param from the earliest timestamp to include (optional)
+     * @param to the latest timestamp to include (optional)
+     * @param serviceIds the services to search (optional, default all services)
+     * @param limit the maximum number of logs to return (optional, default 100)
+     * @param scope "local" to search only this cluster member (optional, default the whole cluster)
+     * @param request the request, whose query is passed on to the other cluster members
+     * @return the matching logs, newest first
+     */
+    @GetMapping("/logs/search")
+    public ResponseEntity<?> searchLogs(
+            @RequestParam(required = false) String q,
+            @RequestParam(required = false) String phrase,
+            @RequestParam(required = false) List<String> level,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to,
+            @RequestParam(required = false) List<Long> serviceIds,
+            @RequestParam(required = false, defaultValue = "100") int limit,
+            @RequestParam(required = false) String scope,
+            HttpServletRequest request) {
+        try {
+            if (limit <= 0 || limit > MAX_SEARCH_LIMIT) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                        .body(Map.of("error", "limit must be between 1 and " + MAX_SEARCH_LIMIT));
+            }
+
+            Set<String> levels = new HashSet<>();
+            if (level != null) {
+                for (String value : level) {
+                    levels.add(value.trim().toUpperCase(Locale.ROOT));
+                }
+            }
+            Set<Long> services = serviceIds != null ? new HashSet<>(serviceIds) : Set.of();
+
+            List<Log> logs = storage.searchLogs(new LogSearchQuery(services, q, phrase, levels, from, to, limit));
+
+            // Each member holds the logs of the services it owns, so the newest matches of all members are merged
+            if (router.isEnabled() && !"local".equals(scope)) {
+                String peerQuery = UriComponentsBuilder.fromPath("/api/logs/search")
+                        .query(request.getQueryString())
+                        .replaceQueryParam("scope", "local")
+                        .build(true)
+                        .toUriString();
+                List<Log> merged = new ArrayList<>(logs);
+                merged.addAll(clusterClient.fanOut(peerQuery, new ParameterizedTypeReference<List<Log>>() {}));
+                merged.sort(Comparator.comparing(Log::getTimestamp,
+                                                 Comparator.nullsLast(Comparator.reverseOrder())));
+                logs = merged.size() > limit ? merged.subList(0, limit) : merged;
+            }
+
+            return ResponseEntity.ok(logs);
+        } catch (Exception e) {
+            logger.error("Error searching logs", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "Failed to search logs"));
+        }
+    }
+
     /**
      * Trigger a health check for a specific service.
      *
@@ -213,10 +442,10 @@ public class MetricsAndLogsController {
     /**
      * Format metrics for the frontend.
      *
-     * @param metrics the metrics to format
+     * @param metrics the metric samples to format, newest first
      * @return a map containing formatted metrics
      */
-    private Map<String, Object> formatMetricsForFrontend(List<Metric> metrics) {
+    private Map<String, Object> formatMetricsForFrontend(MetricSamples metrics) {
         Map<String, Object> result = new HashMap<>();
 
         if (metrics.isEmpty()) {
@@ -242,36 +471,33 @@ public class MetricsAndLogsController {
             return result;
         }
 
+        int size = metrics.size();
+        List<Float> memoryTrend = new ArrayList<>(size);
+        List<Float> cpuTrend = new ArrayList<>(size);
+        List<Integer> errorTrend = new ArrayList<>(size);
+        int totalErrors = 0;
+        for (int i = 0; i < size; i++) {
+            memoryTrend.add(metrics.getMemoryUsed(i) / metrics.getMemoryMax(i) * 100);
+            cpuTrend.add(metrics.getCpuUsage(i) * 100);
+            errorTrend.add(metrics.getErrorCount(i));
+            totalErrors += metrics.getErrorCount(i);
+        }
+
         // Memory metrics
         Map<String, Object> memoryMap = new HashMap<>();
-        memoryMap.put("used", Math.round(metrics.get(0).getMemoryUsed()));
-        memoryMap.put("max", Math.round(metrics.get(0).getMemoryMax()));
-
-        List<Float> memoryTrend = metrics.stream()
-                .map(m -> m.getMemoryUsed() / m.getMemoryMax() * 100)
-                .collect(Collectors.toList());
+        memoryMap.put("used", Math.round(metrics.getMemoryUsed(0)));
+        memoryMap.put("max", Math.round(metrics.getMemoryMax(0)));
         memoryMap.put("trend", memoryTrend);
 
         // CPU metrics
         Map<String, Object> cpuMap = new HashMap<>();
-        cpuMap.put("used", metrics.get(0).getCpuUsage());
+        cpuMap.put("used", metrics.getCpuUsage(0));
         cpuMap.put("max", 1);
-
-        List<Float> cpuTrend = metrics.stream()
-                .map(m -> m.getCpuUsage() * 100)
-                .collect(Collectors.toList());
         cpuMap.put("trend", cpuTrend);
 
         // Error metrics
         Map<String, Object> errorsMap = new HashMap<>();
-        int totalErrors = metrics.stream()
-                .mapToInt(Metric::getErrorCount)
-                .sum();
         errorsMap.put("count", totalErrors);
-
-        List<Integer> errorTrend = metrics.stream()
-                .map(Metric::getErrorCount)
-                .collect(Collectors.toList());
         errorsMap.put("trend", errorTrend);
 
         result.put("memory", memoryMap);
@@ -280,4 +506,4 @@ public class MetricsAndLogsController {
 
         return result;
     }
-}
+}
\ No newline at end of file
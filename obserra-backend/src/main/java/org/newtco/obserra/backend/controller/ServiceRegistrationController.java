@@ -1,6 +1,8 @@
 package org.newtco.obserra.backend.controller;
 
 import jakarta.servlet.http.HttpServletRequest;
+import org.newtco.obserra.backend.cluster.ClusterClient;
+import org.newtco.obserra.backend.cluster.ClusterRouter;
 import org.newtco.obserra.backend.collector.actuator.DiscoveryService;
 import org.newtco.obserra.backend.model.Service;
 import org.newtco.obserra.backend.model.ServiceStatus;
@@ -10,10 +12,13 @@ import org.newtco.obserra.shared.model.ServiceRegistration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -27,11 +32,16 @@ public class ServiceRegistrationController {
 
     private final Storage          storage;
     private final DiscoveryService discoveryService;
+    private final ClusterRouter    router;
+    private final ClusterClient    clusterClient;
 
     @Autowired
-    public ServiceRegistrationController(Storage storage, DiscoveryService discoveryService) {
+    public ServiceRegistrationController(Storage storage, DiscoveryService discoveryService, ClusterRouter router,
+                                         ClusterClient clusterClient) {
         this.storage = storage;
         this.discoveryService = discoveryService;
+        this.router = router;
+        this.clusterClient = clusterClient;
     }
 
     private String buildRegistrationActuatorUrl(ServiceRegistration.Request registration, HttpServletRequest serverRequest) {
@@ -153,14 +163,25 @@ public class ServiceRegistrationController {
     }
 
     /**
-     * Get all registered services.
+     * Get all registered services. In a cluster, every service is listed once, as known to the member which owns it.
      *
+     * @param scope "local" to list only the services this cluster member owns (optional, default the whole cluster)
      * @return a list of all registered services
      */
     @GetMapping("/api/services")
-    public ResponseEntity<?> getAllServices() {
+    public ResponseEntity<?> getAllServices(@RequestParam(required = false) String scope) {
         try {
-            return ResponseEntity.ok(storage.getAllServices());
+            List<Service> services = new ArrayList<>();
+            for (Service service : storage.getAllServices()) {
+                if (router.isLocal(service)) {
+                    services.add(service);
+                }
+            }
+            if (router.isEnabled() && !"local".equals(scope)) {
+                services.addAll(clusterClient.fanOut("/api/services?scope=local",
+                                                     new ParameterizedTypeReference<List<Service>>() {}));
+            }
+            return ResponseEntity.ok(services);
         } catch (Exception e) {
             logger.error("Error fetching services", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -1,12 +1,20 @@
 package org.newtco.obserra.backend.k8s;
 
+import io.kubernetes.client.informer.ResourceEventHandler;
+import io.kubernetes.client.informer.SharedIndexInformer;
+import io.kubernetes.client.informer.SharedInformerFactory;
+import io.kubernetes.client.informer.cache.Caches;
+import io.kubernetes.client.custom.IntOrString;
 import io.kubernetes.client.openapi.ApiClient;
 import io.kubernetes.client.openapi.ApiException;
 import io.kubernetes.client.openapi.Configuration;
 import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.V1Container;
+import io.kubernetes.client.openapi.models.V1ContainerPort;
 import io.kubernetes.client.openapi.models.V1Pod;
 import io.kubernetes.client.openapi.models.V1PodList;
 import io.kubernetes.client.openapi.models.V1Service;
+import io.kubernetes.client.openapi.models.V1ServicePort;
 import io.kubernetes.client.openapi.models.V1ServiceList;
 import io.kubernetes.client.util.Config;
 import org.newtco.obserra.backend.model.RegistrationSource;
@@ -15,45 +23,118 @@ import org.newtco.obserra.backend.model.ServiceStatus;
 import org.newtco.obserra.backend.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.convert.DurationStyle;
 import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service discovery for Kubernetes.
  * This class is responsible for discovering and registering Kubernetes services with Spring Boot actuator endpoints.
+ * <p>
+ * Discovery runs in one of two modes. In {@code watch} mode, the default, shared informers list pods and services once
+ * and then watch them from the last seen resourceVersion, keeping a local cache up to date. Pods are registered and
+ * deregistered as their add, update and delete events arrive, without rescanning the cluster. In {@code poll} mode,
+ * all pods and services are listed on every discovery interval.
+ * <p>
+ * Each pod is registered as its own service and scraped directly through its pod IP and container port, so that every
+ * replica is collected separately. Pods are deregistered once they terminate, start deleting or disappear; on every
+ * discovery interval the registered services are reconciled against the pods that still exist, which also catches
+ * deletions missed while a watch was down.
+ * <p>
+ * Discovery can be scoped to a list of namespaces, in which case every namespace is listed and watched on its own, and
+ * pods can be filtered by label and field selectors, which are passed on to the API server. With annotation opt-in
+ * enabled, only pods annotated with {@code obserra.io/scrape: "true"} are registered. Pods can also set the actuator
+ * port ({@code obserra.io/port}), the actuator path ({@code obserra.io/path}) and the collection interval
+ * ({@code obserra.io/interval}) through annotations.
+ * <p>
+ * A pod can be processed concurrently by the pod informer, by the service informer reprocessing its namespace and by
+ * the scheduled reconciliation. Each pod's check-then-register and deregistration therefore run under a lock striped by
+ * namespace and pod name, so a pod is never registered twice.
  */
 @Component
-public class KubernetesServiceDiscovery {
+public class KubernetesServiceDiscovery implements DisposableBean {
 
     private static final Logger logger = LoggerFactory.getLogger(KubernetesServiceDiscovery.class);
 
+    static final String SCRAPE_ANNOTATION   = "obserra.io/scrape";
+    static final String PORT_ANNOTATION     = "obserra.io/port";
+    static final String PATH_ANNOTATION     = "obserra.io/path";
+    static final String INTERVAL_ANNOTATION = "obserra.io/interval";
+
+    private static final String DEFAULT_ACTUATOR_PATH = "/actuator";
+
+    // Key of the shard which watches all namespaces
+    private static final String ALL_NAMESPACES = "";
+
+    // Number of locks the pods are striped over
+    private static final int POD_LOCK_STRIPES = 64;
+
     private final Storage storage;
     private final boolean kubernetesEnabled;
     private final long discoveryIntervalMs;
+    private final DiscoveryMode mode;
+    private final List<String> namespaces;
+    private final String labelSelector;
+    private final String fieldSelector;
+    private final boolean annotationOptIn;
+    private ApiClient client;
     private CoreV1Api api;
+    private final Map<String, WatchShard> shards = new LinkedHashMap<>();
+    private final ServiceSelectorIndex watchedServices = new ServiceSelectorIndex();
+    private final Object[] podLocks = new Object[POD_LOCK_STRIPES];
 
     @Autowired
     public KubernetesServiceDiscovery(
             Storage storage,
             @Value("${obserra.service-discovery.kubernetes.enabled:false}") boolean kubernetesEnabled,
-            @Value("${obserra.service-discovery.interval-ms:60000}") long discoveryIntervalMs) {
+            @Value("${obserra.service-discovery.interval-ms:60000}") long discoveryIntervalMs,
+            @Value("${obserra.service-discovery.kubernetes.mode:watch}") String mode,
+            @Value("${obserra.service-discovery.kubernetes.namespaces:}") String namespaces,
+            @Value("${obserra.service-discovery.kubernetes.label-selector:}") String labelSelector,
+            @Value("${obserra.service-discovery.kubernetes.field-selector:}") String fieldSelector,
+            @Value("${obserra.service-discovery.kubernetes.annotation-opt-in:false}") boolean annotationOptIn) {
         this.storage = storage;
         this.kubernetesEnabled = kubernetesEnabled;
         this.discoveryIntervalMs = discoveryIntervalMs;
+        this.mode = DiscoveryMode.valueOf(mode.toUpperCase(Locale.ROOT));
+        this.namespaces = Arrays.stream(namespaces.split(","))
+                .map(String::trim)
+                .filter(namespace -> !namespace.isEmpty())
+                .distinct()
+                .toList();
+        this.labelSelector = labelSelector.isBlank() ? null : labelSelector.trim();
+        this.fieldSelector = fieldSelector.isBlank() ? null : fieldSelector.trim();
+        this.annotationOptIn = annotationOptIn;
+        for (int i = 0; i < podLocks.length; i++) {
+            podLocks[i] = new Object();
+        }
         
         if (kubernetesEnabled) {
             try {
-                ApiClient client = Config.defaultClient();
+                client = Config.defaultClient();
+                // Watches are long-running requests, so they must not be cut off by a read timeout
+                client.setHttpClient(client.getHttpClient().newBuilder().readTimeout(0, TimeUnit.SECONDS).build());
                 Configuration.setDefaultApiClient(client);
                 this.api = new CoreV1Api();
                 logger.info("Kubernetes client initialized");
@@ -69,19 +150,36 @@ public class KubernetesServiceDiscovery {
      */
     @EventListener(ApplicationReadyEvent.class)
     public void onApplicationReady() {
+        if (mode == DiscoveryMode.WATCH && kubernetesEnabled && api != null) {
+            logger.info("Application ready, starting Kubernetes watches");
+            startWatching();
+            return;
+        }
+
         logger.info("Application ready, starting initial service discovery");
         discoverServices();
     }
 
     /**
      * Scheduled service discovery.
-     * This method is called periodically to discover new services.
+     * This method is called periodically to discover new services, or in watch mode to reconcile the registered
+     * services with the watched pods.
      */
     @Scheduled(fixedDelayString = "${obserra.service-discovery.interval-ms:60000}")
     public void scheduledDiscovery() {
-        if (kubernetesEnabled) {
+        if (!kubernetesEnabled) {
+            return;
+        }
+
+        if (mode == DiscoveryMode.POLL) {
             logger.debug("Running scheduled service discovery");
             discoverServices();
+        } else {
+            List<V1Pod> pods = watchedPods();
+            if (pods != null) {
+                logger.debug("Reconciling services with watched pods");
+                reconcile(pods);
+            }
         }
     }
 
@@ -95,30 +193,229 @@ public class KubernetesServiceDiscovery {
         }
 
         try {
-            // Get all pods in all namespaces
-            V1PodList podList = api.listPodForAllNamespaces(null, null, null, null, null, null, null, null, null, null);
-            
-            // Get all services in all namespaces
-            V1ServiceList serviceList = api.listServiceForAllNamespaces(null, null, null, null, null, null, null, null, null, null);
+            List<V1Pod> pods = new ArrayList<>();
+            List<V1Service> serviceList = new ArrayList<>();
+            if (namespaces.isEmpty()) {
+                // Get the selected pods and all services in all namespaces
+                pods.addAll(api.listPodForAllNamespaces(
+                        null, null, fieldSelector, labelSelector, null, null, null, null, null, null).getItems());
+                serviceList.addAll(api.listServiceForAllNamespaces(
+                        null, null, null, null, null, null, null, null, null, null).getItems());
+            } else {
+                for (String namespace : namespaces) {
+                    pods.addAll(api.listNamespacedPod(
+                            namespace, null, null, null, fieldSelector, labelSelector, null, null, null, null, null)
+                            .getItems());
+                    serviceList.addAll(api.listNamespacedService(
+                            namespace, null, null, null, null, null, null, null, null, null, null).getItems());
+                }
+            }
             
             // Map services to pods
-            for (V1Pod pod : podList.getItems()) {
-                processPod(pod, serviceList);
+            ServiceSelectorIndex services = ServiceSelectorIndex.of(serviceList);
+            for (V1Pod pod : pods) {
+                processPod(pod, services);
             }
+            reconcile(pods);
             
-            logger.info("Service discovery completed, processed {} pods", podList.getItems().size());
+            logger.info("Service discovery completed, processed {} pods", pods.size());
         } catch (ApiException e) {
             logger.error("Failed to discover Kubernetes services: {}", e.getResponseBody(), e);
         }
     }
 
+    /**
+     * Start the shared informers which watch pods and services, one shard per configured namespace or a single shard
+     * for all namespaces. The informers list everything once, then follow the watch from the listed resourceVersion,
+     * relisting only if the watch expires.
+     */
+    private synchronized void startWatching() {
+        if (!shards.isEmpty()) {
+            return;
+        }
+
+        for (String namespace : namespaces.isEmpty() ? List.of(ALL_NAMESPACES) : namespaces) {
+            shards.put(namespace, startShard(namespace));
+        }
+        logger.info("Watching pods and services in {}", namespaces.isEmpty() ? "all namespaces" : namespaces);
+    }
+
+    /**
+     * Start the informers of one shard. Each shard has its own factory, since a factory holds one informer per type.
+     *
+     * @param namespace the namespace to watch, or {@link #ALL_NAMESPACES}
+     * @return the shard
+     */
+    private WatchShard startShard(String namespace) {
+        boolean allNamespaces = ALL_NAMESPACES.equals(namespace);
+        SharedInformerFactory factory = new SharedInformerFactory(client);
+        SharedIndexInformer<V1Service> serviceInformer = factory.sharedIndexInformerFor(
+                params -> allNamespaces
+                        ? api.listServiceForAllNamespacesCall(
+                                null, null, null, null, null, null,
+                                params.resourceVersion, null, params.timeoutSeconds, params.watch, null)
+                        : api.listNamespacedServiceCall(
+                                namespace, null, null, null, null, null, null,
+                                params.resourceVersion, null, params.timeoutSeconds, params.watch, null),
+                V1Service.class,
+                V1ServiceList.class);
+        SharedIndexInformer<V1Pod> podInformer = factory.sharedIndexInformerFor(
+                params -> allNamespaces
+                        ? api.listPodForAllNamespacesCall(
+                                null, null, fieldSelector, labelSelector, null, null,
+                                params.resourceVersion, null, params.timeoutSeconds, params.watch, null)
+                        : api.listNamespacedPodCall(
+                                namespace, null, null, null, fieldSelector, labelSelector, null,
+                                params.resourceVersion, null, params.timeoutSeconds, params.watch, null),
+                V1Pod.class,
+                V1PodList.class);
+
+        serviceInformer.addEventHandler(new ResourceEventHandler<>() {
+            @Override
+            public void onAdd(V1Service k8sService) {
+                watchedServices.put(k8sService);
+                processNamespace(k8sService.getMetadata().getNamespace());
+            }
+
+            @Override
+            public void onUpdate(V1Service oldService, V1Service newService) {
+                watchedServices.put(newService);
+                processNamespace(newService.getMetadata().getNamespace());
+            }
+
+            @Override
+            public void onDelete(V1Service k8sService, boolean deletedFinalStateUnknown) {
+                // Pods stay registered until they go away themselves
+                watchedServices.remove(k8sService);
+            }
+        });
+        podInformer.addEventHandler(new ResourceEventHandler<>() {
+            @Override
+            public void onAdd(V1Pod pod) {
+                processWatchedPod(pod);
+            }
+
+            @Override
+            public void onUpdate(V1Pod oldPod, V1Pod newPod) {
+                processWatchedPod(newPod);
+            }
+
+            @Override
+            public void onDelete(V1Pod pod, boolean deletedFinalStateUnknown) {
+                deregisterPod(pod);
+            }
+        });
+
+        factory.startAllRegisteredInformers();
+        return new WatchShard(factory, podInformer);
+    }
+
+    /**
+     * Get the pods of all shards, once every shard has completed its initial list.
+     *
+     * @return the watched pods, or null if a shard has not synced yet
+     */
+    private synchronized List<V1Pod> watchedPods() {
+        if (shards.isEmpty()) {
+            return null;
+        }
+
+        List<V1Pod> pods = new ArrayList<>();
+        for (WatchShard shard : shards.values()) {
+            if (!shard.pods().hasSynced()) {
+                return null;
+            }
+            pods.addAll(shard.pods().getIndexer().list());
+        }
+        return pods;
+    }
+
+    /**
+     * Process a pod from the watch against the watched services.
+     *
+     * @param pod the Kubernetes pod
+     */
+    private void processWatchedPod(V1Pod pod) {
+        try {
+            processPod(pod, watchedServices);
+        } catch (Exception e) {
+            logger.error("Failed to process pod {}: {}", pod.getMetadata().getName(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reprocess the cached pods of a namespace, after one of its services changed.
+     *
+     * @param namespace the namespace
+     */
+    private void processNamespace(String namespace) {
+        WatchShard shard;
+        synchronized (this) {
+            shard = shards.getOrDefault(namespace, shards.get(ALL_NAMESPACES));
+        }
+        if (shard == null) {
+            return;
+        }
+        for (V1Pod pod : shard.pods().getIndexer().byIndex(Caches.NAMESPACE_INDEX, namespace)) {
+            processWatchedPod(pod);
+        }
+    }
+
+    /**
+     * Remove the registration of a deleted pod.
+     *
+     * @param pod the Kubernetes pod
+     */
+    private void deregisterPod(V1Pod pod) {
+        String podName = pod.getMetadata().getName();
+        String namespace = pod.getMetadata().getNamespace();
+        synchronized (podLock(namespace, podName)) {
+            storage.getServiceByPodName(namespace, podName).ifPresent(service -> {
+                storage.deleteService(service.getId());
+                logger.info("Deregistered service: {} ({})", service.getName(), podName);
+            });
+        }
+    }
+
+    /**
+     * Deregister the services of pods which no longer exist.
+     *
+     * @param pods the pods which currently exist
+     */
+    private void reconcile(Collection<V1Pod> pods) {
+        // Pod names are only unique within a namespace
+        Set<String> podKeys = new HashSet<>();
+        for (V1Pod pod : pods) {
+            podKeys.add(podKey(pod.getMetadata().getNamespace(), pod.getMetadata().getName()));
+        }
+
+        for (Service service : storage.getAllServices()) {
+            if (service.getRegistrationSource() == RegistrationSource.KUBERNETES
+                    && service.getPodName() != null
+                    && !podKeys.contains(podKey(service.getNamespace(), service.getPodName()))) {
+                synchronized (podLock(service.getNamespace(), service.getPodName())) {
+                    storage.deleteService(service.getId());
+                }
+                logger.info("Deregistered service of vanished pod: {} ({})", service.getName(), service.getPodName());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        for (WatchShard shard : shards.values()) {
+            shard.factory().stopAllRegisteredInformers();
+        }
+        shards.clear();
+    }
+
     /**
      * Process a Kubernetes pod to check if it has Spring Boot actuator endpoints.
      *
      * @param pod the Kubernetes pod to process
-     * @param serviceList the list of Kubernetes services
+     * @param services the index of the Kubernetes services
      */
-    private void processPod(V1Pod pod, V1ServiceList serviceList) {
+    private void processPod(V1Pod pod, ServiceSelectorIndex services) {
         String podName = pod.getMetadata().getName();
         String namespace = pod.getMetadata().getNamespace();
         Map<String, String> labels = pod.getMetadata().getLabels();
@@ -142,106 +439,239 @@ public class KubernetesServiceDiscovery {
         if (!isSpringBoot || appName == null) {
             return;
         }
+
+        // Terminated and terminating pods are no longer scraped, nor are pods which did not opt in
+        Map<String, String> annotations = pod.getMetadata().getAnnotations() != null
+                ? pod.getMetadata().getAnnotations()
+                : Map.of();
+        if (isGone(pod) || (annotationOptIn && !"true".equals(annotations.get(SCRAPE_ANNOTATION)))) {
+            deregisterPod(pod);
+            return;
+        }
+        if (!isRunning(pod)) {
+            logger.debug("Pod {} is not running yet", podName);
+            return;
+        }
         
         // Find the service that targets this pod
-        List<V1Service> matchingServices = findServicesForPod(pod, serviceList);
+        List<V1Service> matchingServices = services.match(namespace, labels);
         
-        if (matchingServices.isEmpty()) {
+        // A pod which annotates its port can be scraped without a service
+        if (matchingServices.isEmpty() && !annotations.containsKey(PORT_ANNOTATION)) {
             logger.debug("No matching service found for pod {}", podName);
             return;
         }
         
-        // For each matching service, try to register it
-        for (V1Service k8sService : matchingServices) {
-            registerService(pod, k8sService, appName);
+        // A pod is registered once, through the first of its services by name, so its port stays stable
+        V1Service k8sService = matchingServices.stream()
+                .min(Comparator.comparing(matchingService -> matchingService.getMetadata().getName()))
+                .orElse(null);
+        registerService(pod, k8sService, appName, annotations);
+    }
+
+    /**
+     * Check whether a pod has terminated or is being deleted.
+     *
+     * @param pod the Kubernetes pod
+     * @return true if the pod will not serve requests anymore
+     */
+    private static boolean isGone(V1Pod pod) {
+        if (pod.getMetadata().getDeletionTimestamp() != null) {
+            return true;
         }
+        String phase = pod.getStatus() != null ? pod.getStatus().getPhase() : null;
+        return "Succeeded".equals(phase) || "Failed".equals(phase);
     }
 
     /**
-     * Find Kubernetes services that target a specific pod.
+     * Check whether a pod is running and has an IP.
      *
      * @param pod the Kubernetes pod
-     * @param serviceList the list of Kubernetes services
-     * @return a list of Kubernetes services that target the pod
+     * @return true if the pod can be scraped
      */
-    private List<V1Service> findServicesForPod(V1Pod pod, V1ServiceList serviceList) {
-        List<V1Service> matchingServices = new ArrayList<>();
-        Map<String, String> podLabels = pod.getMetadata().getLabels();
-        
-        if (podLabels == null || podLabels.isEmpty()) {
-            return matchingServices;
+    private static boolean isRunning(V1Pod pod) {
+        return pod.getStatus() != null
+                && "Running".equals(pod.getStatus().getPhase())
+                && pod.getStatus().getPodIP() != null;
+    }
+
+    /**
+     * Resolve the container port a service forwards to on a pod.
+     *
+     * @param pod the Kubernetes pod
+     * @param k8sService the Kubernetes service, or null
+     * @return the container port, or null if it cannot be resolved
+     */
+    private static Integer targetPort(V1Pod pod, V1Service k8sService) {
+        if (k8sService == null) {
+            return null;
         }
-        
-        for (V1Service k8sService : serviceList.getItems()) {
-            if (!pod.getMetadata().getNamespace().equals(k8sService.getMetadata().getNamespace())) {
-                continue;
-            }
-            
-            Map<String, String> selector = k8sService.getSpec().getSelector();
-            if (selector == null || selector.isEmpty()) {
-                continue;
-            }
-            
-            boolean matches = true;
-            for (Map.Entry<String, String> entry : selector.entrySet()) {
-                String key = entry.getKey();
-                String value = entry.getValue();
-                
-                if (!value.equals(podLabels.get(key))) {
-                    matches = false;
-                    break;
+        List<V1ServicePort> ports = k8sService.getSpec().getPorts();
+        if (ports == null || ports.isEmpty()) {
+            return null;
+        }
+
+        V1ServicePort servicePort = ports.get(0);
+        IntOrString targetPort = servicePort.getTargetPort();
+        if (targetPort == null) {
+            // The target port defaults to the service port
+            return servicePort.getPort();
+        }
+        if (targetPort.isInteger()) {
+            return targetPort.getIntValue();
+        }
+
+        // A named target port refers to a container port of the pod
+        if (pod.getSpec() != null) {
+            for (V1Container container : pod.getSpec().getContainers()) {
+                if (container.getPorts() == null) {
+                    continue;
+                }
+                for (V1ContainerPort containerPort : container.getPorts()) {
+                    if (targetPort.getStrValue().equals(containerPort.getName())) {
+                        return containerPort.getContainerPort();
+                    }
                 }
-            }
-            
-            if (matches) {
-                matchingServices.add(k8sService);
             }
         }
-        
-        return matchingServices;
+        return null;
     }
 
     /**
      * Register a Kubernetes service with Spring Boot actuator endpoints.
      *
      * @param pod the Kubernetes pod
-     * @param k8sService the Kubernetes service
+     * @param k8sService the Kubernetes service, or null if the pod annotates its port
      * @param appName the application name
+     * @param annotations the pod's annotations
      */
-    private void registerService(V1Pod pod, V1Service k8sService, String appName) {
+    private void registerService(V1Pod pod, V1Service k8sService, String appName, Map<String, String> annotations) {
         String podName = pod.getMetadata().getName();
         String namespace = pod.getMetadata().getNamespace();
-        String serviceName = k8sService.getMetadata().getName();
         
-        // Check if this service is already registered
-        Optional<Service> existingService = storage.getServiceByPodName(podName);
-        
-        if (existingService.isPresent()) {
-            logger.debug("Service already registered for pod {}", podName);
+        Integer port = annotations.containsKey(PORT_ANNOTATION)
+                ? parsePort(podName, annotations.get(PORT_ANNOTATION))
+                : targetPort(pod, k8sService);
+        if (port == null) {
+            logger.debug("Could not resolve the actuator port of pod {}", podName);
             return;
         }
+
+        // Construct the actuator URL from the pod IP, so that requests reach this replica
+        String clusterDns = k8sService != null
+                ? String.format("%s.%s.svc.cluster.local", k8sService.getMetadata().getName(), namespace)
+                : null;
+        String podIp = pod.getStatus().getPodIP();
+        String host = podIp.indexOf(':') >= 0 ? "[" + podIp + "]" : podIp;
+        String actuatorUrl = String.format("http://%s:%d%s", host, port, actuatorPath(annotations));
+        Duration checkInterval = parseInterval(podName, annotations.get(INTERVAL_ANNOTATION));
         
-        // Construct the actuator URL
-        String clusterDns = String.format("%s.%s.svc.cluster.local", serviceName, namespace);
-        Integer port = k8sService.getSpec().getPorts().get(0).getPort();
-        String actuatorUrl = String.format("http://%s:%d", clusterDns, port);
-        
-        // Create a new service
-        Service service = new Service();
-        service.setName(appName);
-        service.setNamespace(namespace);
-        service.setPodName(podName);
-        service.setStatus(ServiceStatus.UNKNOWN);
-        service.setClusterDns(clusterDns);
-        service.setActuatorUrl(actuatorUrl);
-        service.setRegistrationSource(RegistrationSource.KUBERNETES);
-        service.setHealthCheckPath("/actuator/health");
-        service.setMetricsPath("/actuator/metrics");
-        service.setLogsPath("/actuator/logfile");
-        service.setConfigPath("/actuator/env");
-        
-        // Register the service
-        Service registeredService = storage.createService(service);
-        logger.info("Registered new service: {} ({})", registeredService.getName(), registeredService.getPodName());
+        // Check-then-register under the pod's lock, so that concurrent events never register the pod twice
+        synchronized (podLock(namespace, podName)) {
+            // Check if this service is already registered
+            Optional<Service> existingService = storage.getServiceByPodName(namespace, podName);
+
+            if (existingService.isPresent()) {
+                Service service = existingService.get();
+                if (!actuatorUrl.equals(service.getActuatorUrl())
+                        || !Objects.equals(checkInterval, service.getCheckInterval())) {
+                    // The pod was recreated under the same name, e.g. by a StatefulSet, or its annotations changed
+                    service.setActuatorUrl(actuatorUrl);
+                    service.setCheckInterval(checkInterval);
+                    storage.updateService(service.getId(), service);
+                    logger.info("Updated actuator URL of service {} ({}): {}", service.getName(), podName, actuatorUrl);
+                } else {
+                    logger.debug("Service already registered for pod {}", podName);
+                }
+                return;
+            }
+
+            // Create a new service
+            Service service = new Service();
+            service.setName(appName);
+            service.setNamespace(namespace);
+            service.setPodName(podName);
+            service.setStatus(ServiceStatus.UNKNOWN);
+            service.setClusterDns(clusterDns);
+            service.setActuatorUrl(actuatorUrl);
+            service.setCheckInterval(checkInterval);
+            service.setRegistrationSource(RegistrationSource.KUBERNETES);
+
+            // Register the service
+            Service registeredService = storage.createService(service);
+            logger.info("Registered new service: {} ({})", registeredService.getName(), registeredService.getPodName());
+        }
+    }
+
+    /**
+     * Get the key which identifies a pod across namespaces.
+     *
+     * @param namespace the pod's namespace
+     * @param podName   the pod's name
+     * @return the key
+     */
+    private static String podKey(String namespace, String podName) {
+        return namespace + "/" + podName;
+    }
+
+    /**
+     * Get the lock which serializes the registration and deregistration of a pod.
+     *
+     * @param namespace the pod's namespace
+     * @param podName   the pod's name
+     * @return the lock
+     */
+    private Object podLock(String namespace, String podName) {
+        return podLocks[Math.floorMod(Objects.hash(namespace, podName), podLocks.length)];
+    }
+
+    /**
+     * Get the actuator base path of a pod from its annotations.
+     *
+     * @param annotations the pod's annotations
+     * @return the path, starting with a slash and without a trailing slash
+     */
+    private static String actuatorPath(Map<String, String> annotations) {
+        String path = annotations.getOrDefault(PATH_ANNOTATION, DEFAULT_ACTUATOR_PATH).trim();
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    private static Integer parsePort(String podName, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring invalid {} annotation on pod {}: {}", PORT_ANNOTATION, podName, value);
+            return null;
+        }
+    }
+
+    private static Duration parseInterval(String podName, String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return DurationStyle.detectAndParse(value.trim());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignoring invalid {} annotation on pod {}: {}", INTERVAL_ANNOTATION, podName, value);
+            return null;
+        }
+    }
+
+    /**
+     * The informers watching one namespace, or all namespaces.
+     */
+    private record WatchShard(SharedInformerFactory factory, SharedIndexInformer<V1Pod> pods) {}
+
+    /**
+     * How pods and services are discovered.
+     */
+    private enum DiscoveryMode {
+        WATCH, POLL
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,129 @@
+package org.newtco.obserra.backend.k8s;
+
+import io.kubernetes.client.openapi.models.V1Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index from the selector labels of Kubernetes services to the services.
+ * <p>
+ * Each service is listed under every {@code key=value} pair of its selector, within its namespace. Matching a pod
+ * looks up each of the pod's labels and counts the hits per service; a service matches when all pairs of its selector
+ * were hit. This makes matching proportional to the pod's label count instead of the number of services in the
+ * cluster. Services without a selector do not select pods, so they are not indexed.
+ */
+class ServiceSelectorIndex {
+
+    // Services by namespace and selector label, e.g. "shop" -> "app=orders" -> [orders]
+    private final Map<String, Map<String, List<IndexedService>>> byLabel = new HashMap<>();
+
+    // Indexed services by namespace and name, to replace and remove them
+    private final Map<String, IndexedService> byName = new HashMap<>();
+
+    /**
+     * Build an index of a list of services.
+     *
+     * @param services the services
+     * @return the index
+     */
+    static ServiceSelectorIndex of(List<V1Service> services) {
+        ServiceSelectorIndex index = new ServiceSelectorIndex();
+        for (V1Service k8sService : services) {
+            index.put(k8sService);
+        }
+        return index;
+    }
+
+    /**
+     * Add a service to the index, replacing an earlier version of it.
+     *
+     * @param k8sService the service
+     */
+    synchronized void put(V1Service k8sService) {
+        remove(k8sService);
+
+        Map<String, String> selector = k8sService.getSpec() != null ? k8sService.getSpec().getSelector() : null;
+        if (selector == null || selector.isEmpty()) {
+            return;
+        }
+
+        String namespace = k8sService.getMetadata().getNamespace();
+        IndexedService indexed = new IndexedService(k8sService, selector.size());
+        byName.put(nameOf(k8sService), indexed);
+
+        Map<String, List<IndexedService>> labels = byLabel.computeIfAbsent(namespace, ns -> new HashMap<>());
+        for (Map.Entry<String, String> entry : selector.entrySet()) {
+            labels.computeIfAbsent(label(entry.getKey(), entry.getValue()), l -> new ArrayList<>(1)).add(indexed);
+        }
+    }
+
+    /**
+     * Remove a service from the index.
+     *
+     * @param k8sService the service
+     */
+    synchronized void remove(V1Service k8sService) {
+        IndexedService indexed = byName.remove(nameOf(k8sService));
+        if (indexed == null) {
+            return;
+        }
+
+        String namespace = indexed.service().getMetadata().getNamespace();
+        Map<String, List<IndexedService>> labels = byLabel.get(namespace);
+        for (Map.Entry<String, String> entry : indexed.service().getSpec().getSelector().entrySet()) {
+            String label = label(entry.getKey(), entry.getValue());
+            List<IndexedService> services = labels.get(label);
+            services.removeIf(service -> service == indexed);
+            if (services.isEmpty()) {
+                labels.remove(label);
+            }
+        }
+        if (labels.isEmpty()) {
+            byLabel.remove(namespace);
+        }
+    }
+
+    /**
+     * Find the services whose selector matches a pod's labels.
+     *
+     * @param namespace the pod's namespace
+     * @param podLabels the pod's labels
+     * @return the matching services
+     */
+    synchronized List<V1Service> match(String namespace, Map<String, String> podLabels) {
+        List<V1Service> matchingServices = new ArrayList<>();
+        Map<String, List<IndexedService>> labels = byLabel.get(namespace);
+        if (labels == null || podLabels == null || podLabels.isEmpty()) {
+            return matchingServices;
+        }
+
+        Map<IndexedService, Integer> hits = new IdentityHashMap<>();
+        for (Map.Entry<String, String> entry : podLabels.entrySet()) {
+            List<IndexedService> services = labels.get(label(entry.getKey(), entry.getValue()));
+            if (services == null) {
+                continue;
+            }
+            for (IndexedService indexed : services) {
+                if (hits.merge(indexed, 1, Integer::sum) == indexed.selectorSize()) {
+                    matchingServices.add(indexed.service());
+                }
+            }
+        }
+        return matchingServices;
+    }
+
+    private static String nameOf(V1Service k8sService) {
+        return k8sService.getMetadata().getNamespace() + "/" + k8sService.getMetadata().getName();
+    }
+
+    // Label keys cannot contain '=', so the pair is unambiguous
+    private static String label(String key, String value) {
+        return key + "=" + value;
+    }
+
+    private record IndexedService(V1Service service, int selectorSize) {}
+}
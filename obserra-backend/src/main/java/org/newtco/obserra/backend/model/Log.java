@@ -12,6 +12,8 @@ public class Log {
     private Long serviceId;
     private LocalDateTime timestamp = LocalDateTime.now();
     private String level = "INFO";
+    private String thread;
+    private String logger;
     private String message;
 
     // Getters and Setters
@@ -48,6 +50,22 @@ public class Log {
         this.level = level;
     }
 
+    public String getThread() {
+        return thread;
+    }
+
+    public void setThread(String thread) {
+        this.thread = thread;
+    }
+
+    public String getLogger() {
+        return logger;
+    }
+
+    public void setLogger(String logger) {
+        this.logger = logger;
+    }
+
     public String getMessage() {
         return message;
     }
@@ -0,0 +1,17 @@
+package org.newtco.obserra.backend.model;
+
+/**
+ * The metrics of a single service aggregated over a recent time window, as compared across the fleet.
+ *
+ * @param serviceId  the service ID
+ * @param name       the service name
+ * @param namespace  the service namespace
+ * @param samples    the number of samples in the window
+ * @param cpuUsage   the average CPU usage as a fraction
+ * @param memoryUsed the average used memory in bytes
+ * @param memoryMax  the latest maximum memory in bytes
+ * @param errors     the number of errors counted within the window
+ */
+public record ServiceMetricSummary(Long serviceId, String name, String namespace, int samples, float cpuUsage,
+                                   float memoryUsed, float memoryMax, long errors) {
+}
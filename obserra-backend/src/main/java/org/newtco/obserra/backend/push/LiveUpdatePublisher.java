@@ -0,0 +1,367 @@
+package org.newtco.obserra.backend.push;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.newtco.obserra.backend.model.Log;
+import org.newtco.obserra.backend.model.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes live updates from the collectors to subscribed clients.
+ * <p>
+ * Collectors publish status changes, new metric samples and new logs as they collect them. Each client subscribes to
+ * the services and channels it displays, optionally restricted to some log levels, and only receives matching
+ * updates. Updates are coalesced per client and sent on a fixed interval: logs published in between are sent in one
+ * message per service, and of several metric samples or status changes of a service only the latest is sent. A
+ * client which cannot keep up is disconnected rather than buffering without bound.
+ * <p>
+ * The scheduler thread only hands the pending updates off: each client is sent to on a virtual thread of its own, so a
+ * stalled client delays neither the other clients nor the other scheduled tasks. While a send to a client is still
+ * running, later updates keep coalescing, and a client whose send has not completed within the send time limit is
+ * disconnected.
+ */
+@Component
+public class LiveUpdatePublisher implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveUpdatePublisher.class);
+
+    // Bounds the logs buffered per client and service between two flushes
+    private static final int MAX_PENDING_LOGS = 1000;
+
+    private final ObjectMapper objectMapper;
+    private final int sendTimeLimitMs;
+    private final int sendBufferSizeLimit;
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final ExecutorService sender =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("obserra-push-", 0).factory());
+
+    @Autowired
+    public LiveUpdatePublisher(
+            ObjectMapper objectMapper,
+            @Value("${obserra.push.send-time-limit-ms:5000}") int sendTimeLimitMs,
+            @Value("${obserra.push.send-buffer-size-limit:524288}") int sendBufferSizeLimit) {
+        this.objectMapper = objectMapper;
+        this.sendTimeLimitMs = sendTimeLimitMs;
+        this.sendBufferSizeLimit = sendBufferSizeLimit;
+    }
+
+    /**
+     * Register a connected client.
+     *
+     * @param session the client's session
+     */
+    public void connect(WebSocketSession session) {
+        WebSocketSession concurrentSession = new ConcurrentWebSocketSessionDecorator(
+                session, sendTimeLimitMs, sendBufferSizeLimit);
+        subscribers.put(session.getId(), new Subscriber(concurrentSession));
+    }
+
+    /**
+     * Remove a disconnected client.
+     *
+     * @param session the client's session
+     */
+    public void disconnect(WebSocketSession session) {
+        subscribers.remove(session.getId());
+    }
+
+    /**
+     * Subscribe a client to updates of a service.
+     *
+     * @param session   the client's session
+     * @param serviceId the service ID, or null for all services
+     * @param channels  the channels to receive, or empty for all channels
+     * @param levels    the log levels to receive, or empty for all levels
+     */
+    public void subscribe(WebSocketSession session, Long serviceId, Set<Channel> channels, Set<String> levels) {
+        Subscriber subscriber = subscribers.get(session.getId());
+        if (subscriber != null) {
+            subscriber.subscribe(serviceId, new Subscription(
+                    channels.isEmpty() ? Set.of(Channel.values()) : Set.copyOf(channels), Set.copyOf(levels)));
+        }
+    }
+
+    /**
+     * Unsubscribe a client from updates of a service.
+     *
+     * @param session   the client's session
+     * @param serviceId the service ID, or null for all services
+     */
+    public void unsubscribe(WebSocketSession session, Long serviceId) {
+        Subscriber subscriber = subscribers.get(session.getId());
+        if (subscriber != null) {
+            subscriber.unsubscribe(serviceId);
+        }
+    }
+
+    /**
+     * Publish the new logs of a service.
+     *
+     * @param serviceId the service ID
+     * @param logs      the logs, oldest first
+     */
+    public void publishLogs(Long serviceId, List<Log> logs) {
+        if (logs.isEmpty()) {
+            return;
+        }
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.offerLogs(serviceId, logs);
+        }
+    }
+
+    /**
+     * Publish a new metric sample of a service.
+     *
+     * @param serviceId  the service ID
+     * @param timestamp  the sample time in epoch milliseconds
+     * @param memoryUsed the used memory in bytes
+     * @param memoryMax  the maximum memory in bytes
+     * @param cpuUsage   the CPU usage as a fraction
+     * @param errorCount the error count
+     */
+    public void publishMetric(Long serviceId, long timestamp, float memoryUsed, float memoryMax, float cpuUsage,
+                              int errorCount) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        MetricUpdate update = new MetricUpdate(
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()),
+                memoryUsed, memoryMax, cpuUsage, errorCount);
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.offerMetric(serviceId, update);
+        }
+    }
+
+    /**
+     * Publish a change of a service's status.
+     *
+     * @param service the service, with its new status
+     */
+    public void publishStatus(Service service) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        StatusUpdate update = new StatusUpdate(service.getStatus().name(), service.getLastSeen());
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.offerStatus(service.getId(), update);
+        }
+    }
+
+    /**
+     * Start sending the coalesced updates to each client which has any pending and is not still busy with its previous
+     * send, and disconnect the clients whose previous send has been running for longer than the send time limit.
+     */
+    @Scheduled(fixedDelayString = "${obserra.push.flush-ms:250}")
+    public void flush() {
+        long now = System.currentTimeMillis();
+        for (Subscriber subscriber : subscribers.values()) {
+            long sendStarted = subscriber.sendStarted.get();
+            if (sendStarted != 0) {
+                if (now - sendStarted > sendTimeLimitMs) {
+                    logger.debug("Client {} did not accept live updates within {} ms, disconnecting",
+                                 subscriber.session.getId(), sendTimeLimitMs);
+                    drop(subscriber);
+                }
+            } else if (subscriber.hasPending() && subscriber.sendStarted.compareAndSet(0, now)) {
+                sender.execute(() -> send(subscriber));
+            }
+        }
+    }
+
+    private void send(Subscriber subscriber) {
+        try {
+            subscriber.flush();
+        } catch (Exception e) {
+            logger.debug("Failed to send live updates to client {}: {}", subscriber.session.getId(),
+                         e.getMessage());
+            drop(subscriber);
+        } finally {
+            subscriber.sendStarted.set(0);
+        }
+    }
+
+    private void drop(Subscriber subscriber) {
+        if (subscribers.remove(subscriber.session.getId(), subscriber)) {
+            // Closing may have to wait for the stalled send, so it does not run on the scheduler thread either
+            sender.execute(() -> closeQuietly(subscriber.session));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        sender.shutdownNow();
+    }
+
+    private static Map<String, Object> message(String type, Long serviceId) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("type", type);
+        message.put("serviceId", serviceId);
+        return message;
+    }
+
+    private static void closeQuietly(WebSocketSession session) {
+        try {
+            session.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * The kinds of updates a client can subscribe to.
+     */
+    public enum Channel {
+        LOGS, METRICS, STATUS
+    }
+
+    private record Subscription(Set<Channel> channels, Set<String> levels) {
+
+        boolean accepts(Log log) {
+            return levels.isEmpty() || levels.contains(log.getLevel());
+        }
+    }
+
+    private record MetricUpdate(LocalDateTime timestamp, float memoryUsed, float memoryMax, float cpuUsage,
+                                int errorCount) {}
+
+    private record StatusUpdate(String status, LocalDateTime lastSeen) {}
+
+    /**
+     * A connected client, with its subscriptions and the updates pending since the last flush.
+     */
+    private final class Subscriber {
+
+        private final WebSocketSession session;
+
+        // The time in epoch milliseconds at which the running send started, or 0 if none is running
+        private final AtomicLong sendStarted = new AtomicLong();
+
+        // Subscriptions by service ID, with the null key standing for all services
+        private final Map<Long, Subscription> subscriptions = new HashMap<>();
+
+        private final Map<Long, List<Log>> pendingLogs    = new LinkedHashMap<>();
+        private final Map<Long, MetricUpdate> pendingMetrics = new LinkedHashMap<>();
+        private final Map<Long, StatusUpdate> pendingStatus  = new LinkedHashMap<>();
+
+        Subscriber(WebSocketSession session) {
+            this.session = session;
+        }
+
+        synchronized void subscribe(Long serviceId, Subscription subscription) {
+            subscriptions.put(serviceId, subscription);
+        }
+
+        synchronized void unsubscribe(Long serviceId) {
+            subscriptions.remove(serviceId);
+            if (serviceId != null) {
+                pendingLogs.remove(serviceId);
+                pendingMetrics.remove(serviceId);
+                pendingStatus.remove(serviceId);
+            }
+        }
+
+        private Subscription subscription(Long serviceId, Channel channel) {
+            Subscription subscription = subscriptions.get(serviceId);
+            if (subscription == null || !subscription.channels().contains(channel)) {
+                subscription = subscriptions.get(null);
+            }
+            return subscription != null && subscription.channels().contains(channel) ? subscription : null;
+        }
+
+        synchronized void offerLogs(Long serviceId, List<Log> logs) {
+            Subscription subscription = subscription(serviceId, Channel.LOGS);
+            if (subscription == null) {
+                return;
+            }
+
+            List<Log> pending = pendingLogs.computeIfAbsent(serviceId, id -> new ArrayList<>());
+            for (Log log : logs) {
+                if (subscription.accepts(log)) {
+                    pending.add(log);
+                }
+            }
+            if (pending.size() > MAX_PENDING_LOGS) {
+                pending.subList(0, pending.size() - MAX_PENDING_LOGS).clear();
+            }
+        }
+
+        // Only the latest metric sample and status of a service are sent
+
+        synchronized void offerMetric(Long serviceId, MetricUpdate update) {
+            if (subscription(serviceId, Channel.METRICS) != null) {
+                pendingMetrics.put(serviceId, update);
+            }
+        }
+
+        synchronized void offerStatus(Long serviceId, StatusUpdate update) {
+            if (subscription(serviceId, Channel.STATUS) != null) {
+                pendingStatus.put(serviceId, update);
+            }
+        }
+
+        synchronized boolean hasPending() {
+            return !pendingStatus.isEmpty() || !pendingMetrics.isEmpty() || !pendingLogs.isEmpty();
+        }
+
+        void flush() throws IOException {
+            List<Map<String, Object>> messages = new ArrayList<>();
+            synchronized (this) {
+                pendingStatus.forEach((serviceId, update) -> {
+                    Map<String, Object> message = message("status", serviceId);
+                    message.put("status", update.status());
+                    message.put("lastSeen", update.lastSeen());
+                    messages.add(message);
+                });
+                pendingMetrics.forEach((serviceId, update) -> {
+                    Map<String, Object> message = message("metrics", serviceId);
+                    message.put("metrics", update);
+                    messages.add(message);
+                });
+                pendingLogs.forEach((serviceId, logs) -> {
+                    if (!logs.isEmpty()) {
+                        // Newest first, matching the logs endpoint
+                        List<Log> newestFirst = new ArrayList<>(logs);
+                        Collections.reverse(newestFirst);
+                        Map<String, Object> message = message("logs", serviceId);
+                        message.put("logs", newestFirst);
+                        messages.add(message);
+                    }
+                });
+                pendingStatus.clear();
+                pendingMetrics.clear();
+                pendingLogs.clear();
+            }
+
+            if (!session.isOpen()) {
+                throw new IOException("Session closed");
+            }
+            for (Map<String, Object> message : messages) {
+                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(message)));
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.newtco.obserra.backend.push;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * WebSocket endpoint through which clients subscribe to live updates.
+ * <p>
+ * Clients send JSON messages of the form
+ * <pre>
+ * {"type": "subscribe", "serviceId": 1, "channels": ["logs", "status"], "levels": ["ERROR", "WARN"]}
+ * {"type": "unsubscribe", "serviceId": 1}
+ * </pre>
+ * where {@code serviceId} may be {@code "*"} for all services, and {@code channels} and {@code levels} are optional and
+ * default to all channels and all levels. Updates are sent as {@code logs}, {@code metrics} and {@code status}
+ * messages by the {@link LiveUpdatePublisher}.
+ */
+@Component
+public class LiveUpdateWebSocketHandler extends TextWebSocketHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(LiveUpdateWebSocketHandler.class);
+
+    private final LiveUpdatePublisher publisher;
+    private final ObjectMapper objectMapper;
+
+    @Autowired
+    public LiveUpdateWebSocketHandler(LiveUpdatePublisher publisher, ObjectMapper objectMapper) {
+        this.publisher = publisher;
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        logger.debug("Live update client connected: {}", session.getId());
+        publisher.connect(session);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        logger.debug("Live update client disconnected: {} ({})", session.getId(), status);
+        publisher.disconnect(session);
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        try {
+            JsonNode request = objectMapper.readTree(message.getPayload());
+            String type = request.path("type").asText();
+            JsonNode serviceIdNode = request.path("serviceId");
+            if (serviceIdNode.isMissingNode() || serviceIdNode.isNull()) {
+                logger.debug("Ignoring live update request without a serviceId: {}", message.getPayload());
+                return;
+            }
+
+            // "*" subscribes to all services
+            Long serviceId = "*".equals(serviceIdNode.asText()) ? null : Long.valueOf(serviceIdNode.asText());
+
+            switch (type) {
+                case "subscribe" -> publisher.subscribe(session, serviceId, channelsOf(request), levelsOf(request));
+                case "unsubscribe" -> publisher.unsubscribe(session, serviceId);
+                default -> logger.debug("Ignoring unknown live update request type: {}", type);
+            }
+        } catch (Exception e) {
+            logger.warn("Invalid live update request from client {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    private static Set<LiveUpdatePublisher.Channel> channelsOf(JsonNode request) {
+        Set<LiveUpdatePublisher.Channel> channels = EnumSet.noneOf(LiveUpdatePublisher.Channel.class);
+        for (JsonNode channel : request.path("channels")) {
+            channels.add(LiveUpdatePublisher.Channel.valueOf(channel.asText().toUpperCase(Locale.ROOT)));
+        }
+        return channels;
+    }
+
+    private static Set<String> levelsOf(JsonNode request) {
+        Set<String> levels = new HashSet<>();
+        for (JsonNode level : request.path("levels")) {
+            levels.add(level.asText().toUpperCase(Locale.ROOT));
+        }
+        return levels;
+    }
+}
@@ -1,5 +1,8 @@
 package org.newtco.obserra.backend.service;
 
+import org.newtco.obserra.backend.cluster.ClusterRouter;
+import org.newtco.obserra.backend.collector.CollectionEngine;
+import org.newtco.obserra.backend.collector.CollectionSchedule;
 import org.newtco.obserra.backend.collector.actuator.ActuatorCollector;
 import org.newtco.obserra.backend.collector.actuator.DiscoveryService;
 import org.newtco.obserra.backend.model.ActuatorEndpoint;
@@ -8,17 +11,33 @@ import org.newtco.obserra.backend.storage.Storage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
  * Service for collecting data from actuator endpoints.
- * This service uses the registered collectors to collect data from the discovered actuator endpoints.
+ * This service uses the registered collectors to collect data from the discovered actuator endpoints. Each service is
+ * collected on its own interval as tracked by a {@link CollectionSchedule}. Services and their endpoints are collected
+ * concurrently through the {@link CollectionEngine}, and every collection is bounded by a deadline so that slow
+ * targets are skipped instead of delaying everyone else.
+ * <p>
+ * In a cluster, only the services this member owns according to the {@link ClusterRouter} are scheduled. Ownership is
+ * rechecked on every reconciliation, so services move between members as members join and leave.
  */
 @Component
 public class ActuatorDataCollectionService {
@@ -28,14 +47,30 @@ public class ActuatorDataCollectionService {
     private final Storage                        storage;
     private final Map<String, ActuatorCollector> collectors;
     private final DiscoveryService               discoveryService;
+    private final CollectionEngine               engine;
+    private final CollectionSchedule             schedule;
+    private final ClusterRouter                  router;
+    private final Set<Long>                      inFlight = ConcurrentHashMap.newKeySet();
+    private final Duration                       defaultInterval;
+    private final Duration                       timeout;
 
     @Autowired
     public ActuatorDataCollectionService(
             Storage storage,
             List<ActuatorCollector> collectorList,
-            DiscoveryService discoveryService) {
+            DiscoveryService discoveryService,
+            CollectionEngine engine,
+            ClusterRouter router,
+            @Value("${obserra.collection.interval-ms:30000}") long defaultIntervalMs,
+            @Value("${obserra.collection.timeout-ms:25000}") long timeoutMs,
+            @Value("${obserra.collection.jitter:0.1}") double jitter) {
         this.storage = storage;
         this.discoveryService = discoveryService;
+        this.engine = engine;
+        this.router = router;
+        this.schedule = new CollectionSchedule(jitter);
+        this.defaultInterval = Duration.ofMillis(defaultIntervalMs);
+        this.timeout = Duration.ofMillis(timeoutMs);
 
         // Map collectors by endpoint type for easy lookup
         this.collectors = collectorList.stream()
@@ -46,19 +81,107 @@ public class ActuatorDataCollectionService {
     }
 
     /**
-     * Scheduled data collection for all services.
-     * This method is called periodically to collect data from all registered services.
+     * Add newly registered services to the collection schedule and drop those which no longer exist or which another
+     * cluster member owns.
      */
-    @Scheduled(fixedDelayString = "${obserra.collection.interval-ms:30000}")
-    public void collectAllData() {
-        logger.debug("Running scheduled data collection for all services");
+    @Scheduled(fixedDelayString = "${obserra.collection.reconcile-interval-ms:5000}")
+    public void reconcileSchedule() {
+        long now = System.currentTimeMillis();
+        int added = 0;
+        int released = 0;
 
-        List<Service> services = storage.getAllServices();
-        logger.debug("Found {} services for data collection", services.size());
+        for (Service service : storage.getAllServices()) {
+            if (!router.isLocal(service)) {
+                if (schedule.isScheduled(service.getId())) {
+                    release(service.getId());
+                    released++;
+                }
+            } else if (schedule.schedule(service.getId(), intervalOf(service), now)) {
+                added++;
+            }
+        }
+
+        engine.pruneIdleHosts();
+
+        if (added > 0 || released > 0) {
+            logger.debug("Added {} and released {} services from the collection schedule, {} scheduled in total",
+                         added, released, schedule.size());
+        }
+    }
+
+    /**
+     * Scheduled data collection for the services which are due.
+     * This method is called on every scheduler tick and only touches the services whose interval has elapsed. Each
+     * due service is collected asynchronously and bounded by its own deadline, so a slow service never delays the
+     * others.
+     */
+    @Scheduled(fixedDelayString = "${obserra.collection.tick-ms:1000}")
+    public void collectDueServices() {
+        long now = System.currentTimeMillis();
+        List<Long> due = schedule.pollDue(now);
+        if (due.isEmpty()) {
+            return;
+        }
+
+        logger.debug("Found {} services due for data collection", due.size());
+
+        for (Long serviceId : due) {
+            Optional<Service> serviceOpt = storage.getService(serviceId);
+            if (serviceOpt.isEmpty()) {
+                release(serviceId);
+                continue;
+            }
+
+            Service service = serviceOpt.get();
+            if (!router.isLocal(service)) {
+                release(serviceId);
+                continue;
+            }
+
+            Duration interval = intervalOf(service);
+            schedule.reschedule(serviceId, interval, now);
+
+            if (!inFlight.add(serviceId)) {
+                logger.debug("Skipping service {} as its previous collection is still running", service.getName());
+                continue;
+            }
+
+            Instant deadline = Instant.now().plus(interval.compareTo(timeout) < 0 ? interval : timeout);
+            engine.submit(() -> {
+                try {
+                    return collectServiceData(service, deadline);
+                } finally {
+                    inFlight.remove(serviceId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Drop a service from the collection schedule and the collectors' state, once it was deleted or moved to another
+     * cluster member. Every scheduled service comes due within its interval, so a deleted service is released at the
+     * latest then.
+     *
+     * @param serviceId the service ID
+     */
+    private void release(Long serviceId) {
+        schedule.cancel(serviceId);
+        collectors.values().forEach(collector -> collector.forgetService(serviceId));
+    }
 
-        for (Service service : services) {
-            collectServiceData(service);
+    /**
+     * Get the collection interval of a service, falling back to the default interval if the service did not request
+     * one.
+     *
+     * @param service the service
+     * @return the collection interval
+     */
+    private Duration intervalOf(Service service) {
+        Duration interval = service.getCheckInterval();
+        if (interval == null || interval.isZero() || interval.isNegative()) {
+            return defaultInterval;
         }
+        return interval;
     }
 
     /**
@@ -68,6 +191,17 @@ public class ActuatorDataCollectionService {
      * @return true if data was collected successfully, false otherwise
      */
     public boolean collectServiceData(Service service) {
+        return collectServiceData(service, Instant.now().plus(timeout));
+    }
+
+    /**
+     * Collect data for a specific service, querying all of its endpoints in parallel.
+     *
+     * @param service  The service to collect data for
+     * @param deadline The time after which outstanding endpoint requests are abandoned
+     * @return true if data was collected successfully, false otherwise
+     */
+    public boolean collectServiceData(Service service, Instant deadline) {
         logger.debug("Collecting data for service: {} ({})", service.getName(), service.getId());
         boolean anySuccess = false;
 
@@ -78,12 +212,19 @@ public class ActuatorDataCollectionService {
 
             // Try to discover endpoints if none are available
             try {
-                endpoints = discoveryService.discoverServiceEndpoints(service);
+                Service target = service;
+                endpoints = engine.await(
+                        engine.submitRequest(service.getActuatorUrl(), deadline,
+                                             () -> discoveryService.discoverServiceEndpoints(target)),
+                        deadline);
                 if (!endpoints.isEmpty()) {
                     service.setActuatorEndpoints(endpoints);
                     service = storage.updateService(service.getId(), service);
                     logger.info("Discovered {} actuator endpoints for service {}", endpoints.size(), service.getName());
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             } catch (Exception e) {
                 logger.error("Error discovering actuator endpoints for service {}: {}", service.getName(), e.getMessage());
             }
@@ -93,24 +234,40 @@ public class ActuatorDataCollectionService {
             }
         }
 
-        // Process each endpoint with the appropriate collector
+        // Start each endpoint with the appropriate collector
+        Service target = service;
+        List<ActuatorEndpoint> started = new ArrayList<>(endpoints.size());
+        List<Future<Boolean>> results = new ArrayList<>(endpoints.size());
         for (ActuatorEndpoint endpoint : endpoints) {
             ActuatorCollector collector = collectors.get(endpoint.getType());
             if (collector != null) {
-                try {
-                    boolean success = collector.collectData(service, endpoint);
-                    if (success) {
-                        anySuccess = true;
-                    }
-                } catch (Exception e) {
-                    logger.error("Error collecting data from endpoint {} for service {}: {}",
-                                 endpoint.getType(), service.getName(), e.getMessage());
-                }
+                started.add(endpoint);
+                results.add(engine.submitRequest(endpoint.getHref(), deadline,
+                                                 () -> collector.collectData(target, endpoint)));
             } else {
                 logger.debug("No collector available for endpoint type: {}", endpoint.getType());
             }
         }
 
+        // Wait for the endpoints to complete
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                if (engine.await(results.get(i), deadline)) {
+                    anySuccess = true;
+                }
+            } catch (TimeoutException e) {
+                logger.warn("Timed out collecting data from endpoint {} for service {}",
+                            started.get(i).getType(), service.getName());
+            } catch (ExecutionException e) {
+                logger.error("Error collecting data from endpoint {} for service {}: {}",
+                             started.get(i).getType(), service.getName(), e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                results.forEach(result -> result.cancel(true));
+                Thread.currentThread().interrupt();
+                return anySuccess;
+            }
+        }
+
         return anySuccess;
     }
 }
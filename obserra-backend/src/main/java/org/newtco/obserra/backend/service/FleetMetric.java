@@ -0,0 +1,44 @@
+package org.newtco.obserra.backend.service;
+
+import org.newtco.obserra.backend.model.ServiceMetricSummary;
+
+import java.util.Locale;
+
+/**
+ * A metric by which services are compared across the fleet.
+ */
+public enum FleetMetric {
+    CPU,
+    MEMORY,
+    MEMORY_PERCENT,
+    ERRORS;
+
+    /**
+     * Get the value of the metric for a service.
+     *
+     * @param summary the service's metrics
+     * @return the value
+     */
+    public double valueOf(ServiceMetricSummary summary) {
+        return switch (this) {
+            case CPU -> summary.cpuUsage();
+            case MEMORY -> summary.memoryUsed();
+            case MEMORY_PERCENT -> summary.memoryMax() > 0 ? summary.memoryUsed() / summary.memoryMax() * 100 : 0;
+            case ERRORS -> summary.errors();
+        };
+    }
+
+    /**
+     * Parse a metric name such as "cpu" or "memory-percent".
+     *
+     * @param name the name
+     * @return the metric, or null if the name is unknown
+     */
+    public static FleetMetric parse(String name) {
+        try {
+            return valueOf(name.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package org.newtco.obserra.backend.service;
+
+import org.newtco.obserra.backend.cluster.ClusterRouter;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.model.ServiceMetricSummary;
+import org.newtco.obserra.backend.storage.MetricBuckets;
+import org.newtco.obserra.backend.storage.Storage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.Serial;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Service for aggregating metrics across all services this member owns.
+ * <p>
+ * The services are scanned in parallel on a fork/join pool: the service list is split in halves until the pieces are
+ * small, each piece summarizes its services from the one-minute metric rollups and folds them into a partial result,
+ * and the partial results are combined as the pieces join. Top-K queries keep a bounded heap per piece, so no more
+ * than K summaries are ever retained per piece, however large the fleet.
+ */
+@Component
+public class FleetMetricsService implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(FleetMetricsService.class);
+
+    // Summaries are aggregated from buckets of this width, which the finest rollup tier serves
+    private static final Duration STEP = Duration.ofMinutes(1);
+
+    // Maximum number of services a scan task summarizes itself rather than splitting
+    private static final int SPLIT_THRESHOLD = 16;
+
+    private final Storage       storage;
+    private final ClusterRouter router;
+    private final ForkJoinPool  pool;
+
+    @Autowired
+    public FleetMetricsService(
+            Storage storage,
+            ClusterRouter router,
+            @Value("${obserra.fleet.parallelism:0}") int parallelism) {
+        this.storage = storage;
+        this.router = router;
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+
+        logger.info("Fleet queries scan services with a parallelism of {}", pool.getParallelism());
+    }
+
+    /**
+     * Summarize the metrics of each service this member owns.
+     *
+     * @param namespace the namespace of the services, or null for all namespaces
+     * @param window    the time window to summarize, ending now
+     * @return the summaries, including services without samples in the window
+     */
+    public List<ServiceMetricSummary> summarize(String namespace, Duration window) {
+        List<ServiceMetricSummary> summaries = scan(namespace, window, ArrayList::new, List::add, (left, right) -> {
+            left.addAll(right);
+            return left;
+        });
+        summaries.sort(Comparator.comparing(ServiceMetricSummary::serviceId));
+        return summaries;
+    }
+
+    /**
+     * Get the services this member owns with the highest value of a metric.
+     *
+     * @param metric    the metric
+     * @param k         the maximum number of services
+     * @param namespace the namespace of the services, or null for all namespaces
+     * @param window    the time window to summarize, ending now
+     * @return the services with samples in the window, highest value first
+     */
+    public List<ServiceMetricSummary> top(FleetMetric metric, int k, String namespace, Duration window) {
+        return scan(namespace, window, () -> new TopK(metric, k), TopK::offer, TopK::merge).toList();
+    }
+
+    /**
+     * Select the services with the highest value of a metric, such as from the partial results of several members.
+     *
+     * @param summaries the services
+     * @param metric    the metric
+     * @param k         the maximum number of services
+     * @return the services with samples, highest value first
+     */
+    public static List<ServiceMetricSummary> top(Collection<ServiceMetricSummary> summaries, FleetMetric metric,
+                                                 int k) {
+        TopK top = new TopK(metric, k);
+        summaries.forEach(top::offer);
+        return top.toList();
+    }
+
+    /**
+     * Get a percentile of values by the nearest-rank method.
+     *
+     * @param values     the values, which are sorted in place
+     * @param percentile the percentile, greater than 0 and at most 100
+     * @return the value at the percentile, or NaN if there are no values
+     */
+    public static double percentile(double[] values, double percentile) {
+        if (values.length == 0) {
+            return Double.NaN;
+        }
+        Arrays.sort(values);
+        int rank = (int) Math.ceil(percentile / 100 * values.length);
+        return values[Math.clamp(rank - 1, 0, values.length - 1)];
+    }
+
+    private <A> A scan(String namespace, Duration window, Supplier<A> supplier,
+                       BiConsumer<A, ServiceMetricSummary> accumulator, BinaryOperator<A> combiner) {
+        List<Service> services = new ArrayList<>();
+        for (Service service : storage.getAllServices()) {
+            if (router.isLocal(service) && (namespace == null || namespace.equals(service.getNamespace()))) {
+                services.add(service);
+            }
+        }
+
+        LocalDateTime to = LocalDateTime.now();
+        LocalDateTime from = to.minus(window);
+        return pool.invoke(new ScanTask<>(services, 0, services.size(), from, to, supplier, accumulator, combiner));
+    }
+
+    /**
+     * Summarize the metrics of a service from one-minute buckets, so the window is rounded out to whole minutes.
+     */
+    private ServiceMetricSummary summarize(Service service, LocalDateTime from, LocalDateTime to) {
+        MetricBuckets buckets = storage.getMetricBuckets(service.getId(), from, to, STEP);
+
+        int samples = 0;
+        double cpuUsage = 0;
+        double memoryUsed = 0;
+        float memoryMax = 0;
+        float minErrors = Float.MAX_VALUE;
+        float maxErrors = 0;
+        for (int i = 0; i < buckets.size(); i++) {
+            int count = buckets.getCount(i);
+            if (count == 0) {
+                continue;
+            }
+            samples += count;
+            cpuUsage += (double) buckets.getAverage(i, MetricBuckets.Field.CPU_USAGE) * count;
+            memoryUsed += (double) buckets.getAverage(i, MetricBuckets.Field.MEMORY_USED) * count;
+            memoryMax = buckets.getLast(i, MetricBuckets.Field.MEMORY_MAX);
+            minErrors = Math.min(minErrors, buckets.getMin(i, MetricBuckets.Field.ERROR_COUNT));
+            maxErrors = Math.max(maxErrors, buckets.getMax(i, MetricBuckets.Field.ERROR_COUNT));
+        }
+
+        if (samples == 0) {
+            return new ServiceMetricSummary(service.getId(), service.getName(), service.getNamespace(), 0, 0, 0, 0, 0);
+        }
+        // The error count is cumulative, so the errors of the window are its growth within the window
+        return new ServiceMetricSummary(service.getId(), service.getName(), service.getNamespace(), samples,
+                                        (float) (cpuUsage / samples), (float) (memoryUsed / samples), memoryMax,
+                                        (long) (maxErrors - minErrors));
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Summarizes a range of services, splitting it in halves which run in parallel while it is large.
+     */
+    private final class ScanTask<A> extends RecursiveTask<A> {
+
+        // Tasks are never serialized, they only run on the pool of the service
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<Service>                       services;
+        private final transient int                                 start;
+        private final transient int                                 end;
+        private final transient LocalDateTime                       from;
+        private final transient LocalDateTime                       to;
+        private final transient Supplier<A>                         supplier;
+        private final transient BiConsumer<A, ServiceMetricSummary> accumulator;
+        private final transient BinaryOperator<A>                   combiner;
+
+        ScanTask(List<Service> services, int start, int end, LocalDateTime from, LocalDateTime to,
+                 Supplier<A> supplier, BiConsumer<A, ServiceMetricSummary> accumulator, BinaryOperator<A> combiner) {
+            this.services = services;
+            this.start = start;
+            this.end = end;
+            this.from = from;
+            this.to = to;
+            this.supplier = supplier;
+            this.accumulator = accumulator;
+            this.combiner = combiner;
+        }
+
+        @Override
+        protected A compute() {
+            if (end - start <= SPLIT_THRESHOLD) {
+                A result = supplier.get();
+                for (int i = start; i < end; i++) {
+                    accumulator.accept(result, summarize(services.get(i), from, to));
+                }
+                return result;
+            }
+
+            int middle = (start + end) >>> 1;
+            ScanTask<A> left = new ScanTask<>(services, start, middle, from, to, supplier, accumulator, combiner);
+            ScanTask<A> right = new ScanTask<>(services, middle, end, from, to, supplier, accumulator, combiner);
+            left.fork();
+            A rightResult = right.compute();
+            return combiner.apply(left.join(), rightResult);
+        }
+    }
+
+    /**
+     * Bounded min-heap keeping the K services with the highest value of a metric, so the service with the lowest of
+     * the retained values is replaced first.
+     */
+    private static final class TopK {
+
+        private final int                                 k;
+        private final Comparator<ServiceMetricSummary>    order;
+        private final PriorityQueue<ServiceMetricSummary> heap;
+
+        TopK(FleetMetric metric, int k) {
+            this.k = k;
+            this.order = Comparator.<ServiceMetricSummary>comparingDouble(metric::valueOf)
+                    .thenComparing(ServiceMetricSummary::serviceId, Comparator.reverseOrder());
+            this.heap = new PriorityQueue<>(Math.max(1, k), order);
+        }
+
+        void offer(ServiceMetricSummary summary) {
+            if (summary.samples() == 0 || k <= 0) {
+                return;
+            }
+            if (heap.size() < k) {
+                heap.add(summary);
+            } else if (order.compare(summary, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(summary);
+            }
+        }
+
+        TopK merge(TopK other) {
+            other.heap.forEach(this::offer);
+            return this;
+        }
+
+        List<ServiceMetricSummary> toList() {
+            List<ServiceMetricSummary> list = new ArrayList<>(heap);
+            list.sort(order.reversed());
+            return list;
+        }
+    }
+}
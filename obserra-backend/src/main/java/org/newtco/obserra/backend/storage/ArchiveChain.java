@@ -0,0 +1,166 @@
+package org.newtco.obserra.backend.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The numbered {@link MappedSegment}s holding one kind of archived records of a service, oldest first.
+ * <p>
+ * The time range of each segment is kept on the heap, so a read over a time window only touches the segments which
+ * overlap it. Segments are dropped whole once their newest record is older than the retention cutoff. A chain is not
+ * thread-safe; callers synchronize on it.
+ */
+final class ArchiveChain implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final Path   directory;
+    private final String prefix;
+    private final long   segmentSize;
+
+    private final List<MappedSegment> segments = new ArrayList<>();
+
+    /**
+     * Open the chain, loading the segments which exist from a previous run.
+     *
+     * @param directory   the directory of the service's segments
+     * @param prefix      the file name prefix of this kind of records
+     * @param segmentSize the size of new segments in bytes
+     */
+    ArchiveChain(Path directory, String prefix, long segmentSize) throws IOException {
+        this.directory   = directory;
+        this.prefix      = prefix;
+        this.segmentSize = segmentSize;
+
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> numbers.add(Long.parseLong(
+                            name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        numbers.sort(null);
+        try {
+            for (long number : numbers) {
+                segments.add(MappedSegment.open(segmentPath(number), number));
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the segments, oldest first.
+     *
+     * @return the segments
+     */
+    List<MappedSegment> segments() {
+        return segments;
+    }
+
+    /**
+     * Get the segment into which a record is written, starting a new segment if the newest one is full.
+     *
+     * @param bytes the size of the record
+     * @return the segment
+     */
+    MappedSegment segmentFor(long bytes) throws IOException {
+        MappedSegment newest = segments.isEmpty() ? null : segments.getLast();
+        if (newest != null && newest.fits(bytes)) {
+            return newest;
+        }
+
+        Files.createDirectories(directory);
+        long number = newest != null ? newest.number() + 1 : 1;
+        // A record larger than a segment gets a segment of its own
+        MappedSegment segment = MappedSegment.create(
+                segmentPath(number), number, Math.max(segmentSize, MappedSegment.HEADER_BYTES + bytes));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Get the newest timestamp of the archived records.
+     *
+     * @return the timestamp in epoch milliseconds, or {@link Long#MIN_VALUE} if the chain is empty
+     */
+    long newestTimestamp() {
+        long newest = Long.MIN_VALUE;
+        for (int i = segments.size() - 1; i >= 0 && newest == Long.MIN_VALUE; i--) {
+            newest = segments.get(i).newestTimestamp();
+        }
+        return newest;
+    }
+
+    /**
+     * Get the newest key of the archived records.
+     *
+     * @return the key, or {@link Long#MIN_VALUE} if the chain is empty
+     */
+    long newestKey() {
+        long newest = Long.MIN_VALUE;
+        for (int i = segments.size() - 1; i >= 0 && newest == Long.MIN_VALUE; i--) {
+            newest = segments.get(i).newestKey();
+        }
+        return newest;
+    }
+
+    /**
+     * Delete the oldest segments whose records are all older than a cutoff.
+     *
+     * @param cutoff the cutoff in epoch milliseconds
+     */
+    void evictBefore(long cutoff) throws IOException {
+        while (!segments.isEmpty() && !segments.getFirst().isEmpty()
+               && segments.getFirst().newestTimestamp() < cutoff) {
+            segments.removeFirst().delete();
+        }
+    }
+
+    /**
+     * Close and delete all segments.
+     */
+    void delete() throws IOException {
+        IOException failure = null;
+        for (MappedSegment segment : segments) {
+            try {
+                segment.delete();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (MappedSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%012d%s", prefix, number, SEGMENT_SUFFIX));
+    }
+}
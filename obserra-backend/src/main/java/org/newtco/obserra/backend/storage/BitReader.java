@@ -0,0 +1,45 @@
+package org.newtco.obserra.backend.storage;
+
+/**
+ * Reads a bit stream written by a {@link BitWriter}.
+ */
+class BitReader {
+
+    private final long[] words;
+    private long         position;
+
+    BitReader(long[] words) {
+        this.words = words;
+    }
+
+    /**
+     * Read the next {@code count} bits as an unsigned value.
+     *
+     * @param count the number of bits to read, from 0 to 64
+     * @return the value read
+     */
+    long read(int count) {
+        if (count == 0) {
+            return 0;
+        }
+
+        int word = (int) (position >>> 6);
+        int used = (int) (position & 63);
+        int available = 64 - used;
+
+        long value;
+        if (count <= available) {
+            value = words[word] >>> (available - count);
+        } else {
+            int spill = count - available;
+            value = (words[word] << spill) | (words[word + 1] >>> (64 - spill));
+        }
+        position += count;
+
+        return count < 64 ? value & ((1L << count) - 1) : value;
+    }
+
+    boolean readBit() {
+        return read(1) != 0;
+    }
+}
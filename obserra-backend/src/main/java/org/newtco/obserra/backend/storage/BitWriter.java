@@ -0,0 +1,60 @@
+package org.newtco.obserra.backend.storage;
+
+import java.util.Arrays;
+
+/**
+ * Append-only bit stream used to encode compressed metric chunks.
+ */
+class BitWriter {
+
+    private long[] words;
+    private long   bits;
+
+    BitWriter(int initialWords) {
+        this.words = new long[Math.max(1, initialWords)];
+    }
+
+    /**
+     * Write the low {@code count} bits of a value, most significant bit first.
+     *
+     * @param value the value to write
+     * @param count the number of bits to write, from 0 to 64
+     */
+    void write(long value, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (count < 64) {
+            value &= (1L << count) - 1;
+        }
+
+        int word = (int) (bits >>> 6);
+        int used = (int) (bits & 63);
+        ensureCapacity(word + 2);
+
+        int free = 64 - used;
+        if (count <= free) {
+            words[word] |= value << (free - count);
+        } else {
+            int spill = count - free;
+            words[word] |= value >>> spill;
+            words[word + 1] |= value << (64 - spill);
+        }
+        bits += count;
+    }
+
+    /**
+     * Get the written bits, trimmed to the words actually used.
+     *
+     * @return the written bits
+     */
+    long[] toWords() {
+        return Arrays.copyOf(words, (int) ((bits + 63) >>> 6));
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > words.length) {
+            words = Arrays.copyOf(words, Math.max(required, words.length * 2));
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package org.newtco.obserra.backend.storage;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.newtco.obserra.backend.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Storage which persists a {@link MemoryStorage} through a write-ahead log and periodic snapshots.
+ * <p>
+ * Reads are served from memory. Every write is applied to memory and then appended to the {@link WriteAheadLog} as a
+ * record carrying the resulting state, including the assigned IDs. In synchronous mode a write returns only once its
+ * record is on disk, with concurrent writers sharing each fsync; otherwise the log is flushed on a fixed interval and
+ * at most that interval of writes can be lost. Updates of a service's last seen time and status updates which do not
+ * change the status are frequent and cheap to lose, so they are never waited for: they reach disk with the next
+ * synchronous write or the next interval flush.
+ * <p>
+ * A snapshot starts a new log segment and then writes the whole state in the same record format, after which the older
+ * segments are deleted. On startup the latest snapshot is loaded and the segments written since are replayed. Records
+ * written while a snapshot was taken may be both in the snapshot and in the new segment. Services and configuration
+ * are replaced by ID, so replaying them again is harmless. Metric samples and logs are appended to memory and to the
+ * log under a per-service lock, and the snapshot notes for each service how many records of the new segment it
+ * already covers, so exactly those are skipped on replay.
+ */
+public class DurableStorage implements Storage, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DurableStorage.class);
+
+    private static final byte USER           = 1;
+    private static final byte SERVICE        = 2;
+    private static final byte SERVICE_DELETE = 3;
+    private static final byte METRIC         = 4;
+    private static final byte LOG            = 5;
+    private static final byte CONFIG         = 6;
+    private static final byte CONFIG_DELETE  = 7;
+    private static final byte NEXT_IDS       = 8;
+    private static final byte COVERED        = 9;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final int METRIC_RECORD_BYTES = 32;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private final MemoryStorage  delegate;
+    private final Path           directory;
+    private final boolean        sync;
+    private final ObjectMapper   objectMapper;
+    private final WriteAheadLog  wal;
+    private final ScheduledExecutorService scheduler;
+
+    // Serializes the writes of services, users and configuration with their records, so the log keeps their order
+    private final Object entityLock = new Object();
+
+    // Serialize the metric and log writes of each service with their records
+    private final Object[] serviceLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * Open the storage, recovering the state persisted in a directory.
+     *
+     * @param delegate         the empty in-memory storage to recover into and serve from
+     * @param directory        the directory of the snapshots and log segments
+     * @param sync             true to acknowledge writes only once they are on disk
+     * @param flushInterval    the interval of log flushes, which cover all writes when not synchronous and only the
+     *                         writes which are not waited for otherwise
+     * @param snapshotInterval the interval of snapshots
+     */
+    public DurableStorage(MemoryStorage delegate, Path directory, boolean sync, Duration flushInterval,
+                          Duration snapshotInterval) throws IOException {
+        this.delegate = delegate;
+        this.directory = directory;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            serviceLocks[i] = new Object();
+        }
+        this.sync = sync;
+        this.objectMapper = new ObjectMapper()
+                .findAndRegisterModules()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        Files.createDirectories(directory);
+        recover();
+        this.wal = new WriteAheadLog(directory);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("obserra-storage-persistence").daemon().factory());
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(),
+                                         TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::snapshotQuietly, snapshotInterval.toMillis(),
+                                         snapshotInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Recovery
+
+    private void recover() throws IOException {
+        long started = System.nanoTime();
+        long snapshot = latestSnapshot();
+
+        // The number of records of the snapshot's segment which the snapshot covers, by service
+        Map<Long, Long> covered = new HashMap<>();
+        long[] records = new long[1];
+        WriteAheadLog.RecordHandler handler = (segment, index, type, payload) -> {
+            if (segment == 0 && type == COVERED) {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                covered.put(in.getLong(), in.getLong());
+                return;
+            }
+            if (segment == snapshot && (type == METRIC || type == LOG)
+                    && index < covered.getOrDefault(serviceIdOf(type, payload), 0L)) {
+                return;
+            }
+            apply(type, payload);
+            records[0]++;
+        };
+
+        if (snapshot > 0) {
+            WriteAheadLog.read(snapshotPath(snapshot), 0, handler);
+        }
+        WriteAheadLog.replay(directory, snapshot, handler);
+
+        logger.info("Recovered {} records from {} in {} ms", records[0], directory,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private void apply(byte type, byte[] payload) throws IOException {
+        switch (type) {
+            case USER -> delegate.restoreUser(objectMapper.readValue(payload, User.class));
+            case SERVICE -> delegate.restoreService(objectMapper.readValue(payload, Service.class));
+            case SERVICE_DELETE -> delegate.deleteService(ByteBuffer.wrap(payload).getLong());
+            case METRIC -> {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                delegate.restoreMetricSample(in.getLong(), in.getLong(), in.getFloat(), in.getFloat(), in.getFloat(),
+                                             in.getInt());
+            }
+            case LOG -> delegate.restoreLog(objectMapper.readValue(payload, Log.class));
+            case CONFIG -> delegate.restoreConfigProperty(objectMapper.readValue(payload, ConfigProperty.class));
+            case CONFIG_DELETE -> delegate.deleteConfigProperty(ByteBuffer.wrap(payload).getLong());
+            case NEXT_IDS -> {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                delegate.restoreNextIds(new long[] {in.getLong(), in.getLong(), in.getLong(), in.getLong()});
+            }
+            default -> logger.warn("Skipping record of unknown type {}", type);
+        }
+    }
+
+    private long serviceIdOf(byte type, byte[] payload) throws IOException {
+        if (type == METRIC) {
+            return ByteBuffer.wrap(payload).getLong();
+        }
+        return objectMapper.readValue(payload, Log.class).getServiceId();
+    }
+
+    // Snapshots
+
+    /**
+     * Write a snapshot of the whole state and delete the log segments it covers.
+     */
+    public synchronized void snapshot() throws IOException {
+        long started = System.nanoTime();
+        long segment = wal.rotate();
+
+        Path temporary = directory.resolve(SNAPSHOT_PREFIX + segment + ".tmp");
+        long records = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary), 256 * 1024)) {
+            for (User user : delegate.getAllUsers()) {
+                out.write(WriteAheadLog.frame(USER, objectMapper.writeValueAsBytes(user)));
+                records++;
+            }
+
+            List<Service> services = delegate.getAllServices();
+            for (Service service : services) {
+                out.write(WriteAheadLog.frame(SERVICE, objectMapper.writeValueAsBytes(service)));
+                records++;
+            }
+            for (Service service : services) {
+                for (ConfigProperty property : delegate.getConfigPropertiesForService(service.getId())) {
+                    out.write(WriteAheadLog.frame(CONFIG, objectMapper.writeValueAsBytes(property)));
+                    records++;
+                }
+
+                // The samples and logs are read together with the position in the new segment up to which the service's
+                // records are already included
+                MetricSamples samples;
+                List<Log> logs;
+                long position;
+                synchronized (serviceLock(service.getId())) {
+                    samples = delegate.getMetricSamples(service.getId(), Integer.MAX_VALUE);
+                    logs = delegate.getLogsForService(service.getId(), Integer.MAX_VALUE);
+                    position = wal.segmentPosition();
+                }
+                out.write(WriteAheadLog.frame(COVERED, ByteBuffer.allocate(2 * Long.BYTES)
+                        .putLong(service.getId())
+                        .putLong(position)
+                        .array()));
+
+                // Samples and logs are read newest first and written oldest first
+                for (int i = samples.size() - 1; i >= 0; i--) {
+                    out.write(WriteAheadLog.frame(METRIC, metricPayload(
+                            service.getId(), samples.getTimestamp(i), samples.getMemoryUsed(i),
+                            samples.getMemoryMax(i), samples.getCpuUsage(i), samples.getErrorCount(i))));
+                    records++;
+                }
+                for (int i = logs.size() - 1; i >= 0; i--) {
+                    out.write(WriteAheadLog.frame(LOG, objectMapper.writeValueAsBytes(logs.get(i))));
+                    records++;
+                }
+            }
+
+            ByteBuffer nextIds = ByteBuffer.allocate(4 * Long.BYTES);
+            for (long nextId : delegate.nextIds()) {
+                nextIds.putLong(nextId);
+            }
+            out.write(WriteAheadLog.frame(NEXT_IDS, nextIds.array()));
+        }
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotPath(segment), StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+        wal.deleteSegmentsBefore(segment);
+        deleteSnapshotsBefore(segment);
+
+        logger.info("Wrote snapshot of {} records in {} ms", records,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (Exception e) {
+            logger.error("Failed to write storage snapshot: {}", e.getMessage(), e);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            wal.sync();
+        } catch (Exception e) {
+            logger.error("Failed to flush the write-ahead log: {}", e.getMessage(), e);
+        }
+    }
+
+    private long latestSnapshot() throws IOException {
+        long latest = 0;
+        for (long snapshot : snapshots()) {
+            latest = Math.max(latest, snapshot);
+        }
+        return latest;
+    }
+
+    private void deleteSnapshotsBefore(long segment) throws IOException {
+        for (long snapshot : snapshots()) {
+            if (snapshot < segment) {
+                Files.deleteIfExists(snapshotPath(snapshot));
+            }
+        }
+    }
+
+    private List<Long> snapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+                    .map(name -> Long.parseLong(
+                            name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length())))
+                    .toList();
+        }
+    }
+
+    private Path snapshotPath(long segment) {
+        return directory.resolve(SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX);
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdown();
+        wal.close();
+    }
+
+    // Logging of writes
+
+    private Object serviceLock(Long serviceId) {
+        return serviceLocks[Math.floorMod(Long.hashCode(serviceId), LOCK_STRIPES)];
+    }
+
+    private byte[] json(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] idPayload(long id) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(id).array();
+    }
+
+    private static byte[] metricPayload(long serviceId, long timestamp, float memoryUsed, float memoryMax,
+                                        float cpuUsage, int errorCount) {
+        return ByteBuffer.allocate(METRIC_RECORD_BYTES)
+                .putLong(serviceId)
+                .putLong(timestamp)
+                .putFloat(memoryUsed)
+                .putFloat(memoryMax)
+                .putFloat(cpuUsage)
+                .putInt(errorCount)
+                .array();
+    }
+
+    /**
+     * Apply an entity write to memory and append its record under the entity lock, then wait for durability outside
+     * of it so that concurrent writers share the fsync.
+     */
+    private <T> T logEntity(byte type, Supplier<T> write) {
+        return logEntity(type, write, true);
+    }
+
+    /**
+     * Apply an entity write to memory and append its record under the entity lock, optionally waiting for durability.
+     *
+     * @param await false to leave the record to the next flush, for writes which are cheap to lose
+     */
+    private <T> T logEntity(byte type, Supplier<T> write, boolean await) {
+        long sequence;
+        T result;
+        synchronized (entityLock) {
+            result = write.get();
+            sequence = wal.append(type, json(result));
+        }
+        if (await) {
+            awaitDurable(sequence);
+        }
+        return result;
+    }
+
+    private void awaitDurable(long sequence) {
+        if (sync) {
+            try {
+                wal.awaitDurable(sequence);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write to the write-ahead log", e);
+            }
+        }
+    }
+
+    // User methods
+    @Override
+    public Optional<User> getUser(Long id) {
+        return delegate.getUser(id);
+    }
+
+    @Override
+    public Optional<User> getUserByUsername(String username) {
+        return delegate.getUserByUsername(username);
+    }
+
+    @Override
+    public User createUser(User user) {
+        return logEntity(USER, () -> delegate.createUser(user));
+    }
+
+    // Service methods
+    @Override
+    public List<Service> getAllServices() {
+        return delegate.getAllServices();
+    }
+
+    @Override
+    public Optional<Service> getService(Long id) {
+        return delegate.getService(id);
+    }
+
+    @Override
+    public Optional<Service> getServiceByPodName(String namespace, String podName) {
+        return delegate.getServiceByPodName(namespace, podName);
+    }
+
+    @Override
+    public Optional<Service> getServiceByAppId(String appId) {
+        return delegate.getServiceByAppId(appId);
+    }
+
+    @Override
+    public List<Service> getServicesByName(String namespace, String name) {
+        return delegate.getServicesByName(namespace, name);
+    }
+
+    @Override
+    public Service createService(Service service) {
+        return logEntity(SERVICE, () -> delegate.createService(service));
+    }
+
+    @Override
+    public Service updateService(Long id, Service service) {
+        return logEntity(SERVICE, () -> delegate.updateService(id, service));
+    }
+
+    @Override
+    public Service updateServiceStatus(Long id, ServiceStatus status) {
+        // Collectors confirm the status on every collection, so only a change waits for the disk
+        boolean changed = delegate.getService(id).map(service -> service.getStatus() != status).orElse(true);
+        return logEntity(SERVICE, () -> delegate.updateServiceStatus(id, status), changed);
+    }
+
+    @Override
+    public Service updateServiceLastSeen(Long id) {
+        return logEntity(SERVICE, () -> delegate.updateServiceLastSeen(id), false);
+    }
+
+    @Override
+    public void deleteService(Long id) {
+        long sequence;
+        synchronized (entityLock) {
+            delegate.deleteService(id);
+            sequence = wal.append(SERVICE_DELETE, idPayload(id));
+        }
+        awaitDurable(sequence);
+    }
+
+    // Service registration methods
+    @Override
+    public Service registerService(Service registration) {
+        return logEntity(SERVICE, () -> delegate.registerService(registration));
+    }
+
+    // Metrics methods
+    @Override
+    public List<Metric> getMetricsForService(Long serviceId, int limit) {
+        return delegate.getMetricsForService(serviceId, limit);
+    }
+
+    @Override
+    public MetricSamples getMetricSamples(Long serviceId, int limit) {
+        return delegate.getMetricSamples(serviceId, limit);
+    }
+
+    @Override
+    public List<Metric> getMetricsForService(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        return delegate.getMetricsForService(serviceId, from, to, limit);
+    }
+
+    @Override
+    public MetricSamples getMetricSamples(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        return delegate.getMetricSamples(serviceId, from, to, limit);
+    }
+
+    @Override
+    public MetricBuckets getMetricBuckets(Long serviceId, LocalDateTime from, LocalDateTime to, Duration step) {
+        return delegate.getMetricBuckets(serviceId, from, to, step);
+    }
+
+    @Override
+    public Metric createMetric(Metric metric) {
+        if (metric.getTimestamp() == null) {
+            metric.setTimestamp(LocalDateTime.now());
+        }
+
+        long sequence = appendMetricSample(
+                metric.getServiceId(),
+                metric.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                metric.getMemoryUsed() != null ? metric.getMemoryUsed() : 0f,
+                metric.getMemoryMax() != null ? metric.getMemoryMax() : 0f,
+                metric.getCpuUsage() != null ? metric.getCpuUsage() : 0f,
+                metric.getErrorCount() != null ? metric.getErrorCount() : 0);
+        metric.setId(sequence);
+
+        return metric;
+    }
+
+    @Override
+    public long appendMetricSample(Long serviceId, long timestamp, float memoryUsed, float memoryMax, float cpuUsage,
+                                   int errorCount) {
+        byte[] payload = metricPayload(serviceId, timestamp, memoryUsed, memoryMax, cpuUsage, errorCount);
+        long sequence;
+        long walSequence;
+        synchronized (serviceLock(serviceId)) {
+            sequence = delegate.appendMetricSample(serviceId, timestamp, memoryUsed, memoryMax, cpuUsage, errorCount);
+            walSequence = wal.append(METRIC, payload);
+        }
+        awaitDurable(walSequence);
+        return sequence;
+    }
+
+    // Logs methods
+    @Override
+    public List<Log> getLogsForService(Long serviceId, int limit) {
+        return delegate.getLogsForService(serviceId, limit);
+    }
+
+    @Override
+    public List<Log> getLogsForService(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        return delegate.getLogsForService(serviceId, from, to, limit);
+    }
+
+    @Override
+    public Log createLog(Log log) {
+        Log stored;
+        long walSequence;
+        synchronized (serviceLock(log.getServiceId())) {
+            stored = delegate.createLog(log);
+            if (stored == null) {
+                return null;
+            }
+            walSequence = wal.append(LOG, json(stored));
+        }
+        awaitDurable(walSequence);
+        return stored;
+    }
+
+    @Override
+    public List<Log> searchLogs(LogSearchQuery query) {
+        return delegate.searchLogs(query);
+    }
+
+    // Configuration methods
+    @Override
+    public List<ConfigProperty> getConfigPropertiesForService(Long serviceId) {
+        return delegate.getConfigPropertiesForService(serviceId);
+    }
+
+    @Override
+    public Optional<ConfigProperty> getConfigProperty(Long id) {
+        return delegate.getConfigProperty(id);
+    }
+
+    @Override
+    public ConfigProperty createConfigProperty(ConfigProperty property) {
+        return logEntity(CONFIG, () -> delegate.createConfigProperty(property));
+    }
+
+    @Override
+    public ConfigProperty updateConfigProperty(Long id, ConfigProperty property) {
+        return logEntity(CONFIG, () -> delegate.updateConfigProperty(id, property));
+    }
+
+    @Override
+    public void deleteConfigProperty(Long id) {
+        long sequence;
+        synchronized (entityLock) {
+            delegate.deleteConfigProperty(id);
+            sequence = wal.append(CONFIG_DELETE, idPayload(id));
+        }
+        awaitDurable(sequence);
+    }
+}
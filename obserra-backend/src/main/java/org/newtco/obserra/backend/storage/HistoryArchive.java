@@ -0,0 +1,478 @@
+package org.newtco.obserra.backend.storage;
+
+import org.newtco.obserra.backend.model.Log;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Off-heap archive of the metric and log history which no longer fits in the in-memory stores.
+ * <p>
+ * When a {@link MetricSeries} drops a compressed chunk or the {@link LogStore} drops a block, the records are appended
+ * to memory-mapped segment files of the service instead of being discarded. The archive keeps only the time range of
+ * each segment on the heap, so months of history cost no heap beyond a few longs per segment, and reads over a time
+ * window map straight into the overlapping segments. Each service has a chain of segments for its metrics and one for
+ * each of the two log chains of the {@link LogStore}, so that every chain is appended in order and records which are
+ * archived again, such as when persisted storage is recovered, are recognized by their timestamp or log ID.
+ * <p>
+ * The archive is a history store rather than a durable one: the mapped pages are written back by the operating system,
+ * and segments are dropped whole once they are older than the maximum age. Failures to write are logged and the
+ * records are dropped, as they would be without an archive.
+ */
+public class HistoryArchive implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(HistoryArchive.class);
+
+    // Sequence, timestamp, used memory, maximum memory, CPU usage and error count
+    private static final int METRIC_RECORD_BYTES = 32;
+
+    // Leading length, ID, timestamp, nanoseconds within the millisecond, and trailing length
+    private static final int LOG_FIXED_BYTES = 4 + 8 + 8 + 4 + 4;
+
+    private static final ValueLayout.OfLong  LONG  = ValueLayout.JAVA_LONG_UNALIGNED;
+    private static final ValueLayout.OfInt   INT   = ValueLayout.JAVA_INT_UNALIGNED;
+    private static final ValueLayout.OfFloat FLOAT = ValueLayout.JAVA_FLOAT_UNALIGNED;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final long maxAgeMillis;
+
+    private final Map<Long, ServiceArchive> services = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory   the directory of the archive
+     * @param segmentSize the size of the segment files in bytes
+     * @param maxAge      the maximum age of archived records
+     */
+    public HistoryArchive(Path directory, long segmentSize, Duration maxAge) throws IOException {
+        this.directory    = directory;
+        this.segmentSize  = segmentSize;
+        this.maxAgeMillis = maxAge.toMillis();
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Start archiving a new service, discarding anything archived under its ID before.
+     *
+     * @param serviceId the service ID
+     */
+    void createService(Long serviceId) {
+        services.compute(serviceId, (id, existing) -> {
+            try {
+                if (existing != null) {
+                    existing.delete();
+                }
+                deleteDirectory(serviceDirectory(id));
+                return new ServiceArchive(serviceDirectory(id));
+            } catch (IOException e) {
+                logger.warn("Failed to create the history archive of service {}: {}", id, e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Continue archiving a recovered service, with the history archived for it before.
+     *
+     * @param serviceId the service ID
+     */
+    void openService(Long serviceId) {
+        services.computeIfAbsent(serviceId, id -> {
+            try {
+                return new ServiceArchive(serviceDirectory(id));
+            } catch (IOException e) {
+                logger.warn("Failed to open the history archive of service {}: {}", id, e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Delete the history of a service.
+     *
+     * @param serviceId the service ID
+     */
+    void removeService(Long serviceId) {
+        ServiceArchive archive = services.remove(serviceId);
+        try {
+            if (archive != null) {
+                archive.delete();
+            }
+            deleteDirectory(serviceDirectory(serviceId));
+        } catch (IOException e) {
+            logger.warn("Failed to delete the history archive of service {}: {}", serviceId, e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the history of all services except the given ones, which is left behind by services which no longer
+     * exist when the storage is not persisted.
+     *
+     * @param serviceIds the IDs of the existing services
+     */
+    public void retainServices(Collection<Long> serviceIds) throws IOException {
+        Set<Long> retained = new HashSet<>(serviceIds);
+        for (Long serviceId : Set.copyOf(services.keySet())) {
+            if (!retained.contains(serviceId)) {
+                removeService(serviceId);
+            }
+        }
+        try (Stream<Path> children = Files.list(directory)) {
+            for (Path child : children.toList()) {
+                String name = child.getFileName().toString();
+                if (Files.isDirectory(child) && name.chars().allMatch(Character::isDigit)
+                    && !retained.contains(Long.parseLong(name))) {
+                    deleteDirectory(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Archive the samples of a chunk dropped from a service's metric series. Samples which are not newer than the
+     * newest archived sample are skipped.
+     *
+     * @param serviceId the service ID
+     * @param chunk     the chunk
+     */
+    void archiveMetrics(Long serviceId, MetricChunk chunk) {
+        ServiceArchive archive = services.get(serviceId);
+        if (archive == null) {
+            return;
+        }
+
+        int count = chunk.count();
+        long[] timestamps = new long[count];
+        float[] memoryUsed = new float[count];
+        float[] memoryMax = new float[count];
+        float[] cpuUsage = new float[count];
+        int[] errorCount = new int[count];
+        chunk.decode(timestamps, memoryUsed, memoryMax, cpuUsage, errorCount);
+
+        ArchiveChain chain = archive.metrics;
+        synchronized (chain) {
+            try {
+                long newest = chain.newestTimestamp();
+                for (int i = 0; i < count; i++) {
+                    if (timestamps[i] <= newest) {
+                        continue;
+                    }
+                    MappedSegment segment = chain.segmentFor(METRIC_RECORD_BYTES);
+                    MemorySegment memory = segment.memory();
+                    long offset = segment.end();
+                    memory.set(LONG, offset, chunk.firstSequence() + i);
+                    memory.set(LONG, offset + 8, timestamps[i]);
+                    memory.set(FLOAT, offset + 16, memoryUsed[i]);
+                    memory.set(FLOAT, offset + 20, memoryMax[i]);
+                    memory.set(FLOAT, offset + 24, cpuUsage[i]);
+                    memory.set(INT, offset + 28, errorCount[i]);
+                    segment.commit(METRIC_RECORD_BYTES, timestamps[i], timestamps[i]);
+                    newest = timestamps[i];
+                }
+                chain.evictBefore(System.currentTimeMillis() - maxAgeMillis);
+            } catch (IOException e) {
+                logger.warn("Failed to archive metrics of service {}: {}", serviceId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Archive the logs of a block dropped from a service's log chain. Logs whose ID is not newer than the newest
+     * archived log of the chain are skipped.
+     *
+     * @param serviceId the service ID
+     * @param block     the block
+     * @param important whether the block is from the chain of WARN, ERROR and FATAL logs
+     */
+    void archiveLogs(Long serviceId, LogBlock block, boolean important) {
+        ServiceArchive archive = services.get(serviceId);
+        if (archive == null) {
+            return;
+        }
+
+        ArchiveChain chain = important ? archive.importantLogs : archive.otherLogs;
+        synchronized (chain) {
+            try {
+                long newestId = chain.newestKey();
+                for (int i = 0; i < block.count(); i++) {
+                    Log log = block.get(i);
+                    if (log.getId() <= newestId) {
+                        continue;
+                    }
+                    writeLog(chain, log);
+                    newestId = log.getId();
+                }
+                chain.evictBefore(System.currentTimeMillis() - maxAgeMillis);
+            } catch (IOException e) {
+                logger.warn("Failed to archive logs of service {}: {}", serviceId, e.getMessage());
+            }
+        }
+    }
+
+    private static void writeLog(ArchiveChain chain, Log log) throws IOException {
+        byte[] level = bytesOf(log.getLevel());
+        byte[] thread = bytesOf(log.getThread());
+        byte[] loggerName = bytesOf(log.getLogger());
+        byte[] message = bytesOf(log.getMessage());
+        int length = LOG_FIXED_BYTES + sizeOf(level) + sizeOf(thread) + sizeOf(loggerName) + sizeOf(message);
+
+        MappedSegment segment = chain.segmentFor(length);
+        MemorySegment memory = segment.memory();
+        long offset = segment.end();
+        long timestamp = LogBlock.timestampOf(log);
+
+        memory.set(INT, offset, length);
+        memory.set(LONG, offset + 4, log.getId());
+        memory.set(LONG, offset + 12, timestamp);
+        memory.set(INT, offset + 20, log.getTimestamp().getNano() % 1_000_000);
+        long position = offset + 24;
+        position = writeString(memory, position, level);
+        position = writeString(memory, position, thread);
+        position = writeString(memory, position, loggerName);
+        position = writeString(memory, position, message);
+        // The trailing length lets readers walk a segment from its newest record back
+        memory.set(INT, position, length);
+
+        segment.commit(length, timestamp, log.getId());
+    }
+
+    /**
+     * Read the archived metric samples of a service within a time window.
+     *
+     * @param serviceId the service ID
+     * @param from      the earliest timestamp in epoch milliseconds
+     * @param to        the latest timestamp in epoch milliseconds
+     * @param limit     the maximum number of samples
+     * @param out       the builder to which the samples are added, newest first
+     */
+    void readMetrics(Long serviceId, long from, long to, int limit, MetricSamples.Builder out) {
+        ServiceArchive archive = services.get(serviceId);
+        if (archive == null || limit <= 0 || from > to) {
+            return;
+        }
+
+        int read = 0;
+        ArchiveChain chain = archive.metrics;
+        synchronized (chain) {
+            List<MappedSegment> segments = chain.segments();
+            for (int s = segments.size() - 1; s >= 0 && read < limit; s--) {
+                MappedSegment segment = segments.get(s);
+                if (segment.newestTimestamp() < from) {
+                    // Samples are archived in timestamp order, so all older segments are outside the window too
+                    break;
+                }
+                if (!segment.overlaps(from, to)) {
+                    continue;
+                }
+
+                MemorySegment memory = segment.memory();
+                long record = lastRecordAtOrBefore(memory, segment.end(), to);
+                for (; record >= 0 && read < limit; record--) {
+                    long offset = MappedSegment.HEADER_BYTES + record * METRIC_RECORD_BYTES;
+                    long timestamp = memory.get(LONG, offset + 8);
+                    if (timestamp < from) {
+                        break;
+                    }
+                    out.add(memory.get(LONG, offset), timestamp, memory.get(FLOAT, offset + 16),
+                            memory.get(FLOAT, offset + 20), memory.get(FLOAT, offset + 24),
+                            memory.get(INT, offset + 28));
+                    read++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Binary search a segment of metric records for the newest record at or before a timestamp.
+     *
+     * @return the record's index, or -1 if all records are newer
+     */
+    private static long lastRecordAtOrBefore(MemorySegment memory, long end, long timestamp) {
+        long low = 0;
+        long high = (end - MappedSegment.HEADER_BYTES) / METRIC_RECORD_BYTES - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long middleTimestamp = memory.get(LONG, MappedSegment.HEADER_BYTES + middle * METRIC_RECORD_BYTES + 8);
+            if (middleTimestamp <= timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Read the archived logs of a service within a time window.
+     *
+     * @param serviceId the service ID
+     * @param from      the earliest timestamp in epoch milliseconds
+     * @param to        the latest timestamp in epoch milliseconds
+     * @param limit     the maximum number of logs per log chain
+     * @param out       the list to which the logs are added, newest first within each log chain
+     */
+    void readLogs(Long serviceId, long from, long to, int limit, List<Log> out) {
+        ServiceArchive archive = services.get(serviceId);
+        if (archive == null || limit <= 0 || from > to) {
+            return;
+        }
+        readLogs(serviceId, archive.importantLogs, from, to, limit, out);
+        readLogs(serviceId, archive.otherLogs, from, to, limit, out);
+    }
+
+    private static void readLogs(Long serviceId, ArchiveChain chain, long from, long to, int limit, List<Log> out) {
+        int read = 0;
+        synchronized (chain) {
+            List<MappedSegment> segments = chain.segments();
+            for (int s = segments.size() - 1; s >= 0 && read < limit; s--) {
+                MappedSegment segment = segments.get(s);
+                if (!segment.overlaps(from, to)) {
+                    continue;
+                }
+
+                // Logs are archived in arrival order, so each segment is walked back in full
+                MemorySegment memory = segment.memory();
+                long end = segment.end();
+                while (end > MappedSegment.HEADER_BYTES && read < limit) {
+                    int length = memory.get(INT, end - 4);
+                    long offset = end - length;
+                    end = offset;
+
+                    long timestamp = memory.get(LONG, offset + 12);
+                    if (timestamp < from || timestamp > to) {
+                        continue;
+                    }
+                    out.add(readLog(serviceId, memory, offset, timestamp));
+                    read++;
+                }
+            }
+        }
+    }
+
+    private static Log readLog(Long serviceId, MemorySegment memory, long offset, long timestamp) {
+        Log log = new Log();
+        log.setId(memory.get(LONG, offset + 4));
+        log.setServiceId(serviceId);
+        log.setTimestamp(LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault())
+                                 .plusNanos(memory.get(INT, offset + 20)));
+
+        long position = offset + 24;
+        String[] fields = new String[4];
+        for (int i = 0; i < fields.length; i++) {
+            int length = memory.get(INT, position);
+            position += 4;
+            if (length >= 0) {
+                fields[i] = new String(memory.asSlice(position, length).toArray(ValueLayout.JAVA_BYTE),
+                                       StandardCharsets.UTF_8);
+                position += length;
+            }
+        }
+        log.setLevel(fields[0]);
+        log.setThread(fields[1]);
+        log.setLogger(fields[2]);
+        log.setMessage(fields[3]);
+        return log;
+    }
+
+    private static byte[] bytesOf(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int sizeOf(byte[] value) {
+        return 4 + (value != null ? value.length : 0);
+    }
+
+    private static long writeString(MemorySegment memory, long position, byte[] value) {
+        if (value == null) {
+            memory.set(INT, position, -1);
+            return position + 4;
+        }
+        memory.set(INT, position, value.length);
+        MemorySegment.copy(value, 0, memory, ValueLayout.JAVA_BYTE, position + 4, value.length);
+        return position + 4 + value.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Long serviceId : Set.copyOf(services.keySet())) {
+            ServiceArchive archive = services.remove(serviceId);
+            if (archive != null) {
+                archive.close();
+            }
+        }
+    }
+
+    private Path serviceDirectory(Long serviceId) {
+        return directory.resolve(Long.toString(serviceId));
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * The segment chains of a single service.
+     */
+    private final class ServiceArchive {
+
+        private final ArchiveChain metrics;
+        private final ArchiveChain importantLogs;
+        private final ArchiveChain otherLogs;
+
+        ServiceArchive(Path directory) throws IOException {
+            this.metrics       = new ArchiveChain(directory, "metrics-", segmentSize);
+            this.importantLogs = new ArchiveChain(directory, "important-logs-", segmentSize);
+            this.otherLogs     = new ArchiveChain(directory, "logs-", segmentSize);
+        }
+
+        void delete() throws IOException {
+            synchronized (metrics) {
+                metrics.delete();
+            }
+            synchronized (importantLogs) {
+                importantLogs.delete();
+            }
+            synchronized (otherLogs) {
+                otherLogs.delete();
+            }
+        }
+
+        void close() throws IOException {
+            synchronized (metrics) {
+                metrics.close();
+            }
+            synchronized (importantLogs) {
+                importantLogs.close();
+            }
+            synchronized (otherLogs) {
+                otherLogs.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,1127 @@
+package org.newtco.obserra.backend.storage;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.newtco.obserra.backend.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * JDBC implementation of the Storage interface, intended for an embedded H2 database in file mode.
+ * <p>
+ * Services, users and configuration properties are few and read on every collection, so they are cached in memory
+ * and written through to the database as JSON. Metrics and logs are the bulk of the data: they are queued in memory
+ * and written by a single writer connection in batched INSERTs, one transaction per batch, through prepared statements
+ * which the writer prepares once and reuses for the lifetime of its connection. The queue is written whenever it
+ * reaches the batch size, on a fixed interval, and before every read of metrics or logs, so reads always see earlier
+ * writes. A batch which fails to write is put back at the head of the queue and retried with the next one, as long as
+ * the queue stays within a bound; beyond it, the failed batch is dropped so that memory stays bounded while the
+ * database is unavailable.
+ * <p>
+ * The writes of a service's entity, and of its configuration properties, are serialized by a lock striped by service
+ * ID, so that they reach the database in the order they were applied to the cache. The cache itself is only updated
+ * inside {@link ConcurrentHashMap#compute}, while the database is written outside of it.
+ * <p>
+ * Metric and log reads are served from indexes on (service_id, ts), descending, so reading the newest rows of a service
+ * or a time window is an index range scan. The metrics index also covers every column a query reads. Log searches page
+ * through a service's logs by keyset, continuing each page below the (ts, id) of the last row of the previous one
+ * rather than by offset, and match the text of each log in the same way as {@link LogStore}. Rows older than the
+ * maximum ages are deleted periodically.
+ */
+public class JdbcStorage implements Storage, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdbcStorage.class);
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS users (id BIGINT PRIMARY KEY, data CLOB NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS services (id BIGINT PRIMARY KEY, data CLOB NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS config_properties "
+            + "(id BIGINT PRIMARY KEY, service_id BIGINT NOT NULL, data CLOB NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS metrics (id BIGINT NOT NULL, service_id BIGINT NOT NULL, ts BIGINT NOT NULL, "
+            + "memory_used REAL NOT NULL, memory_max REAL NOT NULL, cpu_usage REAL NOT NULL, error_count INT NOT NULL)",
+            // Covers the metric queries, so they never read the table rows
+            "CREATE INDEX IF NOT EXISTS metrics_service_ts ON metrics "
+            + "(service_id, ts DESC, id DESC, memory_used, memory_max, cpu_usage, error_count)",
+            "CREATE TABLE IF NOT EXISTS logs (id BIGINT PRIMARY KEY, service_id BIGINT NOT NULL, "
+            + "ts TIMESTAMP(9) NOT NULL, level VARCHAR(16), thread VARCHAR(1024), logger VARCHAR(1024), message CLOB)",
+            "CREATE INDEX IF NOT EXISTS logs_service_ts ON logs (service_id, ts DESC, id DESC)",
+    };
+
+    private static final String INSERT_METRIC =
+            "INSERT INTO metrics (id, service_id, ts, memory_used, memory_max, cpu_usage, error_count) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_LOG =
+            "INSERT INTO logs (id, service_id, ts, level, thread, logger, message) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_METRICS =
+            "SELECT id, ts, memory_used, memory_max, cpu_usage, error_count FROM metrics "
+            + "WHERE service_id = ? AND ts BETWEEN ? AND ? ORDER BY ts DESC, id DESC LIMIT ?";
+    private static final String SELECT_METRIC_VALUES =
+            "SELECT ts, memory_used, memory_max, cpu_usage, error_count FROM metrics "
+            + "WHERE service_id = ? AND ts BETWEEN ? AND ?";
+    private static final String SELECT_LOGS =
+            "SELECT id, ts, level, thread, logger, message FROM logs "
+            + "WHERE service_id = ? AND ts BETWEEN ? AND ? ORDER BY ts DESC, id DESC LIMIT ?";
+
+    private static final String IMPORTANT_LEVELS = "('WARN', 'ERROR', 'FATAL')";
+
+    private static final int SEARCH_PAGE_SIZE = 500;
+
+    // Range bounds of the TIMESTAMP column standing in for an open window
+    private static final LocalDateTime MIN_TIMESTAMP = LocalDateTime.of(1, 1, 1, 0, 0);
+    private static final LocalDateTime MAX_TIMESTAMP = LocalDateTime.of(9999, 12, 31, 23, 59, 59);
+
+    private static final Duration RETENTION_INTERVAL = Duration.ofHours(1);
+
+    private static final int LOCK_STRIPES = 64;
+
+    // Number of batches which may be queued, including failed ones put back for a retry
+    private static final int MAX_QUEUED_BATCHES = 64;
+
+    private final DataSource   dataSource;
+    private final ObjectMapper objectMapper;
+    private final int          batchSize;
+    private final long         metricsMaxAgeMillis;
+    private final Duration     logsMaxAge;
+    private final Duration     logsImportantMaxAge;
+    private final int          logDedupWindow;
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<Long, User> users = new ConcurrentHashMap<>();
+    private final Map<Long, Service> services = new ConcurrentHashMap<>();
+    private final Map<Long, LogDedupWindow> logDedup = new ConcurrentHashMap<>();
+    private final Map<Long, List<ConfigProperty>> configProperties = new ConcurrentHashMap<>();
+    private final ServiceIndex serviceIndex = new ServiceIndex();
+
+    private final AtomicLong currentUserId = new AtomicLong(1);
+    private final AtomicLong currentServiceId = new AtomicLong(1);
+    private final AtomicLong currentConfigPropertyId = new AtomicLong(1);
+    private final AtomicLong currentMetricId = new AtomicLong(1);
+    private final AtomicLong currentLogId = new AtomicLong(1);
+
+    // Serializes the check-then-create of registrations so concurrent registrations of one appId cannot both create
+    private final Object registrationLock = new Object();
+
+    // Serialize the writes of each service's entity and configuration properties with their database writes
+    private final Object[] serviceLocks = new Object[LOCK_STRIPES];
+
+    // Service IDs are spaced by the stride and offset, so that the IDs of cluster members never collide
+    private final int serviceIdStride;
+    private final int serviceIdOffset;
+
+    // Guarded by pendingLock: the metrics and logs not yet handed to the writer, and whether the writer is writing
+    private final Object  pendingLock = new Object();
+    private PendingMetrics pendingMetrics = new PendingMetrics();
+    private List<Log>      pendingLogs    = new ArrayList<>();
+    private boolean        flushScheduled;
+    private boolean        writing;
+
+    // Whether the last write failed, in which case writers leave the retries to the scheduled flushes
+    private volatile boolean writeFailing;
+
+    // Guarded by writeLock: the writer's connection and its prepared statements
+    private final Object      writeLock = new Object();
+    private Connection        writer;
+    private PreparedStatement insertMetric;
+    private PreparedStatement insertLog;
+
+    /**
+     * Open the storage, creating the schema if needed and loading the cached entities.
+     *
+     * @param dataSource          the database
+     * @param batchSize           the number of metric or log rows per INSERT batch
+     * @param flushInterval       the maximum time metrics and logs are queued before they are written
+     * @param metricsMaxAge       the maximum age of retained metrics
+     * @param logsMaxAge          the maximum age of retained TRACE, DEBUG and INFO logs
+     * @param logsImportantMaxAge the maximum age of retained WARN, ERROR and FATAL logs
+     * @param logDedupWindow      the number of distinct logs per service remembered to drop duplicates
+     * @param serviceIdStride     the distance between consecutive service IDs, i.e. the number of cluster members
+     * @param serviceIdOffset     the remainder of all service IDs modulo the stride, i.e. this cluster member's index
+     */
+    public JdbcStorage(DataSource dataSource, int batchSize, Duration flushInterval, Duration metricsMaxAge,
+                       Duration logsMaxAge, Duration logsImportantMaxAge, int logDedupWindow, int serviceIdStride,
+                       int serviceIdOffset) {
+        this.dataSource = dataSource;
+        this.batchSize = batchSize;
+        this.metricsMaxAgeMillis = metricsMaxAge.toMillis();
+        this.logsMaxAge = logsMaxAge;
+        this.logsImportantMaxAge = logsImportantMaxAge;
+        this.logDedupWindow = logDedupWindow;
+        this.serviceIdStride = serviceIdStride;
+        this.serviceIdOffset = serviceIdOffset;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            serviceLocks[i] = new Object();
+        }
+        this.objectMapper = new ObjectMapper()
+                .findAndRegisterModules()
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        withConnection(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                for (String ddl : SCHEMA) {
+                    statement.execute(ddl);
+                }
+            }
+            load(connection);
+            return null;
+        });
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().name("obserra-storage-jdbc").daemon().factory());
+        scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(),
+                                         TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::purgeQuietly, 0, RETENTION_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void load(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet rows = statement.executeQuery("SELECT data FROM users")) {
+                while (rows.next()) {
+                    User user = fromJson(rows.getString(1), User.class);
+                    users.put(user.getId(), user);
+                    currentUserId.accumulateAndGet(user.getId() + 1, Math::max);
+                }
+            }
+            try (ResultSet rows = statement.executeQuery("SELECT data FROM services")) {
+                while (rows.next()) {
+                    Service service = fromJson(rows.getString(1), Service.class);
+                    Long id = service.getId();
+                    currentServiceId.accumulateAndGet(Math.floorDiv(id - serviceIdOffset, serviceIdStride) + 1,
+                                                      Math::max);
+                    logDedup.put(id, new LogDedupWindow(logDedupWindow));
+                    configProperties.put(id, new CopyOnWriteArrayList<>());
+                    services.put(id, service);
+                    serviceIndex.add(service);
+                }
+            }
+            try (ResultSet rows = statement.executeQuery("SELECT data FROM config_properties")) {
+                while (rows.next()) {
+                    ConfigProperty property = fromJson(rows.getString(1), ConfigProperty.class);
+                    currentConfigPropertyId.accumulateAndGet(property.getId() + 1, Math::max);
+                    configProperties.computeIfAbsent(property.getServiceId(), id -> new CopyOnWriteArrayList<>())
+                            .add(property);
+                }
+            }
+            try (ResultSet rows = statement.executeQuery("SELECT MAX(id) FROM metrics")) {
+                rows.next();
+                currentMetricId.set(rows.getLong(1) + 1);
+            }
+            try (ResultSet rows = statement.executeQuery("SELECT MAX(id) FROM logs")) {
+                rows.next();
+                currentLogId.set(rows.getLong(1) + 1);
+            }
+        }
+        logger.info("Loaded {} services, {} users and {} configuration properties from the database",
+                    services.size(), users.size(), configProperties.values().stream().mapToInt(List::size).sum());
+    }
+
+    // User methods
+    @Override
+    public Optional<User> getUser(Long id) {
+        return Optional.ofNullable(users.get(id));
+    }
+
+    @Override
+    public Optional<User> getUserByUsername(String username) {
+        return users.values().stream()
+                .filter(user -> user.getUsername().equals(username))
+                .findFirst();
+    }
+
+    @Override
+    public User createUser(User user) {
+        user.setId(currentUserId.getAndIncrement());
+        save("users", user.getId(), json(user));
+        users.put(user.getId(), user);
+        return user;
+    }
+
+    // Service methods
+    @Override
+    public List<Service> getAllServices() {
+        return new ArrayList<>(services.values());
+    }
+
+    @Override
+    public Optional<Service> getService(Long id) {
+        return Optional.ofNullable(services.get(id));
+    }
+
+    @Override
+    public Optional<Service> getServiceByPodName(String namespace, String podName) {
+        return serviceIndex.findByPodName(namespace, podName).map(services::get);
+    }
+
+    @Override
+    public Optional<Service> getServiceByAppId(String appId) {
+        return serviceIndex.findByAppId(appId).map(services::get);
+    }
+
+    @Override
+    public List<Service> getServicesByName(String namespace, String name) {
+        List<Service> result = new ArrayList<>();
+        for (Long id : serviceIndex.findByName(namespace, name)) {
+            Service service = services.get(id);
+            if (service != null) {
+                result.add(service);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Service createService(Service service) {
+        Long id = currentServiceId.getAndIncrement() * serviceIdStride + serviceIdOffset;
+        service.setId(id);
+        service.setLastUpdated(LocalDateTime.now());
+        save("services", id, json(service));
+
+        logDedup.put(id, new LogDedupWindow(logDedupWindow));
+        configProperties.put(id, new CopyOnWriteArrayList<>());
+        services.compute(id, (key, existing) -> {
+            serviceIndex.add(service);
+            return service;
+        });
+
+        return service;
+    }
+
+    @Override
+    public Service updateService(Long id, Service updatedService) {
+        return saveService(id, existingService -> {
+            updatedService.setId(id);
+            updatedService.setLastUpdated(LocalDateTime.now());
+            serviceIndex.update(updatedService);
+            return updatedService;
+        });
+    }
+
+    @Override
+    public Service updateServiceStatus(Long id, ServiceStatus status) {
+        return saveService(id, service -> {
+            service.setStatus(status);
+            service.setLastUpdated(LocalDateTime.now());
+            return service;
+        });
+    }
+
+    @Override
+    public Service updateServiceLastSeen(Long id) {
+        return saveService(id, service -> {
+            service.setLastSeen(LocalDateTime.now());
+            return service;
+        });
+    }
+
+    /**
+     * Update a cached service and write it through to the database. The update and the JSON copy of its result are
+     * made inside the cache's compute, and the database is written after it, under the service's lock.
+     *
+     * @param id     the service ID
+     * @param update the update of the cached service, returning the service to cache
+     * @return the updated service
+     */
+    private Service saveService(Long id, UnaryOperator<Service> update) {
+        synchronized (serviceLock(id)) {
+            String[] data = new String[1];
+            Service result = services.computeIfPresent(id, (key, service) -> {
+                Service updated = update.apply(service);
+                data[0] = json(updated);
+                return updated;
+            });
+            if (result == null) {
+                throw new IllegalArgumentException("Service not found with id: " + id);
+            }
+            save("services", id, data[0]);
+            return result;
+        }
+    }
+
+    @Override
+    public void deleteService(Long id) {
+        synchronized (serviceLock(id)) {
+            services.computeIfPresent(id, (key, service) -> {
+                serviceIndex.remove(id);
+                return null;
+            });
+            logDedup.remove(id);
+            configProperties.remove(id);
+
+            // Queued rows of the service are written first, so that none are left behind
+            flush();
+            deleteServiceRows(id);
+        }
+    }
+
+    private void deleteServiceRows(Long id) {
+        withConnection(connection -> {
+            connection.setAutoCommit(false);
+            try {
+                for (String table : List.of("metrics", "logs", "config_properties")) {
+                    try (PreparedStatement delete = connection.prepareStatement(
+                            "DELETE FROM " + table + " WHERE service_id = ?")) {
+                        delete.setLong(1, id);
+                        delete.executeUpdate();
+                    }
+                }
+                try (PreparedStatement delete = connection.prepareStatement("DELETE FROM services WHERE id = ?")) {
+                    delete.setLong(1, id);
+                    delete.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    // Service registration methods
+    @Override
+    public Service registerService(Service registration) {
+        synchronized (registrationLock) {
+            // Check if this service has already registered with an appId
+            Optional<Service> existingService = Optional.empty();
+
+            if (registration.getAppId() != null) {
+                existingService = getServiceByAppId(registration.getAppId());
+            }
+
+            // Update or create service
+            if (existingService.isPresent()) {
+                return updateService(existingService.get().getId(), registration);
+            } else {
+                // Generate a UUID if appId is not provided
+                if (registration.getAppId() == null) {
+                    registration.setAppId(UUID.randomUUID().toString());
+                }
+                return createService(registration);
+            }
+        }
+    }
+
+    // Metrics methods
+    @Override
+    public List<Metric> getMetricsForService(Long serviceId, int limit) {
+        return getMetricSamples(serviceId, limit).toMetrics(serviceId);
+    }
+
+    @Override
+    public MetricSamples getMetricSamples(Long serviceId, int limit) {
+        return getMetricSamples(serviceId, null, null, limit);
+    }
+
+    @Override
+    public List<Metric> getMetricsForService(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        return getMetricSamples(serviceId, from, to, limit).toMetrics(serviceId);
+    }
+
+    @Override
+    public MetricSamples getMetricSamples(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        if (!services.containsKey(serviceId) || limit <= 0) {
+            return MetricSamples.empty();
+        }
+
+        flushPending();
+        return withConnection(connection -> {
+            MetricSamples.Builder samples = new MetricSamples.Builder();
+            try (PreparedStatement select = connection.prepareStatement(SELECT_METRICS)) {
+                select.setLong(1, serviceId);
+                select.setLong(2, millisOf(from, Long.MIN_VALUE));
+                select.setLong(3, millisOf(to, Long.MAX_VALUE));
+                select.setInt(4, limit);
+                try (ResultSet rows = select.executeQuery()) {
+                    while (rows.next()) {
+                        samples.add(rows.getLong(1), rows.getLong(2), rows.getFloat(3), rows.getFloat(4),
+                                    rows.getFloat(5), rows.getInt(6));
+                    }
+                }
+            }
+            return samples.build();
+        });
+    }
+
+    @Override
+    public MetricBuckets getMetricBuckets(Long serviceId, LocalDateTime from, LocalDateTime to, Duration step) {
+        MetricBuckets buckets = MetricBuckets.of(millisOf(from, Long.MIN_VALUE), millisOf(to, Long.MAX_VALUE), step);
+        if (!services.containsKey(serviceId)) {
+            return buckets;
+        }
+
+        // The range is scanned from the covering index and aggregated as it streams, without materializing the rows
+        flushPending();
+        return withConnection(connection -> {
+            try (PreparedStatement select = connection.prepareStatement(SELECT_METRIC_VALUES)) {
+                select.setLong(1, serviceId);
+                select.setLong(2, buckets.from());
+                select.setLong(3, buckets.to());
+                select.setFetchSize(SEARCH_PAGE_SIZE);
+                try (ResultSet rows = select.executeQuery()) {
+                    while (rows.next()) {
+                        buckets.add(rows.getLong(1), rows.getFloat(2), rows.getFloat(3), rows.getFloat(4),
+                                    rows.getInt(5));
+                    }
+                }
+            }
+            return buckets;
+        });
+    }
+
+    @Override
+    public Metric createMetric(Metric metric) {
+        if (metric.getTimestamp() == null) {
+            metric.setTimestamp(LocalDateTime.now());
+        }
+
+        long id = appendMetricSample(
+                metric.getServiceId(),
+                metric.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                valueOf(metric.getMemoryUsed()),
+                valueOf(metric.getMemoryMax()),
+                valueOf(metric.getCpuUsage()),
+                metric.getErrorCount() != null ? metric.getErrorCount() : 0);
+        metric.setId(id);
+
+        return metric;
+    }
+
+    @Override
+    public long appendMetricSample(Long serviceId, long timestamp, float memoryUsed, float memoryMax, float cpuUsage,
+                                   int errorCount) {
+        if (!services.containsKey(serviceId)) {
+            throw new IllegalArgumentException("Service not found with id: " + serviceId);
+        }
+
+        long id;
+        int pending;
+        synchronized (pendingLock) {
+            id = currentMetricId.getAndIncrement();
+            pendingMetrics.add(id, serviceId, timestamp, memoryUsed, memoryMax, cpuUsage, errorCount);
+            pending = pendingMetrics.size() + pendingLogs.size();
+        }
+        afterEnqueue(pending);
+        return id;
+    }
+
+    private static float valueOf(Float value) {
+        return value != null ? value : 0f;
+    }
+
+    // Logs methods
+    @Override
+    public List<Log> getLogsForService(Long serviceId, int limit) {
+        return getLogsForService(serviceId, null, null, limit);
+    }
+
+    @Override
+    public List<Log> getLogsForService(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        if (!services.containsKey(serviceId) || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        flushPending();
+        return withConnection(connection -> {
+            List<Log> logs = new ArrayList<>();
+            try (PreparedStatement select = connection.prepareStatement(SELECT_LOGS)) {
+                select.setLong(1, serviceId);
+                select.setTimestamp(2, Timestamp.valueOf(from != null ? from : MIN_TIMESTAMP));
+                select.setTimestamp(3, Timestamp.valueOf(to != null ? to : MAX_TIMESTAMP));
+                select.setInt(4, limit);
+                try (ResultSet rows = select.executeQuery()) {
+                    while (rows.next()) {
+                        logs.add(logOf(serviceId, rows));
+                    }
+                }
+            }
+            return logs;
+        });
+    }
+
+    @Override
+    public Log createLog(Log log) {
+        LogDedupWindow serviceDedup = logDedup.get(log.getServiceId());
+        if (serviceDedup == null) {
+            throw new IllegalArgumentException("Service not found with id: " + log.getServiceId());
+        }
+
+        if (log.getTimestamp() == null) {
+            log.setTimestamp(LocalDateTime.now());
+        }
+
+        // Each log line is stored once, however often it is collected
+        if (!serviceDedup.add(log)) {
+            return null;
+        }
+
+        int pending;
+        synchronized (pendingLock) {
+            log.setId(currentLogId.getAndIncrement());
+            pendingLogs.add(log);
+            pending = pendingMetrics.size() + pendingLogs.size();
+        }
+        afterEnqueue(pending);
+        return log;
+    }
+
+    @Override
+    public List<Log> searchLogs(LogSearchQuery query) {
+        if (query.limit() <= 0) {
+            return new ArrayList<>();
+        }
+
+        flushPending();
+        Set<String> terms = LogBlock.tokens(query.text());
+        terms.addAll(LogBlock.tokens(query.phrase()));
+        String phrase = query.phrase() != null && !query.phrase().isBlank()
+                ? query.phrase().toLowerCase(Locale.ROOT)
+                : null;
+        Collection<Long> serviceIds = query.serviceIds().isEmpty() ? services.keySet() : query.serviceIds();
+
+        // The levels are inlined as bind parameters, so the statement text only depends on their number
+        StringBuilder sql = new StringBuilder("SELECT id, ts, level, thread, logger, message FROM logs "
+                                              + "WHERE service_id = ? AND ts BETWEEN ? AND ? "
+                                              + "AND (ts < ? OR id < ?)");
+        List<String> levels = new ArrayList<>(query.levels());
+        if (!levels.isEmpty()) {
+            sql.append(" AND level IN (").append(String.join(", ", Collections.nCopies(levels.size(), "?")))
+                    .append(')');
+        }
+        sql.append(" ORDER BY ts DESC, id DESC LIMIT ").append(SEARCH_PAGE_SIZE);
+
+        List<Log> matches = withConnection(connection -> {
+            List<Log> found = new ArrayList<>();
+            try (PreparedStatement select = connection.prepareStatement(sql.toString())) {
+                for (Long serviceId : serviceIds) {
+                    searchService(select, serviceId, query, levels, terms, phrase, found);
+                }
+            }
+            return found;
+        });
+
+        // Each service contributes at most its newest matches, so only those need merging
+        matches.sort(Comparator.comparing(Log::getTimestamp).thenComparing(Log::getId).reversed());
+        return matches.size() > query.limit() ? new ArrayList<>(matches.subList(0, query.limit())) : matches;
+    }
+
+    /**
+     * Page through the logs of a service, newest first, until the query's limit of matches is found. Each page starts
+     * right below the last row of the previous page, which the index seeks to directly.
+     */
+    private static void searchService(PreparedStatement select, Long serviceId, LogSearchQuery query,
+                                      List<String> levels, Set<String> terms, String phrase, List<Log> found)
+            throws SQLException {
+        Timestamp from = Timestamp.valueOf(query.from() != null ? query.from() : MIN_TIMESTAMP);
+        Timestamp to = Timestamp.valueOf(query.to() != null ? query.to() : MAX_TIMESTAMP);
+        long beforeId = Long.MAX_VALUE;
+        int matched = 0;
+
+        while (matched < query.limit()) {
+            select.setLong(1, serviceId);
+            select.setTimestamp(2, from);
+            select.setTimestamp(3, to);
+            select.setTimestamp(4, to);
+            select.setLong(5, beforeId);
+            for (int i = 0; i < levels.size(); i++) {
+                select.setString(6 + i, levels.get(i));
+            }
+
+            int rowCount = 0;
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next()) {
+                    rowCount++;
+                    Log log = logOf(serviceId, rows);
+                    to = Timestamp.valueOf(log.getTimestamp());
+                    beforeId = log.getId();
+                    if (matched < query.limit() && matches(log, terms, phrase)) {
+                        found.add(log);
+                        matched++;
+                    }
+                }
+            }
+            if (rowCount < SEARCH_PAGE_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private static boolean matches(Log log, Set<String> terms, String phrase) {
+        if (!terms.isEmpty()) {
+            Set<String> tokens = LogBlock.tokens(log.getMessage());
+            tokens.addAll(LogBlock.tokens(log.getLogger()));
+            if (!tokens.containsAll(terms)) {
+                return false;
+            }
+        }
+        return phrase == null
+               || (log.getMessage() != null && log.getMessage().toLowerCase(Locale.ROOT).contains(phrase));
+    }
+
+    private static Log logOf(Long serviceId, ResultSet rows) throws SQLException {
+        Log log = new Log();
+        log.setId(rows.getLong(1));
+        log.setServiceId(serviceId);
+        log.setTimestamp(rows.getTimestamp(2).toLocalDateTime());
+        log.setLevel(rows.getString(3));
+        log.setThread(rows.getString(4));
+        log.setLogger(rows.getString(5));
+        log.setMessage(rows.getString(6));
+        return log;
+    }
+
+    // Configuration methods
+    @Override
+    public List<ConfigProperty> getConfigPropertiesForService(Long serviceId) {
+        return configProperties.getOrDefault(serviceId, new ArrayList<>());
+    }
+
+    @Override
+    public Optional<ConfigProperty> getConfigProperty(Long id) {
+        return configProperties.values().stream()
+                .flatMap(List::stream)
+                .filter(property -> property.getId().equals(id))
+                .findFirst();
+    }
+
+    @Override
+    public ConfigProperty createConfigProperty(ConfigProperty property) {
+        synchronized (serviceLock(property.getServiceId())) {
+            List<ConfigProperty> serviceProperties = configProperties.get(property.getServiceId());
+            if (serviceProperties == null) {
+                throw new IllegalArgumentException("Service not found with id: " + property.getServiceId());
+            }
+
+            property.setId(currentConfigPropertyId.getAndIncrement());
+            if (property.getLastUpdated() == null) {
+                property.setLastUpdated(LocalDateTime.now());
+            }
+            saveConfigProperty(property);
+            serviceProperties.add(property);
+
+            return property;
+        }
+    }
+
+    @Override
+    public ConfigProperty updateConfigProperty(Long id, ConfigProperty updatedProperty) {
+        // Find the property to update, replacing it atomically within its service's list
+        for (List<ConfigProperty> properties : configProperties.values()) {
+            if (properties.stream().anyMatch(property -> property.getId().equals(id))) {
+                updatedProperty.setId(id);
+                updatedProperty.setLastUpdated(LocalDateTime.now());
+                saveConfigProperty(updatedProperty);
+                properties.replaceAll(property -> property.getId().equals(id) ? updatedProperty : property);
+                return updatedProperty;
+            }
+        }
+
+        throw new IllegalArgumentException("Config property not found with id: " + id);
+    }
+
+    @Override
+    public void deleteConfigProperty(Long id) {
+        configProperties.values().forEach(properties -> {
+            properties.removeIf(property -> property.getId().equals(id));
+        });
+        withConnection(connection -> {
+            try (PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM config_properties WHERE id = ?")) {
+                delete.setLong(1, id);
+                delete.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    // Writing of entities
+
+    /**
+     * Insert or replace the JSON of an entity.
+     */
+    private void save(String table, Long id, String data) {
+        withConnection(connection -> {
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE " + table + " SET data = ? WHERE id = ?")) {
+                update.setString(1, data);
+                update.setLong(2, id);
+                if (update.executeUpdate() > 0) {
+                    return null;
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO " + table + " (id, data) VALUES (?, ?)")) {
+                insert.setLong(1, id);
+                insert.setString(2, data);
+                insert.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    private void saveConfigProperty(ConfigProperty property) {
+        String data = json(property);
+        withConnection(connection -> {
+            try (PreparedStatement update = connection.prepareStatement(
+                    "UPDATE config_properties SET service_id = ?, data = ? WHERE id = ?")) {
+                update.setLong(1, property.getServiceId());
+                update.setString(2, data);
+                update.setLong(3, property.getId());
+                if (update.executeUpdate() > 0) {
+                    return null;
+                }
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO config_properties (id, service_id, data) VALUES (?, ?, ?)")) {
+                insert.setLong(1, property.getId());
+                insert.setLong(2, property.getServiceId());
+                insert.setString(3, data);
+                insert.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    // Batched writing of metrics and logs
+
+    /**
+     * Hand the queue to the writer once it holds a batch, and make the caller write it if the writer falls behind.
+     */
+    private void afterEnqueue(int pending) {
+        if (pending >= 8 * batchSize && !writeFailing) {
+            flush();
+            return;
+        }
+        if (pending >= batchSize) {
+            synchronized (pendingLock) {
+                if (flushScheduled) {
+                    return;
+                }
+                flushScheduled = true;
+            }
+            scheduler.execute(this::flushQuietly);
+        }
+    }
+
+    private void flushPending() {
+        synchronized (pendingLock) {
+            // Rows being written by a flush in progress are only visible once it commits, so it is waited for
+            if (pendingMetrics.size() == 0 && pendingLogs.isEmpty() && !writing) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Write the queued metrics and logs in batches, in a single transaction.
+     */
+    private void flush() {
+        synchronized (writeLock) {
+            PendingMetrics metrics;
+            List<Log> logs;
+            synchronized (pendingLock) {
+                metrics = pendingMetrics;
+                logs = pendingLogs;
+                pendingMetrics = new PendingMetrics();
+                pendingLogs = new ArrayList<>();
+                flushScheduled = false;
+                writing = metrics.size() > 0 || !logs.isEmpty();
+            }
+            if (metrics.size() == 0 && logs.isEmpty()) {
+                return;
+            }
+
+            try {
+                openWriter();
+                for (int i = 0; i < metrics.size(); i++) {
+                    metrics.bind(i, insertMetric);
+                    insertMetric.addBatch();
+                    if ((i + 1) % batchSize == 0) {
+                        insertMetric.executeBatch();
+                    }
+                }
+                insertMetric.executeBatch();
+
+                for (int i = 0; i < logs.size(); i++) {
+                    Log log = logs.get(i);
+                    insertLog.setLong(1, log.getId());
+                    insertLog.setLong(2, log.getServiceId());
+                    insertLog.setTimestamp(3, Timestamp.valueOf(log.getTimestamp()));
+                    insertLog.setString(4, log.getLevel());
+                    insertLog.setString(5, log.getThread());
+                    insertLog.setString(6, log.getLogger());
+                    insertLog.setString(7, log.getMessage());
+                    insertLog.addBatch();
+                    if ((i + 1) % batchSize == 0) {
+                        insertLog.executeBatch();
+                    }
+                }
+                insertLog.executeBatch();
+                writer.commit();
+                writeFailing = false;
+            } catch (SQLException e) {
+                closeWriter();
+                requeue(metrics, logs, e);
+            } finally {
+                synchronized (pendingLock) {
+                    writing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Put the metrics and logs of a failed write back at the head of the queue, ahead of those queued since, unless
+     * the queue would outgrow its bound. Rows of services deleted in the meantime are dropped.
+     */
+    private void requeue(PendingMetrics metrics, List<Log> logs, SQLException failure) {
+        writeFailing = true;
+        synchronized (pendingLock) {
+            int queued = metrics.size() + logs.size() + pendingMetrics.size() + pendingLogs.size();
+            if (queued > MAX_QUEUED_BATCHES * batchSize) {
+                logger.error("Failed to write {} metrics and {} logs, dropping them as {} rows are queued: {}",
+                             metrics.size(), logs.size(), queued, failure.getMessage());
+                return;
+            }
+
+            PendingMetrics requeuedMetrics = new PendingMetrics();
+            requeuedMetrics.addAll(metrics, services.keySet());
+            requeuedMetrics.addAll(pendingMetrics, services.keySet());
+            List<Log> requeuedLogs = new ArrayList<>(logs.size() + pendingLogs.size());
+            for (Log log : logs) {
+                if (services.containsKey(log.getServiceId())) {
+                    requeuedLogs.add(log);
+                }
+            }
+            requeuedLogs.addAll(pendingLogs);
+            pendingMetrics = requeuedMetrics;
+            pendingLogs = requeuedLogs;
+        }
+        logger.warn("Failed to write {} metrics and {} logs, retrying with the next batch: {}", metrics.size(),
+                    logs.size(), failure.getMessage());
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.error("Failed to write queued metrics and logs", e);
+        }
+    }
+
+    /**
+     * Open the writer's connection and prepare its statements, unless they are already open.
+     */
+    private void openWriter() throws SQLException {
+        if (writer != null) {
+            return;
+        }
+        writer = dataSource.getConnection();
+        try {
+            writer.setAutoCommit(false);
+            insertMetric = writer.prepareStatement(INSERT_METRIC);
+            insertLog = writer.prepareStatement(INSERT_LOG);
+        } catch (SQLException e) {
+            closeWriter();
+            throw e;
+        }
+    }
+
+    private void closeWriter() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.rollback();
+            writer.close();
+        } catch (SQLException e) {
+            logger.debug("Failed to close the writer connection: {}", e.getMessage());
+        }
+        writer = null;
+        insertMetric = null;
+        insertLog = null;
+    }
+
+    // Retention
+
+    /**
+     * Delete the metrics and logs older than their maximum ages, a service at a time so each delete is an index range.
+     */
+    private void purge() {
+        long metricsCutoff = System.currentTimeMillis() - metricsMaxAgeMillis;
+        Timestamp logsCutoff = Timestamp.valueOf(LocalDateTime.now().minus(logsMaxAge));
+        Timestamp importantCutoff = Timestamp.valueOf(LocalDateTime.now().minus(logsImportantMaxAge));
+
+        long[] deleted = new long[2];
+        withConnection(connection -> {
+            try (PreparedStatement metrics = connection.prepareStatement(
+                         "DELETE FROM metrics WHERE service_id = ? AND ts < ?");
+                 PreparedStatement logs = connection.prepareStatement(
+                         "DELETE FROM logs WHERE service_id = ? AND ts < ? "
+                         + "AND (level IN " + IMPORTANT_LEVELS + " AND ts < ? "
+                         + "OR (level IS NULL OR level NOT IN " + IMPORTANT_LEVELS + ") AND ts < ?)")) {
+                for (Long serviceId : services.keySet()) {
+                    metrics.setLong(1, serviceId);
+                    metrics.setLong(2, metricsCutoff);
+                    deleted[0] += metrics.executeUpdate();
+
+                    logs.setLong(1, serviceId);
+                    logs.setTimestamp(2, logsCutoff.after(importantCutoff) ? logsCutoff : importantCutoff);
+                    logs.setTimestamp(3, importantCutoff);
+                    logs.setTimestamp(4, logsCutoff);
+                    deleted[1] += logs.executeUpdate();
+                }
+            }
+            return null;
+        });
+        if (deleted[0] > 0 || deleted[1] > 0) {
+            logger.debug("Deleted {} expired metrics and {} expired logs", deleted[0], deleted[1]);
+        }
+    }
+
+    private void purgeQuietly() {
+        try {
+            purge();
+        } catch (RuntimeException e) {
+            logger.error("Failed to delete expired metrics and logs", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        synchronized (writeLock) {
+            closeWriter();
+        }
+    }
+
+    // Helpers
+
+    private Object serviceLock(Long serviceId) {
+        return serviceLocks[Math.floorMod(Long.hashCode(serviceId), LOCK_STRIPES)];
+    }
+
+    private interface SqlWork<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private <T> T withConnection(SqlWork<T> work) {
+        try (Connection connection = dataSource.getConnection()) {
+            return work.run(connection);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Database access failed: " + e.getMessage(), e);
+        }
+    }
+
+    private String json(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private <T> T fromJson(String data, Class<T> type) {
+        try {
+            return objectMapper.readValue(data, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long millisOf(LocalDateTime timestamp, long unbounded) {
+        return timestamp != null ? timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : unbounded;
+    }
+
+    /**
+     * Queued metric samples in primitive columns.
+     */
+    private static final class PendingMetrics {
+
+        private long[]  ids        = new long[256];
+        private long[]  serviceIds = new long[256];
+        private long[]  timestamps = new long[256];
+        private float[] memoryUsed = new float[256];
+        private float[] memoryMax  = new float[256];
+        private float[] cpuUsage   = new float[256];
+        private int[]   errorCount = new int[256];
+        private int     size;
+
+        void add(long id, long serviceId, long timestamp, float memoryUsed, float memoryMax, float cpuUsage,
+                 int errorCount) {
+            if (size == ids.length) {
+                int length = size * 2;
+                this.ids        = Arrays.copyOf(this.ids, length);
+                this.serviceIds = Arrays.copyOf(this.serviceIds, length);
+                this.timestamps = Arrays.copyOf(this.timestamps, length);
+                this.memoryUsed = Arrays.copyOf(this.memoryUsed, length);
+                this.memoryMax  = Arrays.copyOf(this.memoryMax, length);
+                this.cpuUsage   = Arrays.copyOf(this.cpuUsage, length);
+                this.errorCount = Arrays.copyOf(this.errorCount, length);
+            }
+            this.ids[size]        = id;
+            this.serviceIds[size] = serviceId;
+            this.timestamps[size] = timestamp;
+            this.memoryUsed[size] = memoryUsed;
+            this.memoryMax[size]  = memoryMax;
+            this.cpuUsage[size]   = cpuUsage;
+            this.errorCount[size] = errorCount;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Append the samples of another queue which belong to one of the given services.
+         */
+        void addAll(PendingMetrics other, Set<Long> serviceIds) {
+            for (int i = 0; i < other.size; i++) {
+                if (serviceIds.contains(other.serviceIds[i])) {
+                    add(other.ids[i], other.serviceIds[i], other.timestamps[i], other.memoryUsed[i],
+                        other.memoryMax[i], other.cpuUsage[i], other.errorCount[i]);
+                }
+            }
+        }
+
+        void bind(int i, PreparedStatement insert) throws SQLException {
+            insert.setLong(1, ids[i]);
+            insert.setLong(2, serviceIds[i]);
+            insert.setLong(3, timestamps[i]);
+            insert.setFloat(4, memoryUsed[i]);
+            insert.setFloat(5, memoryMax[i]);
+            insert.setFloat(6, cpuUsage[i]);
+            insert.setInt(7, errorCount[i]);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.newtco.obserra.backend.storage;
+
+import org.newtco.obserra.backend.model.Log;
+
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fixed-size block of logs of a single service, in arrival order. Blocks are the unit in which {@link LogStore}
+ * accounts for and evicts logs.
+ * <p>
+ * Each block carries its own inverted index: for every token of the messages and loggers, and for every level, a
+ * bitmap of the positions of the logs which contain it. A block holds at most 256 logs, so a bitmap is four longs and
+ * a query combines the bitmaps of its terms with bitwise ANDs. The index is dropped along with the block, so it never
+ * needs to be compacted.
+ */
+class LogBlock {
+
+    static final int CAPACITY = 256;
+
+    // Approximate heap cost of a Log and its fields, excluding the characters of its strings
+    private static final int LOG_OVERHEAD_BYTES = 96;
+
+    // Approximate heap cost of an index entry, excluding the characters of its token
+    private static final int POSTING_OVERHEAD_BYTES = 112;
+
+    static final int BITMAP_WORDS = CAPACITY / 64;
+
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    private final Log[] logs = new Log[CAPACITY];
+    private int         count;
+    private long        bytes;
+    private long        oldestTimestamp = Long.MAX_VALUE;
+    private long        newestTimestamp = Long.MIN_VALUE;
+
+    private final Map<String, long[]> postings = new HashMap<>();
+    private final Map<String, long[]> levels   = new HashMap<>(8);
+
+    /**
+     * Add a log to the block.
+     *
+     * @param log the log, which must have an ID and a timestamp
+     * @return the approximate number of bytes the log occupies
+     */
+    long add(Log log) {
+        int position = count++;
+        logs[position] = log;
+
+        long size = sizeOf(log);
+        for (String token : tokens(log.getMessage())) {
+            size += index(postings, token, position);
+        }
+        for (String token : tokens(log.getLogger())) {
+            size += index(postings, token, position);
+        }
+        if (log.getLevel() != null) {
+            index(levels, log.getLevel(), position);
+        }
+        bytes += size;
+
+        long timestamp = timestampOf(log);
+        oldestTimestamp = Math.min(oldestTimestamp, timestamp);
+        newestTimestamp = Math.max(newestTimestamp, timestamp);
+        return size;
+    }
+
+    /**
+     * Set a log's bit in the bitmap of a key.
+     *
+     * @return the approximate number of bytes added to the index
+     */
+    private static long index(Map<String, long[]> index, String key, int position) {
+        long[] bitmap = index.get(key);
+        long added = 0;
+        if (bitmap == null) {
+            bitmap = new long[BITMAP_WORDS];
+            index.put(key, bitmap);
+            added = POSTING_OVERHEAD_BYTES + 2L * key.length();
+        }
+        bitmap[position >>> 6] |= 1L << (position & 63);
+        return added;
+    }
+
+    /**
+     * Get the bitmap of the logs containing a token.
+     *
+     * @param token a token as produced by {@link #tokens(String)}
+     * @return the bitmap, or null if no log in the block contains the token
+     */
+    long[] postings(String token) {
+        return postings.get(token);
+    }
+
+    /**
+     * Get the bitmap of the logs with a level.
+     *
+     * @param level the level
+     * @return the bitmap, or null if no log in the block has the level
+     */
+    long[] level(String level) {
+        return levels.get(level);
+    }
+
+    /**
+     * Get a bitmap with the bits of all logs in the block set.
+     *
+     * @return a new bitmap
+     */
+    long[] all() {
+        long[] bitmap = new long[BITMAP_WORDS];
+        for (int word = 0; word < BITMAP_WORDS; word++) {
+            int bits = Math.min(64, Math.max(0, count - word * 64));
+            bitmap[word] = bits == 64 ? -1L : (1L << bits) - 1;
+        }
+        return bitmap;
+    }
+
+    Log get(int index) {
+        return logs[index];
+    }
+
+    int count() {
+        return count;
+    }
+
+    boolean isFull() {
+        return count == CAPACITY;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the oldest timestamp of the logs in the block.
+     *
+     * @return the timestamp in epoch milliseconds
+     */
+    long oldestTimestamp() {
+        return oldestTimestamp;
+    }
+
+    /**
+     * Get the newest timestamp of the logs in the block, which decides when the whole block expires.
+     *
+     * @return the timestamp in epoch milliseconds
+     */
+    long newestTimestamp() {
+        return newestTimestamp;
+    }
+
+    static long timestampOf(Log log) {
+        return log.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Split text into lower-case tokens of letters and digits. Tokens shorter than two or longer than 64 characters
+     * are not indexed.
+     *
+     * @param text the text, or null
+     * @return the distinct tokens, in order of first occurrence
+     */
+    static Set<String> tokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int tokenLength = i - start;
+            if (tokenLength >= MIN_TOKEN_LENGTH && tokenLength <= MAX_TOKEN_LENGTH) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            }
+        }
+        return tokens;
+    }
+
+    static long sizeOf(Log log) {
+        return LOG_OVERHEAD_BYTES + 2L * (length(log.getMessage()) + length(log.getThread()) + length(log.getLogger()));
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+}
@@ -0,0 +1,108 @@
+package org.newtco.obserra.backend.storage;
+
+import org.newtco.obserra.backend.model.Log;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Bounded window over the logs most recently stored for a single service, used to store each log line only once.
+ * <p>
+ * A log is identified by a 64-bit hash of its timestamp, thread and message. The window remembers the hashes of the
+ * last {@code capacity} distinct logs, so a line which is collected again within that window, for example when a log
+ * file is re-read from its tail after a rotation, is recognized as a duplicate. Lines which are logged repeatedly with
+ * distinct timestamps are not duplicates.
+ */
+public class LogDedupWindow {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME        = 0x100000001b3L;
+
+    private final long[]    hashes;
+    private final Set<Long> seen;
+    private int             next;
+    private int             size;
+
+    /**
+     * @param capacity the number of distinct logs to remember
+     */
+    public LogDedupWindow(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Log dedup window capacity must be positive: " + capacity);
+        }
+        this.hashes = new long[capacity];
+        this.seen   = new HashSet<>(capacity * 2);
+    }
+
+    /**
+     * Record a log, unless an identical log is already in the window.
+     *
+     * @param log the log to record
+     * @return true if the log was recorded, false if it is a duplicate
+     */
+    public synchronized boolean add(Log log) {
+        long hash = hash(log);
+        if (!seen.add(hash)) {
+            return false;
+        }
+
+        // Forget the oldest hash once the window is full
+        if (size == hashes.length) {
+            seen.remove(hashes[next]);
+        } else {
+            size++;
+        }
+        hashes[next] = hash;
+        next = (next + 1) % hashes.length;
+        return true;
+    }
+
+    /**
+     * Get the number of logs in the window.
+     *
+     * @return the number of logs
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Compute the FNV-1a hash of a log's timestamp, thread and message.
+     */
+    static long hash(Log log) {
+        long hash = FNV_OFFSET_BASIS;
+
+        LocalDateTime timestamp = log.getTimestamp();
+        if (timestamp != null) {
+            hash = mix(hash, timestamp.toEpochSecond(ZoneOffset.UTC));
+            hash = mix(hash, timestamp.getNano());
+        }
+        hash = mix(hash, log.getThread());
+        hash = mix(hash, log.getMessage());
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        // Prefix the length, so ("ab", "c") and ("a", "bc") hash differently
+        if (value == null) {
+            return mix(hash, -1L);
+        }
+        hash = mix(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
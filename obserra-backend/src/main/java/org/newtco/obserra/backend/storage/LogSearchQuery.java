@@ -0,0 +1,24 @@
+package org.newtco.obserra.backend.storage;
+
+import java.time.LocalDateTime;
+import java.util.Set;
+
+/**
+ * A search over the stored logs. Every given filter must match; filters which are null or empty are not applied.
+ *
+ * @param serviceIds the services to search, or empty to search all services
+ * @param text       terms which must all occur in a log's message or logger, in any order
+ * @param phrase     text which must occur in a log's message as is, ignoring case
+ * @param levels     the levels to include, or empty to include all levels
+ * @param from       the earliest timestamp to include
+ * @param to         the latest timestamp to include
+ * @param limit      the maximum number of logs to return
+ */
+public record LogSearchQuery(Set<Long> serviceIds, String text, String phrase, Set<String> levels,
+                             LocalDateTime from, LocalDateTime to, int limit) {
+
+    public LogSearchQuery {
+        serviceIds = serviceIds != null ? Set.copyOf(serviceIds) : Set.of();
+        levels     = levels != null ? Set.copyOf(levels) : Set.of();
+    }
+}
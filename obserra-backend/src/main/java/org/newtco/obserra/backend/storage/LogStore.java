@@ -0,0 +1,545 @@
+package org.newtco.obserra.backend.storage;
+
+import org.newtco.obserra.backend.model.Log;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded store for the logs of all services.
+ * <p>
+ * The logs of each service are kept in arrival order in fixed-size {@link LogBlock}s, with ERROR, WARN and FATAL logs
+ * in a separate chain of blocks from the other levels, so they can be retained longer. Retention is enforced a block
+ * at a time:
+ * <ul>
+ *     <li>each chain drops its blocks once their newest log is older than the chain's maximum age,</li>
+ *     <li>a service over its byte quota drops its oldest low-level block first, and its oldest high-level block only
+ *     when it has no low-level blocks left, and</li>
+ *     <li>when the store as a whole is over its byte limit, blocks are dropped from whichever service holds the most
+ *     bytes, so a single chatty service cannot evict the logs of every other service.</li>
+ * </ul>
+ * Blocks dropped by any of these rules are handed to the {@link HistoryArchive}, if the store has one, rather than
+ * discarded. Because logs are kept in arrival order, reading the latest N logs of a service merges the tails of its
+ * two chains and is O(N), without sorting. Searches use the inverted index of each block, and skip blocks outside the
+ * searched time range without looking at their logs.
+ */
+public class LogStore {
+    public static final long     DEFAULT_MAX_BYTES_PER_SERVICE = 16L * 1024 * 1024;
+    public static final long     DEFAULT_MAX_TOTAL_BYTES       = 512L * 1024 * 1024;
+    public static final Duration DEFAULT_MAX_AGE               = Duration.ofDays(7);
+    public static final Duration DEFAULT_IMPORTANT_MAX_AGE     = Duration.ofDays(30);
+
+    private final Map<Long, ServiceLogs> services = new ConcurrentHashMap<>();
+    private final AtomicLong             currentLogId = new AtomicLong(1);
+    private final AtomicLong             totalBytes   = new AtomicLong();
+
+    private final long maxBytesPerService;
+    private final long maxTotalBytes;
+    private final long maxAgeMillis;
+    private final long importantMaxAgeMillis;
+    private final HistoryArchive archive;
+
+    public LogStore() {
+        this(DEFAULT_MAX_BYTES_PER_SERVICE, DEFAULT_MAX_TOTAL_BYTES, DEFAULT_MAX_AGE, DEFAULT_IMPORTANT_MAX_AGE);
+    }
+
+    /**
+     * @param maxBytesPerService the approximate number of bytes of logs to retain per service
+     * @param maxTotalBytes      the approximate number of bytes of logs to retain over all services
+     * @param maxAge             the maximum age of retained TRACE, DEBUG and INFO logs
+     * @param importantMaxAge    the maximum age of retained WARN, ERROR and FATAL logs
+     */
+    public LogStore(long maxBytesPerService, long maxTotalBytes, Duration maxAge, Duration importantMaxAge) {
+        this(maxBytesPerService, maxTotalBytes, maxAge, importantMaxAge, null);
+    }
+
+    /**
+     * @param maxBytesPerService the approximate number of bytes of logs to retain per service
+     * @param maxTotalBytes      the approximate number of bytes of logs to retain over all services
+     * @param maxAge             the maximum age of retained TRACE, DEBUG and INFO logs
+     * @param importantMaxAge    the maximum age of retained WARN, ERROR and FATAL logs
+     * @param archive            the archive of dropped blocks, or null to discard them
+     */
+    public LogStore(long maxBytesPerService, long maxTotalBytes, Duration maxAge, Duration importantMaxAge,
+                    HistoryArchive archive) {
+        this.maxBytesPerService    = maxBytesPerService;
+        this.maxTotalBytes         = maxTotalBytes;
+        this.maxAgeMillis          = maxAge.toMillis();
+        this.importantMaxAgeMillis = importantMaxAge.toMillis();
+        this.archive               = archive;
+    }
+
+    /**
+     * Start storing logs for a service.
+     *
+     * @param serviceId the service ID
+     */
+    public void addService(Long serviceId) {
+        services.putIfAbsent(serviceId, new ServiceLogs(serviceId, archive));
+    }
+
+    /**
+     * Drop all logs of a service and stop storing logs for it.
+     *
+     * @param serviceId the service ID
+     */
+    public void removeService(Long serviceId) {
+        ServiceLogs serviceLogs = services.remove(serviceId);
+        if (serviceLogs != null) {
+            synchronized (serviceLogs) {
+                totalBytes.addAndGet(-serviceLogs.bytes);
+                serviceLogs.clear();
+                serviceLogs.removed = true;
+            }
+        }
+    }
+
+    /**
+     * Store a log, assigning its ID.
+     *
+     * @param log the log, which must have a timestamp
+     * @return true if the log was stored, false if logs are not stored for its service
+     */
+    public boolean append(Log log) {
+        return append(log, true);
+    }
+
+    /**
+     * Store a previously stored log again, keeping its ID, when recovering persisted logs in their original order.
+     *
+     * @param log the log, which must have an ID and a timestamp
+     * @return true if the log was stored, false if logs are not stored for its service
+     */
+    boolean restore(Log log) {
+        currentLogId.accumulateAndGet(log.getId() + 1, Math::max);
+        return append(log, false);
+    }
+
+    long nextId() {
+        return currentLogId.get();
+    }
+
+    void restoreNextId(long nextId) {
+        currentLogId.accumulateAndGet(nextId, Math::max);
+    }
+
+    private boolean append(Log log, boolean assignId) {
+        ServiceLogs serviceLogs = services.get(log.getServiceId());
+        if (serviceLogs == null) {
+            return false;
+        }
+
+        synchronized (serviceLogs) {
+            // The service may have been removed since it was looked up, and its bytes are no longer counted
+            if (serviceLogs.removed) {
+                return false;
+            }
+            // IDs are assigned under the service lock, so each chain is in ID order
+            if (assignId) {
+                log.setId(currentLogId.getAndIncrement());
+            }
+            long size = serviceLogs.append(log);
+            totalBytes.addAndGet(size);
+
+            long now = System.currentTimeMillis();
+            totalBytes.addAndGet(-serviceLogs.evictExpired(now - maxAgeMillis, now - importantMaxAgeMillis));
+            while (serviceLogs.bytes > maxBytesPerService && serviceLogs.hasBlocks()) {
+                totalBytes.addAndGet(-serviceLogs.evictOldest());
+            }
+        }
+
+        evictLargest();
+        return true;
+    }
+
+    /**
+     * Get the most recent logs of a service.
+     *
+     * @param serviceId the service ID
+     * @param limit     the maximum number of logs
+     * @return the logs, newest first
+     */
+    public List<Log> latest(Long serviceId, int limit) {
+        ServiceLogs serviceLogs = services.get(serviceId);
+        if (serviceLogs == null || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        synchronized (serviceLogs) {
+            long now = System.currentTimeMillis();
+            totalBytes.addAndGet(-serviceLogs.evictExpired(now - maxAgeMillis, now - importantMaxAgeMillis));
+            return serviceLogs.latest(limit);
+        }
+    }
+
+    /**
+     * Search the logs of one or more services.
+     *
+     * @param query the search
+     * @return the matching logs, newest first
+     */
+    public List<Log> search(LogSearchQuery query) {
+        if (query.limit() <= 0) {
+            return new ArrayList<>();
+        }
+
+        SearchFilter filter = SearchFilter.of(query);
+        Collection<Long> serviceIds = query.serviceIds().isEmpty() ? services.keySet() : query.serviceIds();
+
+        List<Log> matches = new ArrayList<>();
+        for (Long serviceId : serviceIds) {
+            ServiceLogs serviceLogs = services.get(serviceId);
+            if (serviceLogs != null) {
+                synchronized (serviceLogs) {
+                    serviceLogs.search(filter, query.limit(), matches);
+                }
+            }
+        }
+
+        // Each service contributes at most its newest matches, so only those need merging
+        matches.sort(Comparator.comparing(Log::getTimestamp).thenComparing(Log::getId).reversed());
+        return matches.size() > query.limit() ? new ArrayList<>(matches.subList(0, query.limit())) : matches;
+    }
+
+    /**
+     * Get the approximate number of bytes of logs stored over all services.
+     *
+     * @return the number of bytes
+     */
+    public long sizeInBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Drop blocks from the service which holds the most bytes while the store is over its byte limit.
+     */
+    private void evictLargest() {
+        while (totalBytes.get() > maxTotalBytes) {
+            ServiceLogs largest = null;
+            long largestBytes = 0;
+            for (ServiceLogs serviceLogs : services.values()) {
+                long bytes = serviceLogs.bytes;
+                if (bytes > largestBytes) {
+                    largest = serviceLogs;
+                    largestBytes = bytes;
+                }
+            }
+            if (largest == null) {
+                return;
+            }
+
+            synchronized (largest) {
+                if (!largest.hasBlocks()) {
+                    return;
+                }
+                totalBytes.addAndGet(-largest.evictOldest());
+            }
+        }
+    }
+
+    /**
+     * Check whether a log is retained for longer than logs of the other levels.
+     */
+    static boolean isImportant(Log log) {
+        String level = log.getLevel();
+        return "ERROR".equals(level) || "WARN".equals(level) || "FATAL".equals(level);
+    }
+
+    /**
+     * The two chains of blocks of a single service. All methods must be called holding the instance's lock.
+     */
+    private static final class ServiceLogs {
+
+        private final Long           serviceId;
+        private final HistoryArchive archive;
+
+        private final ArrayDeque<LogBlock> important = new ArrayDeque<>();
+        private final ArrayDeque<LogBlock> other     = new ArrayDeque<>();
+
+        // Read without the lock when looking for the largest service
+        private volatile long bytes;
+        private boolean       removed;
+
+        ServiceLogs(Long serviceId, HistoryArchive archive) {
+            this.serviceId = serviceId;
+            this.archive   = archive;
+        }
+
+        long append(Log log) {
+            ArrayDeque<LogBlock> chain = isImportant(log) ? important : other;
+            LogBlock block = chain.peekLast();
+            if (block == null || block.isFull()) {
+                block = new LogBlock();
+                chain.addLast(block);
+            }
+
+            long size = block.add(log);
+            bytes += size;
+            return size;
+        }
+
+        boolean hasBlocks() {
+            return !important.isEmpty() || !other.isEmpty();
+        }
+
+        /**
+         * Drop the blocks whose newest log is older than their chain's cutoff.
+         *
+         * @return the number of bytes dropped
+         */
+        long evictExpired(long cutoff, long importantCutoff) {
+            long evicted = evictExpired(other, cutoff, false) + evictExpired(important, importantCutoff, true);
+            bytes -= evicted;
+            return evicted;
+        }
+
+        private long evictExpired(ArrayDeque<LogBlock> chain, long cutoff, boolean isImportant) {
+            long evicted = 0;
+            while (!chain.isEmpty() && chain.peekFirst().newestTimestamp() < cutoff) {
+                LogBlock block = chain.removeFirst();
+                archive(block, isImportant);
+                evicted += block.bytes();
+            }
+            return evicted;
+        }
+
+        /**
+         * Drop the oldest low-level block, or the oldest high-level block if there are no low-level blocks.
+         *
+         * @return the number of bytes dropped
+         */
+        long evictOldest() {
+            boolean isImportant = other.isEmpty();
+            LogBlock block = isImportant ? important.removeFirst() : other.removeFirst();
+            archive(block, isImportant);
+            bytes -= block.bytes();
+            return block.bytes();
+        }
+
+        private void archive(LogBlock block, boolean isImportant) {
+            if (archive != null) {
+                archive.archiveLogs(serviceId, block, isImportant);
+            }
+        }
+
+        void clear() {
+            important.clear();
+            other.clear();
+            bytes = 0;
+        }
+
+        /**
+         * Add the newest logs matching a filter in each chain to a list.
+         */
+        void search(SearchFilter filter, int limit, List<Log> matches) {
+            search(important, filter, limit, matches);
+            search(other, filter, limit, matches);
+        }
+
+        private static void search(ArrayDeque<LogBlock> chain, SearchFilter filter, int limit, List<Log> matches) {
+            int found = 0;
+            Iterator<LogBlock> newestFirst = chain.descendingIterator();
+            while (found < limit && newestFirst.hasNext()) {
+                LogBlock block = newestFirst.next();
+                if (block.newestTimestamp() < filter.from() || block.oldestTimestamp() > filter.to()) {
+                    continue;
+                }
+
+                long[] candidates = filter.candidates(block);
+                if (candidates == null) {
+                    continue;
+                }
+                for (int word = LogBlock.BITMAP_WORDS - 1; word >= 0 && found < limit; word--) {
+                    long bits = candidates[word];
+                    while (bits != 0 && found < limit) {
+                        int bit = 63 - Long.numberOfLeadingZeros(bits);
+                        bits &= ~(1L << bit);
+
+                        Log log = block.get(word * 64 + bit);
+                        if (filter.matches(log)) {
+                            matches.add(log);
+                            found++;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Merge the tails of the two chains, newest first.
+         */
+        List<Log> latest(int limit) {
+            List<Log> result = new ArrayList<>(Math.min(limit, LogBlock.CAPACITY));
+            Tail importantTail = new Tail(important);
+            Tail otherTail = new Tail(other);
+
+            while (result.size() < limit) {
+                Log a = importantTail.peek();
+                Log b = otherTail.peek();
+                if (a == null && b == null) {
+                    break;
+                }
+                if (b == null || (a != null && a.getId() > b.getId())) {
+                    result.add(importantTail.next());
+                } else {
+                    result.add(otherTail.next());
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A search query prepared for evaluation against blocks.
+     *
+     * @param terms  the lower-case tokens which must all be indexed for a log
+     * @param phrase the lower-case phrase which must occur in a log's message, or null
+     * @param levels the levels to include, or empty to include all levels
+     * @param from   the earliest timestamp in epoch milliseconds
+     * @param to     the latest timestamp in epoch milliseconds
+     */
+    private record SearchFilter(Set<String> terms, String phrase, Set<String> levels, long from, long to) {
+
+        static SearchFilter of(LogSearchQuery query) {
+            // The whole words of the phrase narrow the candidates before the phrase itself is checked
+            Set<String> terms = LogBlock.tokens(query.text());
+            terms.addAll(wholeWords(query.phrase()));
+
+            String phrase = query.phrase() != null && !query.phrase().isBlank()
+                    ? query.phrase().toLowerCase(Locale.ROOT)
+                    : null;
+            return new SearchFilter(terms, phrase, query.levels(), millisOf(query.from(), Long.MIN_VALUE),
+                                    millisOf(query.to(), Long.MAX_VALUE));
+        }
+
+        /**
+         * Get the tokens of a phrase which are whole words of every message containing the phrase. The phrase may
+         * start or end in the middle of a word, such as "ection refused", so a token at either edge of the phrase is
+         * left to the substring check.
+         */
+        static Set<String> wholeWords(String phrase) {
+            if (phrase == null) {
+                return Set.of();
+            }
+            int start = 0;
+            int end = phrase.length();
+            while (start < end && Character.isLetterOrDigit(phrase.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isLetterOrDigit(phrase.charAt(end - 1))) {
+                end--;
+            }
+            return LogBlock.tokens(phrase.substring(start, end));
+        }
+
+        private static long millisOf(LocalDateTime timestamp, long unbounded) {
+            return timestamp != null ? timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : unbounded;
+        }
+
+        /**
+         * Combine the index bitmaps of a block for the terms and levels of the search.
+         *
+         * @return the bitmap of candidate logs, or null if no log in the block can match
+         */
+        long[] candidates(LogBlock block) {
+            long[] candidates = block.all();
+
+            if (!levels.isEmpty()) {
+                long[] levelBits = new long[LogBlock.BITMAP_WORDS];
+                for (String level : levels) {
+                    long[] bitmap = block.level(level);
+                    if (bitmap != null) {
+                        or(levelBits, bitmap);
+                    }
+                }
+                and(candidates, levelBits);
+            }
+
+            for (String term : terms) {
+                long[] bitmap = block.postings(term);
+                if (bitmap == null) {
+                    return null;
+                }
+                and(candidates, bitmap);
+            }
+            return candidates;
+        }
+
+        /**
+         * Check the conditions of the search which the index cannot answer.
+         */
+        boolean matches(Log log) {
+            if (from != Long.MIN_VALUE || to != Long.MAX_VALUE) {
+                long timestamp = LogBlock.timestampOf(log);
+                if (timestamp < from || timestamp > to) {
+                    return false;
+                }
+            }
+            return phrase == null
+                   || (log.getMessage() != null && log.getMessage().toLowerCase(Locale.ROOT).contains(phrase));
+        }
+
+        private static void and(long[] target, long[] bitmap) {
+            for (int i = 0; i < target.length; i++) {
+                target[i] &= bitmap[i];
+            }
+        }
+
+        private static void or(long[] target, long[] bitmap) {
+            for (int i = 0; i < target.length; i++) {
+                target[i] |= bitmap[i];
+            }
+        }
+    }
+
+    /**
+     * Iterates over the logs of a chain, newest first.
+     */
+    private static final class Tail {
+
+        private final Iterator<LogBlock> blocks;
+        private LogBlock                 block;
+        private int                      index;
+
+        Tail(ArrayDeque<LogBlock> chain) {
+            this.blocks = chain.descendingIterator();
+            advance();
+        }
+
+        Log peek() {
+            return block != null ? block.get(index) : null;
+        }
+
+        Log next() {
+            Log log = block.get(index--);
+            if (index < 0) {
+                advance();
+            }
+            return log;
+        }
+
+        private void advance() {
+            block = null;
+            while (blocks.hasNext()) {
+                LogBlock candidate = blocks.next();
+                if (candidate.count() > 0) {
+                    block = candidate;
+                    index = candidate.count() - 1;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.newtco.obserra.backend.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only file of archived records, mapped into memory.
+ * <p>
+ * The file has a fixed capacity, which is reserved when it is created, and starts with a header holding the end of the
+ * written records and the time range and newest key of the records. Records are written directly into the mapping
+ * and then committed by updating the header, so a segment written up to a crash of the process is read back up to its
+ * last committed record; the operating system writes the mapped pages back to the file. Reads access the mapping
+ * without copying the records onto the heap.
+ * <p>
+ * A segment is not thread-safe; its archive serializes all access to it, which also keeps readers from touching a
+ * segment after it has been closed.
+ */
+final class MappedSegment implements Closeable {
+
+    static final long HEADER_BYTES = 32;
+
+    private static final long END_OFFSET        = 0;
+    private static final long OLDEST_OFFSET     = 8;
+    private static final long NEWEST_OFFSET     = 16;
+    private static final long NEWEST_KEY_OFFSET = 24;
+
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED;
+
+    private final Path          path;
+    private final long          number;
+    private final FileChannel   channel;
+    private final Arena         arena;
+    private final MemorySegment memory;
+
+    // Cached from the header
+    private long end;
+    private long oldestTimestamp;
+    private long newestTimestamp;
+    private long newestKey;
+
+    private MappedSegment(Path path, long number, FileChannel channel, long size) throws IOException {
+        this.path    = path;
+        this.number  = number;
+        this.channel = channel;
+        this.arena   = Arena.ofShared();
+        try {
+            this.memory = channel.map(FileChannel.MapMode.READ_WRITE, 0, size, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a new, empty segment.
+     *
+     * @param path     the file, which must not exist
+     * @param number   the number of the segment within its archive
+     * @param capacity the size of the file in bytes, including the header
+     * @return the segment
+     */
+    static MappedSegment create(Path path, long number, long capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        MappedSegment segment;
+        try {
+            // Mapping past the end of the file extends it, without writing the reserved space
+            segment = new MappedSegment(path, number, channel, capacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        segment.end             = HEADER_BYTES;
+        segment.oldestTimestamp = Long.MAX_VALUE;
+        segment.newestTimestamp = Long.MIN_VALUE;
+        segment.newestKey       = Long.MIN_VALUE;
+        segment.writeHeader();
+        return segment;
+    }
+
+    /**
+     * Open an existing segment.
+     *
+     * @param path   the file
+     * @param number the number of the segment within its archive
+     * @return the segment
+     */
+    static MappedSegment open(Path path, long number) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedSegment segment;
+        try {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                throw new IOException("Archive segment " + path + " is truncated");
+            }
+            segment = new MappedSegment(path, number, channel, size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        segment.end             = Math.clamp(segment.memory.get(LONG, END_OFFSET), HEADER_BYTES, segment.capacity());
+        segment.oldestTimestamp = segment.memory.get(LONG, OLDEST_OFFSET);
+        segment.newestTimestamp = segment.memory.get(LONG, NEWEST_OFFSET);
+        segment.newestKey       = segment.memory.get(LONG, NEWEST_KEY_OFFSET);
+        return segment;
+    }
+
+    /**
+     * Get the mapped file, to which records are written at {@link #end()} before they are committed.
+     *
+     * @return the mapping
+     */
+    MemorySegment memory() {
+        return memory;
+    }
+
+    long number() {
+        return number;
+    }
+
+    long capacity() {
+        return memory.byteSize();
+    }
+
+    /**
+     * Get the offset at which the next record is written.
+     *
+     * @return the offset in bytes
+     */
+    long end() {
+        return end;
+    }
+
+    boolean isEmpty() {
+        return end == HEADER_BYTES;
+    }
+
+    /**
+     * Check whether a record fits into the remaining capacity.
+     *
+     * @param bytes the size of the record
+     * @return true if the record fits
+     */
+    boolean fits(long bytes) {
+        return end + bytes <= capacity();
+    }
+
+    long oldestTimestamp() {
+        return oldestTimestamp;
+    }
+
+    long newestTimestamp() {
+        return newestTimestamp;
+    }
+
+    /**
+     * Get the key of the newest record, by which the archive recognizes records it already holds.
+     *
+     * @return the key, or {@link Long#MIN_VALUE} if the segment is empty
+     */
+    long newestKey() {
+        return newestKey;
+    }
+
+    /**
+     * Commit a record which was written at {@link #end()}.
+     *
+     * @param bytes     the size of the record
+     * @param timestamp the timestamp of the record in epoch milliseconds
+     * @param key       the key of the record
+     */
+    void commit(long bytes, long timestamp, long key) {
+        end += bytes;
+        oldestTimestamp = Math.min(oldestTimestamp, timestamp);
+        newestTimestamp = Math.max(newestTimestamp, timestamp);
+        newestKey = Math.max(newestKey, key);
+        writeHeader();
+    }
+
+    /**
+     * Check whether the segment holds records of a time range.
+     *
+     * @param from the earliest timestamp in epoch milliseconds
+     * @param to   the latest timestamp in epoch milliseconds
+     * @return true if the time range of the segment overlaps the time range
+     */
+    boolean overlaps(long from, long to) {
+        return !isEmpty() && newestTimestamp >= from && oldestTimestamp <= to;
+    }
+
+    private void writeHeader() {
+        // The end is written last, so the other fields are in place when a record becomes visible
+        memory.set(LONG, OLDEST_OFFSET, oldestTimestamp);
+        memory.set(LONG, NEWEST_OFFSET, newestTimestamp);
+        memory.set(LONG, NEWEST_KEY_OFFSET, newestKey);
+        memory.set(LONG, END_OFFSET, end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            arena.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Close and delete the segment.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -2,28 +2,85 @@ package org.newtco.obserra.backend.storage;
 
 import org.newtco.obserra.backend.model.*;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.UUID;
 
 /**
  * In-memory implementation of the Storage interface.
- * This class stores all data in memory using Maps.
+ * This class stores all data in memory using Maps. Metric history is retained in a bounded, columnar
+ * {@link MetricSeries} per service, which compresses samples older than the hot window into chunks. Lookups by
+ * appId, namespace and pod name, and namespace and name are served from a {@link ServiceIndex}. Logs are retained within byte and
+ * age limits by a {@link LogStore}. Metric and log history dropped from memory is kept in an optional
+ * {@link HistoryArchive}, which time window reads fall back to.
+ * <p>
+ * The storage is safe for concurrent use by the collectors, request threads and discovery. IDs are allocated from
+ * atomic counters, every read-modify-write of a service is performed atomically against the service map, and the
+ * per-service metric, log and configuration structures accept appends from any number of threads.
  */
 public class MemoryStorage implements Storage {
+    public static final int      DEFAULT_METRICS_MAX_SAMPLES = 172800;
+    public static final int      DEFAULT_METRICS_HOT_SAMPLES = 2880;
+    public static final Duration DEFAULT_METRICS_MAX_AGE     = Duration.ofDays(30);
+    public static final int      DEFAULT_LOG_DEDUP_WINDOW    = 4096;
+
     private final Map<Long, User> users = new ConcurrentHashMap<>();
     private final Map<Long, Service> services = new ConcurrentHashMap<>();
-    private final Map<Long, List<Metric>> metrics = new ConcurrentHashMap<>();
-    private final Map<Long, List<Log>> logs = new ConcurrentHashMap<>();
+    private final Map<Long, MetricSeries> metrics = new ConcurrentHashMap<>();
+    private final Map<Long, LogDedupWindow> logDedup = new ConcurrentHashMap<>();
     private final Map<Long, List<ConfigProperty>> configProperties = new ConcurrentHashMap<>();
+    private final ServiceIndex serviceIndex = new ServiceIndex();
+
+    private final AtomicLong currentUserId = new AtomicLong(1);
+    private final AtomicLong currentServiceId = new AtomicLong(1);
+    private final AtomicLong currentConfigPropertyId = new AtomicLong(1);
+
+    // Serializes the check-then-create of registrations so concurrent registrations of one appId cannot both create
+    private final Object registrationLock = new Object();
 
-    private long currentUserId = 1;
-    private long currentServiceId = 1;
-    private long currentMetricId = 1;
-    private long currentLogId = 1;
-    private long currentConfigPropertyId = 1;
+    private final int      metricsMaxSamples;
+    private final int      metricsHotSamples;
+    private final Duration metricsMaxAge;
+    private final int      logDedupWindow;
+    private final LogStore logs;
+    private final HistoryArchive archive;
+
+    // Service IDs are spaced by the stride and offset, so that the IDs of cluster members never collide
+    private final int serviceIdStride;
+    private final int serviceIdOffset;
+
+    public MemoryStorage() {
+        this(DEFAULT_METRICS_MAX_SAMPLES, DEFAULT_METRICS_HOT_SAMPLES, DEFAULT_METRICS_MAX_AGE,
+             DEFAULT_LOG_DEDUP_WINDOW, new LogStore(), 1, 0, null);
+    }
+
+    /**
+     * @param metricsMaxSamples the maximum number of metrics retained per service
+     * @param metricsHotSamples the number of most recent metrics per service which are kept uncompressed
+     * @param metricsMaxAge     the maximum age of retained metrics
+     * @param logDedupWindow    the number of distinct logs per service remembered to drop duplicates
+     * @param logs              the store which retains the logs
+     * @param serviceIdStride   the distance between consecutive service IDs, i.e. the number of cluster members
+     * @param serviceIdOffset   the remainder of all service IDs modulo the stride, i.e. this cluster member's index
+     * @param archive           the archive of the metric and log history dropped from memory, which must also be the
+     *                          archive of the log store, or null to discard that history
+     */
+    public MemoryStorage(int metricsMaxSamples, int metricsHotSamples, Duration metricsMaxAge, int logDedupWindow,
+                         LogStore logs, int serviceIdStride, int serviceIdOffset, HistoryArchive archive) {
+        this.metricsMaxSamples = metricsMaxSamples;
+        this.metricsHotSamples = metricsHotSamples;
+        this.metricsMaxAge = metricsMaxAge;
+        this.logDedupWindow = logDedupWindow;
+        this.logs = logs;
+        this.serviceIdStride = serviceIdStride;
+        this.serviceIdOffset = serviceIdOffset;
+        this.archive = archive;
+    }
 
     // User methods
     @Override
@@ -40,7 +97,7 @@ public class MemoryStorage implements Storage {
 
     @Override
     public User createUser(User user) {
-        user.setId(currentUserId++);
+        user.setId(currentUserId.getAndIncrement());
         users.put(user.getId(), user);
         return user;
     }
@@ -57,176 +114,368 @@ public class MemoryStorage implements Storage {
     }
 
     @Override
-    public Optional<Service> getServiceByPodName(String podName) {
-        return services.values().stream()
-                .filter(service -> podName.equals(service.getPodName()))
-                .findFirst();
+    public Optional<Service> getServiceByPodName(String namespace, String podName) {
+        return serviceIndex.findByPodName(namespace, podName).map(services::get);
     }
 
     @Override
     public Optional<Service> getServiceByAppId(String appId) {
-        return services.values().stream()
-                .filter(service -> appId.equals(service.getAppId()))
-                .findFirst();
+        return serviceIndex.findByAppId(appId).map(services::get);
+    }
+
+    @Override
+    public List<Service> getServicesByName(String namespace, String name) {
+        List<Service> result = new ArrayList<>();
+        for (Long id : serviceIndex.findByName(namespace, name)) {
+            Service service = services.get(id);
+            if (service != null) {
+                result.add(service);
+            }
+        }
+        return result;
     }
 
     @Override
     public Service createService(Service service) {
-        service.setId(currentServiceId++);
+        Long id = currentServiceId.getAndIncrement() * serviceIdStride + serviceIdOffset;
+        service.setId(id);
         service.setLastUpdated(LocalDateTime.now());
-        services.put(service.getId(), service);
-        
-        // Initialize empty lists for metrics and logs
-        metrics.put(service.getId(), new ArrayList<>());
-        logs.put(service.getId(), new ArrayList<>());
-        configProperties.put(service.getId(), new ArrayList<>());
-        
+
+        // Initialize empty structures for metrics and logs before the service becomes visible
+        if (archive != null) {
+            archive.createService(id);
+        }
+        metrics.put(id, newMetricSeries(id));
+        logs.addService(id);
+        logDedup.put(id, new LogDedupWindow(logDedupWindow));
+        configProperties.put(id, new CopyOnWriteArrayList<>());
+
+        services.compute(id, (key, existing) -> {
+            serviceIndex.add(service);
+            return service;
+        });
+
         return service;
     }
 
     @Override
     public Service updateService(Long id, Service updatedService) {
-        Service existingService = services.get(id);
-        if (existingService == null) {
+        Service result = services.computeIfPresent(id, (key, existingService) -> {
+            updatedService.setId(id);
+            updatedService.setLastUpdated(LocalDateTime.now());
+            serviceIndex.update(updatedService);
+            return updatedService;
+        });
+        if (result == null) {
             throw new IllegalArgumentException("Service not found with id: " + id);
         }
-        
-        updatedService.setId(id);
-        updatedService.setLastUpdated(LocalDateTime.now());
-        services.put(id, updatedService);
-        return updatedService;
+        return result;
     }
 
     @Override
     public Service updateServiceStatus(Long id, ServiceStatus status) {
-        Service service = services.get(id);
-        if (service == null) {
+        Service result = services.computeIfPresent(id, (key, service) -> {
+            service.setStatus(status);
+            service.setLastUpdated(LocalDateTime.now());
+            return service;
+        });
+        if (result == null) {
             throw new IllegalArgumentException("Service not found with id: " + id);
         }
-        
-        service.setStatus(status);
-        service.setLastUpdated(LocalDateTime.now());
-        return service;
+        return result;
     }
 
     @Override
     public Service updateServiceLastSeen(Long id) {
-        Service service = services.get(id);
-        if (service == null) {
+        Service result = services.computeIfPresent(id, (key, service) -> {
+            service.setLastSeen(LocalDateTime.now());
+            return service;
+        });
+        if (result == null) {
             throw new IllegalArgumentException("Service not found with id: " + id);
         }
-        
-        service.setLastSeen(LocalDateTime.now());
-        return service;
+        return result;
     }
 
     @Override
     public void deleteService(Long id) {
-        services.remove(id);
+        services.computeIfPresent(id, (key, service) -> {
+            serviceIndex.remove(id);
+            return null;
+        });
         metrics.remove(id);
-        logs.remove(id);
+        logs.removeService(id);
+        logDedup.remove(id);
         configProperties.remove(id);
+        if (archive != null) {
+            archive.removeService(id);
+        }
     }
 
     // Service registration methods
     @Override
     public Service registerService(Service registration) {
-        // Check if this service has already registered with an appId
-        Optional<Service> existingService = Optional.empty();
-        
-        if (registration.getAppId() != null) {
-            existingService = getServiceByAppId(registration.getAppId());
-        }
-        
-        // Update or create service
-        if (existingService.isPresent()) {
-            return updateService(existingService.get().getId(), registration);
-        } else {
-            // Generate a UUID if appId is not provided
-            if (registration.getAppId() == null) {
-                registration.setAppId(UUID.randomUUID().toString());
+        synchronized (registrationLock) {
+            // Check if this service has already registered with an appId
+            Optional<Service> existingService = Optional.empty();
+
+            if (registration.getAppId() != null) {
+                existingService = getServiceByAppId(registration.getAppId());
+            }
+
+            // Update or create service
+            if (existingService.isPresent()) {
+                return updateService(existingService.get().getId(), registration);
+            } else {
+                // Generate a UUID if appId is not provided
+                if (registration.getAppId() == null) {
+                    registration.setAppId(UUID.randomUUID().toString());
+                }
+                return createService(registration);
             }
-            return createService(registration);
         }
     }
 
-    // Health check methods
+    // Metrics methods
     @Override
-    public List<Service> getServicesForHealthCheck(int maxAgeSeconds) {
-        LocalDateTime cutoffTime = LocalDateTime.now().minusSeconds(maxAgeSeconds);
-        
-        return services.values().stream()
-                .filter(service -> {
-                    // Skip services that don't need checking
-                    if (service.getStatus() == ServiceStatus.DOWN && 
-                        service.getLastSeen() != null && 
-                        service.getLastSeen().isBefore(cutoffTime)) {
-                        return false;
-                    }
-                    
-                    // Check based on interval if specified
-                    if (service.getCheckInterval() != null && service.getLastSeen() != null) {
-                        LocalDateTime nextCheckTime = service.getLastSeen()
-                                .plusSeconds(service.getCheckInterval());
-                        return LocalDateTime.now().isAfter(nextCheckTime);
-                    }
-                    
-                    // Default: check services that haven't been checked recently
-                    return service.getLastSeen() == null || service.getLastSeen().isBefore(cutoffTime);
-                })
-                .collect(Collectors.toList());
+    public List<Metric> getMetricsForService(Long serviceId, int limit) {
+        return getMetricSamples(serviceId, limit).toMetrics(serviceId);
     }
 
-    // Metrics methods
     @Override
-    public List<Metric> getMetricsForService(Long serviceId, int limit) {
-        List<Metric> serviceMetrics = metrics.getOrDefault(serviceId, new ArrayList<>());
-        
-        // Return the most recent metrics first
-        return serviceMetrics.stream()
-                .sorted(Comparator.comparing(Metric::getTimestamp).reversed())
-                .limit(limit)
-                .collect(Collectors.toList());
+    public MetricSamples getMetricSamples(Long serviceId, int limit) {
+        MetricSeries serviceMetrics = metrics.get(serviceId);
+        if (serviceMetrics == null) {
+            return MetricSamples.empty();
+        }
+
+        // The series is kept in timestamp order, so the most recent samples are simply read from its tail
+        return serviceMetrics.latest(limit);
+    }
+
+    @Override
+    public List<Metric> getMetricsForService(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        return getMetricSamples(serviceId, from, to, limit).toMetrics(serviceId);
+    }
+
+    @Override
+    public MetricSamples getMetricSamples(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        MetricSeries serviceMetrics = metrics.get(serviceId);
+        if (serviceMetrics == null || limit <= 0) {
+            return MetricSamples.empty();
+        }
+
+        return samplesBetween(serviceId, serviceMetrics, millisOf(from, Long.MIN_VALUE),
+                              millisOf(to, Long.MAX_VALUE), limit);
+    }
+
+    @Override
+    public MetricBuckets getMetricBuckets(Long serviceId, LocalDateTime from, LocalDateTime to, Duration step) {
+        MetricBuckets buckets = MetricBuckets.of(millisOf(from, Long.MIN_VALUE), millisOf(to, Long.MAX_VALUE), step);
+        MetricSeries serviceMetrics = metrics.get(serviceId);
+        if (serviceMetrics == null) {
+            return buckets;
+        }
+
+        // The part of the range the rollup tiers do not reach back to is filled from the raw samples, including
+        // archived ones
+        long filled = serviceMetrics.aggregate(buckets);
+        if (filled > buckets.from()) {
+            buckets.addAll(samplesBetween(serviceId, serviceMetrics, buckets.from(), Math.min(buckets.to(), filled - 1),
+                                          Integer.MAX_VALUE));
+        }
+        return buckets;
+    }
+
+    private MetricSamples samplesBetween(Long serviceId, MetricSeries serviceMetrics, long from, long to, int limit) {
+        MetricSamples.Builder samples = new MetricSamples.Builder();
+        long oldest = serviceMetrics.between(from, to, limit, samples);
+
+        // The part of the window older than the series has been moved to the archive
+        if (archive != null && samples.size() < limit && from < oldest) {
+            archive.readMetrics(serviceId, from, Math.min(to, oldest - 1), limit - samples.size(), samples);
+        }
+        return samples.build();
     }
 
     @Override
     public Metric createMetric(Metric metric) {
-        metric.setId(currentMetricId++);
         if (metric.getTimestamp() == null) {
             metric.setTimestamp(LocalDateTime.now());
         }
-        
-        List<Metric> serviceMetrics = metrics.computeIfAbsent(metric.getServiceId(), k -> new ArrayList<>());
-        serviceMetrics.add(metric);
-        
+
+        long sequence = appendMetricSample(
+                metric.getServiceId(),
+                metric.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                valueOf(metric.getMemoryUsed()),
+                valueOf(metric.getMemoryMax()),
+                valueOf(metric.getCpuUsage()),
+                metric.getErrorCount() != null ? metric.getErrorCount() : 0);
+        metric.setId(sequence);
+
         return metric;
     }
 
+    @Override
+    public long appendMetricSample(Long serviceId, long timestamp, float memoryUsed, float memoryMax, float cpuUsage,
+                                   int errorCount) {
+        MetricSeries serviceMetrics = metrics.get(serviceId);
+        if (serviceMetrics == null) {
+            throw new IllegalArgumentException("Service not found with id: " + serviceId);
+        }
+        return serviceMetrics.append(timestamp, memoryUsed, memoryMax, cpuUsage, errorCount);
+    }
+
+    private static float valueOf(Float value) {
+        return value != null ? value : 0f;
+    }
+
+    private MetricSeries newMetricSeries(Long serviceId) {
+        if (archive == null) {
+            return new MetricSeries(metricsMaxSamples, metricsHotSamples, metricsMaxAge);
+        }
+        return new MetricSeries(metricsMaxSamples, metricsHotSamples, metricsMaxAge,
+                                chunk -> archive.archiveMetrics(serviceId, chunk));
+    }
+
+    private static long millisOf(LocalDateTime timestamp, long unbounded) {
+        return timestamp != null ? timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : unbounded;
+    }
+
     // Logs methods
     @Override
     public List<Log> getLogsForService(Long serviceId, int limit) {
-        List<Log> serviceLogs = logs.getOrDefault(serviceId, new ArrayList<>());
-        
-        // Return the most recent logs first
-        return serviceLogs.stream()
-                .sorted(Comparator.comparing(Log::getTimestamp).reversed())
-                .limit(limit)
-                .collect(Collectors.toList());
+        // Logs are kept in arrival order, so the most recent logs are simply read from the tail
+        return logs.latest(serviceId, limit);
+    }
+
+    @Override
+    public List<Log> getLogsForService(Long serviceId, LocalDateTime from, LocalDateTime to, int limit) {
+        List<Log> result = logs.search(new LogSearchQuery(Set.of(serviceId), null, null, Set.of(), from, to, limit));
+        if (archive == null || limit <= 0) {
+            return result;
+        }
+
+        // The chain of important logs is retained longer than the other chain, so the archive may hold logs which
+        // are newer than some of the logs in memory. A block archived between the two reads is in both.
+        List<Log> archived = new ArrayList<>();
+        archive.readLogs(serviceId, millisOf(from, Long.MIN_VALUE), millisOf(to, Long.MAX_VALUE), limit, archived);
+        if (archived.isEmpty()) {
+            return result;
+        }
+        Set<Long> ids = new HashSet<>();
+        for (Log log : result) {
+            ids.add(log.getId());
+        }
+        for (Log log : archived) {
+            if (ids.add(log.getId())) {
+                result.add(log);
+            }
+        }
+        result.sort(Comparator.comparing(Log::getTimestamp).thenComparing(Log::getId).reversed());
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    @Override
+    public List<Log> searchLogs(LogSearchQuery query) {
+        return logs.search(query);
     }
 
     @Override
     public Log createLog(Log log) {
-        log.setId(currentLogId++);
+        LogDedupWindow serviceDedup = logDedup.get(log.getServiceId());
+        if (serviceDedup == null) {
+            throw new IllegalArgumentException("Service not found with id: " + log.getServiceId());
+        }
+
         if (log.getTimestamp() == null) {
             log.setTimestamp(LocalDateTime.now());
         }
-        
-        List<Log> serviceLogs = logs.computeIfAbsent(log.getServiceId(), k -> new ArrayList<>());
-        serviceLogs.add(log);
-        
+
+        // Each log line is stored once, however often it is collected
+        if (!serviceDedup.add(log)) {
+            return null;
+        }
+        if (!logs.append(log)) {
+            throw new IllegalArgumentException("Service not found with id: " + log.getServiceId());
+        }
+
         return log;
     }
 
+    // Recovery methods, used to load persisted records with their original IDs
+
+    Collection<User> getAllUsers() {
+        return users.values();
+    }
+
+    /**
+     * Get the next values of the ID counters, which must survive the deletion of the entities holding the highest IDs.
+     *
+     * @return the next user, service counter, configuration property and log IDs
+     */
+    long[] nextIds() {
+        return new long[] {currentUserId.get(), currentServiceId.get(), currentConfigPropertyId.get(), logs.nextId()};
+    }
+
+    void restoreNextIds(long[] nextIds) {
+        currentUserId.accumulateAndGet(nextIds[0], Math::max);
+        currentServiceId.accumulateAndGet(nextIds[1], Math::max);
+        currentConfigPropertyId.accumulateAndGet(nextIds[2], Math::max);
+        logs.restoreNextId(nextIds[3]);
+    }
+
+    void restoreUser(User user) {
+        currentUserId.accumulateAndGet(user.getId() + 1, Math::max);
+        users.put(user.getId(), user);
+    }
+
+    void restoreService(Service service) {
+        Long id = service.getId();
+        currentServiceId.accumulateAndGet(Math.floorDiv(id - serviceIdOffset, serviceIdStride) + 1, Math::max);
+
+        services.compute(id, (key, existing) -> {
+            if (existing == null) {
+                if (archive != null) {
+                    archive.openService(id);
+                }
+                metrics.put(id, newMetricSeries(id));
+                logs.addService(id);
+                logDedup.put(id, new LogDedupWindow(logDedupWindow));
+                configProperties.put(id, new CopyOnWriteArrayList<>());
+                serviceIndex.add(service);
+            } else {
+                serviceIndex.update(service);
+            }
+            return service;
+        });
+    }
+
+    void restoreMetricSample(Long serviceId, long timestamp, float memoryUsed, float memoryMax, float cpuUsage,
+                             int errorCount) {
+        MetricSeries serviceMetrics = metrics.get(serviceId);
+        if (serviceMetrics != null) {
+            serviceMetrics.append(timestamp, memoryUsed, memoryMax, cpuUsage, errorCount);
+        }
+    }
+
+    void restoreLog(Log log) {
+        LogDedupWindow serviceDedup = logDedup.get(log.getServiceId());
+        if (serviceDedup != null && serviceDedup.add(log)) {
+            logs.restore(log);
+        }
+    }
+
+    void restoreConfigProperty(ConfigProperty property) {
+        currentConfigPropertyId.accumulateAndGet(property.getId() + 1, Math::max);
+        List<ConfigProperty> serviceProperties = configProperties.get(property.getServiceId());
+        if (serviceProperties == null) {
+            return;
+        }
+        serviceProperties.removeIf(existing -> existing.getId().equals(property.getId()));
+        serviceProperties.add(property);
+    }
+
     // Configuration methods
     @Override
     public List<ConfigProperty> getConfigPropertiesForService(Long serviceId) {
@@ -243,13 +492,16 @@ public class MemoryStorage implements Storage {
 
     @Override
     public ConfigProperty createConfigProperty(ConfigProperty property) {
-        property.setId(currentConfigPropertyId++);
+        // The list exists from the service's creation until its deletion, so it is never recreated for a deleted one
+        List<ConfigProperty> serviceProperties = configProperties.get(property.getServiceId());
+        if (serviceProperties == null) {
+            throw new IllegalArgumentException("Service not found with id: " + property.getServiceId());
+        }
+
+        property.setId(currentConfigPropertyId.getAndIncrement());
         if (property.getLastUpdated() == null) {
             property.setLastUpdated(LocalDateTime.now());
         }
-        
-        List<ConfigProperty> serviceProperties = configProperties.computeIfAbsent(
-                property.getServiceId(), k -> new ArrayList<>());
         serviceProperties.add(property);
         
         return property;
@@ -257,19 +509,16 @@ public class MemoryStorage implements Storage {
 
     @Override
     public ConfigProperty updateConfigProperty(Long id, ConfigProperty updatedProperty) {
-        // Find the property to update
+        // Find the property to update, replacing it atomically within its service's list
         for (List<ConfigProperty> properties : configProperties.values()) {
-            for (int i = 0; i < properties.size(); i++) {
-                ConfigProperty property = properties.get(i);
-                if (property.getId().equals(id)) {
-                    updatedProperty.setId(id);
-                    updatedProperty.setLastUpdated(LocalDateTime.now());
-                    properties.set(i, updatedProperty);
-                    return updatedProperty;
-                }
+            if (properties.stream().anyMatch(property -> property.getId().equals(id))) {
+                updatedProperty.setId(id);
+                updatedProperty.setLastUpdated(LocalDateTime.now());
+                properties.replaceAll(property -> property.getId().equals(id) ? updatedProperty : property);
+                return updatedProperty;
             }
         }
-        
+
         throw new IllegalArgumentException("Config property not found with id: " + id);
     }
 
@@ -0,0 +1,248 @@
+package org.newtco.obserra.backend.storage;
+
+import java.time.Duration;
+
+/**
+ * Metric samples aggregated into fixed-width time buckets, oldest first.
+ * <p>
+ * Buckets are aligned to multiples of the step in epoch time, and each holds the number of samples and the average,
+ * minimum, maximum and last value of every metric field. Buckets are filled either from raw samples or by merging the
+ * pre-aggregated buckets of a {@link MetricRollup} whose width divides the step.
+ */
+public class MetricBuckets {
+
+    /**
+     * The aggregated fields of a sample.
+     */
+    public enum Field {
+        MEMORY_USED, MEMORY_MAX, CPU_USAGE, ERROR_COUNT
+    }
+
+    /**
+     * The maximum number of buckets of a time range.
+     */
+    public static final int MAX_BUCKETS = 10_000;
+
+    static final int FIELDS = Field.values().length;
+
+    private final long from;
+    private final long step;
+    private final int  size;
+
+    private final int[]    counts;
+    private final long[]   lastTimestamps;
+    private final double[] sums;
+    private final float[]  mins;
+    private final float[]  maxs;
+    private final float[]  lasts;
+
+    /**
+     * @param from the start of the first bucket in epoch milliseconds, a multiple of the step
+     * @param to   a time within the last bucket in epoch milliseconds
+     * @param step the width of the buckets in milliseconds
+     */
+    MetricBuckets(long from, long to, long step) {
+        this.from = from;
+        this.step = step;
+        this.size = (int) (Math.floorDiv(to, step) - Math.floorDiv(from, step) + 1);
+
+        this.counts         = new int[size];
+        this.lastTimestamps = new long[size];
+        this.sums           = new double[size * FIELDS];
+        this.mins           = new float[size * FIELDS];
+        this.maxs           = new float[size * FIELDS];
+        this.lasts          = new float[size * FIELDS];
+    }
+
+    /**
+     * Create empty buckets covering a time range.
+     *
+     * @param from the start of the range in epoch milliseconds
+     * @param to   the end of the range in epoch milliseconds
+     * @param step the width of the buckets
+     * @return the buckets, starting with the bucket which contains the start of the range
+     * @throws IllegalArgumentException if the range is divided into more than {@link #MAX_BUCKETS} buckets
+     */
+    public static MetricBuckets of(long from, long to, Duration step) {
+        long stepMillis = step.toMillis();
+        if (stepMillis <= 0 || to < from) {
+            throw new IllegalArgumentException("Invalid metric bucket range: " + from + " to " + to + " by " + step);
+        }
+        long count = count(from, to, step);
+        if (count <= 0 || count > MAX_BUCKETS) {
+            throw new IllegalArgumentException("Metric bucket range exceeds " + MAX_BUCKETS + " buckets");
+        }
+        return new MetricBuckets(Math.floorDiv(from, stepMillis) * stepMillis, to, stepMillis);
+    }
+
+    /**
+     * Get the number of buckets a time range is divided into.
+     *
+     * @param from the start of the range in epoch milliseconds
+     * @param to   the end of the range in epoch milliseconds
+     * @param step the width of the buckets
+     * @return the number of buckets
+     */
+    public static long count(long from, long to, Duration step) {
+        return Math.floorDiv(to, step.toMillis()) - Math.floorDiv(from, step.toMillis()) + 1;
+    }
+
+    long from() {
+        return from;
+    }
+
+    /**
+     * Get the end of the last bucket.
+     *
+     * @return the last millisecond of the last bucket
+     */
+    long to() {
+        return from + size * step - 1;
+    }
+
+    long step() {
+        return step;
+    }
+
+    /**
+     * Add a raw sample to the bucket containing its timestamp. Samples outside the buckets are ignored.
+     */
+    void add(long timestamp, float memoryUsed, float memoryMax, float cpuUsage, int errorCount) {
+        int bucket = bucketOf(timestamp);
+        if (bucket < 0) {
+            return;
+        }
+
+        boolean newest = counts[bucket] == 0 || timestamp >= lastTimestamps[bucket];
+        accumulate(bucket, 0, memoryUsed, memoryUsed, memoryUsed, memoryUsed, 1, newest);
+        accumulate(bucket, 1, memoryMax, memoryMax, memoryMax, memoryMax, 1, newest);
+        accumulate(bucket, 2, cpuUsage, cpuUsage, cpuUsage, cpuUsage, 1, newest);
+        accumulate(bucket, 3, errorCount, errorCount, errorCount, errorCount, 1, newest);
+        if (newest) {
+            lastTimestamps[bucket] = timestamp;
+        }
+        counts[bucket]++;
+    }
+
+    /**
+     * Add the raw samples of a snapshot.
+     *
+     * @param samples the samples
+     */
+    void addAll(MetricSamples samples) {
+        for (int i = 0; i < samples.size(); i++) {
+            add(samples.getTimestamp(i), samples.getMemoryUsed(i), samples.getMemoryMax(i), samples.getCpuUsage(i),
+                samples.getErrorCount(i));
+        }
+    }
+
+    /**
+     * Merge a pre-aggregated bucket into the bucket containing its start.
+     *
+     * @param timestamp     the start of the pre-aggregated bucket in epoch milliseconds
+     * @param count         the number of samples in the pre-aggregated bucket
+     * @param lastTimestamp the timestamp of the newest sample in the pre-aggregated bucket
+     * @param sums          the sums of the fields, starting at the offset
+     * @param mins          the minimums of the fields, starting at the offset
+     * @param maxs          the maximums of the fields, starting at the offset
+     * @param lasts         the newest values of the fields, starting at the offset
+     * @param offset        the offset of the pre-aggregated bucket's fields in the arrays
+     */
+    void merge(long timestamp, int count, long lastTimestamp, float[] sums, float[] mins, float[] maxs, float[] lasts,
+               int offset) {
+        int bucket = bucketOf(timestamp);
+        if (bucket < 0 || count == 0) {
+            return;
+        }
+
+        boolean newest = counts[bucket] == 0 || lastTimestamp >= lastTimestamps[bucket];
+        for (int field = 0; field < FIELDS; field++) {
+            accumulate(bucket, field, sums[offset + field], mins[offset + field], maxs[offset + field],
+                       lasts[offset + field], count, newest);
+        }
+        if (newest) {
+            lastTimestamps[bucket] = lastTimestamp;
+        }
+        counts[bucket] += count;
+    }
+
+    private void accumulate(int bucket, int field, double sum, float min, float max, float last, int count,
+                            boolean newest) {
+        int i = bucket * FIELDS + field;
+        if (counts[bucket] == 0) {
+            sums[i] = sum;
+            mins[i] = min;
+            maxs[i] = max;
+            lasts[i] = last;
+            return;
+        }
+        sums[i] += sum;
+        mins[i] = Math.min(mins[i], min);
+        maxs[i] = Math.max(maxs[i], max);
+        if (newest) {
+            lasts[i] = last;
+        }
+    }
+
+    private int bucketOf(long timestamp) {
+        if (timestamp < from) {
+            return -1;
+        }
+        long bucket = (timestamp - from) / step;
+        return bucket < size ? (int) bucket : -1;
+    }
+
+    /**
+     * Get the number of buckets, including empty ones.
+     *
+     * @return the number of buckets
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the width of the buckets.
+     *
+     * @return the width
+     */
+    public Duration getStep() {
+        return Duration.ofMillis(step);
+    }
+
+    /**
+     * Get the start of a bucket.
+     *
+     * @param i the bucket index
+     * @return the start in epoch milliseconds
+     */
+    public long getTimestamp(int i) {
+        return from + i * step;
+    }
+
+    /**
+     * Get the number of samples in a bucket.
+     *
+     * @param i the bucket index
+     * @return the number of samples, 0 if the bucket is empty
+     */
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    public float getAverage(int i, Field field) {
+        return (float) (sums[i * FIELDS + field.ordinal()] / counts[i]);
+    }
+
+    public float getMin(int i, Field field) {
+        return mins[i * FIELDS + field.ordinal()];
+    }
+
+    public float getMax(int i, Field field) {
+        return maxs[i * FIELDS + field.ordinal()];
+    }
+
+    public float getLast(int i, Field field) {
+        return lasts[i * FIELDS + field.ordinal()];
+    }
+}
@@ -0,0 +1,247 @@
+package org.newtco.obserra.backend.storage;
+
+/**
+ * Immutable, compressed block of metric samples, encoded as described in the Facebook Gorilla paper.
+ * <p>
+ * Timestamps are stored as delta-of-deltas, which costs a single bit per sample when samples arrive on a steady
+ * interval. Values are stored as the XOR of each value with its predecessor, so unchanged values cost a single bit and
+ * slowly changing values only store their meaningful bits. Each column is encoded as its own bit stream, and the chunk
+ * is decoded on demand when a query reaches past the uncompressed samples.
+ */
+public final class MetricChunk {
+
+    private final int    count;
+    private final long   firstSequence;
+    private final long   firstTimestamp;
+    private final long   lastTimestamp;
+    private final long[] timestampBits;
+    private final long[] memoryUsedBits;
+    private final long[] memoryMaxBits;
+    private final long[] cpuUsageBits;
+    private final long[] errorCountBits;
+
+    private MetricChunk(int count, long firstSequence, long firstTimestamp, long lastTimestamp,
+                        long[] timestampBits, long[] memoryUsedBits, long[] memoryMaxBits, long[] cpuUsageBits,
+                        long[] errorCountBits) {
+        this.count          = count;
+        this.firstSequence  = firstSequence;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp  = lastTimestamp;
+        this.timestampBits  = timestampBits;
+        this.memoryUsedBits = memoryUsedBits;
+        this.memoryMaxBits  = memoryMaxBits;
+        this.cpuUsageBits   = cpuUsageBits;
+        this.errorCountBits = errorCountBits;
+    }
+
+    /**
+     * Compress a run of samples, oldest first.
+     *
+     * @param firstSequence the sequence number of the first sample
+     * @param count         the number of samples
+     * @param timestamps    the sample times in epoch milliseconds
+     * @param memoryUsed    the used memory values
+     * @param memoryMax     the maximum memory values
+     * @param cpuUsage      the CPU usage values
+     * @param errorCount    the error counts
+     * @return the compressed chunk
+     */
+    public static MetricChunk encode(long firstSequence, int count, long[] timestamps, float[] memoryUsed,
+                                     float[] memoryMax, float[] cpuUsage, int[] errorCount) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Metric chunk must contain at least one sample");
+        }
+
+        return new MetricChunk(
+                count,
+                firstSequence,
+                timestamps[0],
+                timestamps[count - 1],
+                encodeTimestamps(timestamps, count),
+                encodeValues(i -> Float.floatToRawIntBits(memoryUsed[i]), count),
+                encodeValues(i -> Float.floatToRawIntBits(memoryMax[i]), count),
+                encodeValues(i -> Float.floatToRawIntBits(cpuUsage[i]), count),
+                encodeValues(i -> errorCount[i], count));
+    }
+
+    /**
+     * Decompress the chunk into the given columns, oldest first. Each column must hold at least {@link #count()}
+     * values.
+     */
+    public void decode(long[] timestamps, float[] memoryUsed, float[] memoryMax, float[] cpuUsage, int[] errorCount) {
+        decodeTimestamps(timestampBits, timestamps, count);
+
+        int[] values = new int[count];
+        decodeValues(memoryUsedBits, values, count);
+        for (int i = 0; i < count; i++) {
+            memoryUsed[i] = Float.intBitsToFloat(values[i]);
+        }
+        decodeValues(memoryMaxBits, values, count);
+        for (int i = 0; i < count; i++) {
+            memoryMax[i] = Float.intBitsToFloat(values[i]);
+        }
+        decodeValues(cpuUsageBits, values, count);
+        for (int i = 0; i < count; i++) {
+            cpuUsage[i] = Float.intBitsToFloat(values[i]);
+        }
+        decodeValues(errorCountBits, errorCount, count);
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public long firstSequence() {
+        return firstSequence;
+    }
+
+    public long firstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Get the approximate heap size of the compressed data.
+     *
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return 8L * (timestampBits.length + memoryUsedBits.length + memoryMaxBits.length
+                     + cpuUsageBits.length + errorCountBits.length);
+    }
+
+    // Timestamps: the first is stored in full, the second as a delta, and the rest as delta-of-deltas using the
+    // smallest of the variable length buckets which fits.
+
+    private static long[] encodeTimestamps(long[] timestamps, int count) {
+        BitWriter out = new BitWriter(count / 16 + 2);
+        out.write(timestamps[0], 64);
+        if (count > 1) {
+            out.write(timestamps[1] - timestamps[0], 64);
+        }
+
+        for (int i = 2; i < count; i++) {
+            long deltaOfDelta = (timestamps[i] - timestamps[i - 1]) - (timestamps[i - 1] - timestamps[i - 2]);
+            if (deltaOfDelta == 0) {
+                out.write(0b0, 1);
+            } else if (fits(deltaOfDelta, 7)) {
+                out.write(0b10, 2);
+                out.write(deltaOfDelta, 7);
+            } else if (fits(deltaOfDelta, 12)) {
+                out.write(0b110, 3);
+                out.write(deltaOfDelta, 12);
+            } else if (fits(deltaOfDelta, 20)) {
+                out.write(0b1110, 4);
+                out.write(deltaOfDelta, 20);
+            } else {
+                out.write(0b1111, 4);
+                out.write(deltaOfDelta, 64);
+            }
+        }
+        return out.toWords();
+    }
+
+    private static void decodeTimestamps(long[] bits, long[] timestamps, int count) {
+        BitReader in = new BitReader(bits);
+        timestamps[0] = in.read(64);
+        if (count == 1) {
+            return;
+        }
+
+        long delta = in.read(64);
+        timestamps[1] = timestamps[0] + delta;
+        for (int i = 2; i < count; i++) {
+            long deltaOfDelta;
+            if (!in.readBit()) {
+                deltaOfDelta = 0;
+            } else if (!in.readBit()) {
+                deltaOfDelta = signExtend(in.read(7), 7);
+            } else if (!in.readBit()) {
+                deltaOfDelta = signExtend(in.read(12), 12);
+            } else if (!in.readBit()) {
+                deltaOfDelta = signExtend(in.read(20), 20);
+            } else {
+                deltaOfDelta = in.read(64);
+            }
+            delta += deltaOfDelta;
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+    }
+
+    private static boolean fits(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private static long signExtend(long value, int bits) {
+        int shift = 64 - bits;
+        return (value << shift) >> shift;
+    }
+
+    // Values: the first is stored in full, then each value is XORed with its predecessor. A zero XOR is a single bit,
+    // and otherwise only the meaningful bits are stored, reusing the previous leading/trailing zero window when the
+    // new bits fit inside it.
+
+    private interface IntColumn {
+        int get(int index);
+    }
+
+    private static long[] encodeValues(IntColumn column, int count) {
+        BitWriter out = new BitWriter(count / 4 + 1);
+        int previous = column.get(0);
+        out.write(previous, 32);
+
+        int leading = Integer.MAX_VALUE;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            int value = column.get(i);
+            int xor = value ^ previous;
+            previous = value;
+
+            if (xor == 0) {
+                out.write(0b0, 1);
+                continue;
+            }
+
+            int newLeading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+            int newTrailing = Integer.numberOfTrailingZeros(xor);
+            if (leading != Integer.MAX_VALUE && newLeading >= leading && newTrailing >= trailing) {
+                out.write(0b10, 2);
+                out.write(xor >>> trailing, 32 - leading - trailing);
+            } else {
+                leading = newLeading;
+                trailing = newTrailing;
+                int meaningful = 32 - leading - trailing;
+                out.write(0b11, 2);
+                out.write(leading, 5);
+                out.write(meaningful - 1, 5);
+                out.write(xor >>> trailing, meaningful);
+            }
+        }
+        return out.toWords();
+    }
+
+    private static void decodeValues(long[] bits, int[] values, int count) {
+        BitReader in = new BitReader(bits);
+        int previous = (int) in.read(32);
+        values[0] = previous;
+
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.read(5);
+                    int meaningful = (int) in.read(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                int xor = (int) in.read(32 - leading - trailing) << trailing;
+                previous ^= xor;
+            }
+            values[i] = previous;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.newtco.obserra.backend.storage;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Pre-aggregated tier of a {@link MetricSeries}, holding the count, sum, minimum, maximum and last value of each
+ * metric field per fixed-width time bucket.
+ * <p>
+ * Buckets are updated as samples are appended, so a long time range is read from a few hundred buckets rather than
+ * tens of thousands of samples. The buckets live in a ring of primitive arrays indexed by bucket number, which grows
+ * on demand up to the retention of the tier; once it is full, the bucket of a new sample replaces the oldest bucket.
+ * A rollup is not thread-safe; its series synchronizes all access to it.
+ */
+final class MetricRollup {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int FIELDS           = MetricBuckets.FIELDS;
+
+    private final long width;
+    private final int  capacity;
+
+    // Bucket number of each slot, or Long.MIN_VALUE if the slot is empty
+    private long[]  buckets;
+    private int[]   counts;
+    private long[]  lastTimestamps;
+    private float[] sums;
+    private float[] mins;
+    private float[] maxs;
+    private float[] lasts;
+
+    // Bucket number from which the tier holds every sample appended to the series, and the newest bucket number
+    private long oldest = Long.MAX_VALUE;
+    private long newest = Long.MIN_VALUE;
+
+    /**
+     * @param width     the width of the buckets
+     * @param retention the time range covered by the buckets
+     */
+    MetricRollup(Duration width, Duration retention) {
+        this.width    = width.toMillis();
+        this.capacity = (int) Math.max(1, retention.toMillis() / this.width);
+        allocate(Math.min(capacity, INITIAL_CAPACITY));
+    }
+
+    /**
+     * Create the default tiers: one-minute buckets for a day, five-minute buckets for a week and one-hour buckets for
+     * 90 days.
+     *
+     * @return the tiers, finest first
+     */
+    static MetricRollup[] tiers() {
+        return new MetricRollup[]{
+                new MetricRollup(Duration.ofMinutes(1), Duration.ofDays(1)),
+                new MetricRollup(Duration.ofMinutes(5), Duration.ofDays(7)),
+                new MetricRollup(Duration.ofHours(1), Duration.ofDays(90))
+        };
+    }
+
+    long width() {
+        return width;
+    }
+
+    /**
+     * Add a sample to the bucket containing its timestamp. A sample older than the oldest bucket of a full tier is
+     * ignored.
+     */
+    void add(long timestamp, float memoryUsed, float memoryMax, float cpuUsage, int errorCount) {
+        long bucket = Math.floorDiv(timestamp, width);
+        int slot = slot(bucket);
+        if (buckets[slot] != bucket) {
+            while (buckets[slot] != Long.MIN_VALUE && buckets.length < capacity) {
+                grow();
+                slot = slot(bucket);
+            }
+            if (buckets[slot] != Long.MIN_VALUE) {
+                // The ring is full, so either the sample or the bucket in its slot is dropped
+                long dropped = Math.min(buckets[slot], bucket);
+                oldest = Math.max(oldest, dropped + 1);
+                if (dropped == bucket) {
+                    return;
+                }
+            }
+            reset(slot, bucket);
+        }
+
+        int count = counts[slot];
+        boolean last = count == 0 || timestamp >= lastTimestamps[slot];
+        int i = slot * FIELDS;
+        accumulate(i, memoryUsed, count, last);
+        accumulate(i + 1, memoryMax, count, last);
+        accumulate(i + 2, cpuUsage, count, last);
+        accumulate(i + 3, errorCount, count, last);
+        if (last) {
+            lastTimestamps[slot] = timestamp;
+        }
+        counts[slot] = count + 1;
+    }
+
+    /**
+     * Check whether the tier can fill buckets of a step, which requires the step to be a multiple of the width.
+     *
+     * @param step the width of the buckets to fill in milliseconds
+     * @return true if the tier can fill the buckets
+     */
+    boolean divides(long step) {
+        return step % width == 0;
+    }
+
+    /**
+     * Get the time from which the tier holds every sample appended to its series.
+     *
+     * @return the time in epoch milliseconds, or {@link Long#MAX_VALUE} if the tier is empty
+     */
+    long coveredFrom() {
+        return oldest != Long.MAX_VALUE ? oldest * width : Long.MAX_VALUE;
+    }
+
+    /**
+     * Merge the buckets of the tier into buckets whose width is a multiple of the tier's.
+     *
+     * @param out the buckets to fill
+     */
+    void read(MetricBuckets out) {
+        long first = Math.max(Math.floorDiv(out.from(), width), oldest);
+        long last = Math.min(Math.floorDiv(out.to(), width), newest);
+        for (long bucket = first; bucket <= last; bucket++) {
+            int slot = slot(bucket);
+            if (buckets[slot] == bucket) {
+                out.merge(bucket * width, counts[slot], lastTimestamps[slot], sums, mins, maxs, lasts, slot * FIELDS);
+            }
+        }
+    }
+
+    private void accumulate(int i, float value, int count, boolean last) {
+        if (count == 0) {
+            sums[i] = value;
+            mins[i] = value;
+            maxs[i] = value;
+            lasts[i] = value;
+            return;
+        }
+        sums[i] += value;
+        mins[i] = Math.min(mins[i], value);
+        maxs[i] = Math.max(maxs[i], value);
+        if (last) {
+            lasts[i] = value;
+        }
+    }
+
+    private void reset(int slot, long bucket) {
+        buckets[slot] = bucket;
+        counts[slot]  = 0;
+        newest = Math.max(newest, bucket);
+        if (oldest == Long.MAX_VALUE || bucket < oldest && !full()) {
+            oldest = bucket;
+        }
+    }
+
+    private boolean full() {
+        return buckets.length == capacity;
+    }
+
+    private void allocate(int length) {
+        buckets        = new long[length];
+        counts         = new int[length];
+        lastTimestamps = new long[length];
+        sums           = new float[length * FIELDS];
+        mins           = new float[length * FIELDS];
+        maxs           = new float[length * FIELDS];
+        lasts          = new float[length * FIELDS];
+        Arrays.fill(buckets, Long.MIN_VALUE);
+    }
+
+    private void grow() {
+        long[]  oldBuckets        = buckets;
+        int[]   oldCounts         = counts;
+        long[]  oldLastTimestamps = lastTimestamps;
+        float[] oldSums           = sums;
+        float[] oldMins           = mins;
+        float[] oldMaxs           = maxs;
+        float[] oldLasts          = lasts;
+
+        allocate((int) Math.min(capacity, (long) oldBuckets.length * 2));
+        for (int from = 0; from < oldBuckets.length; from++) {
+            if (oldBuckets[from] == Long.MIN_VALUE) {
+                continue;
+            }
+            int to = slot(oldBuckets[from]);
+            if (buckets[to] != Long.MIN_VALUE) {
+                // Sparse buckets can share a slot once the ring reaches its retention, and the older one is dropped
+                long dropped = Math.min(buckets[to], oldBuckets[from]);
+                oldest = Math.max(oldest, dropped + 1);
+                if (dropped == oldBuckets[from]) {
+                    continue;
+                }
+            }
+            buckets[to]        = oldBuckets[from];
+            counts[to]         = oldCounts[from];
+            lastTimestamps[to] = oldLastTimestamps[from];
+            System.arraycopy(oldSums, from * FIELDS, sums, to * FIELDS, FIELDS);
+            System.arraycopy(oldMins, from * FIELDS, mins, to * FIELDS, FIELDS);
+            System.arraycopy(oldMaxs, from * FIELDS, maxs, to * FIELDS, FIELDS);
+            System.arraycopy(oldLasts, from * FIELDS, lasts, to * FIELDS, FIELDS);
+        }
+    }
+
+    private int slot(long bucket) {
+        return (int) Math.floorMod(bucket, (long) buckets.length);
+    }
+}
@@ -0,0 +1,162 @@
+package org.newtco.obserra.backend.storage;
+
+import org.newtco.obserra.backend.model.Metric;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar snapshot of metric samples read from a {@link MetricSeries}, newest first.
+ * <p>
+ * Samples stay in primitive arrays until they reach the API boundary, where {@link #toMetrics(Long)} materializes them
+ * as {@link Metric} objects.
+ */
+public class MetricSamples {
+
+    private final long[]  sequence;
+    private final long[]  timestamps;
+    private final float[] memoryUsed;
+    private final float[] memoryMax;
+    private final float[] cpuUsage;
+    private final int[]   errorCount;
+
+    MetricSamples(int size) {
+        this(new long[size], new long[size], new float[size], new float[size], new float[size], new int[size]);
+    }
+
+    private MetricSamples(long[] sequence, long[] timestamps, float[] memoryUsed, float[] memoryMax, float[] cpuUsage,
+                          int[] errorCount) {
+        this.sequence   = sequence;
+        this.timestamps = timestamps;
+        this.memoryUsed = memoryUsed;
+        this.memoryMax  = memoryMax;
+        this.cpuUsage   = cpuUsage;
+        this.errorCount = errorCount;
+    }
+
+    void set(int i, long sequence, long timestamp, float memoryUsed, float memoryMax, float cpuUsage, int errorCount) {
+        this.sequence[i]   = sequence;
+        this.timestamps[i] = timestamp;
+        this.memoryUsed[i] = memoryUsed;
+        this.memoryMax[i]  = memoryMax;
+        this.cpuUsage[i]   = cpuUsage;
+        this.errorCount[i] = errorCount;
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    public boolean isEmpty() {
+        return timestamps.length == 0;
+    }
+
+    public long getTimestamp(int i) {
+        return timestamps[i];
+    }
+
+    public float getMemoryUsed(int i) {
+        return memoryUsed[i];
+    }
+
+    public float getMemoryMax(int i) {
+        return memoryMax[i];
+    }
+
+    public float getCpuUsage(int i) {
+        return cpuUsage[i];
+    }
+
+    public int getErrorCount(int i) {
+        return errorCount[i];
+    }
+
+    /**
+     * Materialize a sample as a Metric.
+     *
+     * @param i         the sample index
+     * @param serviceId the ID of the service the sample belongs to
+     * @return the metric
+     */
+    public Metric toMetric(int i, Long serviceId) {
+        Metric metric = new Metric();
+        metric.setId(sequence[i]);
+        metric.setServiceId(serviceId);
+        metric.setTimestamp(LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamps[i]), ZoneId.systemDefault()));
+        metric.setMemoryUsed(memoryUsed[i]);
+        metric.setMemoryMax(memoryMax[i]);
+        metric.setCpuUsage(cpuUsage[i]);
+        metric.setErrorCount(errorCount[i]);
+        return metric;
+    }
+
+    /**
+     * Materialize all samples as Metrics.
+     *
+     * @param serviceId the ID of the service the samples belong to
+     * @return the metrics, newest first
+     */
+    public List<Metric> toMetrics(Long serviceId) {
+        List<Metric> metrics = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            metrics.add(toMetric(i, serviceId));
+        }
+        return metrics;
+    }
+
+    /**
+     * Collects samples when their number is not known up front, such as when reading a time window.
+     */
+    static final class Builder {
+
+        private long[]  sequence   = new long[16];
+        private long[]  timestamps = new long[16];
+        private float[] memoryUsed = new float[16];
+        private float[] memoryMax  = new float[16];
+        private float[] cpuUsage   = new float[16];
+        private int[]   errorCount = new int[16];
+        private int     size;
+
+        void add(long sequence, long timestamp, float memoryUsed, float memoryMax, float cpuUsage, int errorCount) {
+            if (size == timestamps.length) {
+                int length = size * 2;
+                this.sequence   = Arrays.copyOf(this.sequence, length);
+                this.timestamps = Arrays.copyOf(this.timestamps, length);
+                this.memoryUsed = Arrays.copyOf(this.memoryUsed, length);
+                this.memoryMax  = Arrays.copyOf(this.memoryMax, length);
+                this.cpuUsage   = Arrays.copyOf(this.cpuUsage, length);
+                this.errorCount = Arrays.copyOf(this.errorCount, length);
+            }
+            this.sequence[size]   = sequence;
+            this.timestamps[size] = timestamp;
+            this.memoryUsed[size] = memoryUsed;
+            this.memoryMax[size]  = memoryMax;
+            this.cpuUsage[size]   = cpuUsage;
+            this.errorCount[size] = errorCount;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        MetricSamples build() {
+            return new MetricSamples(Arrays.copyOf(sequence, size), Arrays.copyOf(timestamps, size),
+                                     Arrays.copyOf(memoryUsed, size), Arrays.copyOf(memoryMax, size),
+                                     Arrays.copyOf(cpuUsage, size), Arrays.copyOf(errorCount, size));
+        }
+    }
+
+    /**
+     * Get an empty snapshot.
+     *
+     * @return an empty snapshot
+     */
+    public static MetricSamples empty() {
+        return new MetricSamples(0);
+    }
+}
@@ -0,0 +1,402 @@
+package org.newtco.obserra.backend.storage;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+/**
+ * Bounded, thread-safe columnar store holding the metric history of a single service.
+ * <p>
+ * The most recent samples are kept uncompressed in a ring buffer of primitive arrays, one array per column, which
+ * costs 24 bytes per sample rather than the several hundred bytes of a boxed
+ * {@link org.newtco.obserra.backend.model.Metric}. When the ring buffer fills up, its oldest samples are rolled into
+ * an immutable {@link MetricChunk} which is compressed to a fraction of that size, so long retention periods fit in
+ * memory. Samples are kept in timestamp order, so reading the latest N samples is O(N) and never requires a sort.
+ * <p>
+ * The series retains at most a fixed number of samples, and samples older than the maximum age are dropped as new
+ * samples arrive or the series is read. Compressed samples are dropped a whole chunk at a time, and expired
+ * uncompressed samples are compressed into a chunk of their own, so every dropped sample is handed to an overflow,
+ * such as the {@link HistoryArchive}, if the series has one.
+ * <p>
+ * Every appended sample also updates the {@link MetricRollup} tiers of the series, which hold per-bucket aggregates
+ * for longer than the raw samples are typically kept, so downsampled reads over long time ranges touch few buckets.
+ */
+public class MetricSeries {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int CHUNK_SIZE       = 256;
+
+    // Bytes an uncompressed sample takes: a long timestamp, three floats and an int
+    private static final int SAMPLE_BYTES = 24;
+
+    private final int  capacity;
+    private final int  hotCapacity;
+    private final int  chunkSize;
+    private final long maxAgeMillis;
+
+    private long[]  timestamps;
+    private float[] memoryUsed;
+    private float[] memoryMax;
+    private float[] cpuUsage;
+    private int[]   errorCount;
+
+    // Index of the oldest uncompressed sample, the number of uncompressed samples, and the number of samples ever
+    // appended
+    private int  head;
+    private int  size;
+    private long appended;
+
+    // Compressed samples, oldest chunk first
+    private final ArrayDeque<MetricChunk> chunks = new ArrayDeque<>();
+    private long                          chunkedSamples;
+    private long                          chunkedBytes;
+
+    private final Consumer<MetricChunk> overflow;
+
+    // Pre-aggregated tiers, finest first
+    private final MetricRollup[] rollups = MetricRollup.tiers();
+
+    /**
+     * @param capacity the maximum number of samples to retain
+     * @param maxAge   the maximum age of retained samples, or null to retain samples regardless of age
+     */
+    public MetricSeries(int capacity, Duration maxAge) {
+        this(capacity, capacity, maxAge);
+    }
+
+    /**
+     * @param capacity    the maximum number of samples to retain
+     * @param hotCapacity the maximum number of samples to retain uncompressed
+     * @param maxAge      the maximum age of retained samples, or null to retain samples regardless of age
+     */
+    public MetricSeries(int capacity, int hotCapacity, Duration maxAge) {
+        this(capacity, hotCapacity, maxAge, null);
+    }
+
+    /**
+     * @param capacity    the maximum number of samples to retain
+     * @param hotCapacity the maximum number of samples to retain uncompressed
+     * @param maxAge      the maximum age of retained samples, or null to retain samples regardless of age
+     * @param overflow    the receiver of the chunks dropped from the series, oldest first, or null to discard them
+     */
+    public MetricSeries(int capacity, int hotCapacity, Duration maxAge, Consumer<MetricChunk> overflow) {
+        if (capacity <= 0 || hotCapacity <= 0) {
+            throw new IllegalArgumentException("Metric series capacity must be positive: " + capacity);
+        }
+        this.capacity     = capacity;
+        this.hotCapacity  = Math.min(capacity, hotCapacity);
+        this.chunkSize    = Math.min(CHUNK_SIZE, this.hotCapacity);
+        this.maxAgeMillis = maxAge != null ? maxAge.toMillis() : Long.MAX_VALUE;
+        this.overflow     = overflow;
+        allocate(Math.min(this.hotCapacity, INITIAL_CAPACITY));
+    }
+
+    /**
+     * Add a sample to the series, compressing or evicting the oldest samples if the uncompressed buffer is full. A
+     * sample which is older than the newest sample in the series is inserted at its place in timestamp order.
+     *
+     * @param timestamp  the sample time in epoch milliseconds
+     * @param memoryUsed the used memory in bytes
+     * @param memoryMax  the maximum memory in bytes
+     * @param cpuUsage   the CPU usage as a fraction
+     * @param errorCount the error count
+     * @return the sequence number of the sample within the series
+     */
+    public synchronized long append(long timestamp, float memoryUsed, float memoryMax, float cpuUsage, int errorCount) {
+        if (size == timestamps.length) {
+            if (timestamps.length < hotCapacity) {
+                grow();
+            } else if (capacity > hotCapacity || overflow != null) {
+                // Samples are only dropped a chunk at a time when they go to the overflow
+                rollChunk();
+            } else {
+                head = (head + 1) % timestamps.length;
+                size--;
+            }
+        }
+
+        // Walk back from the tail until the sample's timestamp fits, normally zero steps
+        int position = size;
+        while (position > 0 && timestamps[index(position - 1)] > timestamp) {
+            copy(index(position - 1), index(position));
+            position--;
+        }
+
+        int i = index(position);
+        this.timestamps[i] = timestamp;
+        this.memoryUsed[i] = memoryUsed;
+        this.memoryMax[i]  = memoryMax;
+        this.cpuUsage[i]   = cpuUsage;
+        this.errorCount[i] = errorCount;
+        size++;
+        appended++;
+
+        for (MetricRollup rollup : rollups) {
+            rollup.add(timestamp, memoryUsed, memoryMax, cpuUsage, errorCount);
+        }
+
+        evictExpired(System.currentTimeMillis());
+        return appended;
+    }
+
+    /**
+     * Copy the most recent samples out of the series, decompressing chunks only when the limit reaches past the
+     * uncompressed samples.
+     *
+     * @param limit the maximum number of samples to copy
+     * @return the most recent samples, newest first
+     */
+    public synchronized MetricSamples latest(int limit) {
+        evictExpired(System.currentTimeMillis());
+
+        int count = (int) Math.max(0, Math.min(limit, size + chunkedSamples));
+        MetricSamples samples = new MetricSamples(count);
+
+        int n = 0;
+        for (; n < count && n < size; n++) {
+            int position = size - 1 - n;
+            int i = index(position);
+            samples.set(n, appended - size + position + 1,
+                        timestamps[i], memoryUsed[i], memoryMax[i], cpuUsage[i], errorCount[i]);
+        }
+
+        if (n < count) {
+            long[] chunkTimestamps = new long[chunkSize];
+            float[] chunkMemoryUsed = new float[chunkSize];
+            float[] chunkMemoryMax = new float[chunkSize];
+            float[] chunkCpuUsage = new float[chunkSize];
+            int[] chunkErrorCount = new int[chunkSize];
+
+            Iterator<MetricChunk> newestFirst = chunks.descendingIterator();
+            while (n < count && newestFirst.hasNext()) {
+                MetricChunk chunk = newestFirst.next();
+                chunk.decode(chunkTimestamps, chunkMemoryUsed, chunkMemoryMax, chunkCpuUsage, chunkErrorCount);
+                for (int j = chunk.count() - 1; j >= 0 && n < count; j--, n++) {
+                    samples.set(n, chunk.firstSequence() + j, chunkTimestamps[j], chunkMemoryUsed[j],
+                                chunkMemoryMax[j], chunkCpuUsage[j], chunkErrorCount[j]);
+                }
+            }
+        }
+
+        return samples;
+    }
+
+    /**
+     * Copy the samples within a time window out of the series, decompressing only the chunks which overlap it.
+     *
+     * @param from  the earliest timestamp in epoch milliseconds
+     * @param to    the latest timestamp in epoch milliseconds
+     * @param limit the maximum number of samples to copy
+     * @param out   the builder to which the samples are added, newest first
+     * @return the oldest timestamp held by the series, or {@link Long#MAX_VALUE} if it is empty, below which the
+     * samples of the window have to be read from the overflow
+     */
+    public synchronized long between(long from, long to, int limit, MetricSamples.Builder out) {
+        evictExpired(System.currentTimeMillis());
+
+        int read = 0;
+        for (int position = size - 1; position >= 0 && read < limit; position--) {
+            int i = index(position);
+            if (timestamps[i] < from) {
+                break;
+            }
+            if (timestamps[i] <= to) {
+                out.add(appended - size + position + 1,
+                        timestamps[i], memoryUsed[i], memoryMax[i], cpuUsage[i], errorCount[i]);
+                read++;
+            }
+        }
+
+        if (read < limit && (size == 0 || timestamps[head] >= from)) {
+            long[] chunkTimestamps = new long[chunkSize];
+            float[] chunkMemoryUsed = new float[chunkSize];
+            float[] chunkMemoryMax = new float[chunkSize];
+            float[] chunkCpuUsage = new float[chunkSize];
+            int[] chunkErrorCount = new int[chunkSize];
+
+            Iterator<MetricChunk> newestFirst = chunks.descendingIterator();
+            while (read < limit && newestFirst.hasNext()) {
+                MetricChunk chunk = newestFirst.next();
+                if (chunk.lastTimestamp() < from) {
+                    break;
+                }
+                if (chunk.firstTimestamp() > to) {
+                    continue;
+                }
+                chunk.decode(chunkTimestamps, chunkMemoryUsed, chunkMemoryMax, chunkCpuUsage, chunkErrorCount);
+                for (int j = chunk.count() - 1; j >= 0 && read < limit; j--) {
+                    if (chunkTimestamps[j] >= from && chunkTimestamps[j] <= to) {
+                        out.add(chunk.firstSequence() + j, chunkTimestamps[j], chunkMemoryUsed[j],
+                                chunkMemoryMax[j], chunkCpuUsage[j], chunkErrorCount[j]);
+                        read++;
+                    }
+                }
+            }
+        }
+
+        if (!chunks.isEmpty()) {
+            return chunks.peekFirst().firstTimestamp();
+        }
+        return size > 0 ? timestamps[head] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Fill buckets from the rollup tier whose width divides their step and which reaches back the furthest, preferring
+     * the coarsest of equal tiers.
+     *
+     * @param out the buckets to fill
+     * @return the time from which the buckets were filled, or {@link Long#MAX_VALUE} if no tier could fill them, before
+     * which the buckets have to be filled from the raw samples
+     */
+    public synchronized long aggregate(MetricBuckets out) {
+        MetricRollup best = null;
+        for (int i = rollups.length - 1; i >= 0; i--) {
+            MetricRollup rollup = rollups[i];
+            if (rollup.divides(out.step()) && (best == null || rollup.coveredFrom() < best.coveredFrom())) {
+                best = rollup;
+            }
+        }
+        if (best == null || best.coveredFrom() == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+
+        best.read(out);
+        return best.coveredFrom();
+    }
+
+    /**
+     * Get the number of samples in the series.
+     *
+     * @return the number of samples
+     */
+    public synchronized long size() {
+        return size + chunkedSamples;
+    }
+
+    /**
+     * Get the approximate number of bytes the samples of the series take, counting the uncompressed buffer at its
+     * allocated size and the compressed chunks at their encoded size.
+     *
+     * @return the number of bytes
+     */
+    public synchronized long sizeInBytes() {
+        return (long) timestamps.length * SAMPLE_BYTES + chunkedBytes;
+    }
+
+    /**
+     * Compress the oldest uncompressed samples into a new chunk, dropping the oldest chunks if the series is then
+     * over capacity.
+     */
+    private void rollChunk() {
+        chunks.addLast(seal(Math.min(chunkSize, size)));
+
+        while (!chunks.isEmpty() && size + chunkedSamples > capacity) {
+            drop(chunks.removeFirst());
+        }
+    }
+
+    /**
+     * Move the oldest uncompressed samples into a chunk, which is counted with the chunks of the series until it is
+     * dropped.
+     *
+     * @param count the number of samples
+     * @return the chunk
+     */
+    private MetricChunk seal(int count) {
+        long[] chunkTimestamps = new long[count];
+        float[] chunkMemoryUsed = new float[count];
+        float[] chunkMemoryMax = new float[count];
+        float[] chunkCpuUsage = new float[count];
+        int[] chunkErrorCount = new int[count];
+        for (int position = 0; position < count; position++) {
+            int i = index(position);
+            chunkTimestamps[position] = timestamps[i];
+            chunkMemoryUsed[position] = memoryUsed[i];
+            chunkMemoryMax[position]  = memoryMax[i];
+            chunkCpuUsage[position]   = cpuUsage[i];
+            chunkErrorCount[position] = errorCount[i];
+        }
+
+        long firstSequence = appended - size + 1;
+        MetricChunk chunk = MetricChunk.encode(firstSequence, count, chunkTimestamps, chunkMemoryUsed, chunkMemoryMax,
+                                               chunkCpuUsage, chunkErrorCount);
+        chunkedSamples += count;
+        chunkedBytes += chunk.sizeInBytes();
+        head = (head + count) % timestamps.length;
+        size -= count;
+        return chunk;
+    }
+
+    private void drop(MetricChunk chunk) {
+        chunkedSamples -= chunk.count();
+        chunkedBytes -= chunk.sizeInBytes();
+        if (overflow != null) {
+            overflow.accept(chunk);
+        }
+    }
+
+    private void evictExpired(long now) {
+        long cutoff = now - maxAgeMillis;
+        while (!chunks.isEmpty() && chunks.peekFirst().lastTimestamp() < cutoff) {
+            drop(chunks.removeFirst());
+        }
+        if (!chunks.isEmpty()) {
+            return;
+        }
+
+        int expired = 0;
+        while (expired < size && timestamps[index(expired)] < cutoff) {
+            expired++;
+        }
+        if (expired == 0) {
+            return;
+        }
+        if (overflow != null) {
+            // Expired samples go to the overflow as a chunk, like those rolled out of the uncompressed buffer
+            drop(seal(expired));
+        } else {
+            head = (head + expired) % timestamps.length;
+            size -= expired;
+        }
+    }
+
+    private void allocate(int length) {
+        timestamps = new long[length];
+        memoryUsed = new float[length];
+        memoryMax  = new float[length];
+        cpuUsage   = new float[length];
+        errorCount = new int[length];
+    }
+
+    private void grow() {
+        long[]  oldTimestamps = timestamps;
+        float[] oldMemoryUsed = memoryUsed;
+        float[] oldMemoryMax  = memoryMax;
+        float[] oldCpuUsage   = cpuUsage;
+        int[]   oldErrorCount = errorCount;
+
+        allocate((int) Math.min(hotCapacity, (long) oldTimestamps.length * 2));
+        for (int position = 0; position < size; position++) {
+            int i = (head + position) % oldTimestamps.length;
+            timestamps[position] = oldTimestamps[i];
+            memoryUsed[position] = oldMemoryUsed[i];
+            memoryMax[position]  = oldMemoryMax[i];
+            cpuUsage[position]   = oldCpuUsage[i];
+            errorCount[position] = oldErrorCount[i];
+        }
+        head = 0;
+    }
+
+    private void copy(int from, int to) {
+        timestamps[to] = timestamps[from];
+        memoryUsed[to] = memoryUsed[from];
+        memoryMax[to]  = memoryMax[from];
+        cpuUsage[to]   = cpuUsage[from];
+        errorCount[to] = errorCount[from];
+    }
+
+    private int index(int position) {
+        return (head + position) % timestamps.length;
+    }
+}
@@ -0,0 +1,113 @@
+package org.newtco.obserra.backend.storage;
+
+import org.newtco.obserra.backend.model.Service;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary hash indexes over the services held by {@link MemoryStorage}.
+ * <p>
+ * Services are indexed by appId, namespace and pod name, and namespace and name, so lookups by those keys are O(1)
+ * rather than a scan of every service. Pod names are only unique within a namespace, so pods are keyed on both. The
+ * keys a service was indexed under are remembered, so a service object which was modified in place before being
+ * passed to {@link #update(Service)} is still unindexed correctly.
+ */
+public class ServiceIndex {
+
+    private final Map<String, Long>              byAppId   = new ConcurrentHashMap<>();
+    private final Map<NamespacedName, Long>      byPodName = new ConcurrentHashMap<>();
+    private final Map<NamespacedName, Set<Long>> byName    = new ConcurrentHashMap<>();
+    private final Map<Long, Keys>                keys      = new ConcurrentHashMap<>();
+
+    /**
+     * Index a new service.
+     *
+     * @param service the service, which must have an ID
+     */
+    public synchronized void add(Service service) {
+        Keys serviceKeys = Keys.of(service);
+        keys.put(service.getId(), serviceKeys);
+
+        if (serviceKeys.appId() != null) {
+            byAppId.put(serviceKeys.appId(), service.getId());
+        }
+        if (serviceKeys.pod() != null) {
+            byPodName.put(serviceKeys.pod(), service.getId());
+        }
+        if (serviceKeys.name() != null) {
+            byName.computeIfAbsent(serviceKeys.name(), key -> ConcurrentHashMap.newKeySet()).add(service.getId());
+        }
+    }
+
+    /**
+     * Re-index a service whose keys may have changed.
+     *
+     * @param service the service, which must have an ID
+     */
+    public synchronized void update(Service service) {
+        Keys previous = keys.get(service.getId());
+        if (previous != null && previous.equals(Keys.of(service))) {
+            return;
+        }
+
+        remove(service.getId());
+        add(service);
+    }
+
+    /**
+     * Remove a service from the indexes.
+     *
+     * @param id the service ID
+     */
+    public synchronized void remove(Long id) {
+        Keys serviceKeys = keys.remove(id);
+        if (serviceKeys == null) {
+            return;
+        }
+
+        if (serviceKeys.appId() != null) {
+            byAppId.remove(serviceKeys.appId(), id);
+        }
+        if (serviceKeys.pod() != null) {
+            byPodName.remove(serviceKeys.pod(), id);
+        }
+        if (serviceKeys.name() != null) {
+            byName.computeIfPresent(serviceKeys.name(), (key, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    public Optional<Long> findByAppId(String appId) {
+        return appId != null ? Optional.ofNullable(byAppId.get(appId)) : Optional.empty();
+    }
+
+    public Optional<Long> findByPodName(String namespace, String podName) {
+        return podName != null
+                ? Optional.ofNullable(byPodName.get(new NamespacedName(namespace, podName)))
+                : Optional.empty();
+    }
+
+    public Set<Long> findByName(String namespace, String name) {
+        Set<Long> ids = byName.get(new NamespacedName(namespace, name));
+        return ids != null ? Set.copyOf(ids) : Set.of();
+    }
+
+    private record NamespacedName(String namespace, String name) {}
+
+    private record Keys(String appId, NamespacedName pod, NamespacedName name) {
+
+        static Keys of(Service service) {
+            return new Keys(
+                    service.getAppId(),
+                    service.getPodName() != null
+                            ? new NamespacedName(service.getNamespace(), service.getPodName())
+                            : null,
+                    service.getName() != null ? new NamespacedName(service.getNamespace(), service.getName()) : null);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.newtco.obserra.backend.storage;
 
 import org.newtco.obserra.backend.model.*;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
@@ -19,8 +20,9 @@ public interface Storage {
     // Service methods
     List<Service> getAllServices();
     Optional<Service> getService(Long id);
-    Optional<Service> getServiceByPodName(String podName);
+    Optional<Service> getServiceByPodName(String namespace, String podName);
     Optional<Service> getServiceByAppId(String appId);
+    List<Service> getServicesByName(String namespace, String name);
     Service createService(Service service);
     Service updateService(Long id, Service service);
     Service updateServiceStatus(Long id, ServiceStatus status);
@@ -30,16 +32,58 @@ public interface Storage {
     // Service registration methods
     Service registerService(Service registration);
 
-    // Health check methods
-    List<Service> getServicesForHealthCheck(int maxAgeSeconds);
-
     // Metrics methods
     List<Metric> getMetricsForService(Long serviceId, int limit);
+    MetricSamples getMetricSamples(Long serviceId, int limit);
+
+    /**
+     * Get the metrics of a service within a time window, including history which has been archived.
+     *
+     * @param serviceId the service ID
+     * @param from      the earliest timestamp to include, or null for no lower bound
+     * @param to        the latest timestamp to include, or null for no upper bound
+     * @param limit     the maximum number of metrics
+     * @return the metrics, newest first
+     */
+    List<Metric> getMetricsForService(Long serviceId, LocalDateTime from, LocalDateTime to, int limit);
+    MetricSamples getMetricSamples(Long serviceId, LocalDateTime from, LocalDateTime to, int limit);
+
+    /**
+     * Get the metrics of a service within a time window, aggregated into buckets of a fixed width.
+     *
+     * @param serviceId the service ID
+     * @param from      the earliest timestamp to include
+     * @param to        the latest timestamp to include
+     * @param step      the width of the buckets, which are aligned to multiples of it
+     * @return the buckets, oldest first
+     */
+    MetricBuckets getMetricBuckets(Long serviceId, LocalDateTime from, LocalDateTime to, Duration step);
     Metric createMetric(Metric metric);
+    long appendMetricSample(Long serviceId, long timestamp, float memoryUsed, float memoryMax, float cpuUsage,
+                            int errorCount);
 
     // Logs methods
     List<Log> getLogsForService(Long serviceId, int limit);
+
+    /**
+     * Get the logs of a service within a time window, including history which has been archived.
+     *
+     * @param serviceId the service ID
+     * @param from      the earliest timestamp to include, or null for no lower bound
+     * @param to        the latest timestamp to include, or null for no upper bound
+     * @param limit     the maximum number of logs
+     * @return the logs, newest first
+     */
+    List<Log> getLogsForService(Long serviceId, LocalDateTime from, LocalDateTime to, int limit);
+
+    /**
+     * Store a log, unless an identical log (same timestamp, thread and message) was recently stored for the service.
+     *
+     * @param log the log to store
+     * @return the stored log, or null if it was a duplicate
+     */
     Log createLog(Log log);
+    List<Log> searchLogs(LogSearchQuery query);
 
     // Configuration methods
     List<ConfigProperty> getConfigPropertiesForService(Long serviceId);
@@ -0,0 +1,400 @@
+package org.newtco.obserra.backend.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, segmented write-ahead log of storage records.
+ * <p>
+ * Each record is framed as its length, a CRC32C checksum, a type byte and the payload. Appends only copy the record
+ * into an in-memory buffer; {@link #awaitDurable(long)} then writes and forces the buffer to disk. Concurrent callers
+ * share a single write and force: while one caller flushes, the others queue up behind it and usually find their
+ * records already durable once it finishes. This group commit keeps the number of fsyncs independent of the number of
+ * writers.
+ * <p>
+ * A record only counts as durable once the write and force of the flush which carried it succeeded. When either
+ * fails, the segment is truncated back to its last durable length and the records are put back at the head of the
+ * buffer, so the next flush writes them again rather than skipping past them. If the segment cannot be truncated, its
+ * contents are unknown and every later flush fails with the original error.
+ * <p>
+ * The log is split into numbered segments, so that a snapshot can start a new segment and the older ones can be
+ * deleted once the snapshot is complete.
+ */
+class WriteAheadLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int HEADER_BYTES        = 9;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_BYTES    = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Receives the records read back from a log or snapshot.
+     */
+    interface RecordHandler {
+
+        /**
+         * @param segment the segment of the record, or 0 for a snapshot
+         * @param index   the position of the record within its segment or snapshot
+         * @param type    the record type
+         * @param payload the record payload
+         */
+        void record(long segment, long index, byte type, byte[] payload) throws IOException;
+    }
+
+    /**
+     * Opens the channel a segment is appended through.
+     */
+    interface SegmentOpener {
+
+        FileChannel open(Path path) throws IOException;
+    }
+
+    private final Path          directory;
+    private final SegmentOpener opener;
+
+    // Guarded by this: records appended but not yet written
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int    bufferSize;
+    private long   appended;
+    private long   segmentStart;
+
+    // Guarded by flushLock: the current segment, written only while flushing
+    private final Object flushLock = new Object();
+    private byte[]       spare     = new byte[INITIAL_BUFFER_SIZE];
+    private FileChannel  channel;
+    private long         segment;
+    private IOException  failure;
+
+    private volatile long durable;
+
+    /**
+     * Open a log which starts a new segment after the existing ones.
+     *
+     * @param directory the directory of the segments
+     */
+    WriteAheadLog(Path directory) throws IOException {
+        this(directory, path -> FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                 StandardOpenOption.APPEND));
+    }
+
+    /**
+     * Open a log which starts a new segment after the existing ones.
+     *
+     * @param directory the directory of the segments
+     * @param opener    opens the channel of each segment for appending
+     */
+    WriteAheadLog(Path directory, SegmentOpener opener) throws IOException {
+        this.directory = directory;
+        this.opener = opener;
+        List<Long> segments = segments(directory);
+        this.segment = segments.isEmpty() ? 1 : segments.getLast() + 1;
+        this.channel = open(segment);
+    }
+
+    /**
+     * Append a record to the log. The record is not durable until {@link #awaitDurable(long)} returns for its
+     * sequence number.
+     *
+     * @param type    the record type
+     * @param payload the record payload
+     * @return the sequence number of the record
+     */
+    synchronized long append(byte type, byte[] payload) {
+        int length = HEADER_BYTES + payload.length;
+        if (bufferSize + length > buffer.length) {
+            byte[] grown = new byte[Math.max(buffer.length * 2, bufferSize + length)];
+            System.arraycopy(buffer, 0, grown, 0, bufferSize);
+            buffer = grown;
+        }
+        ByteBuffer.wrap(buffer, bufferSize, length)
+                .putInt(payload.length + 1)
+                .putInt(checksum(type, payload))
+                .put(type)
+                .put(payload);
+        bufferSize += length;
+        return ++appended;
+    }
+
+    /**
+     * Get the position within the current segment at which the next record will be written.
+     *
+     * @return the number of records appended to the current segment so far
+     */
+    synchronized long segmentPosition() {
+        return appended - segmentStart;
+    }
+
+    /**
+     * Wait until a record and all records before it are on disk.
+     *
+     * @param sequence the sequence number returned by {@link #append(byte, byte[])}
+     */
+    void awaitDurable(long sequence) throws IOException {
+        if (durable >= sequence) {
+            return;
+        }
+        synchronized (flushLock) {
+            // A flush which finished while we were waiting may already have covered the record
+            if (durable < sequence) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Write and force all appended records.
+     */
+    void sync() throws IOException {
+        synchronized (flushLock) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        flush(false);
+    }
+
+    /**
+     * Write and force the appended records, optionally ending the segment after them.
+     *
+     * @param endSegment true to count the records appended from now on towards the next segment
+     */
+    private void flush(boolean endSegment) throws IOException {
+        if (failure != null) {
+            throw new IOException("The write-ahead log failed earlier", failure);
+        }
+
+        byte[] pending;
+        int length;
+        long upTo;
+        long previousSegmentStart;
+        synchronized (this) {
+            previousSegmentStart = segmentStart;
+            if (endSegment) {
+                segmentStart = appended;
+            }
+            if (appended == durable) {
+                return;
+            }
+            pending = buffer;
+            length = bufferSize;
+            upTo = appended;
+            buffer = spare.length >= INITIAL_BUFFER_SIZE ? spare : new byte[INITIAL_BUFFER_SIZE];
+            bufferSize = 0;
+        }
+
+        long durableLength = channel.size();
+        try {
+            ByteBuffer out = ByteBuffer.wrap(pending, 0, length);
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            requeue(pending, length, previousSegmentStart);
+            try {
+                // A failed force may leave the written pages in any state, so they are written again from scratch
+                channel.truncate(durableLength);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+                failure = e;
+            }
+            throw e;
+        }
+        spare = pending;
+        durable = upTo;
+    }
+
+    /**
+     * Put the records of a failed flush back at the head of the buffer, ahead of the records appended since.
+     *
+     * @param pending              the buffer of the failed flush
+     * @param length               the length of its records
+     * @param previousSegmentStart the segment start before the flush, which a failed rotation restores
+     */
+    private synchronized void requeue(byte[] pending, int length, long previousSegmentStart) {
+        byte[] merged = pending.length >= length + bufferSize ? pending : new byte[length + bufferSize];
+        System.arraycopy(pending, 0, merged, 0, length);
+        System.arraycopy(buffer, 0, merged, length, bufferSize);
+        spare = buffer;
+        buffer = merged;
+        bufferSize += length;
+        segmentStart = previousSegmentStart;
+    }
+
+    /**
+     * Flush the current segment and continue in a new one.
+     *
+     * @return the number of the new segment
+     */
+    long rotate() throws IOException {
+        synchronized (flushLock) {
+            // Records appended after this flush are only written once the new segment is open
+            flush(true);
+            channel.close();
+            segment++;
+            channel = open(segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Delete the segments before a segment.
+     *
+     * @param segment the first segment to keep
+     */
+    void deleteSegmentsBefore(long segment) throws IOException {
+        for (long existing : segments(directory)) {
+            if (existing < segment) {
+                Files.deleteIfExists(segmentPath(directory, existing));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (flushLock) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private FileChannel open(long segment) throws IOException {
+        return opener.open(segmentPath(directory, segment));
+    }
+
+    /**
+     * Frame a record as it is stored in the log, for writing snapshots in the same format.
+     *
+     * @param type    the record type
+     * @param payload the record payload
+     * @return the framed record
+     */
+    static byte[] frame(byte type, byte[] payload) {
+        return ByteBuffer.allocate(HEADER_BYTES + payload.length)
+                .putInt(payload.length + 1)
+                .putInt(checksum(type, payload))
+                .put(type)
+                .put(payload)
+                .array();
+    }
+
+    /**
+     * Read the records of a log segment or snapshot. Reading stops at the first incomplete or corrupt record, which
+     * is what a crash during a write leaves behind.
+     *
+     * @param file    the file
+     * @param segment the segment number passed to the handler
+     * @param handler the handler of each record
+     * @return the number of bytes of complete records, i.e. the length to which the file can be truncated
+     */
+    static long read(Path file, long segment, RecordHandler handler) throws IOException {
+        long valid = 0;
+        long index = 0;
+        try (InputStream stream = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(stream, INITIAL_BUFFER_SIZE))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 1 || length > MAX_RECORD_BYTES) {
+                    logger.warn("Corrupt record length {} in {} at offset {}", length, file, valid);
+                    break;
+                }
+
+                byte[] record = new byte[length];
+                int checksum;
+                try {
+                    checksum = in.readInt();
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    logger.warn("Incomplete record in {} at offset {}", file, valid);
+                    break;
+                }
+
+                byte type = record[0];
+                byte[] payload = new byte[length - 1];
+                System.arraycopy(record, 1, payload, 0, payload.length);
+                if (checksum(type, payload) != checksum) {
+                    logger.warn("Checksum mismatch in {} at offset {}", file, valid);
+                    break;
+                }
+
+                handler.record(segment, index++, type, payload);
+                valid += 8 + length;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Read all segments of a log from a segment on, truncating an incomplete tail left by a crash.
+     *
+     * @param directory the directory of the segments
+     * @param from      the first segment to read
+     * @param handler   the handler of each record
+     */
+    static void replay(Path directory, long from, RecordHandler handler) throws IOException {
+        for (long segment : segments(directory)) {
+            if (segment < from) {
+                continue;
+            }
+            Path path = segmentPath(directory, segment);
+            long valid = read(path, segment, handler);
+            if (valid < Files.size(path)) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+        }
+    }
+
+    private static List<Long> segments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .forEach(name -> segments.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))));
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static Path segmentPath(Path directory, long segment) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static int checksum(byte type, byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,54 @@
+package org.newtco.obserra.backend.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StaticClusterMembershipTest {
+
+    private static final long TIMEOUT_MS = 500;
+    private static final int  PEERS      = 4;
+
+    private final List<ServerSocket> stalledPeers = new ArrayList<>();
+    private StaticClusterMembership membership;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (membership != null) {
+            membership.destroy();
+        }
+        for (ServerSocket peer : stalledPeers) {
+            peer.close();
+        }
+    }
+
+    @Test
+    void unreachablePeersAreProbedInParallel() throws IOException {
+        String self = "http://localhost:1";
+        List<String> urls = new ArrayList<>(List.of(self));
+        for (int i = 0; i < PEERS; i++) {
+            // Accepts connections but never answers, so every probe runs into the read timeout
+            ServerSocket peer = new ServerSocket(0, PEERS);
+            stalledPeers.add(peer);
+            urls.add("http://localhost:" + peer.getLocalPort());
+        }
+        membership = new StaticClusterMembership(new RestTemplateBuilder(), true, self, String.join(",", urls),
+                                                 Long.MAX_VALUE / 2, TIMEOUT_MS);
+
+        long start = System.nanoTime();
+        membership.heartbeat();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMs < 2 * TIMEOUT_MS, "heartbeat took " + elapsedMs + " ms");
+        assertEquals(List.of(membership.self()), membership.liveMembers());
+    }
+}
@@ -0,0 +1,87 @@
+package org.newtco.obserra.backend.collector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CollectionEngineTest {
+
+    private static final int MAX_PER_HOST = 2;
+
+    private final CollectionEngine engine = new CollectionEngine(256, MAX_PER_HOST);
+
+    @AfterEach
+    void tearDown() {
+        engine.destroy();
+    }
+
+    @Test
+    void pruningIdleHostsNeverLetsAHostExceedItsLimit() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicBoolean pruning = new AtomicBoolean(true);
+
+        Thread pruner = Thread.ofPlatform().start(() -> {
+            while (pruning.get()) {
+                engine.pruneIdleHosts();
+            }
+        });
+
+        // Bursts which start from an idle host, when the pool is prunable just as callers fetch it
+        Instant deadline = Instant.now().plusSeconds(60);
+        for (int burst = 0; burst < 300; burst++) {
+            List<Future<Integer>> requests = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                requests.add(engine.submitRequest("http://target:8080/actuator/health", deadline, () -> {
+                    int current = inFlight.incrementAndGet();
+                    maxInFlight.accumulateAndGet(current, Math::max);
+                    Thread.sleep(1);
+                    inFlight.decrementAndGet();
+                    return current;
+                }));
+            }
+            for (Future<Integer> request : requests) {
+                request.get();
+            }
+        }
+        pruning.set(false);
+        pruner.join();
+
+        assertTrue(maxInFlight.get() <= MAX_PER_HOST, "at most " + MAX_PER_HOST + " requests, saw " + maxInFlight);
+    }
+
+    @Test
+    void idleHostsArePruned() throws Exception {
+        engine.submitRequest("http://a:1/x", Instant.now().plusSeconds(5), () -> 1).get();
+        engine.submitRequest("http://b:1/x", Instant.now().plusSeconds(5), () -> 1).get();
+
+        engine.pruneIdleHosts();
+
+        // A pruned host gets a fresh pool with its full limit
+        AtomicInteger concurrent = new AtomicInteger();
+        List<Future<Integer>> requests = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            requests.add(engine.submitRequest("http://a:1/x", Instant.now().plusSeconds(5), () -> {
+                int current = concurrent.incrementAndGet();
+                Thread.sleep(5);
+                concurrent.decrementAndGet();
+                return current;
+            }));
+        }
+        int max = 0;
+        for (Future<Integer> request : requests) {
+            max = Math.max(max, request.get());
+        }
+        assertEquals(MAX_PER_HOST, Math.min(max, MAX_PER_HOST));
+        assertTrue(max <= MAX_PER_HOST);
+    }
+}
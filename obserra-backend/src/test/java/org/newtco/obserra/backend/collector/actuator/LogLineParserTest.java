@@ -0,0 +1,193 @@
+package org.newtco.obserra.backend.collector.actuator;
+
+import org.junit.jupiter.api.Test;
+import org.newtco.obserra.backend.model.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LogLineParserTest {
+
+    private static final Long SERVICE_ID = 7L;
+
+    @Test
+    void parsesSpringBoot32Pattern() {
+        Log log = parseOne("2024-01-15T10:23:45.123+01:00  INFO 12345 --- [app] [main] o.s.b.StartupInfoLogger : "
+                           + "Started Application in 1.5 seconds");
+
+        assertEquals(OffsetDateTime.parse("2024-01-15T10:23:45.123+01:00")
+                             .atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime(), log.getTimestamp());
+        assertEquals("INFO", log.getLevel());
+        assertEquals("main", log.getThread());
+        assertEquals("o.s.b.StartupInfoLogger", log.getLogger());
+        assertEquals("Started Application in 1.5 seconds", log.getMessage());
+        assertEquals(SERVICE_ID, log.getServiceId());
+    }
+
+    @Test
+    void parsesSpringBootPattern() {
+        Log log = parseOne("2024-01-15 10:23:45.123  WARN 12345 --- [           main] o.s.b.StartupInfoLogger  : "
+                           + "Low memory: 12 MB free");
+
+        assertEquals(LocalDateTime.of(2024, 1, 15, 10, 23, 45, 123_000_000), log.getTimestamp());
+        assertEquals("WARN", log.getLevel());
+        assertEquals("main", log.getThread());
+        assertEquals("o.s.b.StartupInfoLogger", log.getLogger());
+        assertEquals("Low memory: 12 MB free", log.getMessage());
+    }
+
+    @Test
+    void parsesLevelThreadMessagePattern() {
+        Log log = parseOne("2024-01-15 10:23:45.123 ERROR [http-nio-8080-exec-1] Request failed [id=42]");
+
+        assertEquals(LocalDateTime.of(2024, 1, 15, 10, 23, 45, 123_000_000), log.getTimestamp());
+        assertEquals("ERROR", log.getLevel());
+        assertEquals("http-nio-8080-exec-1", log.getThread());
+        assertNull(log.getLogger());
+        assertEquals("Request failed [id=42]", log.getMessage());
+    }
+
+    @Test
+    void parsesLogbackPattern() {
+        Log log = parseOne("10:23:45,123 [main] DEBUG com.example.Application - Started - in 2 s");
+
+        assertEquals(LocalDateTime.of(LocalDate.now(), LocalTime.of(10, 23, 45, 123_000_000)),
+                     log.getTimestamp());
+        assertEquals("DEBUG", log.getLevel());
+        assertEquals("main", log.getThread());
+        assertEquals("com.example.Application", log.getLogger());
+        assertEquals("Started - in 2 s", log.getMessage());
+    }
+
+    @Test
+    void convertsUtcTimestampsToTheSystemZone() {
+        Log log = parseOne("2024-06-01T23:59:59Z ERROR 1 --- [main] c.e.Job : Failed");
+
+        assertEquals(OffsetDateTime.parse("2024-06-01T23:59:59Z")
+                             .atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime(), log.getTimestamp());
+    }
+
+    @Test
+    void foldsStackTraceIntoItsEntry() {
+        List<Log> logs = parse("""
+                2024-01-15 10:23:45.123 ERROR 1 --- [main] c.e.Service : Request failed
+                java.lang.IllegalStateException: boom
+                \tat com.example.Service.handle(Service.java:42)
+                \tat com.example.Controller.get(Controller.java:17)
+                Caused by: java.io.IOException: closed
+                \t... 12 more
+                2024-01-15 10:23:46.000  INFO 1 --- [main] c.e.Service : Recovered
+                """);
+
+        assertEquals(2, logs.size());
+        assertEquals("""
+                Request failed
+                java.lang.IllegalStateException: boom
+                \tat com.example.Service.handle(Service.java:42)
+                \tat com.example.Controller.get(Controller.java:17)
+                Caused by: java.io.IOException: closed
+                \t... 12 more""", logs.get(0).getMessage());
+        assertEquals("ERROR", logs.get(0).getLevel());
+        assertEquals("Recovered", logs.get(1).getMessage());
+    }
+
+    @Test
+    void capsTheMessageOfAVeryLongStackTrace() {
+        StringBuilder content = new StringBuilder("2024-01-15 10:23:45.123 ERROR 1 --- [main] c.e.Service : Failed\n");
+        for (int i = 0; i < 5000; i++) {
+            content.append("\tat com.example.Frame").append(i).append(".call(Frame.java:1)\n");
+        }
+
+        List<Log> logs = parse(content.toString());
+
+        assertEquals(1, logs.size());
+        assertEquals(32 * 1024, logs.get(0).getMessage().length());
+    }
+
+    @Test
+    void keepsLinesBeforeTheFirstEntryAsTheyAre() {
+        List<Log> logs = parse("""
+                  .   ____          _
+                 :: Spring Boot ::                (v3.4.5)
+                2024-01-15 10:23:45.123  INFO 1 --- [main] c.e.Application : Starting
+                """);
+
+        assertEquals(3, logs.size());
+        assertEquals("  .   ____          _", logs.get(0).getMessage());
+        assertNull(logs.get(0).getThread());
+        assertEquals(" :: Spring Boot ::                (v3.4.5)", logs.get(1).getMessage());
+        assertEquals("Starting", logs.get(2).getMessage());
+    }
+
+    @Test
+    void handlesCarriageReturnsAndBlankLines() {
+        List<Log> logs = parse("2024-01-15 10:23:45.123 INFO [main] first\r\n\r\n   \r\n"
+                               + "2024-01-15 10:23:46.123 INFO [main] second\r\n");
+
+        assertEquals(2, logs.size());
+        assertEquals("first", logs.get(0).getMessage());
+        assertEquals("second", logs.get(1).getMessage());
+    }
+
+    @Test
+    void invalidTimestampIsNotAnEntry() {
+        List<Log> logs = parse("""
+                2024-13-45 10:23:45.123 INFO [main] not a date
+                25:61:00 INFO [main] not a time
+                """);
+
+        assertEquals(2, logs.size());
+        assertNull(logs.get(0).getThread());
+        assertEquals("2024-13-45 10:23:45.123 INFO [main] not a date", logs.get(0).getMessage());
+        assertNull(logs.get(1).getThread());
+        assertEquals("25:61:00 INFO [main] not a time", logs.get(1).getMessage());
+    }
+
+    @Test
+    void limitKeepsTheMostRecentEntries() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("2024-01-15 10:23:45.123 INFO [main] line ").append(i).append('\n');
+        }
+        byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+
+        List<Log> logs = LogLineParser.parse(SERVICE_ID, bytes, 0, bytes.length, 10);
+
+        assertEquals(10, logs.size());
+        assertEquals("line 90", logs.get(0).getMessage());
+        assertEquals("line 99", logs.get(9).getMessage());
+    }
+
+    @Test
+    void parsesOnlyTheGivenRange() {
+        byte[] bytes = "partial line\n2024-01-15 10:23:45.123 INFO [main] whole\nnext"
+                .getBytes(StandardCharsets.UTF_8);
+        int from = "partial line\n".length();
+        int to = bytes.length - "next".length();
+
+        List<Log> logs = LogLineParser.parse(SERVICE_ID, bytes, from, to, Integer.MAX_VALUE);
+
+        assertEquals(1, logs.size());
+        assertEquals("whole", logs.get(0).getMessage());
+        assertEquals(LocalDateTime.of(2024, 1, 15, 10, 23, 45, 123_000_000), logs.get(0).getTimestamp());
+    }
+
+    private static Log parseOne(String line) {
+        List<Log> logs = parse(line + "\n");
+        assertEquals(1, logs.size());
+        return logs.get(0);
+    }
+
+    private static List<Log> parse(String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return LogLineParser.parse(SERVICE_ID, bytes, 0, bytes.length, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,142 @@
+package org.newtco.obserra.backend.collector.actuator;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.newtco.obserra.backend.model.Log;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures the lines per second of {@link LogLineParser} against the split and regex parsing it replaced. Run with
+ * {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+class LogLineParserThroughputTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(LogLineParserThroughputTest.class);
+
+    private static final int LINES      = 200_000;
+    private static final int WARMUP     = 10;
+    private static final int ITERATIONS = 20;
+
+    // The pattern of the regex parsing, e.g. "2023-04-15 12:34:56.789 INFO [thread] message"
+    private static final Pattern LOG_PATTERN = Pattern.compile(
+            "^(\\d{4}-\\d{2}-\\d{2}\\s\\d{2}:\\d{2}:\\d{2}\\.\\d{3})\\s+(\\w+)\\s+\\[([^\\]]+)\\]\\s+(.+)$");
+
+    @Test
+    void levelThreadMessagePattern() {
+        double[] linesPerSecond = measure(false);
+
+        // The only pattern the regex understood, so the parser must beat it here
+        assertTrue(linesPerSecond[0] > linesPerSecond[1],
+                   "parser " + linesPerSecond[0] + " lines/s, regex " + linesPerSecond[1] + " lines/s");
+    }
+
+    @Test
+    void springBootPattern() {
+        measure(true);
+    }
+
+    /**
+     * @return the lines per second of the parser and of the regex parsing
+     */
+    private static double[] measure(boolean springBoot) {
+        byte[] content = content(springBoot);
+
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += LogLineParser.parse(1L, content, 0, content.length, Integer.MAX_VALUE).size();
+            sink += parseWithRegex(1L, content, 0, content.length, Integer.MAX_VALUE).size();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += LogLineParser.parse(1L, content, 0, content.length, Integer.MAX_VALUE).size();
+        }
+        long parserNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += parseWithRegex(1L, content, 0, content.length, Integer.MAX_VALUE).size();
+        }
+        long regexNanos = System.nanoTime() - start;
+
+        double parser = (double) LINES * ITERATIONS / parserNanos * 1e9;
+        double regex = (double) LINES * ITERATIONS / regexNanos * 1e9;
+        logger.info("{} pattern, {} lines ({} bytes): parser {} lines/s, regex {} lines/s, {}x ({})",
+                    springBoot ? "Spring Boot" : "Level thread message", LINES, content.length,
+                    String.format("%.0f", parser), String.format("%.0f", regex),
+                    String.format("%.2f", parser / regex), sink);
+        return new double[] {parser, regex};
+    }
+
+    /**
+     * Generate request logs with a stack trace of 8 frames after about one in 50 entries.
+     */
+    private static byte[] content(boolean springBoot) {
+        Random random = new Random(1);
+        String[] levels = {"INFO", "DEBUG", "WARN", "ERROR"};
+        StringBuilder content = new StringBuilder();
+        int lines = 0;
+        while (lines < LINES) {
+            content.append(String.format("2024-01-15 10:%02d:%02d.%03d", random.nextInt(60), random.nextInt(60),
+                                         random.nextInt(1000)));
+            String level = levels[random.nextInt(levels.length)];
+            if (springBoot) {
+                content.append("  ").append(level).append(" 12345 --- [app] [http-nio-8080-exec-")
+                        .append(random.nextInt(10)).append("] c.e.web.ItemController               : ");
+            } else {
+                content.append(' ').append(level).append(" [http-nio-8080-exec-").append(random.nextInt(10))
+                        .append("] ");
+            }
+            content.append("Handled request GET /api/items/").append(random.nextInt(100_000)).append(" in ")
+                    .append(random.nextInt(500)).append(" ms\n");
+            lines++;
+
+            if (random.nextInt(50) == 0) {
+                for (int frame = 0; frame < 8 && lines < LINES; frame++, lines++) {
+                    content.append("\tat com.example.Frame").append(frame).append(".call(Frame.java:")
+                            .append(frame).append(")\n");
+                }
+            }
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The parsing {@link LogLineParser} replaced: the content is decoded, split into lines and each line matched.
+     */
+    private static List<Log> parseWithRegex(Long serviceId, byte[] bytes, int from, int to, int limit) {
+        List<Log> logs = new ArrayList<>();
+        String[] lines = new String(bytes, from, to - from, StandardCharsets.UTF_8).split("\n");
+
+        for (int i = Math.max(0, lines.length - limit); i < lines.length; i++) {
+            String line = lines[i];
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            Log log = new Log();
+            log.setServiceId(serviceId);
+            Matcher matcher = LOG_PATTERN.matcher(line);
+            if (matcher.matches()) {
+                log.setLevel(matcher.group(2));
+                log.setMessage(matcher.group(4));
+            } else {
+                log.setLevel("INFO");
+                log.setMessage(line);
+            }
+            logs.add(log);
+        }
+        return logs;
+    }
+}
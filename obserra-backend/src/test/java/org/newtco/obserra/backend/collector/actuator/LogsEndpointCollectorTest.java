@@ -0,0 +1,226 @@
+package org.newtco.obserra.backend.collector.actuator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.newtco.obserra.backend.model.ActuatorEndpoint;
+import org.newtco.obserra.backend.model.Log;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.push.LiveUpdatePublisher;
+import org.newtco.obserra.backend.storage.MemoryStorage;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogsEndpointCollectorTest {
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    // Logs older than the maximum age of the store are dropped
+    private static final LocalDateTime NOW = LocalDateTime.now().withNano(0);
+
+    private final MemoryStorage storage = new MemoryStorage();
+    private final LiveUpdatePublisher liveUpdates = new LiveUpdatePublisher(
+            new ObjectMapper().registerModule(new JavaTimeModule()), 1000, 512 * 1024);
+    private final LogsEndpointCollector collector = new LogsEndpointCollector(
+            storage, new RestTemplateBuilder(), liveUpdates, 2000, 100, 65536, 1048576);
+    private final Service service = storage.createService(new Service().setName("api"));
+
+    private final ByteArrayOutputStream file = new ByteArrayOutputStream();
+    // The Range header of each request
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private boolean supportsRanges = true;
+
+    private HttpServer server;
+    private ActuatorEndpoint endpoint;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        liveUpdates.destroy();
+    }
+
+    @Test
+    void appendedLinesAreReadOnce() throws IOException {
+        startLogfileEndpoint();
+        append(0, 3);
+        collect();
+        assertEquals(List.of("bytes=-65536"), ranges);
+
+        append(3, 5);
+        // A line which is still being written is read once it is complete
+        write(line(5).substring(0, 20));
+        collect();
+        write(line(5).substring(20));
+        collect();
+        collect();
+
+        assertEquals(messages(0, 6), storedMessages());
+        assertTrue(ranges.get(1).startsWith("bytes=0-"), ranges.get(1));
+    }
+
+    @Test
+    void truncatedFileIsReadFromItsTail() throws IOException {
+        startLogfileEndpoint();
+        append(0, 5);
+        collect();
+
+        file.reset();
+        append(100, 102);
+        collect();
+        append(102, 103);
+        collect();
+
+        assertEquals(concat(messages(0, 5), messages(100, 103)), storedMessages());
+    }
+
+    @Test
+    void rotatedFileWhichGrewPastTheOffsetIsReadFromItsTail() throws IOException {
+        startLogfileEndpoint();
+        append(0, 5);
+        collect();
+        append(5, 10);
+        collect();
+        int offset = file.size();
+
+        // The new file is longer than what was read of the old one by the time of the next collection
+        file.reset();
+        append(100, 120);
+        assertTrue(file.size() > offset);
+        collect();
+        append(120, 122);
+        collect();
+
+        assertEquals(concat(messages(0, 10), messages(100, 122)), storedMessages());
+    }
+
+    @Test
+    void rotationIsRecognizedWhenTheServerIgnoresRanges() throws IOException {
+        supportsRanges = false;
+        startLogfileEndpoint();
+        append(0, 5);
+        collect();
+        append(5, 7);
+        collect();
+
+        file.reset();
+        append(100, 120);
+        collect();
+
+        assertEquals(concat(messages(0, 7), messages(100, 120)), storedMessages());
+    }
+
+    private void collect() {
+        assertTrue(collector.collectData(service, endpoint));
+    }
+
+    private void append(int first, int end) {
+        for (int i = first; i < end; i++) {
+            write(line(i));
+        }
+    }
+
+    private void write(String text) {
+        file.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String line(int i) {
+        return TIMESTAMP.format(NOW.minusHours(1).plusSeconds(i)) + "  INFO 1 --- [main] c.e.App : " + message(i)
+               + "\n";
+    }
+
+    private static String message(int i) {
+        return "Handled request " + i + " of a session";
+    }
+
+    private static List<String> messages(int first, int end) {
+        List<String> messages = new ArrayList<>();
+        for (int i = first; i < end; i++) {
+            messages.add(message(i));
+        }
+        return messages;
+    }
+
+    private static List<String> concat(List<String> first, List<String> second) {
+        List<String> all = new ArrayList<>(first);
+        all.addAll(second);
+        return all;
+    }
+
+    /**
+     * Get the messages of the stored logs, oldest first.
+     */
+    private List<String> storedMessages() {
+        List<String> messages = new ArrayList<>(storage.getLogsForService(service.getId(), 1000).stream()
+                                                        .map(Log::getMessage)
+                                                        .toList());
+        return messages.reversed();
+    }
+
+    /**
+     * Serve the current content of the file as the actuator logfile endpoint does, answering single range requests
+     * with 206 or 416 unless ranges are not supported.
+     */
+    private void startLogfileEndpoint() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/actuator/logfile", exchange -> {
+            byte[] content = file.toByteArray();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range);
+            if (range == null || !supportsRanges) {
+                respond(exchange, 200, content, 0, content.length);
+                return;
+            }
+
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            long start;
+            long end;
+            if (bounds[0].isEmpty()) {
+                start = Math.max(0, content.length - Long.parseLong(bounds[1]));
+                end = content.length - 1;
+            } else {
+                start = Long.parseLong(bounds[0]);
+                end = bounds[1].isEmpty() ? content.length - 1 : Math.min(Long.parseLong(bounds[1]),
+                                                                          content.length - 1);
+            }
+            if (start >= content.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range",
+                                              "bytes " + start + "-" + end + "/" + content.length);
+            respond(exchange, 206, content, (int) start, (int) (end + 1));
+        });
+        server.start();
+        endpoint = new ActuatorEndpoint().setType("logfile")
+                .setHref("http://localhost:" + server.getAddress().getPort() + "/actuator/logfile");
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] content, int from, int to)
+            throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(status, to - from);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content, from, to - from);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.newtco.obserra.backend.collector.actuator;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.newtco.obserra.backend.collector.CollectionEngine;
+import org.newtco.obserra.backend.model.ActuatorEndpoint;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.push.LiveUpdatePublisher;
+import org.newtco.obserra.backend.storage.MemoryStorage;
+import org.newtco.obserra.backend.storage.MetricSamples;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsEndpointCollectorTest {
+
+    private static final int TIMEOUT_MS = 2000;
+
+    private final MemoryStorage storage = new MemoryStorage();
+    private final LiveUpdatePublisher liveUpdates = new LiveUpdatePublisher(
+            new ObjectMapper().registerModule(new JavaTimeModule()), 1000, 512 * 1024);
+
+    private HttpServer server;
+    private CollectionEngine engine;
+
+    @AfterEach
+    void tearDown() {
+        if (engine != null) {
+            engine.destroy();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+        liveUpdates.destroy();
+    }
+
+    @Test
+    void fallbackCompletesWhileTheCollectionHoldsTheOnlyHostPermit() throws Exception {
+        engine = new CollectionEngine(256, 1);
+
+        assertCollectsWithinTheTimeout();
+    }
+
+    @Test
+    void fallbackCompletesWhileCollectionsHoldEveryGlobalPermit() throws Exception {
+        engine = new CollectionEngine(1, 4);
+
+        assertCollectsWithinTheTimeout();
+    }
+
+    private void assertCollectsWithinTheTimeout() throws Exception {
+        startMetricsEndpoint();
+        MetricsEndpointCollector collector = new MetricsEndpointCollector(storage, new RestTemplateBuilder(), engine,
+                                                                          liveUpdates, TIMEOUT_MS, true, 600_000);
+        Service service = storage.createService(new Service().setName("api"));
+        String href = "http://localhost:" + server.getAddress().getPort() + "/actuator/metrics";
+        ActuatorEndpoint endpoint = new ActuatorEndpoint().setType("metrics").setHref(href);
+
+        // Collected as ActuatorDataCollectionService does, as a request which holds a global and a host permit
+        long start = System.nanoTime();
+        boolean collected = engine.submitRequest(href, Instant.now().plusSeconds(30),
+                                                 () -> collector.collectData(service, endpoint)).get();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(collected);
+        assertTrue(elapsedMs < TIMEOUT_MS, "collection took " + elapsedMs + " ms");
+        MetricSamples samples = storage.getMetricSamples(service.getId(), 1);
+        assertEquals(100f, samples.getMemoryUsed(0));
+        assertEquals(400f, samples.getMemoryMax(0));
+        assertEquals(0.25f, samples.getCpuUsage(0));
+        assertEquals(3 + 5, samples.getErrorCount(0));
+    }
+
+    /**
+     * Serve the individual metric URLs of an actuator metrics endpoint, without a prometheus endpoint.
+     */
+    private void startMetricsEndpoint() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/actuator/prometheus", exchange -> respond(exchange, 404, "{}"));
+        server.createContext("/actuator/metrics/jvm.memory.used", exchange -> respond(exchange, 200, value(100)));
+        server.createContext("/actuator/metrics/jvm.memory.max", exchange -> respond(exchange, 200, value(400)));
+        server.createContext("/actuator/metrics/process.cpu.usage", exchange -> respond(exchange, 200, value(0.25)));
+        server.createContext("/actuator/metrics/http.server.requests", exchange -> {
+            String query = exchange.getRequestURI().getQuery();
+            if (query == null) {
+                respond(exchange, 200, """
+                        {"availableTags": [{"tag": "status", "values": ["200", "404", "500"]}]}""");
+            } else if (query.equals("tag=status:404")) {
+                respond(exchange, 200, count(3));
+            } else if (query.equals("tag=status:500")) {
+                respond(exchange, 200, count(5));
+            } else {
+                respond(exchange, 404, "{}");
+            }
+        });
+        server.start();
+    }
+
+    private static String value(double value) {
+        return "{\"measurements\": [{\"statistic\": \"VALUE\", \"value\": " + value + "}]}";
+    }
+
+    private static String count(int count) {
+        return "{\"measurements\": [{\"statistic\": \"COUNT\", \"value\": " + count + "}]}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.newtco.obserra.backend.collector.actuator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PrometheusTextParserTest {
+
+    private static final String BODY = """
+            # HELP jvm_memory_used_bytes The amount of used memory {in bytes} "quoted"
+            # TYPE jvm_memory_used_bytes gauge
+            jvm_memory_used_bytes{area="heap",id="G1 Eden Space",} 1.2345E7
+            jvm_memory_used_bytes{area="nonheap",id="Metaspace",} 5.1234567E7\r
+            #
+
+            process_cpu_usage 0.0123 1700000000000
+            http_server_requests_seconds_count{method="GET",status="200",uri="/api/{id}"} 42.0
+            http_server_requests_seconds_count{method="GET",status="500",uri="/api/\\"quoted\\"\\n"} 3
+            up NaN
+            latency_seconds_bucket{le="+Inf"} +Inf
+            foo_total 17 # {trace_id="abc"} 1.0 1700000000.000
+            no_newline_at_the_end -1e-3""";
+
+    private static final List<String> SAMPLES = List.of(
+            "jvm_memory_used_bytes{area=\"heap\",id=\"G1 Eden Space\"} 1.2345E7",
+            "jvm_memory_used_bytes{area=\"nonheap\",id=\"Metaspace\"} 5.1234567E7",
+            "process_cpu_usage{} 0.0123",
+            "http_server_requests_seconds_count{method=\"GET\",status=\"200\",uri=\"/api/{id}\"} 42.0",
+            "http_server_requests_seconds_count{method=\"GET\",status=\"500\",uri=\"/api/\"quoted\"\n\"} 3.0",
+            "up{} NaN",
+            "latency_seconds_bucket{le=\"+Inf\"} Infinity",
+            "foo_total{} 17.0",
+            "no_newline_at_the_end{} -0.001");
+
+    private final PrometheusTextParser parser = new PrometheusTextParser();
+
+    @Test
+    void samplesAreTheSameWhereverTheReadsSplitTheInput() throws IOException {
+        byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+        assertEquals(SAMPLES, parse(new ByteArrayInputStream(body)));
+
+        for (int split = 1; split < body.length; split++) {
+            assertEquals(SAMPLES, parse(new ChunkedInputStream(body, split, body.length)), "split at " + split);
+            assertEquals(SAMPLES, parse(new ChunkedInputStream(body, split, split)), "reads of " + split + " bytes");
+        }
+    }
+
+    @Test
+    void linesAroundAndLongerThanTheBufferAreParsed() throws IOException {
+        StringBuilder body = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            body.append("requests_total{instance=\"").append(i).append("\"} ").append(i).append('\n');
+            expected.add("requests_total{instance=\"" + i + "\"} " + (double) i);
+            if (i == 1000) {
+                String longValue = "x".repeat(20_000);
+                body.append("long_label{value=\"").append(longValue).append("\"} 1\n");
+                expected.add("long_label{value=\"" + longValue + "\"} 1.0");
+            }
+        }
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+
+        assertEquals(expected, parse(new ByteArrayInputStream(bytes)));
+        assertEquals(expected, parse(new ChunkedInputStream(bytes, 1000, 1000)));
+        assertEquals(expected, parse(new ChunkedInputStream(bytes, 8191, 8193)));
+    }
+
+    @Test
+    void lineLongerThanOneMebibyteIsRejected() {
+        byte[] body = ("huge{value=\"" + "x".repeat(1024 * 1024) + "\"} 1\n").getBytes(StandardCharsets.UTF_8);
+
+        assertThrows(IOException.class, () -> parse(new ByteArrayInputStream(body)));
+    }
+
+    @Test
+    void labelValuesAreUnescaped() throws IOException {
+        String body = """
+                escapes{path="C:\\\\temp\\\\",quote="say \\"hi\\"",lines="a\\nb",braces="{}",comma="a,b", spaced="c"} 1
+                """;
+
+        List<PrometheusTextParser.Labels> labels = new ArrayList<>();
+        parser.parse(stream(body), (name, sampleLabels, value) -> labels.add(sampleLabels));
+        assertEquals(1, labels.size());
+        PrometheusTextParser.Labels sampleLabels = labels.getFirst();
+        assertEquals(6, sampleLabels.size());
+        assertEquals("C:\\temp\\", sampleLabels.get("path"));
+        assertEquals("say \"hi\"", sampleLabels.get("quote"));
+        assertEquals("a\nb", sampleLabels.get("lines"));
+        assertEquals("{}", sampleLabels.get("braces"));
+        assertEquals("a,b", sampleLabels.get("comma"));
+        assertEquals("c", sampleLabels.get("spaced"));
+    }
+
+    @Test
+    void commentsBlankAndMalformedLinesAreSkipped() throws IOException {
+        String body = """
+                # HELP requests_total Requests {served} by "the" app 1
+                # TYPE requests_total counter
+                #
+
+                \t
+                requests_total 1
+                unclosed{a="1" 2
+                unquoted{a=1} 3
+                no_value{a="1"}
+                not_a_number abc
+                requests_total 4
+                """;
+
+        assertEquals(List.of("requests_total{} 1.0", "requests_total{} 4.0"), parse(stream(body)));
+    }
+
+    @Test
+    void specialAndExponentValuesAreParsed() throws IOException {
+        String[] values = {
+                "NaN", "+Inf", "Inf", "-Inf", "0", "-0", "+1", "0.1", "1.5e3", "-2.5E+10", "1e-7", "6.02214076e23",
+                "1.7976931348623157e308", "4.9e-324", "12345678901234567", "0.000000000000000000000000123",
+                "123456789012345.6", ".5", "5."
+        };
+        StringBuilder body = new StringBuilder();
+        for (String value : values) {
+            body.append("value ").append(value).append('\n');
+        }
+
+        List<Double> parsed = new ArrayList<>();
+        parser.parse(stream(body.toString()), (name, labels, value) -> parsed.add(value));
+        List<Double> expected = new ArrayList<>();
+        for (String value : values) {
+            expected.add(value.endsWith("Inf") ? (value.startsWith("-") ? Double.NEGATIVE_INFINITY
+                                                                        : Double.POSITIVE_INFINITY)
+                                               : Double.parseDouble(value));
+        }
+        assertEquals(expected, parsed);
+    }
+
+    @Test
+    void fastPathParsesDecimalsExactly() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long mantissa = random.nextLong(1_000_000_000_000_000L);
+            String value = switch (i % 3) {
+                case 0 -> Long.toString(mantissa / (1 + random.nextInt(1000)));
+                case 1 -> mantissa + "e" + (random.nextInt(45) - 22);
+                default -> "-0." + mantissa;
+            };
+            byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+            assertEquals(Double.parseDouble(value), PrometheusTextParser.parseValue(bytes, 0, bytes.length), value);
+        }
+    }
+
+    @Test
+    void namesAndLabelSetsAreInternedAcrossResponses() throws IOException {
+        String body = """
+                jvm_threads_live_threads{state="runnable"} 10
+                jvm_threads_live_threads{state="runnable"} 11
+                """;
+        List<String> names = new ArrayList<>();
+        List<PrometheusTextParser.Labels> labels = new ArrayList<>();
+        PrometheusTextParser.SampleHandler handler = (name, sampleLabels, value) -> {
+            names.add(name);
+            labels.add(sampleLabels);
+        };
+        parser.parse(stream(body), handler);
+        parser.parse(stream(body), handler);
+
+        assertEquals(4, names.size());
+        for (int i = 1; i < names.size(); i++) {
+            assertSame(names.getFirst(), names.get(i));
+            assertSame(labels.getFirst(), labels.get(i));
+        }
+    }
+
+    @Test
+    void linesOfMetricsTheHandlerDoesNotAcceptAreSkipped() throws IOException {
+        String body = """
+                jvm_memory_used_bytes{area="heap"} 1
+                http_server_requests_seconds_count{status="200"} 2
+                jvm_memory_max_bytes{area="heap"} 3
+                """;
+        List<String> samples = new ArrayList<>();
+        parser.parse(stream(body), new PrometheusTextParser.SampleHandler() {
+            @Override
+            public boolean accepts(String name) {
+                return name.startsWith("jvm_");
+            }
+
+            @Override
+            public void sample(String name, PrometheusTextParser.Labels labels, double value) {
+                samples.add(name + labels + " " + value);
+            }
+        });
+
+        assertEquals(List.of("jvm_memory_used_bytes{area=\"heap\"} 1.0", "jvm_memory_max_bytes{area=\"heap\"} 3.0"),
+                     samples);
+    }
+
+    private List<String> parse(InputStream input) throws IOException {
+        List<String> samples = new ArrayList<>();
+        parser.parse(input, (name, labels, value) -> samples.add(name + labels + " " + value));
+        return samples;
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a body in reads of at most a given number of bytes, after a first read of a different size.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+
+        private final byte[] bytes;
+        private final int    chunk;
+        private       int    limit;
+        private       int    position;
+
+        ChunkedInputStream(byte[] bytes, int first, int chunk) {
+            this.bytes = bytes;
+            this.chunk = chunk;
+            this.limit = first;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (position == bytes.length) {
+                return -1;
+            }
+            int read = Math.min(Math.min(length, limit), bytes.length - position);
+            System.arraycopy(bytes, position, buffer, offset, read);
+            position += read;
+            limit = chunk;
+            return read;
+        }
+    }
+}
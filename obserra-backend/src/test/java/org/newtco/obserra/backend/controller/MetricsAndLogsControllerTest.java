@@ -0,0 +1,73 @@
+package org.newtco.obserra.backend.controller;
+
+import org.junit.jupiter.api.Test;
+import org.newtco.obserra.backend.cluster.ClusterClient;
+import org.newtco.obserra.backend.cluster.ClusterRouter;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.service.ActuatorDataCollectionService;
+import org.newtco.obserra.backend.storage.MemoryStorage;
+import org.newtco.obserra.backend.storage.MetricBuckets;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+
+class MetricsAndLogsControllerTest {
+
+    private static final LocalDateTime START = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+    private final MemoryStorage storage = new MemoryStorage();
+    // The metric series endpoint reads the storage only
+    private final MetricsAndLogsController controller = new MetricsAndLogsController(
+            storage, mock(ActuatorDataCollectionService.class), mock(ClusterRouter.class), mock(ClusterClient.class));
+
+    private final Service service = storage.createService(new Service().setName("api"));
+
+    @Test
+    void rangeOfMoreThanTheMaximumNumberOfBucketsIsRejected() {
+        ResponseEntity<?> response = controller.getServiceMetricSeries(
+                service.getId(), START, START.plusSeconds(MetricBuckets.MAX_BUCKETS), "1s");
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals(Map.of("error", "The range spans more than " + MetricBuckets.MAX_BUCKETS + " steps"),
+                     response.getBody());
+    }
+
+    @Test
+    void rangeOfTheMaximumNumberOfBucketsIsAggregated() {
+        storage.appendMetricSample(service.getId(), millis(START), 100f, 400f, 0.25f, 1);
+        storage.appendMetricSample(service.getId(), millis(START.plusSeconds(30)), 300f, 400f, 0.75f, 3);
+
+        ResponseEntity<?> response = controller.getServiceMetricSeries(
+                service.getId(), START, START.plusSeconds(MetricBuckets.MAX_BUCKETS - 1), "1m");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        Map<?, ?> body = (Map<?, ?>) response.getBody();
+        assertEquals("PT1M", body.get("step"));
+        List<?> points = (List<?>) body.get("points");
+        assertEquals(1, points.size());
+        Map<?, ?> point = (Map<?, ?>) points.getFirst();
+        assertEquals(START, point.get("timestamp"));
+        assertEquals(2, point.get("count"));
+        assertEquals(Map.of("avg", 200f, "min", 100f, "max", 300f, "last", 300f), point.get("memoryUsed"));
+        assertEquals(Map.of("avg", 2f, "min", 1f, "max", 3f, "last", 3f), point.get("errorCount"));
+    }
+
+    @Test
+    void stepBelowOneSecondIsRejected() {
+        ResponseEntity<?> response = controller.getServiceMetricSeries(
+                service.getId(), START, START.plusMinutes(1), "500ms");
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    private static long millis(LocalDateTime timestamp) {
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
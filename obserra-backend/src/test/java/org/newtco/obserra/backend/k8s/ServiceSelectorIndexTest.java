@@ -0,0 +1,143 @@
+package org.newtco.obserra.backend.k8s;
+
+import io.kubernetes.client.openapi.models.V1ObjectMeta;
+import io.kubernetes.client.openapi.models.V1Service;
+import io.kubernetes.client.openapi.models.V1ServiceSpec;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ServiceSelectorIndexTest {
+
+    private final ServiceSelectorIndex index = new ServiceSelectorIndex();
+
+    @Test
+    void serviceMatchesPodsWithEveryPairOfItsSelector() {
+        index.put(service("shop", "orders", Map.of("app", "orders", "tier", "web")));
+
+        assertEquals(Set.of("orders"), match("shop", Map.of("app", "orders", "tier", "web")));
+        // Labels which are not in the selector do not matter
+        assertEquals(Set.of("orders"), match("shop", Map.of("app", "orders", "tier", "web", "version", "3")));
+        // A selector key the pod does not have, or has with another value, does not match
+        assertEquals(Set.of(), match("shop", Map.of("app", "orders")));
+        assertEquals(Set.of(), match("shop", Map.of("app", "orders", "tier", "db")));
+        assertEquals(Set.of(), match("shop", Map.of("application", "orders", "tier", "web")));
+    }
+
+    @Test
+    void podMatchesEveryServiceWhoseSelectorItSatisfies() {
+        index.put(service("shop", "orders", Map.of("app", "orders")));
+        index.put(service("shop", "orders-web", Map.of("app", "orders", "tier", "web")));
+        index.put(service("shop", "web", Map.of("tier", "web")));
+        index.put(service("shop", "payments", Map.of("app", "payments")));
+
+        assertEquals(Set.of("orders", "orders-web", "web"), match("shop", Map.of("app", "orders", "tier", "web")));
+        assertEquals(Set.of("orders"), match("shop", Map.of("app", "orders", "tier", "db")));
+    }
+
+    @Test
+    void servicesOnlySelectPodsOfTheirNamespace() {
+        index.put(service("shop", "orders", Map.of("app", "orders")));
+        index.put(service("staging", "orders", Map.of("app", "orders", "stage", "test")));
+
+        assertEquals(Set.of("shop/orders"), matchNamespaced("shop", Map.of("app", "orders", "stage", "test")));
+        assertEquals(Set.of("staging/orders"), matchNamespaced("staging", Map.of("app", "orders", "stage", "test")));
+        assertEquals(Set.of(), match("billing", Map.of("app", "orders")));
+    }
+
+    @Test
+    void servicesWithoutASelectorSelectNoPods() {
+        index.put(service("shop", "external", Map.of()));
+        index.put(new V1Service().metadata(new V1ObjectMeta().namespace("shop").name("headless")));
+        index.put(new V1Service().metadata(new V1ObjectMeta().namespace("shop").name("unselected"))
+                                 .spec(new V1ServiceSpec()));
+
+        assertEquals(Set.of(), match("shop", Map.of("app", "orders")));
+        assertEquals(Set.of(), match("shop", Map.of()));
+        assertEquals(Set.of(), match("shop", null));
+    }
+
+    @Test
+    void updatedSelectorReplacesTheOldOne() {
+        index.put(service("shop", "orders", Map.of("app", "orders", "track", "stable")));
+        index.put(service("shop", "orders", Map.of("app", "orders", "track", "canary")));
+
+        assertEquals(Set.of(), match("shop", Map.of("app", "orders", "track", "stable")));
+        assertEquals(Set.of("orders"), match("shop", Map.of("app", "orders", "track", "canary")));
+    }
+
+    @Test
+    void removedServiceNoLongerMatches() {
+        index.put(service("shop", "orders", Map.of("app", "orders")));
+        index.put(service("shop", "orders-web", Map.of("app", "orders", "tier", "web")));
+
+        index.remove(service("shop", "orders", Map.of()));
+        assertEquals(Set.of("orders-web"), match("shop", Map.of("app", "orders", "tier", "web")));
+
+        index.remove(service("shop", "orders-web", Map.of()));
+        assertEquals(Set.of(), match("shop", Map.of("app", "orders", "tier", "web")));
+
+        // Removing a service which is not indexed changes nothing
+        index.remove(service("shop", "missing", Map.of()));
+        index.put(service("shop", "orders", Map.of("app", "orders")));
+        assertEquals(Set.of("orders"), match("shop", Map.of("app", "orders")));
+    }
+
+    @Test
+    void relabeledPodMatchesByItsCurrentLabels() {
+        index.put(service("shop", "orders-stable", Map.of("app", "orders", "track", "stable")));
+        index.put(service("shop", "orders-canary", Map.of("app", "orders", "track", "canary")));
+
+        Map<String, String> labels = new HashMap<>(Map.of("app", "orders", "track", "stable"));
+        assertEquals(Set.of("orders-stable"), match("shop", labels));
+
+        labels.put("track", "canary");
+        assertEquals(Set.of("orders-canary"), match("shop", labels));
+
+        labels.remove("track");
+        assertEquals(Set.of(), match("shop", labels));
+    }
+
+    @Test
+    void indexOfAListMatchesLikeIndividualPuts() {
+        ServiceSelectorIndex listed = ServiceSelectorIndex.of(List.of(
+                service("shop", "orders", Map.of("app", "orders")),
+                service("shop", "web", Map.of("tier", "web"))));
+
+        assertEquals(List.of("orders", "web"),
+                     listed.match("shop", Map.of("app", "orders", "tier", "web")).stream()
+                           .map(k8sService -> k8sService.getMetadata().getName())
+                           .sorted()
+                           .toList());
+    }
+
+    private Set<String> match(String namespace, Map<String, String> podLabels) {
+        List<V1Service> services = index.match(namespace, podLabels);
+        Set<String> names = new HashSet<>();
+        for (V1Service k8sService : services) {
+            names.add(k8sService.getMetadata().getName());
+        }
+        // Each service is reported once
+        assertEquals(services.size(), names.size());
+        return names;
+    }
+
+    private Set<String> matchNamespaced(String namespace, Map<String, String> podLabels) {
+        Set<String> names = new HashSet<>();
+        for (V1Service k8sService : index.match(namespace, podLabels)) {
+            names.add(k8sService.getMetadata().getNamespace() + "/" + k8sService.getMetadata().getName());
+        }
+        return names;
+    }
+
+    static V1Service service(String namespace, String name, Map<String, String> selector) {
+        return new V1Service().metadata(new V1ObjectMeta().namespace(namespace).name(name))
+                              .spec(new V1ServiceSpec().selector(selector));
+    }
+}
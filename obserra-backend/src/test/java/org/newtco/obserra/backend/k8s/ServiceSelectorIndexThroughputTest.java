@@ -0,0 +1,157 @@
+package org.newtco.obserra.backend.k8s;
+
+import io.kubernetes.client.openapi.models.V1Service;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures the time of matching every pod of a synthetic cluster to its services with a {@link ServiceSelectorIndex},
+ * against the scan over all services it replaced. Run with {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+class ServiceSelectorIndexThroughputTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(ServiceSelectorIndexThroughputTest.class);
+
+    private static final int NAMESPACES = 20;
+    private static final int SERVICES   = 2_000;
+    private static final int PODS       = 10_000;
+    private static final int WARMUP     = 5;
+    private static final int ITERATIONS = 10;
+
+    private record Pod(String namespace, Map<String, String> labels) {}
+
+    @Test
+    void matchingPass() {
+        List<V1Service> services = services();
+        List<Pod> pods = pods();
+
+        // Both find the same services for every pod
+        ServiceSelectorIndex index = ServiceSelectorIndex.of(services);
+        long matches = 0;
+        for (Pod pod : pods) {
+            List<V1Service> indexed = index.match(pod.namespace(), pod.labels());
+            List<V1Service> scanned = scan(pod, services);
+            assertEquals(scanned.size(), indexed.size());
+            assertTrue(indexed.containsAll(scanned));
+            matches += indexed.size();
+        }
+
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += indexPass(services, pods) + scanPass(services, pods);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += indexPass(services, pods);
+        }
+        long indexNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += scanPass(services, pods);
+        }
+        long scanNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        logger.info("{} pods, {} services in {} namespaces, {} matches: index {} ms per pass (including building it), "
+                    + "scan {} ms per pass, {}x ({})",
+                    PODS, SERVICES, NAMESPACES, matches, String.format("%.2f", indexNanos / 1e6),
+                    String.format("%.2f", scanNanos / 1e6), String.format("%.1f", (double) scanNanos / indexNanos),
+                    sink);
+        assertTrue(indexNanos < scanNanos, "index " + indexNanos + " ns, scan " + scanNanos + " ns");
+    }
+
+    /**
+     * Build the index from the service list and match every pod, as a reconcile pass does.
+     */
+    private static long indexPass(List<V1Service> services, List<Pod> pods) {
+        ServiceSelectorIndex index = ServiceSelectorIndex.of(services);
+        long matches = 0;
+        for (Pod pod : pods) {
+            matches += index.match(pod.namespace(), pod.labels()).size();
+        }
+        return matches;
+    }
+
+    private static long scanPass(List<V1Service> services, List<Pod> pods) {
+        long matches = 0;
+        for (Pod pod : pods) {
+            matches += scan(pod, services).size();
+        }
+        return matches;
+    }
+
+    /**
+     * Find the services of a pod by comparing the selector of every service in the cluster with the pod's labels.
+     */
+    private static List<V1Service> scan(Pod pod, List<V1Service> services) {
+        List<V1Service> matchingServices = new ArrayList<>();
+        for (V1Service k8sService : services) {
+            if (!pod.namespace().equals(k8sService.getMetadata().getNamespace())) {
+                continue;
+            }
+            Map<String, String> selector = k8sService.getSpec().getSelector();
+            if (selector == null || selector.isEmpty()) {
+                continue;
+            }
+            boolean matches = true;
+            for (Map.Entry<String, String> entry : selector.entrySet()) {
+                if (!entry.getValue().equals(pod.labels().get(entry.getKey()))) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                matchingServices.add(k8sService);
+            }
+        }
+        return matchingServices;
+    }
+
+    /**
+     * Each app has a service selecting all of its pods and, for every other app, one selecting its web tier only.
+     */
+    private static List<V1Service> services() {
+        List<V1Service> services = new ArrayList<>(SERVICES);
+        int perNamespace = SERVICES / NAMESPACES;
+        for (int namespace = 0; namespace < NAMESPACES; namespace++) {
+            for (int i = 0; i < perNamespace; i++) {
+                int app = i / 2 * 2;
+                Map<String, String> selector = i % 2 == 0
+                        ? Map.of("app", "app-" + app)
+                        : Map.of("app", "app-" + app, "tier", "web");
+                services.add(ServiceSelectorIndexTest.service("ns-" + namespace, "service-" + i, selector));
+            }
+        }
+        return services;
+    }
+
+    private static List<Pod> pods() {
+        List<Pod> pods = new ArrayList<>(PODS);
+        int perNamespace = PODS / NAMESPACES;
+        int apps = SERVICES / NAMESPACES;
+        for (int namespace = 0; namespace < NAMESPACES; namespace++) {
+            for (int i = 0; i < perNamespace; i++) {
+                Map<String, String> labels = new HashMap<>();
+                labels.put("app", "app-" + (i % apps));
+                labels.put("tier", i % 3 == 0 ? "web" : "worker");
+                labels.put("version", "v" + (i % 4));
+                labels.put("pod-template-hash", Integer.toHexString(i * 7919));
+                labels.put("app.kubernetes.io/part-of", "shop");
+                pods.add(new Pod("ns-" + namespace, labels));
+            }
+        }
+        return pods;
+    }
+}
@@ -0,0 +1,113 @@
+package org.newtco.obserra.backend.push;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LiveUpdatePublisherTest {
+
+    private static final int SEND_TIME_LIMIT_MS = 1000;
+
+    private final LiveUpdatePublisher publisher = new LiveUpdatePublisher(
+            new ObjectMapper().registerModule(new JavaTimeModule()), SEND_TIME_LIMIT_MS, 512 * 1024);
+
+    private final CountDownLatch unblock = new CountDownLatch(1);
+
+    @AfterEach
+    void tearDown() {
+        unblock.countDown();
+        publisher.destroy();
+    }
+
+    @Test
+    void stalledClientDelaysNeitherTheFlushNorOtherClients() throws Exception {
+        WebSocketSession stalled = session("stalled");
+        CountDownLatch stalledSending = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            stalledSending.countDown();
+            unblock.await();
+            return null;
+        }).when(stalled).sendMessage(any());
+        WebSocketSession healthy = session("healthy");
+
+        connect(stalled);
+        connect(healthy);
+        publisher.publishMetric(1L, System.currentTimeMillis(), 1f, 2f, 0.5f, 0);
+
+        long start = System.nanoTime();
+        publisher.flush();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < SEND_TIME_LIMIT_MS,
+                   "flush waited for a client");
+
+        assertTrue(stalledSending.await(5, TimeUnit.SECONDS));
+        verify(healthy, timeout(5000)).sendMessage(any(TextMessage.class));
+
+        // The healthy client keeps receiving while the stalled send is still running
+        publisher.publishMetric(1L, System.currentTimeMillis(), 3f, 4f, 0.5f, 0);
+        publisher.flush();
+        verify(healthy, timeout(5000).times(2)).sendMessage(any(TextMessage.class));
+    }
+
+    @Test
+    void clientWhichDoesNotAcceptUpdatesWithinTheTimeLimitIsDisconnected() throws Exception {
+        WebSocketSession stalled = session("stalled");
+        CountDownLatch stalledSending = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            stalledSending.countDown();
+            unblock.await();
+            return null;
+        }).when(stalled).sendMessage(any());
+
+        connect(stalled);
+        publisher.publishMetric(1L, System.currentTimeMillis(), 1f, 2f, 0.5f, 0);
+        publisher.flush();
+        assertTrue(stalledSending.await(5, TimeUnit.SECONDS));
+
+        publisher.flush();
+        verify(stalled, after(100).never()).close();
+
+        Thread.sleep(SEND_TIME_LIMIT_MS + 50);
+        publisher.flush();
+        verify(stalled, timeout(5000)).close();
+    }
+
+    @Test
+    void clientsWithoutPendingUpdatesAreNotSentTo() throws Exception {
+        WebSocketSession idle = session("idle");
+        connect(idle);
+
+        publisher.flush();
+
+        verify(idle, after(100).never()).sendMessage(any());
+        verify(idle, never()).close();
+    }
+
+    private void connect(WebSocketSession session) {
+        publisher.connect(session);
+        publisher.subscribe(session, null, Set.of(), Set.of());
+    }
+
+    private static WebSocketSession session(String id) {
+        WebSocketSession session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn(id);
+        when(session.isOpen()).thenReturn(true);
+        return session;
+    }
+}
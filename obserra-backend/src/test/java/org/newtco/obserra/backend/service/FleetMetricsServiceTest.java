@@ -0,0 +1,154 @@
+package org.newtco.obserra.backend.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.newtco.obserra.backend.cluster.ClusterRouter;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.model.ServiceMetricSummary;
+import org.newtco.obserra.backend.storage.MemoryStorage;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FleetMetricsServiceTest {
+
+    private static final Duration WINDOW  = Duration.ofMinutes(10);
+    private static final int      SAMPLES = 16;
+
+    // Sizes below and above the split threshold of the scan tasks
+    private static final int SMALL = 10;
+    private static final int LARGE = 300;
+
+    private final MemoryStorage       storage = new MemoryStorage();
+    private final ClusterRouter       router  = mock(ClusterRouter.class);
+    private final FleetMetricsService fleet   = new FleetMetricsService(storage, router, 4);
+
+    // The expected summary of each service, computed from its samples one after another
+    private final List<ServiceMetricSummary> expected = new ArrayList<>();
+
+    FleetMetricsServiceTest() {
+        when(router.isLocal(any())).thenReturn(true);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fleet.destroy();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {SMALL, LARGE})
+    void summariesMatchASequentialComputation(int services) {
+        createServices(services);
+
+        List<ServiceMetricSummary> summaries = fleet.summarize(null, WINDOW);
+        assertEquals(services, summaries.size());
+        for (int i = 0; i < services; i++) {
+            ServiceMetricSummary summary = summaries.get(i);
+            ServiceMetricSummary sequential = expected.get(i);
+            assertEquals(sequential.serviceId(), summary.serviceId());
+            assertEquals(sequential.samples(), summary.samples());
+            assertEquals(sequential.cpuUsage(), summary.cpuUsage(), 1e-6);
+            assertEquals(sequential.memoryUsed(), summary.memoryUsed(), sequential.memoryUsed() * 1e-6);
+            assertEquals(sequential.memoryMax(), summary.memoryMax());
+            assertEquals(sequential.errors(), summary.errors());
+        }
+        assertEquals(services / 2, fleet.summarize("even", WINDOW).size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {SMALL, LARGE})
+    void topServicesMatchASequentialSelection(int services) {
+        createServices(services);
+
+        for (FleetMetric metric : FleetMetric.values()) {
+            for (int k : new int[]{0, 1, 5, services / 2, services + 1}) {
+                assertEquals(sequentialTop(metric, k, null), ids(fleet.top(metric, k, null, WINDOW)),
+                             metric + " top " + k);
+                assertEquals(sequentialTop(metric, k, "odd"), ids(fleet.top(metric, k, "odd", WINDOW)),
+                             metric + " top " + k + " of odd");
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {SMALL, LARGE})
+    void percentilesMatchASequentialComputation(int services) {
+        createServices(services);
+        double[] values = fleet.summarize(null, WINDOW).stream()
+                .filter(summary -> summary.samples() > 0)
+                .mapToDouble(FleetMetric.CPU::valueOf)
+                .toArray();
+        double[] sorted = expected.stream()
+                .filter(summary -> summary.samples() > 0)
+                .mapToDouble(FleetMetric.CPU::valueOf)
+                .sorted()
+                .toArray();
+
+        for (double p : new double[]{0.1, 25, 50, 95, 99, 100}) {
+            int rank = (int) Math.ceil(p / 100 * sorted.length);
+            assertEquals(sorted[Math.max(rank, 1) - 1], FleetMetricsService.percentile(values.clone(), p), 1e-6,
+                         "p" + p);
+        }
+    }
+
+    /**
+     * Create services alternating between two namespaces, each with samples in the window but every seventh, and with
+     * CPU usage and errors which repeat across services, so the top services include ties.
+     */
+    private void createServices(int count) {
+        Random random = new Random(count);
+        long first = System.currentTimeMillis() - Duration.ofMinutes(5).toMillis();
+        for (int i = 0; i < count; i++) {
+            Service service = storage.createService(new Service().setName("service-" + i)
+                                                                 .setNamespace(i % 2 == 0 ? "even" : "odd"));
+            if (i % 7 == 3) {
+                expected.add(new ServiceMetricSummary(service.getId(), service.getName(), service.getNamespace(),
+                                                      0, 0, 0, 0, 0));
+                continue;
+            }
+
+            float cpuUsage = (i % 5) / 10f;
+            float memoryMax = 1024f * (1 + i % 3);
+            int errorsPerSample = i % 4;
+            double cpuSum = 0;
+            double memorySum = 0;
+            for (int j = 0; j < SAMPLES; j++) {
+                float memoryUsed = random.nextInt(1024);
+                storage.appendMetricSample(service.getId(), first + j * 15_000L, memoryUsed, memoryMax, cpuUsage,
+                                           100 + j * errorsPerSample);
+                cpuSum += cpuUsage;
+                memorySum += memoryUsed;
+            }
+            expected.add(new ServiceMetricSummary(service.getId(), service.getName(), service.getNamespace(),
+                                                  SAMPLES, (float) (cpuSum / SAMPLES), (float) (memorySum / SAMPLES),
+                                                  memoryMax, (long) (SAMPLES - 1) * errorsPerSample));
+        }
+    }
+
+    /**
+     * Sort every service with samples by the metric, breaking ties by ID, and take the first K.
+     */
+    private List<Long> sequentialTop(FleetMetric metric, int k, String namespace) {
+        List<ServiceMetricSummary> summaries = fleet.summarize(namespace, WINDOW);
+        return summaries.stream()
+                .filter(summary -> summary.samples() > 0)
+                .sorted(Comparator.<ServiceMetricSummary>comparingDouble(metric::valueOf).reversed()
+                                  .thenComparing(ServiceMetricSummary::serviceId))
+                .limit(k)
+                .map(ServiceMetricSummary::serviceId)
+                .toList();
+    }
+
+    private static List<Long> ids(List<ServiceMetricSummary> summaries) {
+        return summaries.stream().map(ServiceMetricSummary::serviceId).toList();
+    }
+}
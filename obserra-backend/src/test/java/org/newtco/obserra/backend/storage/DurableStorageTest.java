@@ -0,0 +1,186 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.newtco.obserra.backend.model.ConfigProperty;
+import org.newtco.obserra.backend.model.Log;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.model.ServiceStatus;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DurableStorageTest {
+
+    private static final Duration NEVER = Duration.ofHours(1);
+
+    // Samples older than the metrics max age are dropped
+    private static final long NOW = System.currentTimeMillis();
+
+    @TempDir
+    Path directory;
+
+    private DurableStorage storage;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    @Test
+    void stateIsRecoveredFromTheLog() throws IOException {
+        storage = open(true);
+        Service kept = storage.createService(service("kept"));
+        Service deleted = storage.createService(service("deleted"));
+        storage.updateServiceStatus(kept.getId(), ServiceStatus.UP);
+        LocalDateTime lastSeen = storage.updateServiceLastSeen(kept.getId()).getLastSeen();
+        ConfigProperty property = storage.createConfigProperty(property(kept.getId(), "server.port"));
+        storage.appendMetricSample(kept.getId(), NOW - 2_000, 1f, 2f, 0.5f, 0);
+        storage.appendMetricSample(kept.getId(), NOW - 1_000, 3f, 4f, 0.25f, 1);
+        storage.createLog(log(kept.getId(), "started"));
+        storage.deleteService(deleted.getId());
+
+        reopen(true);
+
+        Service recovered = storage.getService(kept.getId()).orElseThrow();
+        assertEquals(ServiceStatus.UP, recovered.getStatus());
+        assertEquals(lastSeen, recovered.getLastSeen());
+        assertFalse(storage.getService(deleted.getId()).isPresent());
+        assertEquals(property.getId(), storage.getConfigPropertiesForService(kept.getId()).getFirst().getId());
+        MetricSamples samples = storage.getMetricSamples(kept.getId(), 10);
+        assertEquals(2, samples.size());
+        assertEquals(NOW - 1_000, samples.getTimestamp(0));
+        assertEquals(1, samples.getErrorCount(0));
+        assertEquals("started", storage.getLogsForService(kept.getId(), 10).getFirst().getMessage());
+
+        // The ID of the deleted service is not handed out again
+        assertTrue(storage.createService(service("new")).getId() > deleted.getId());
+    }
+
+    @Test
+    void idCountersSurviveASnapshotOfDeletedEntities() throws IOException {
+        storage = open(true);
+        Service kept = storage.createService(service("kept"));
+        Service deleted = storage.createService(service("deleted"));
+        ConfigProperty deletedProperty = storage.createConfigProperty(property(kept.getId(), "deleted"));
+        storage.deleteConfigProperty(deletedProperty.getId());
+        storage.deleteService(deleted.getId());
+        storage.snapshot();
+
+        reopen(true);
+
+        assertEquals(List.of(kept.getId()), storage.getAllServices().stream().map(Service::getId).toList());
+        assertTrue(storage.createService(service("new")).getId() > deleted.getId());
+        assertTrue(storage.createConfigProperty(property(kept.getId(), "new")).getId() > deletedProperty.getId());
+    }
+
+    @Test
+    void tornTailOfTheLogIsDiscarded() throws IOException {
+        storage = open(true);
+        Service service = storage.createService(service("service"));
+        storage.appendMetricSample(service.getId(), NOW - 2_000, 1f, 2f, 0.5f, 0);
+        storage.close();
+
+        // A crash during a write leaves the start of a record behind
+        Path segment = latestSegment();
+        Files.write(segment, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+
+        storage = open(true);
+        assertEquals(1, storage.getMetricSamples(service.getId(), 10).size());
+        storage.appendMetricSample(service.getId(), NOW - 1_000, 1f, 2f, 0.5f, 0);
+
+        reopen(true);
+        assertEquals(2, storage.getMetricSamples(service.getId(), 10).size());
+    }
+
+    @Test
+    void recordsWrittenDuringSnapshotsAreRecoveredExactlyOnce() throws Exception {
+        int samplesPerService = 20_000;
+        storage = open(false);
+        Service first = storage.createService(service("first"));
+        Service second = storage.createService(service("second"));
+
+        AtomicInteger logs = new AtomicInteger();
+        Thread writer = Thread.ofPlatform().start(() -> {
+            for (int i = 0; i < samplesPerService; i++) {
+                storage.appendMetricSample(first.getId(), NOW - samplesPerService + i, i, i, 0.5f, 0);
+                storage.appendMetricSample(second.getId(), NOW - samplesPerService + i, i, i, 0.5f, 0);
+                if (i % 10 == 0 && storage.createLog(log(first.getId(), "line " + i)) != null) {
+                    logs.incrementAndGet();
+                }
+            }
+        });
+        // The snapshots skip, by service, the records of the new segment which they already contain
+        while (writer.isAlive()) {
+            storage.snapshot();
+        }
+        writer.join();
+
+        reopen(false);
+
+        for (Service service : List.of(first, second)) {
+            MetricSamples samples = storage.getMetricSamples(service.getId(), Integer.MAX_VALUE);
+            assertEquals(samplesPerService, samples.size());
+            Set<Long> timestamps = new HashSet<>();
+            for (int i = 0; i < samples.size(); i++) {
+                timestamps.add(samples.getTimestamp(i));
+            }
+            assertEquals(samplesPerService, timestamps.size());
+        }
+        assertEquals(logs.get(), storage.getLogsForService(first.getId(), Integer.MAX_VALUE).size());
+    }
+
+    private DurableStorage open(boolean sync) throws IOException {
+        return new DurableStorage(new MemoryStorage(), directory, sync, NEVER, NEVER);
+    }
+
+    private void reopen(boolean sync) throws IOException {
+        storage.close();
+        storage = open(sync);
+    }
+
+    private Path latestSegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("wal-"))
+                    .max(Path::compareTo)
+                    .orElseThrow();
+        }
+    }
+
+    private static Service service(String name) {
+        Service service = new Service();
+        service.setName(name);
+        return service;
+    }
+
+    private static ConfigProperty property(Long serviceId, String key) {
+        ConfigProperty property = new ConfigProperty();
+        property.setServiceId(serviceId);
+        property.setKey(key);
+        property.setValue("value");
+        return property;
+    }
+
+    private static Log log(Long serviceId, String message) {
+        Log log = new Log();
+        log.setServiceId(serviceId);
+        log.setMessage(message);
+        return log;
+    }
+}
@@ -0,0 +1,315 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.newtco.obserra.backend.model.Log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryArchiveTest {
+
+    private static final long     SERVICE      = 1L;
+    // Ten metric records of 32 bytes after the segment header
+    private static final long     SEGMENT_SIZE = MappedSegment.HEADER_BYTES + 10 * 32;
+    private static final Duration MAX_AGE      = Duration.ofDays(30);
+
+    // Records older than the maximum age are evicted
+    private static final long NOW = System.currentTimeMillis() / 1000 * 1000;
+
+    @TempDir
+    Path directory;
+
+    private HistoryArchive archive;
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    @Test
+    void metricsAreReadBackAcrossSegments() throws IOException {
+        archive = open();
+        archive.createService(SERVICE);
+        archive.archiveMetrics(SERVICE, chunk(100, NOW - 35_000, 35));
+
+        assertEquals(4, segments(SERVICE, "metrics-").size());
+        MetricSamples samples = readMetrics(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(35, samples.size());
+        for (int i = 0; i < 35; i++) {
+            // Newest first
+            int sample = 34 - i;
+            int sequence = 100 + sample;
+            assertEquals(NOW - 35_000 + sample * 1_000L, samples.getTimestamp(i));
+            assertEquals(sequence, samples.toMetric(i, SERVICE).getId());
+            assertEquals(sequence * 1.5f, samples.getMemoryUsed(i));
+            assertEquals(1024f, samples.getMemoryMax(i));
+            assertEquals(sequence / 100f, samples.getCpuUsage(i));
+            assertEquals(sequence % 3, samples.getErrorCount(i));
+        }
+    }
+
+    @Test
+    void metricReadsAreLimitedToTheWindowAndCount() throws IOException {
+        archive = open();
+        archive.createService(SERVICE);
+        long first = NOW - 35_000;
+        archive.archiveMetrics(SERVICE, chunk(0, first, 35));
+
+        // The bounds are inclusive, and the window spans a segment boundary
+        assertEquals(List.of(first + 12_000, first + 11_000, first + 10_000, first + 9_000, first + 8_000),
+                     timestamps(readMetrics(first + 8_000, first + 12_000, Integer.MAX_VALUE)));
+        assertEquals(List.of(first + 12_000, first + 11_000),
+                     timestamps(readMetrics(first + 7_500, first + 12_500, 2)));
+        assertEquals(List.of(first), timestamps(readMetrics(Long.MIN_VALUE, first, Integer.MAX_VALUE)));
+        assertEquals(List.of(first + 34_000), timestamps(readMetrics(first + 34_000, Long.MAX_VALUE, 10)));
+        assertEquals(List.of(), timestamps(readMetrics(first + 2_100, first + 2_900, 10)));
+        assertEquals(List.of(), timestamps(readMetrics(Long.MIN_VALUE, first - 1, 10)));
+        assertEquals(List.of(), timestamps(readMetrics(first + 35_000, Long.MAX_VALUE, 10)));
+        assertEquals(List.of(), timestamps(readMetrics(first + 10_000, first, 10)));
+    }
+
+    @Test
+    void metricsWhichAreArchivedAgainAreSkipped() throws IOException {
+        archive = open();
+        archive.createService(SERVICE);
+        archive.archiveMetrics(SERVICE, chunk(0, NOW - 20_000, 10));
+        archive.archiveMetrics(SERVICE, chunk(0, NOW - 20_000, 10));
+        // Overlaps the archived samples by five
+        archive.archiveMetrics(SERVICE, chunk(5, NOW - 15_000, 10));
+
+        MetricSamples samples = readMetrics(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(15, samples.size());
+        assertEquals(NOW - 6_000, samples.getTimestamp(0));
+        assertEquals(NOW - 20_000, samples.getTimestamp(14));
+    }
+
+    @Test
+    void segmentsWhoseRecordsAreAllOlderThanTheMaximumAgeAreEvicted() throws IOException {
+        archive = open();
+        archive.createService(SERVICE);
+        // The samples of the first two segments are older than the maximum age, the third segment holds the samples
+        // of the four seconds around it
+        long first = System.currentTimeMillis() - MAX_AGE.toMillis() - 20_000;
+        archive.archiveMetrics(SERVICE, chunk(0, first, 25));
+
+        assertEquals(1, segments(SERVICE, "metrics-").size());
+        MetricSamples samples = readMetrics(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(5, samples.size());
+        assertEquals(first + 20_000, samples.getTimestamp(4));
+    }
+
+    @Test
+    void logsAreReadBackWithNullFields() throws IOException {
+        archive = open();
+        archive.createService(SERVICE);
+        LocalDateTime timestamp = LocalDateTime.now().minusHours(1).withNano(123_456_789);
+        LogBlock block = new LogBlock();
+        block.add(log(1, timestamp, "INFO", "main", "c.e.App", "Started in 1.2 s"));
+        block.add(log(2, timestamp.plusSeconds(1), null, null, null, null));
+        block.add(log(3, timestamp.plusSeconds(2), "INFO", "", "c.e.App", "Grüße, 世界"));
+        archive.archiveLogs(SERVICE, block, false);
+
+        List<Log> logs = readLogs(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(List.of(3L, 2L, 1L), logs.stream().map(Log::getId).toList());
+
+        assertLog(log(1, timestamp, "INFO", "main", "c.e.App", "Started in 1.2 s"), logs.get(2));
+        Log empty = logs.get(1);
+        assertEquals(timestamp.plusSeconds(1), empty.getTimestamp());
+        assertNull(empty.getLevel());
+        assertNull(empty.getThread());
+        assertNull(empty.getLogger());
+        assertNull(empty.getMessage());
+        assertLog(log(3, timestamp.plusSeconds(2), "INFO", "", "c.e.App", "Grüße, 世界"), logs.get(0));
+    }
+
+    @Test
+    void logReadsAreLimitedToTheWindowAndCountPerChain() throws IOException {
+        archive = open();
+        archive.createService(SERVICE);
+        LocalDateTime start = LocalDateTime.now().minusHours(1).withNano(0);
+        LogBlock other = new LogBlock();
+        LogBlock important = new LogBlock();
+        for (int i = 0; i < 100; i++) {
+            boolean warning = i % 4 == 0;
+            (warning ? important : other).add(log(i + 1, start.plusSeconds(i), warning ? "WARN" : "INFO", "main",
+                                                  "c.e.Job", "Step " + i + " of a job with a longer message"));
+        }
+        archive.archiveLogs(SERVICE, important, true);
+        archive.archiveLogs(SERVICE, other, false);
+        assertTrue(segments(SERVICE, "logs-").size() > 1, "logs span several segments");
+
+        assertEquals(100, readLogs(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+        // Each chain contributes its newest logs in the window, newest first
+        List<Log> window = readLogs(millis(start.plusSeconds(40)), millis(start.plusSeconds(49)), 3);
+        assertEquals(List.of("Step 48", "Step 44", "Step 40", "Step 49", "Step 47", "Step 46"),
+                     window.stream().map(log -> log.getMessage().substring(0, 7).trim()).toList());
+    }
+
+    @Test
+    void archiveIsReadBackAfterReopening() throws IOException {
+        archive = open();
+        archive.createService(SERVICE);
+        archive.archiveMetrics(SERVICE, chunk(0, NOW - 25_000, 25));
+        LogBlock block = new LogBlock();
+        block.add(log(7, LocalDateTime.now().withNano(0), "ERROR", "main", "c.e.App", "Failed"));
+        archive.archiveLogs(SERVICE, block, true);
+        archive.close();
+
+        archive = open();
+        archive.openService(SERVICE);
+        assertEquals(25, readMetrics(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+        assertEquals(List.of("Failed"), readLogs(Long.MIN_VALUE, Long.MAX_VALUE, 10).stream()
+                                                 .map(Log::getMessage).toList());
+
+        // Archiving continues after the recovered records, skipping those it already holds
+        archive.archiveMetrics(SERVICE, chunk(20, NOW - 5_000, 10));
+        archive.archiveLogs(SERVICE, block, true);
+        MetricSamples samples = readMetrics(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(30, samples.size());
+        assertEquals(NOW + 4_000, samples.getTimestamp(0));
+        assertEquals(1, readLogs(Long.MIN_VALUE, Long.MAX_VALUE, 10).size());
+    }
+
+    @Test
+    void createdServiceDiscardsWhatAnOpenedServiceKeeps() throws IOException {
+        archive = open();
+        archive.createService(SERVICE);
+        archive.archiveMetrics(SERVICE, chunk(0, NOW - 5_000, 5));
+        archive.close();
+
+        archive = open();
+        archive.openService(SERVICE);
+        // Opening an open service keeps its archive as well
+        archive.openService(SERVICE);
+        assertEquals(5, readMetrics(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+
+        // A new service which reuses the ID starts without history
+        archive.createService(SERVICE);
+        assertEquals(0, readMetrics(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+        assertEquals(List.of(), segments(SERVICE, "metrics-"));
+    }
+
+    @Test
+    void retainServicesDeletesTheHistoryOfOtherServices() throws IOException {
+        archive = open();
+        for (long serviceId = 1; serviceId <= 3; serviceId++) {
+            archive.createService(serviceId);
+            archive.archiveMetrics(serviceId, chunk(0, NOW - 5_000, 5));
+        }
+        archive.close();
+
+        // Service 3 is left on disk from the previous run, and is not opened
+        archive = open();
+        archive.openService(1L);
+        archive.openService(2L);
+        Path unrelated = Files.createDirectories(directory.resolve("notes"));
+
+        archive.retainServices(Set.of(1L));
+
+        assertTrue(Files.isDirectory(directory.resolve("1")));
+        assertFalse(Files.exists(directory.resolve("2")));
+        assertFalse(Files.exists(directory.resolve("3")));
+        assertTrue(Files.isDirectory(unrelated));
+        assertEquals(5, readMetrics(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE).size());
+        MetricSamples.Builder removed = new MetricSamples.Builder();
+        archive.readMetrics(2L, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, removed);
+        assertEquals(0, removed.size());
+    }
+
+    private HistoryArchive open() throws IOException {
+        return new HistoryArchive(directory, SEGMENT_SIZE, MAX_AGE);
+    }
+
+    private MetricSamples readMetrics(long from, long to, int limit) {
+        MetricSamples.Builder samples = new MetricSamples.Builder();
+        archive.readMetrics(SERVICE, from, to, limit, samples);
+        return samples.build();
+    }
+
+    private List<Log> readLogs(long from, long to, int limit) {
+        List<Log> logs = new ArrayList<>();
+        archive.readLogs(SERVICE, from, to, limit, logs);
+        return logs;
+    }
+
+    private List<Path> segments(long serviceId, String prefix) throws IOException {
+        Path serviceDirectory = directory.resolve(Long.toString(serviceId));
+        if (!Files.isDirectory(serviceDirectory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(serviceDirectory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith(prefix)).toList();
+        }
+    }
+
+    /**
+     * Encode a chunk of samples one second apart.
+     */
+    private static MetricChunk chunk(long firstSequence, long firstTimestamp, int count) {
+        long[] timestamps = new long[count];
+        float[] memoryUsed = new float[count];
+        float[] memoryMax = new float[count];
+        float[] cpuUsage = new float[count];
+        int[] errorCount = new int[count];
+        for (int i = 0; i < count; i++) {
+            int sample = (int) firstSequence + i;
+            timestamps[i] = firstTimestamp + i * 1_000L;
+            memoryUsed[i] = sample * 1.5f;
+            memoryMax[i] = 1024f;
+            cpuUsage[i] = sample / 100f;
+            errorCount[i] = sample % 3;
+        }
+        return MetricChunk.encode(firstSequence, count, timestamps, memoryUsed, memoryMax, cpuUsage, errorCount);
+    }
+
+    private static List<Long> timestamps(MetricSamples samples) {
+        List<Long> timestamps = new ArrayList<>();
+        for (int i = 0; i < samples.size(); i++) {
+            timestamps.add(samples.getTimestamp(i));
+        }
+        return timestamps;
+    }
+
+    private static Log log(long id, LocalDateTime timestamp, String level, String thread, String logger,
+                           String message) {
+        Log log = new Log();
+        log.setId(id);
+        log.setServiceId(SERVICE);
+        log.setTimestamp(timestamp);
+        log.setLevel(level);
+        log.setThread(thread);
+        log.setLogger(logger);
+        log.setMessage(message);
+        return log;
+    }
+
+    private static void assertLog(Log expected, Log actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(SERVICE, actual.getServiceId());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getLevel(), actual.getLevel());
+        assertEquals(expected.getThread(), actual.getThread());
+        assertEquals(expected.getLogger(), actual.getLogger());
+        assertEquals(expected.getMessage(), actual.getMessage());
+    }
+
+    private static long millis(LocalDateTime timestamp) {
+        return LogBlock.timestampOf(log(0, timestamp, null, null, null, null));
+    }
+}
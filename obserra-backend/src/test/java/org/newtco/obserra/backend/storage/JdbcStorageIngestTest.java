@@ -0,0 +1,109 @@
+package org.newtco.obserra.backend.storage;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.newtco.obserra.backend.model.Log;
+import org.newtco.obserra.backend.model.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Measures the rows per second {@link JdbcStorage} ingests into an embedded H2 database in file mode. Run with
+ * {@code ./gradlew benchmark}.
+ */
+@Tag("benchmark")
+class JdbcStorageIngestTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(JdbcStorageIngestTest.class);
+
+    private static final int SERVICES            = 50;
+    private static final int WRITERS             = 4;
+    private static final int SAMPLES_PER_SERVICE = 20_000;
+    private static final int LOGS_PER_SERVICE    = 2_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void ingestRate() throws Exception {
+        try (HikariDataSource database = new HikariDataSource()) {
+            database.setJdbcUrl("jdbc:h2:file:" + directory.resolve("obserra").toAbsolutePath());
+            database.setUsername("sa");
+            database.setMaximumPoolSize(4);
+            JdbcStorage storage = new JdbcStorage(database, 1000, Duration.ofMillis(200), Duration.ofDays(30),
+                                                  Duration.ofDays(7), Duration.ofDays(30), 4096, 1, 0);
+            try {
+                List<Long> serviceIds = new ArrayList<>();
+                for (int i = 0; i < SERVICES; i++) {
+                    Service service = new Service();
+                    service.setName("service-" + i);
+                    serviceIds.add(storage.createService(service).getId());
+                }
+
+                long start = System.nanoTime();
+                ingest(storage, serviceIds);
+                // A read writes whatever is still queued
+                storage.getMetricSamples(serviceIds.getFirst(), 1);
+                long nanos = System.nanoTime() - start;
+
+                long rows = (long) SERVICES * (SAMPLES_PER_SERVICE + LOGS_PER_SERVICE);
+                logger.info("Ingested {} metrics and {} logs of {} services in {} ms: {} rows/s",
+                            SERVICES * SAMPLES_PER_SERVICE, SERVICES * LOGS_PER_SERVICE, SERVICES, nanos / 1_000_000,
+                            String.format("%.0f", rows / (nanos / 1e9)));
+
+                assertEquals(SAMPLES_PER_SERVICE,
+                             storage.getMetricSamples(serviceIds.getLast(), Integer.MAX_VALUE).size());
+            } finally {
+                storage.close();
+            }
+        }
+    }
+
+    private static void ingest(JdbcStorage storage, List<Long> serviceIds) throws Exception {
+        long now = System.currentTimeMillis();
+        LocalDateTime logStart = LocalDateTime.now().minusHours(1);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int writer = 0; writer < WRITERS; writer++) {
+                int first = writer;
+                futures.add(executor.submit(() -> {
+                    for (int sample = 0; sample < SAMPLES_PER_SERVICE; sample++) {
+                        for (int i = first; i < serviceIds.size(); i += WRITERS) {
+                            Long serviceId = serviceIds.get(i);
+                            storage.appendMetricSample(serviceId, now - SAMPLES_PER_SERVICE + sample, sample,
+                                                       2 * sample, 0.5f, 0);
+                            if (sample % (SAMPLES_PER_SERVICE / LOGS_PER_SERVICE) == 0) {
+                                Log log = new Log();
+                                log.setServiceId(serviceId);
+                                log.setTimestamp(logStart.plusNanos(sample * 1_000L));
+                                log.setThread("http-nio-8080-exec-" + sample % 10);
+                                log.setLogger("c.e.web.ItemController");
+                                log.setMessage("Handled request GET /api/items/" + sample);
+                                storage.createLog(log);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.newtco.obserra.backend.storage;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.newtco.obserra.backend.model.ConfigProperty;
+import org.newtco.obserra.backend.model.Log;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.model.ServiceStatus;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the JDBC storage against an embedded H2 database in file mode.
+ */
+class JdbcStorageTest {
+
+    private static final int      BATCH_SIZE     = 100;
+    private static final Duration FLUSH_INTERVAL = Duration.ofMillis(50);
+    private static final Duration MAX_AGE        = Duration.ofDays(30);
+
+    // Samples older than the metrics max age are deleted
+    private static final long NOW = System.currentTimeMillis();
+
+    @TempDir
+    Path directory;
+
+    private HikariDataSource database;
+    private FailingDataSource dataSource;
+    private JdbcStorage storage;
+
+    @AfterEach
+    void tearDown() {
+        if (storage != null) {
+            storage.close();
+        }
+        if (database != null) {
+            database.close();
+        }
+    }
+
+    @Test
+    void stateSurvivesAReopen() {
+        storage = open();
+        Service service = storage.createService(service("api"));
+        Service deleted = storage.createService(service("deleted"));
+        storage.updateServiceStatus(service.getId(), ServiceStatus.UP);
+        LocalDateTime lastSeen = storage.updateServiceLastSeen(service.getId()).getLastSeen();
+        ConfigProperty property = storage.createConfigProperty(property(service.getId(), "server.port"));
+        storage.appendMetricSample(service.getId(), NOW - 2_000, 1f, 2f, 0.5f, 0);
+        storage.appendMetricSample(service.getId(), NOW - 1_000, 3f, 4f, 0.25f, 1);
+        storage.createLog(log(service.getId(), "started"));
+        storage.deleteService(deleted.getId());
+
+        reopen();
+
+        Service recovered = storage.getService(service.getId()).orElseThrow();
+        assertEquals(ServiceStatus.UP, recovered.getStatus());
+        assertEquals(lastSeen, recovered.getLastSeen());
+        assertFalse(storage.getService(deleted.getId()).isPresent());
+        assertEquals(property.getId(), storage.getConfigPropertiesForService(service.getId()).getFirst().getId());
+        MetricSamples samples = storage.getMetricSamples(service.getId(), 10);
+        assertEquals(2, samples.size());
+        assertEquals(NOW - 1_000, samples.getTimestamp(0));
+        assertEquals("started", storage.getLogsForService(service.getId(), 10).getFirst().getMessage());
+    }
+
+    @Test
+    void readsSeeQueuedWrites() {
+        storage = open();
+        Long serviceId = storage.createService(service("api")).getId();
+        for (int i = 0; i < BATCH_SIZE / 2; i++) {
+            storage.appendMetricSample(serviceId, NOW - 1_000 + i, i, i, 0.5f, 0);
+            storage.createLog(log(serviceId, "line " + i));
+        }
+
+        assertEquals(BATCH_SIZE / 2, storage.getMetricSamples(serviceId, Integer.MAX_VALUE).size());
+        assertEquals(BATCH_SIZE / 2, storage.getLogsForService(serviceId, Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    void failedWritesAreRetriedInOrder() throws Exception {
+        storage = open();
+        Long serviceId = storage.createService(service("api")).getId();
+
+        dataSource.failing = true;
+        int samples = 3 * BATCH_SIZE;
+        for (int i = 0; i < samples; i++) {
+            storage.appendMetricSample(serviceId, NOW - samples + i, i, i, 0.5f, 0);
+        }
+        // Several scheduled flushes fail in the meantime
+        Thread.sleep(5 * FLUSH_INTERVAL.toMillis());
+        dataSource.failing = false;
+
+        MetricSamples stored = storage.getMetricSamples(serviceId, Integer.MAX_VALUE);
+        assertEquals(samples, stored.size());
+        for (int i = 0; i < samples; i++) {
+            assertEquals(NOW - 1 - i, stored.getTimestamp(i));
+        }
+    }
+
+    @Test
+    void concurrentUpdatesReachTheDatabaseInOrder() throws Exception {
+        storage = open();
+        Long serviceId = storage.createService(service("api")).getId();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int writer = 0; writer < 8; writer++) {
+                ServiceStatus status = writer % 2 == 0 ? ServiceStatus.UP : ServiceStatus.DOWN;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        storage.updateServiceStatus(serviceId, status);
+                        storage.updateServiceLastSeen(serviceId);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Service cached = storage.getService(serviceId).orElseThrow();
+        ServiceStatus status = cached.getStatus();
+        LocalDateTime lastSeen = cached.getLastSeen();
+
+        reopen();
+
+        Service loaded = storage.getService(serviceId).orElseThrow();
+        assertEquals(status, loaded.getStatus());
+        assertEquals(lastSeen, loaded.getLastSeen());
+    }
+
+    @Test
+    void configPropertyOfUnknownServiceIsRejected() {
+        storage = open();
+        Long serviceId = storage.createService(service("deleted")).getId();
+        storage.deleteService(serviceId);
+
+        assertThrows(IllegalArgumentException.class, () -> storage.createConfigProperty(property(serviceId, "key")));
+        assertThrows(IllegalArgumentException.class, () -> storage.createConfigProperty(property(-1L, "key")));
+
+        reopen();
+        assertTrue(storage.getConfigPropertiesForService(serviceId).isEmpty());
+    }
+
+    private JdbcStorage open() {
+        database = new HikariDataSource();
+        database.setJdbcUrl("jdbc:h2:file:" + directory.resolve("obserra").toAbsolutePath());
+        database.setUsername("sa");
+        database.setMaximumPoolSize(4);
+        database.setConnectionTimeout(1_000);
+        dataSource = new FailingDataSource(database);
+        return new JdbcStorage(dataSource, BATCH_SIZE, FLUSH_INTERVAL, MAX_AGE, MAX_AGE, MAX_AGE, 4096, 1, 0);
+    }
+
+    private void reopen() {
+        storage.close();
+        database.close();
+        storage = open();
+    }
+
+    private static Service service(String name) {
+        Service service = new Service();
+        service.setName(name);
+        return service;
+    }
+
+    private static ConfigProperty property(Long serviceId, String key) {
+        ConfigProperty property = new ConfigProperty();
+        property.setServiceId(serviceId);
+        property.setKey(key);
+        property.setValue("value");
+        return property;
+    }
+
+    private static Log log(Long serviceId, String message) {
+        Log log = new Log();
+        log.setServiceId(serviceId);
+        log.setMessage(message);
+        return log;
+    }
+
+    /**
+     * A data source which can be made to fail every connection attempt, as when the database is unavailable.
+     */
+    private static class FailingDataSource extends DelegatingDataSource {
+
+        volatile boolean failing;
+
+        FailingDataSource(HikariDataSource database) {
+            super(database);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            if (failing) {
+                throw new SQLException("database unavailable");
+            }
+            return super.getConnection();
+        }
+    }
+}
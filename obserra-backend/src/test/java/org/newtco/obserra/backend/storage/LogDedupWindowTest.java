@@ -0,0 +1,60 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.Test;
+import org.newtco.obserra.backend.model.Log;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogDedupWindowTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2024, 5, 1, 12, 0);
+
+    @Test
+    void duplicatesInsideTheWindowAreDropped() {
+        LogDedupWindow window = new LogDedupWindow(3);
+        assertTrue(window.add(log(0, "main", "started")));
+        assertTrue(window.add(log(1, "main", "ready")));
+
+        assertFalse(window.add(log(0, "main", "started")));
+        assertFalse(window.add(log(1, "main", "ready")));
+        assertEquals(2, window.size());
+    }
+
+    @Test
+    void duplicatesOutsideTheWindowAreKept() {
+        LogDedupWindow window = new LogDedupWindow(3);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(window.add(log(i, "main", "line " + i)));
+        }
+
+        // The first log has left the window, the others are still in it
+        assertTrue(window.add(log(0, "main", "line 0")));
+        assertFalse(window.add(log(3, "main", "line 3")));
+        assertEquals(3, window.size());
+    }
+
+    @Test
+    void logsDifferingInTimestampThreadOrMessageAreDistinct() {
+        LogDedupWindow window = new LogDedupWindow(8);
+        assertTrue(window.add(log(0, "main", "retrying")));
+
+        assertTrue(window.add(log(1, "main", "retrying")));
+        assertTrue(window.add(log(0, "worker", "retrying")));
+        assertTrue(window.add(log(0, "main", "retrying again")));
+        // The fields are hashed with their lengths, so moving characters between them makes a different log
+        assertTrue(window.add(log(0, "mai", "nretrying")));
+        assertFalse(window.add(log(0, "main", "retrying")));
+    }
+
+    private static Log log(int second, String thread, String message) {
+        Log log = new Log();
+        log.setTimestamp(NOW.plusSeconds(second));
+        log.setThread(thread);
+        log.setMessage(message);
+        return log;
+    }
+}
@@ -0,0 +1,219 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.Test;
+import org.newtco.obserra.backend.model.Log;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogStoreTest {
+
+    private static final long SERVICE = 1L;
+    private static final long QUOTA   = 256 * 1024;
+
+    // Logs older than the maximum age are dropped
+    private static final LocalDateTime NOW = LocalDateTime.now().withNano(0);
+
+    private final LogStore store = new LogStore();
+
+    LogStoreTest() {
+        store.addService(SERVICE);
+    }
+
+    @Test
+    void everyTermMustOccurInTheMessageOrLogger() {
+        append(SERVICE, 0, "INFO", "c.e.Database", "Connection refused by peer");
+        append(SERVICE, 1, "INFO", "c.e.Http", "Connection reset by peer");
+        append(SERVICE, 2, "INFO", "c.e.Database", "Query timed out");
+
+        assertEquals(List.of("Connection refused by peer"), messages(search("connection database", null)));
+        assertEquals(List.of("Connection reset by peer", "Connection refused by peer"),
+                     messages(search("PEER connection", null)));
+        assertEquals(List.of(), messages(search("connection timed", null)));
+    }
+
+    @Test
+    void phraseMustOccurInTheMessageAsIs() {
+        append(SERVICE, 0, "INFO", "c.e.Database", "Connection refused by peer");
+        append(SERVICE, 1, "INFO", "c.e.Database", "Refused connection from peer");
+
+        assertEquals(List.of("Connection refused by peer"), messages(search(null, "CONNECTION REFUSED")));
+        assertEquals(List.of(), messages(search(null, "connection  refused")));
+    }
+
+    @Test
+    void phraseMayStartAndEndInTheMiddleOfAWord() {
+        append(SERVICE, 0, "ERROR", "c.e.Database", "Connection refused: timeout after 30s");
+        append(SERVICE, 1, "INFO", "c.e.Database", "Connected");
+
+        assertEquals(List.of("Connection refused: timeout after 30s"), messages(search(null, "ection refused")));
+        assertEquals(List.of("Connection refused: timeout after 30s"), messages(search(null, "timeout af")));
+        assertEquals(List.of("Connection refused: timeout after 30s"), messages(search(null, "nection refused: time")));
+        assertEquals(List.of(), messages(search(null, "ection refused: timeouts")));
+    }
+
+    @Test
+    void levelsAreMatchedExactly() {
+        append(SERVICE, 0, "INFO", "c.e.Job", "Job started");
+        append(SERVICE, 1, "WARN", "c.e.Job", "Job slow");
+        append(SERVICE, 2, "ERROR", "c.e.Job", "Job failed");
+
+        List<Log> logs = store.search(new LogSearchQuery(Set.of(), "job", null, Set.of("WARN", "ERROR"), null, null,
+                                                         10));
+        assertEquals(List.of("Job failed", "Job slow"), messages(logs));
+    }
+
+    @Test
+    void onlyLogsInsideTheTimeWindowMatch() {
+        for (int i = 0; i < 10; i++) {
+            append(SERVICE, i, "INFO", "c.e.Job", "Job step " + i);
+        }
+
+        List<Log> logs = store.search(new LogSearchQuery(Set.of(), "job", null, Set.of(),
+                                                         NOW.plusSeconds(3), NOW.plusSeconds(5), 10));
+        assertEquals(List.of("Job step 5", "Job step 4", "Job step 3"), messages(logs));
+    }
+
+    @Test
+    void limitKeepsTheNewestMatchesOverBlocksAndServices() {
+        long other = 2L;
+        store.addService(other);
+        int logs = 3 * LogBlock.CAPACITY;
+        for (int i = 0; i < logs; i++) {
+            append(i % 2 == 0 ? SERVICE : other, i, i % 3 == 0 ? "WARN" : "INFO", "c.e.Job", "Job step " + i);
+        }
+
+        List<Log> newest = store.search(new LogSearchQuery(Set.of(), "step", null, Set.of(), null, null, 5));
+        assertEquals(List.of("Job step 767", "Job step 766", "Job step 765", "Job step 764", "Job step 763"),
+                     messages(newest));
+
+        List<Log> ofOneService = store.search(new LogSearchQuery(Set.of(other), "step", null, Set.of(), null, null,
+                                                                 2));
+        assertEquals(List.of("Job step 767", "Job step 765"), messages(ofOneService));
+    }
+
+    @Test
+    void serviceOverItsQuotaDropsInfoLogsBeforeWarnings() {
+        LogStore bounded = new LogStore(QUOTA, Long.MAX_VALUE, LogStore.DEFAULT_MAX_AGE,
+                                        LogStore.DEFAULT_IMPORTANT_MAX_AGE);
+        bounded.addService(SERVICE);
+        int infos = fillWithWarningsThenInfos(bounded, SERVICE);
+
+        assertTrue(bounded.sizeInBytes() <= QUOTA, bounded.sizeInBytes() + " bytes");
+        assertEquals(100, count(bounded, SERVICE, "WARN"));
+        int keptInfos = count(bounded, SERVICE, "INFO");
+        assertTrue(keptInfos > 0 && keptInfos < infos, keptInfos + " of " + infos + " INFO logs kept");
+        assertEquals("Handled request " + (infos - 1), bounded.latest(SERVICE, 1).getFirst().getMessage());
+    }
+
+    @Test
+    void storeOverItsLimitDropsInfoLogsOfTheLargestServiceFirst() {
+        LogStore bounded = new LogStore(Long.MAX_VALUE, QUOTA, LogStore.DEFAULT_MAX_AGE,
+                                        LogStore.DEFAULT_IMPORTANT_MAX_AGE);
+        long quiet = 2L;
+        bounded.addService(quiet);
+        bounded.addService(SERVICE);
+        for (int i = 0; i < 50; i++) {
+            append(bounded, quiet, i, "INFO", "c.e.Job", "Job step " + i);
+        }
+        int infos = fillWithWarningsThenInfos(bounded, SERVICE);
+
+        assertTrue(bounded.sizeInBytes() <= QUOTA, bounded.sizeInBytes() + " bytes");
+        assertEquals(50, count(bounded, quiet, "INFO"));
+        assertEquals(100, count(bounded, SERVICE, "WARN"));
+        assertTrue(count(bounded, SERVICE, "INFO") < infos);
+    }
+
+    @Test
+    void storeOverItsLimitDropsWarningsOnlyOnceNoInfoLogsAreLeft() {
+        LogStore bounded = new LogStore(Long.MAX_VALUE, QUOTA, LogStore.DEFAULT_MAX_AGE,
+                                        LogStore.DEFAULT_IMPORTANT_MAX_AGE);
+        bounded.addService(SERVICE);
+        append(bounded, SERVICE, 0, "INFO", "c.e.Web", "Started");
+        int warnings = 20 * LogBlock.CAPACITY;
+        for (int i = 0; i < warnings; i++) {
+            append(bounded, SERVICE, 1 + i, "WARN", "c.e.Web", "Slow request " + i);
+        }
+
+        assertTrue(bounded.sizeInBytes() <= QUOTA, bounded.sizeInBytes() + " bytes");
+        assertEquals(0, count(bounded, SERVICE, "INFO"));
+        assertEquals("Slow request " + (warnings - 1), bounded.latest(SERVICE, 1).getFirst().getMessage());
+    }
+
+    @Test
+    void removedServiceLeavesNoBytesBehindWhileLogsAreAppended() throws Exception {
+        for (long serviceId = 10; serviceId < 1010; serviceId++) {
+            store.addService(serviceId);
+            CountDownLatch appending = new CountDownLatch(4);
+            List<Thread> writers = new ArrayList<>();
+            for (int writer = 0; writer < 4; writer++) {
+                long id = serviceId;
+                writers.add(Thread.ofPlatform().start(() -> {
+                    appending.countDown();
+                    // Appending fails once the service is gone
+                    for (int i = 0; append(store, id, i, "INFO", "c.e.Job", "Job step " + i); i++) {
+                        Thread.onSpinWait();
+                    }
+                }));
+            }
+            appending.await();
+            store.removeService(serviceId);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+
+        assertEquals(0, store.sizeInBytes());
+    }
+
+    /**
+     * Append 100 warnings followed by enough INFO logs to fill 20 blocks.
+     *
+     * @return the number of INFO logs appended
+     */
+    private static int fillWithWarningsThenInfos(LogStore target, long serviceId) {
+        for (int i = 0; i < 100; i++) {
+            append(target, serviceId, i, "WARN", "c.e.Web", "Slow request " + i);
+        }
+        int infos = 20 * LogBlock.CAPACITY;
+        for (int i = 0; i < infos; i++) {
+            append(target, serviceId, 100 + i, "INFO", "c.e.Web", "Handled request " + i);
+        }
+        return infos;
+    }
+
+    private static int count(LogStore target, long serviceId, String level) {
+        return target.search(new LogSearchQuery(Set.of(serviceId), null, null, Set.of(level), null, null,
+                                                Integer.MAX_VALUE)).size();
+    }
+
+    private List<Log> search(String text, String phrase) {
+        return store.search(new LogSearchQuery(Set.of(SERVICE), text, phrase, Set.of(), null, null, 10));
+    }
+
+    private void append(long serviceId, int second, String level, String logger, String message) {
+        append(store, serviceId, second, level, logger, message);
+    }
+
+    private static boolean append(LogStore target, long serviceId, int second, String level, String logger,
+                                  String message) {
+        Log log = new Log();
+        log.setServiceId(serviceId);
+        log.setTimestamp(NOW.plusSeconds(second));
+        log.setLevel(level);
+        log.setLogger(logger);
+        log.setMessage(message);
+        return target.append(log);
+    }
+
+    private static List<String> messages(List<Log> logs) {
+        return logs.stream().map(Log::getMessage).toList();
+    }
+}
@@ -0,0 +1,229 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.Test;
+import org.newtco.obserra.backend.model.ConfigProperty;
+import org.newtco.obserra.backend.model.Log;
+import org.newtco.obserra.backend.model.Service;
+import org.newtco.obserra.backend.model.ServiceStatus;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryStorageTest {
+
+    private static final int WRITERS    = 32;
+    private static final int PER_WRITER = 500;
+
+    private final MemoryStorage storage = new MemoryStorage();
+
+    @Test
+    void concurrentlyCreatedServicesGetUniqueIds() throws Exception {
+        List<List<Long>> ids = runWriters(writer -> {
+            List<Long> created = new ArrayList<>();
+            for (int i = 0; i < PER_WRITER; i++) {
+                created.add(storage.createService(service("service-" + writer + "-" + i)).getId());
+            }
+            return created;
+        });
+
+        Set<Long> unique = new HashSet<>();
+        ids.forEach(unique::addAll);
+        assertEquals(WRITERS * PER_WRITER, unique.size());
+        assertEquals(WRITERS * PER_WRITER, storage.getAllServices().size());
+    }
+
+    @Test
+    void concurrentRegistrationsOfOneAppCreateOneService() throws Exception {
+        List<Long> ids = runWriters(writer -> {
+            Service registration = service("registered");
+            registration.setAppId("app-1");
+            return storage.registerService(registration).getId();
+        });
+
+        assertEquals(1, new HashSet<>(ids).size());
+        assertEquals(1, storage.getAllServices().size());
+    }
+
+    @Test
+    void concurrentMetricAppendsAreNotLost() throws Exception {
+        Long serviceId = storage.createService(service("metrics")).getId();
+        long now = System.currentTimeMillis();
+
+        List<Set<Long>> sequences = runWriters(writer -> {
+            Set<Long> appended = new HashSet<>();
+            for (int i = 0; i < PER_WRITER; i++) {
+                appended.add(storage.appendMetricSample(serviceId, now + i, writer, 1024f, 0.5f, i));
+            }
+            return appended;
+        });
+
+        Set<Long> unique = new HashSet<>();
+        sequences.forEach(unique::addAll);
+        assertEquals(WRITERS * PER_WRITER, unique.size());
+        assertEquals(WRITERS * PER_WRITER, storage.getMetricSamples(serviceId, Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    void concurrentLogsGetUniqueIdsAndAreNotLost() throws Exception {
+        Long serviceId = storage.createService(service("logs")).getId();
+
+        List<List<Long>> ids = runWriters(writer -> {
+            List<Long> created = new ArrayList<>();
+            for (int i = 0; i < PER_WRITER; i++) {
+                Log log = new Log();
+                log.setServiceId(serviceId);
+                log.setTimestamp(LocalDateTime.now());
+                log.setLevel("INFO");
+                log.setMessage("writer " + writer + " line " + i);
+                created.add(storage.createLog(log).getId());
+            }
+            return created;
+        });
+
+        Set<Long> unique = new HashSet<>();
+        ids.forEach(unique::addAll);
+        assertEquals(WRITERS * PER_WRITER, unique.size());
+        assertEquals(WRITERS * PER_WRITER, storage.getLogsForService(serviceId, Integer.MAX_VALUE).size());
+    }
+
+    @Test
+    void concurrentConfigPropertiesGetUniqueIdsAndAreNotLost() throws Exception {
+        Long serviceId = storage.createService(service("config")).getId();
+
+        List<List<Long>> ids = runWriters(writer -> {
+            List<Long> created = new ArrayList<>();
+            for (int i = 0; i < PER_WRITER / 10; i++) {
+                created.add(storage.createConfigProperty(property(serviceId, "key-" + writer + "-" + i)).getId());
+            }
+            return created;
+        });
+
+        Set<Long> unique = new HashSet<>();
+        ids.forEach(unique::addAll);
+        assertEquals(WRITERS * PER_WRITER / 10, unique.size());
+        assertEquals(WRITERS * PER_WRITER / 10, storage.getConfigPropertiesForService(serviceId).size());
+    }
+
+    @Test
+    void concurrentUpdatesNeverResurrectADeletedService() throws Exception {
+        List<Long> serviceIds = new ArrayList<>();
+        for (int i = 0; i < PER_WRITER; i++) {
+            serviceIds.add(storage.createService(service("service-" + i)).getId());
+        }
+
+        // Half the writers update the services while the other half delete them
+        runWriters(writer -> {
+            for (Long id : serviceIds) {
+                if (writer % 2 == 0) {
+                    storage.deleteService(id);
+                } else {
+                    try {
+                        storage.updateServiceStatus(id, ServiceStatus.UP);
+                        storage.updateServiceLastSeen(id);
+                        storage.appendMetricSample(id, System.currentTimeMillis(), 1f, 2f, 0.1f, 0);
+                        storage.createConfigProperty(property(id, "key"));
+                    } catch (IllegalArgumentException e) {
+                        // Deleted by another writer
+                    }
+                }
+            }
+            return null;
+        });
+
+        assertTrue(storage.getAllServices().isEmpty());
+        for (Long id : serviceIds) {
+            assertTrue(storage.getConfigPropertiesForService(id).isEmpty());
+            assertEquals(0, storage.getMetricSamples(id, 10).size());
+        }
+    }
+
+    @Test
+    void configPropertyOfUnknownServiceIsRejected() {
+        Long serviceId = storage.createService(service("deleted")).getId();
+        storage.deleteService(serviceId);
+
+        assertThrows(IllegalArgumentException.class, () -> storage.createConfigProperty(property(serviceId, "key")));
+        assertThrows(IllegalArgumentException.class, () -> storage.createConfigProperty(property(-1L, "key")));
+        assertTrue(storage.getConfigPropertiesForService(serviceId).isEmpty());
+    }
+
+    @Test
+    void podsOfTheSameNameInDifferentNamespacesAreDistinct() {
+        Long defaultPod = storage.createService(pod("default", "api-0")).getId();
+        Long stagingPod = storage.createService(pod("staging", "api-0")).getId();
+
+        assertEquals(defaultPod, storage.getServiceByPodName("default", "api-0").orElseThrow().getId());
+        assertEquals(stagingPod, storage.getServiceByPodName("staging", "api-0").orElseThrow().getId());
+        assertTrue(storage.getServiceByPodName("other", "api-0").isEmpty());
+
+        storage.deleteService(defaultPod);
+        assertTrue(storage.getServiceByPodName("default", "api-0").isEmpty());
+        assertEquals(stagingPod, storage.getServiceByPodName("staging", "api-0").orElseThrow().getId());
+    }
+
+    /**
+     * Run the writers at once, each on its own thread, and collect their results in writer order.
+     */
+    private static <T> List<T> runWriters(Writer<T> writer) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < WRITERS; i++) {
+                int index = i;
+                Callable<T> task = () -> {
+                    start.await();
+                    return writer.write(index);
+                };
+                futures.add(executor.submit(task));
+            }
+            start.countDown();
+
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Service service(String name) {
+        Service service = new Service();
+        service.setName(name);
+        return service;
+    }
+
+    private static Service pod(String namespace, String podName) {
+        Service service = service(podName);
+        service.setNamespace(namespace);
+        service.setPodName(podName);
+        return service;
+    }
+
+    private static ConfigProperty property(Long serviceId, String key) {
+        ConfigProperty property = new ConfigProperty();
+        property.setServiceId(serviceId);
+        property.setKey(key);
+        property.setValue("value");
+        return property;
+    }
+
+    @FunctionalInterface
+    private interface Writer<T> {
+        T write(int writer) throws Exception;
+    }
+}
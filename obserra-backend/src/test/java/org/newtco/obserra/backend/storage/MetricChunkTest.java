@@ -0,0 +1,171 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricChunkTest {
+
+    // Bytes a sample takes uncompressed: a long timestamp, three floats and an int
+    private static final int RAW_SAMPLE_BYTES = 24;
+
+    @Test
+    void randomSamplesRoundTripBitExactly() {
+        Random random = new Random(42);
+        int count = 256;
+        long[] timestamps = new long[count];
+        float[] memoryUsed = new float[count];
+        float[] memoryMax = new float[count];
+        float[] cpuUsage = new float[count];
+        int[] errorCount = new int[count];
+
+        long timestamp = 1_700_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            timestamp += random.nextInt(100_000);
+            timestamps[i] = timestamp;
+            memoryUsed[i] = Float.intBitsToFloat(random.nextInt());
+            memoryMax[i] = random.nextFloat() * 1e9f;
+            cpuUsage[i] = random.nextFloat();
+            errorCount[i] = random.nextInt();
+        }
+
+        assertRoundTrip(count, timestamps, memoryUsed, memoryMax, cpuUsage, errorCount);
+    }
+
+    @Test
+    void deltaOfDeltasAtEveryBucketBoundaryRoundTrip() {
+        // Delta-of-deltas on either side of the 7, 12 and 20 bit buckets, and beyond them
+        long[] deltaOfDeltas = {
+                0, 1, -1, 63, 64, -63, -64, -65,
+                2047, 2048, -2047, -2048, -2049,
+                (1 << 19) - 1, 1 << 19, -(1 << 19), -(1 << 19) - 1,
+                1L << 40, -(1L << 40), Integer.MAX_VALUE, Integer.MIN_VALUE,
+        };
+        int count = deltaOfDeltas.length + 2;
+        long[] timestamps = new long[count];
+        timestamps[0] = 1_700_000_000_000L;
+        timestamps[1] = timestamps[0] + 15_000;
+        long delta = 15_000;
+        for (int i = 2; i < count; i++) {
+            delta += deltaOfDeltas[i - 2];
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+
+        assertRoundTrip(count, timestamps, new float[count], new float[count], new float[count], new int[count]);
+    }
+
+    @Test
+    void extremeTimestampsRoundTrip() {
+        long[] timestamps = {0, Long.MAX_VALUE / 2, -1, Long.MIN_VALUE / 2, 0};
+        int count = timestamps.length;
+
+        assertRoundTrip(count, timestamps, new float[count], new float[count], new float[count], new int[count]);
+    }
+
+    @Test
+    void singleSampleRoundTrips() {
+        MetricChunk chunk = assertRoundTrip(1, new long[]{1_700_000_000_000L}, new float[]{1.5f},
+                                            new float[]{2.5f}, new float[]{0.25f}, new int[]{7});
+
+        assertEquals(1_700_000_000_000L, chunk.firstTimestamp());
+        assertEquals(1_700_000_000_000L, chunk.lastTimestamp());
+    }
+
+    @Test
+    void specialFloatsRoundTripBitExactly() {
+        float[] values = {
+                Float.NaN, Float.intBitsToFloat(0x7fc00001), Float.intBitsToFloat(0xffa00000),
+                Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 0.0f, -0.0f,
+                Float.MIN_VALUE, -Float.MIN_VALUE, Float.MIN_NORMAL, Float.MAX_VALUE, -Float.MAX_VALUE,
+        };
+        int count = values.length;
+        long[] timestamps = new long[count];
+        float[] reversed = new float[count];
+        int[] errorCount = new int[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = 1_700_000_000_000L + i * 15_000L;
+            reversed[i] = values[count - 1 - i];
+            errorCount[i] = i % 2 == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+        }
+
+        assertRoundTrip(count, timestamps, values, reversed, values, errorCount);
+    }
+
+    @Test
+    void regularSamplesCompressAtLeastTenfold() {
+        int count = 256;
+        long[] timestamps = new long[count];
+        float[] memoryUsed = new float[count];
+        float[] memoryMax = new float[count];
+        float[] cpuUsage = new float[count];
+        int[] errorCount = new int[count];
+
+        // Samples every 15 s with a little jitter, a heap growing in whole pages, a fixed maximum, a CPU usage which
+        // idles most of the time and errors which rarely grow
+        Random random = new Random(7);
+        long timestamp = 1_700_000_000_000L;
+        float used = 256 * 1024 * 1024;
+        float cpu = 0.05f;
+        int errors = 12;
+        for (int i = 0; i < count; i++) {
+            timestamp += 15_000 + (random.nextInt(10) == 0 ? random.nextInt(5) - 2 : 0);
+            if (random.nextInt(8) == 0) {
+                used += 4096 * random.nextInt(64);
+            }
+            if (random.nextInt(16) == 0) {
+                cpu = random.nextInt(100) / 100f;
+            }
+            if (random.nextInt(32) == 0) {
+                errors++;
+            }
+            timestamps[i] = timestamp;
+            memoryUsed[i] = used;
+            memoryMax[i] = 1024 * 1024 * 1024;
+            cpuUsage[i] = cpu;
+            errorCount[i] = errors;
+        }
+
+        MetricChunk chunk = assertRoundTrip(count, timestamps, memoryUsed, memoryMax, cpuUsage, errorCount);
+
+        double ratio = (double) count * RAW_SAMPLE_BYTES / chunk.sizeInBytes();
+        assertTrue(ratio >= 10, "compression ratio " + ratio + " is below 10");
+    }
+
+    @Test
+    void emptyChunkIsRejected() {
+        assertThrows(IllegalArgumentException.class,
+                     () -> MetricChunk.encode(1, 0, new long[0], new float[0], new float[0], new float[0], new int[0]));
+    }
+
+    private static MetricChunk assertRoundTrip(int count, long[] timestamps, float[] memoryUsed, float[] memoryMax,
+                                               float[] cpuUsage, int[] errorCount) {
+        MetricChunk chunk = MetricChunk.encode(100, count, timestamps, memoryUsed, memoryMax, cpuUsage, errorCount);
+        assertEquals(count, chunk.count());
+        assertEquals(100, chunk.firstSequence());
+
+        long[] decodedTimestamps = new long[count];
+        float[] decodedMemoryUsed = new float[count];
+        float[] decodedMemoryMax = new float[count];
+        float[] decodedCpuUsage = new float[count];
+        int[] decodedErrorCount = new int[count];
+        chunk.decode(decodedTimestamps, decodedMemoryUsed, decodedMemoryMax, decodedCpuUsage, decodedErrorCount);
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(timestamps[i], decodedTimestamps[i], "timestamp " + i);
+            assertEquals(Float.floatToRawIntBits(memoryUsed[i]), Float.floatToRawIntBits(decodedMemoryUsed[i]),
+                         "memory used " + i);
+            assertEquals(Float.floatToRawIntBits(memoryMax[i]), Float.floatToRawIntBits(decodedMemoryMax[i]),
+                         "memory max " + i);
+            assertEquals(Float.floatToRawIntBits(cpuUsage[i]), Float.floatToRawIntBits(decodedCpuUsage[i]),
+                         "CPU usage " + i);
+            assertEquals(errorCount[i], decodedErrorCount[i], "error count " + i);
+        }
+        assertEquals(timestamps[0], chunk.firstTimestamp());
+        assertEquals(timestamps[count - 1], chunk.lastTimestamp());
+        return chunk;
+    }
+}
@@ -0,0 +1,172 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MetricRollupTest {
+
+    private static final long MINUTE = 60_000;
+    private static final long HOUR   = 60 * MINUTE;
+    private static final long DAY    = 24 * HOUR;
+    private static final long START  = 1_700_000_000_000L / DAY * DAY;
+
+    private record Sample(long timestamp, float memoryUsed, float memoryMax, float cpuUsage, int errorCount) {
+
+        float value(MetricBuckets.Field field) {
+            return switch (field) {
+                case MEMORY_USED -> memoryUsed;
+                case MEMORY_MAX -> memoryMax;
+                case CPU_USAGE -> cpuUsage;
+                case ERROR_COUNT -> errorCount;
+            };
+        }
+    }
+
+    @Test
+    void samplesAreBucketedByTheStartOfTheirWidth() {
+        MetricRollup rollup = new MetricRollup(Duration.ofMinutes(1), Duration.ofDays(1));
+        for (long timestamp : new long[]{START - 1, START, START + MINUTE - 1, START + MINUTE}) {
+            rollup.add(timestamp, 1f, 1f, 1f, 1);
+        }
+
+        MetricBuckets buckets = new MetricBuckets(START - MINUTE, START + 2 * MINUTE - 1, MINUTE);
+        rollup.read(buckets);
+        assertEquals(3, buckets.size());
+        assertEquals(List.of(START - MINUTE, START, START + MINUTE), timestamps(buckets));
+        assertEquals(List.of(1, 2, 1), counts(buckets));
+        assertEquals(START - MINUTE, rollup.coveredFrom());
+    }
+
+    @Test
+    void tierBucketsAreMergedIntoTheStepContainingThem() {
+        MetricRollup rollup = new MetricRollup(Duration.ofMinutes(1), Duration.ofDays(1));
+        // The last millisecond of the first five minutes and the first of the next
+        rollup.add(START + 5 * MINUTE - 1, 1f, 1f, 1f, 1);
+        rollup.add(START + 5 * MINUTE, 1f, 1f, 1f, 1);
+        rollup.add(START + 9 * MINUTE, 1f, 1f, 1f, 1);
+
+        // The range starts inside a bucket, which is aligned down to a multiple of the step
+        MetricBuckets buckets = MetricBuckets.of(START + 90_000, START + 10 * MINUTE - 1, Duration.ofMinutes(5));
+        rollup.read(buckets);
+        assertEquals(List.of(START, START + 5 * MINUTE), timestamps(buckets));
+        assertEquals(List.of(1, 2), counts(buckets));
+    }
+
+    @Test
+    void aggregatesMatchTheRawSamples() {
+        Random random = new Random(42);
+        List<Sample> samples = new ArrayList<>();
+        for (long timestamp = START; timestamp < START + 3 * HOUR; timestamp += 1_000 + random.nextInt(20_000)) {
+            samples.add(new Sample(timestamp, 1e8f + random.nextInt(100_000_000), 4e8f, random.nextFloat(),
+                                   random.nextInt(10)));
+        }
+        // Samples may arrive out of order, and the last value is the one of the newest sample
+        Collections.shuffle(samples, random);
+
+        MetricRollup rollup = new MetricRollup(Duration.ofMinutes(1), Duration.ofDays(1));
+        MetricBuckets raw = MetricBuckets.of(START, START + 3 * HOUR - 1, Duration.ofMinutes(5));
+        for (Sample sample : samples) {
+            rollup.add(sample.timestamp(), sample.memoryUsed(), sample.memoryMax(), sample.cpuUsage(),
+                       sample.errorCount());
+            raw.add(sample.timestamp(), sample.memoryUsed(), sample.memoryMax(), sample.cpuUsage(),
+                    sample.errorCount());
+        }
+        MetricBuckets rolledUp = MetricBuckets.of(START, START + 3 * HOUR - 1, Duration.ofMinutes(5));
+        rollup.read(rolledUp);
+
+        assertEquals(36, raw.size());
+        for (int i = 0; i < raw.size(); i++) {
+            long from = raw.getTimestamp(i);
+            List<Sample> inBucket = samples.stream()
+                    .filter(sample -> sample.timestamp() >= from && sample.timestamp() < from + 5 * MINUTE)
+                    .toList();
+            assertBucket(inBucket, raw, i);
+            assertBucket(inBucket, rolledUp, i);
+        }
+    }
+
+    @Test
+    void coarsestTierWhichDividesTheStepIsRead() {
+        MetricSeries series = new MetricSeries(10_000, null);
+        long first = START + 33 * MINUTE + 30_000;
+        for (long timestamp = first; timestamp < first + 2 * HOUR; timestamp += 15_000) {
+            series.append(timestamp, 1f, 1f, 1f, 1);
+        }
+
+        // Each tier reaches back to the start of its bucket holding the first sample
+        assertEquals(START, series.aggregate(MetricBuckets.of(START, first + 2 * HOUR, Duration.ofHours(1))));
+        assertEquals(START + 30 * MINUTE,
+                     series.aggregate(MetricBuckets.of(START, first + 2 * HOUR, Duration.ofMinutes(10))));
+        assertEquals(START + 33 * MINUTE,
+                     series.aggregate(MetricBuckets.of(START, first + 2 * HOUR, Duration.ofMinutes(2))));
+        assertEquals(Long.MAX_VALUE,
+                     series.aggregate(MetricBuckets.of(START, first + 2 * HOUR, Duration.ofSeconds(90))));
+    }
+
+    @Test
+    void tierWhichReachesBackFurthestIsRead() {
+        MetricSeries series = new MetricSeries(10_000, null);
+        // Two days of samples, of which the one-minute tier keeps the last day
+        for (long timestamp = START; timestamp < START + 2 * DAY; timestamp += MINUTE) {
+            series.append(timestamp, 1f, 1f, 1f, 1);
+        }
+
+        MetricBuckets fiveMinutes = MetricBuckets.of(START, START + 2 * DAY - 1, Duration.ofMinutes(5));
+        assertEquals(START, series.aggregate(fiveMinutes));
+        assertEquals(5, fiveMinutes.getCount(0));
+        assertEquals(5, fiveMinutes.getCount(fiveMinutes.size() - 1));
+
+        MetricBuckets oneMinute = MetricBuckets.of(START, START + 2 * DAY - 1, Duration.ofMinutes(1));
+        assertEquals(START + DAY, series.aggregate(oneMinute));
+        assertEquals(0, oneMinute.getCount(0));
+        assertEquals(1, oneMinute.getCount(oneMinute.size() - 1));
+    }
+
+    private static void assertBucket(List<Sample> expected, MetricBuckets buckets, int i) {
+        assertEquals(expected.size(), buckets.getCount(i), "count of bucket " + i);
+        if (expected.isEmpty()) {
+            return;
+        }
+        Sample newest = expected.stream().max((a, b) -> Long.compare(a.timestamp(), b.timestamp())).orElseThrow();
+        for (MetricBuckets.Field field : MetricBuckets.Field.values()) {
+            String name = field + " of bucket " + i;
+            double sum = 0;
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (Sample sample : expected) {
+                sum += sample.value(field);
+                min = Math.min(min, sample.value(field));
+                max = Math.max(max, sample.value(field));
+            }
+            float average = (float) (sum / expected.size());
+            // The tier sums each minute in single precision
+            assertEquals(average, buckets.getAverage(i, field), Math.abs(average) * 1e-6, name);
+            assertEquals(min, buckets.getMin(i, field), name);
+            assertEquals(max, buckets.getMax(i, field), name);
+            assertEquals(newest.value(field), buckets.getLast(i, field), name);
+        }
+    }
+
+    private static List<Long> timestamps(MetricBuckets buckets) {
+        List<Long> timestamps = new ArrayList<>();
+        for (int i = 0; i < buckets.size(); i++) {
+            timestamps.add(buckets.getTimestamp(i));
+        }
+        return timestamps;
+    }
+
+    private static List<Integer> counts(MetricBuckets buckets) {
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 0; i < buckets.size(); i++) {
+            counts.add(buckets.getCount(i));
+        }
+        return counts;
+    }
+}
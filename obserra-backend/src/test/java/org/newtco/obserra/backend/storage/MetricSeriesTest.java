@@ -0,0 +1,163 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricSeriesTest {
+
+    private static final long START = 1_700_000_000_000L;
+    private static final long STEP  = 15_000;
+
+    @Test
+    void latestReadsAcrossUncompressedAndCompressedSamples() {
+        MetricSeries series = new MetricSeries(2000, 300, null);
+        for (int i = 0; i < 1000; i++) {
+            append(series, i);
+        }
+
+        assertEquals(1000, series.size());
+        MetricSamples samples = series.latest(1000);
+        assertEquals(1000, samples.size());
+        for (int n = 0; n < samples.size(); n++) {
+            assertSample(samples, n, 999 - n);
+        }
+    }
+
+    @Test
+    void betweenReadsOnlyTheWindowNewestFirst() {
+        MetricSeries series = new MetricSeries(2000, 300, null);
+        for (int i = 0; i < 1000; i++) {
+            append(series, i);
+        }
+
+        MetricSamples.Builder builder = new MetricSamples.Builder();
+        long oldest = series.between(START + 100 * STEP, START + 899 * STEP, Integer.MAX_VALUE, builder);
+        MetricSamples samples = builder.build();
+
+        assertEquals(START, oldest);
+        assertEquals(800, samples.size());
+        for (int n = 0; n < samples.size(); n++) {
+            assertSample(samples, n, 899 - n);
+        }
+    }
+
+    @Test
+    void outOfOrderSampleIsInsertedInTimestampOrder() {
+        MetricSeries series = new MetricSeries(100, null);
+        append(series, 0);
+        append(series, 2);
+        append(series, 1);
+
+        MetricSamples samples = series.latest(3);
+        assertSample(samples, 0, 2);
+        assertSample(samples, 1, 1);
+        assertSample(samples, 2, 0);
+    }
+
+    @Test
+    void droppedChunksGoToTheOverflowOldestFirst() {
+        List<MetricChunk> dropped = new ArrayList<>();
+        MetricSeries series = new MetricSeries(512, 256, null, dropped::add);
+        for (int i = 0; i < 2048; i++) {
+            append(series, i);
+        }
+
+        long retained = series.size();
+        long overflowed = dropped.stream().mapToLong(MetricChunk::count).sum();
+        assertEquals(2048, retained + overflowed);
+
+        // The overflow and the series together still hold every sample, in order
+        long expected = START;
+        for (MetricChunk chunk : dropped) {
+            assertEquals(expected, chunk.firstTimestamp());
+            expected = chunk.lastTimestamp() + STEP;
+        }
+        MetricSamples samples = series.latest((int) retained);
+        assertEquals(expected, samples.getTimestamp(samples.size() - 1));
+        assertSample(samples, 0, 2047);
+    }
+
+    @Test
+    void expiredUncompressedSamplesGoToTheOverflow() throws InterruptedException {
+        List<MetricChunk> dropped = new ArrayList<>();
+        MetricSeries series = new MetricSeries(1000, 300, Duration.ofMillis(200), dropped::add);
+        long first = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            series.append(first + i, 1000f + i, 4096f, i / 1000f, i);
+        }
+        long bufferBytes = series.sizeInBytes();
+        Thread.sleep(400);
+        series.append(System.currentTimeMillis(), 0f, 4096f, 0f, 0);
+
+        assertEquals(1, series.size());
+        assertEquals(1, dropped.size());
+        MetricChunk chunk = dropped.getFirst();
+        assertEquals(1, chunk.firstSequence());
+        assertEquals(20, chunk.count());
+        long[] timestamps = new long[20];
+        float[] memoryUsed = new float[20];
+        float[] memoryMax = new float[20];
+        float[] cpuUsage = new float[20];
+        int[] errorCount = new int[20];
+        chunk.decode(timestamps, memoryUsed, memoryMax, cpuUsage, errorCount);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(first + i, timestamps[i]);
+            assertEquals(1000f + i, memoryUsed[i]);
+            assertEquals(i, errorCount[i]);
+        }
+        // The dropped chunk is no longer counted
+        assertEquals(bufferBytes, series.sizeInBytes());
+    }
+
+    @Test
+    void sizeInBytesCountsTheUncompressedBufferAndTheRetainedChunks() {
+        List<MetricChunk> dropped = new ArrayList<>();
+        MetricSeries series = new MetricSeries(1024, 256, null, dropped::add);
+        int hotBytes = 256 * 24;
+        for (int i = 0; i < 256; i++) {
+            append(series, i);
+        }
+        assertEquals(hotBytes, series.sizeInBytes());
+
+        for (int i = 256; i < 80 * 256; i++) {
+            append(series, i);
+        }
+        // Four chunks are retained besides the full uncompressed buffer, and the bytes of the dropped ones are released
+        assertEquals(4 * 256, series.size() - 256);
+        long chunkBytes = series.sizeInBytes() - hotBytes;
+        assertTrue(chunkBytes > 0 && chunkBytes < 4 * 256 * 24 / 2, chunkBytes + " bytes");
+        assertTrue(dropped.stream().mapToLong(MetricChunk::sizeInBytes).sum() > 10 * chunkBytes);
+    }
+
+    @Test
+    void seriesWithoutOverflowKeepsTheNewestSamples() {
+        MetricSeries series = new MetricSeries(100, null);
+        for (int i = 0; i < 250; i++) {
+            append(series, i);
+        }
+
+        assertEquals(100, series.size());
+        MetricSamples samples = series.latest(200);
+        assertEquals(100, samples.size());
+        assertSample(samples, 0, 249);
+        assertSample(samples, 99, 150);
+    }
+
+    private static void append(MetricSeries series, int i) {
+        series.append(START + i * STEP, 1000f + i, 4096f, i / 1000f, i);
+    }
+
+    private static void assertSample(MetricSamples samples, int n, int i) {
+        assertEquals(START + i * STEP, samples.getTimestamp(n), "timestamp " + n);
+        assertEquals(1000f + i, samples.getMemoryUsed(n), "memory used " + n);
+        assertEquals(4096f, samples.getMemoryMax(n), "memory max " + n);
+        assertEquals(i / 1000f, samples.getCpuUsage(n), "CPU usage " + n);
+        assertEquals(i, samples.getErrorCount(n), "error count " + n);
+    }
+}
@@ -0,0 +1,268 @@
+package org.newtco.obserra.backend.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WriteAheadLogTest {
+
+    private static final byte TYPE = 1;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recordsAreReadBackInOrderAcrossSegments() throws IOException {
+        try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+            wal.awaitDurable(wal.append(TYPE, bytes("a")));
+            wal.append(TYPE, bytes("b"));
+            assertEquals(2, wal.rotate());
+            wal.append(TYPE, bytes("c"));
+            assertEquals(1, wal.segmentPosition());
+        }
+
+        assertEquals(List.of("1:0:a", "1:1:b", "2:0:c"), replay());
+    }
+
+    @Test
+    void tornTailIsTruncatedOnReplay() throws IOException {
+        try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+            wal.append(TYPE, bytes("a"));
+            wal.append(TYPE, bytes("b"));
+        }
+        Path segment = onlySegment();
+        long complete = Files.size(segment);
+
+        // A crash during a write leaves the start of a record behind
+        byte[] torn = WriteAheadLog.frame(TYPE, bytes("torn"));
+        Files.write(segment, Arrays.copyOf(torn, torn.length - 2), StandardOpenOption.APPEND);
+
+        assertEquals(List.of("1:0:a", "1:1:b"), replay());
+        assertEquals(complete, Files.size(segment));
+
+        // The log continues in a new segment after the truncated one
+        try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+            wal.append(TYPE, bytes("c"));
+        }
+        assertEquals(List.of("1:0:a", "1:1:b", "2:0:c"), replay());
+    }
+
+    @Test
+    void readingStopsAtACorruptRecord() throws IOException {
+        try (WriteAheadLog wal = new WriteAheadLog(directory)) {
+            wal.append(TYPE, bytes("a"));
+            wal.append(TYPE, bytes("b"));
+            wal.append(TYPE, bytes("c"));
+        }
+        Path segment = onlySegment();
+        byte[] content = Files.readAllBytes(segment);
+        int second = WriteAheadLog.frame(TYPE, bytes("a")).length;
+        content[second + 9] ^= 1;
+        Files.write(segment, content);
+
+        assertEquals(List.of("1:0:a"), replay());
+    }
+
+    @Test
+    void recordsOfAFailedFlushAreWrittenAgainBeforeLaterOnes() throws IOException {
+        List<FaultyChannel> channels = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(directory, path -> {
+            FaultyChannel channel = new FaultyChannel(path);
+            channels.add(channel);
+            return channel;
+        })) {
+            long a = wal.append(TYPE, bytes("a"));
+            channels.getLast().failForces = 1;
+            assertThrows(IOException.class, () -> wal.awaitDurable(a));
+
+            // The record of the failed flush is neither lost nor skipped by the next flush
+            long b = wal.append(TYPE, bytes("b"));
+            wal.awaitDurable(b);
+            wal.awaitDurable(a);
+        }
+
+        assertEquals(List.of("1:0:a", "1:1:b"), replay());
+    }
+
+    @Test
+    void failedRotationKeepsTheSegmentPosition() throws IOException {
+        List<FaultyChannel> channels = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(directory, path -> {
+            FaultyChannel channel = new FaultyChannel(path);
+            channels.add(channel);
+            return channel;
+        })) {
+            wal.append(TYPE, bytes("a"));
+            wal.append(TYPE, bytes("b"));
+            channels.getLast().failForces = 1;
+            assertThrows(IOException.class, wal::rotate);
+            assertEquals(2, wal.segmentPosition());
+
+            assertEquals(2, wal.rotate());
+            assertEquals(0, wal.segmentPosition());
+        }
+
+        assertEquals(List.of("1:0:a", "1:1:b"), replay());
+    }
+
+    @Test
+    void failureIsStickyWhenTheSegmentCannotBeTruncated() throws IOException {
+        FaultyChannel[] channel = new FaultyChannel[1];
+        WriteAheadLog wal = new WriteAheadLog(directory, path -> channel[0] = new FaultyChannel(path));
+        long a = wal.append(TYPE, bytes("a"));
+        channel[0].failForces = 1;
+        channel[0].failTruncates = true;
+        assertThrows(IOException.class, () -> wal.awaitDurable(a));
+
+        long b = wal.append(TYPE, bytes("b"));
+        IOException later = assertThrows(IOException.class, () -> wal.awaitDurable(b));
+        assertEquals("force failed", later.getCause().getMessage());
+        assertThrows(IOException.class, wal::close);
+    }
+
+    private List<String> replay() throws IOException {
+        List<String> records = new ArrayList<>();
+        WriteAheadLog.replay(directory, 0, (segment, index, type, payload) ->
+                records.add(segment + ":" + index + ":" + new String(payload, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    private Path onlySegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = files.toList();
+            assertEquals(1, segments.size());
+            return segments.getFirst();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A segment channel whose forces and truncations can be made to fail.
+     */
+    private static class FaultyChannel extends FileChannel {
+
+        private final FileChannel delegate;
+        int     failForces;
+        boolean failTruncates;
+
+        FaultyChannel(Path path) throws IOException {
+            this.delegate = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                             StandardOpenOption.APPEND);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failForces > 0) {
+                failForces--;
+                throw new IOException("force failed");
+            }
+            delegate.force(metaData);
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncates) {
+                throw new IOException("truncate failed");
+            }
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}